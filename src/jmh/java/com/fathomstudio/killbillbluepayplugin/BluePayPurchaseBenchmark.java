@@ -0,0 +1,218 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbluepayplugin;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.joda.time.DateTime;
+import org.killbill.billing.account.api.Account;
+import org.killbill.billing.account.api.AccountUserApi;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillDataSource;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillLogService;
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.payment.plugin.api.PaymentPluginApiException;
+import org.killbill.billing.payment.plugin.api.PaymentTransactionInfoPlugin;
+import org.killbill.billing.plugin.api.PluginCallContext;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.BundleContext;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end purchasePayment against the {@link BluePayGatewaySimulator} and an embedded H2 database.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BluePayPurchaseBenchmark {
+	
+	private static final UUID TENANT_ID = UUID.randomUUID();
+	private static final UUID ACCOUNT_ID = UUID.randomUUID();
+	private static final UUID PAYMENT_METHOD_ID = UUID.randomUUID();
+	private static final String MERCHANT = "100221257378";
+	private static final String SECRET_KEY = "ABCDEFGHIJKLMNOPQRSTUVWXYZ012345";
+	
+	// when false, the credentials and token caches are emptied before each purchase
+	@Param({"true", "false"})
+	public boolean cached;
+	
+	// simulated gateway response time, in milliseconds
+	@Param({"0"})
+	public long gatewayLatency;
+	
+	private BluePayGatewaySimulator gateway;
+	private JdbcDataSource h2;
+	private Connection keepAlive;
+	private BluePayHttpClient httpClient;
+	private BluePayCredentialsCache credentialsCache;
+	private BluePayPaymentMethodCache paymentMethodCache;
+	private BluePayPaymentPluginApi api;
+	private CallContext context;
+	
+	@Setup
+	public void setUp() throws Exception {
+		gateway = new BluePayGatewaySimulator()
+				.addMerchant(MERCHANT, SECRET_KEY)
+				.setLatency(gatewayLatency, 0);
+		
+		h2 = new JdbcDataSource();
+		h2.setURL("jdbc:h2:mem:bluepay-" + UUID.randomUUID() + ";MODE=MySQL");
+		// the in-memory database lives as long as one connection is open
+		keepAlive = h2.getConnection();
+		createTables(keepAlive);
+		
+		final Properties properties = new Properties();
+		
+		final BundleContext bundleContext = nullProxy(BundleContext.class);
+		final BluePayDao dao = new BluePayDao(new StaticDataSource(bundleContext, h2));
+		httpClient = new BluePayHttpClient(properties);
+		credentialsCache = new BluePayCredentialsCache(properties, dao);
+		paymentMethodCache = new BluePayPaymentMethodCache(properties);
+		final BluePay bluePay = new BluePay(httpClient, gateway.getGatewayUrl());
+		final SilentLogService logService = new SilentLogService(bundleContext);
+		api = new BluePayPaymentPluginApi(properties, logService, new StubKillbillAPI(bundleContext), dao, bluePay, credentialsCache, paymentMethodCache,
+				new BluePayPaymentMethodRefresher(properties, logService, bluePay, dao), BluePayBulkhead.registry(properties), BluePayTimer.registry());
+		context = new PluginCallContext(BluePayActivator.PLUGIN_NAME, DateTime.now(), TENANT_ID);
+	}
+	
+	@TearDown
+	public void tearDown() throws Exception {
+		httpClient.close();
+		gateway.close();
+		keepAlive.close();
+		if (gateway.getSealFailureCount() > 0) {
+			throw new IllegalStateException(gateway.getSealFailureCount() + " requests were rejected by the simulator");
+		}
+	}
+	
+	@Benchmark
+	public PaymentTransactionInfoPlugin purchasePayment() throws PaymentPluginApiException {
+		if (!cached) {
+			credentialsCache.invalidate(TENANT_ID);
+			paymentMethodCache.invalidate(PAYMENT_METHOD_ID);
+		}
+		return api.purchasePayment(ACCOUNT_ID, UUID.randomUUID(), UUID.randomUUID(), PAYMENT_METHOD_ID, new BigDecimal("25.00"), Currency.USD, Collections.<PluginProperty>emptyList(), context);
+	}
+	
+	private static void createTables(final Connection connection) throws SQLException {
+		try (Statement statement = connection.createStatement()) {
+			statement.execute("CREATE TABLE `bluePay_paymentMethods` (`id` INT AUTO_INCREMENT PRIMARY KEY, `tenantId` VARCHAR(255), `kbAccountId` VARCHAR(255), `paymentMethodId` VARCHAR(255) NOT NULL UNIQUE, `transactionId` VARCHAR(255) NOT NULL, `cardType` VARCHAR(32), `lastFour` VARCHAR(4), `maskedAccount` VARCHAR(255), `bankName` VARCHAR(255), `expiration` VARCHAR(8))");
+			for (final String column : new String[]{"paymentMethodId", "transactionId", "cardType", "lastFour", "kbAccountId"}) {
+				statement.execute("CREATE INDEX `INDEX_bluePay_paymentMethods_ON_" + column + "` ON `bluePay_paymentMethods` (`tenantId`, `" + column + "`)");
+			}
+			statement.execute("CREATE TABLE `bluePay_credentials` (`id` INT AUTO_INCREMENT PRIMARY KEY, `tenantId` VARCHAR(255) NOT NULL UNIQUE, `accountId` VARCHAR(255), `secretKey` VARCHAR(255), `test` BOOLEAN)");
+			statement.execute("CREATE TABLE `bluePay_transactions` (`id` BIGINT AUTO_INCREMENT PRIMARY KEY, `tenantId` VARCHAR(255) NOT NULL, `kbAccountId` VARCHAR(255) NOT NULL, `kbPaymentId` VARCHAR(255) NOT NULL, `kbTransactionId` VARCHAR(255) NOT NULL UNIQUE, `kbPaymentMethodId` VARCHAR(255), `transactionType` VARCHAR(32) NOT NULL, `amount` DECIMAL(15, 9), `currency` CHAR(3), `status` VARCHAR(32) NOT NULL, `bluePayTransactionId` VARCHAR(255), `gatewayStatus` VARCHAR(32), `message` TEXT, `avs` VARCHAR(8), `cvv2` VARCHAR(8), `authCode` VARCHAR(32), `maskedAccount` VARCHAR(255), `cardType` VARCHAR(32), `createdDate` TIMESTAMP NOT NULL, `effectiveDate` TIMESTAMP NOT NULL)");
+			for (final String column : new String[]{"kbPaymentId", "kbTransactionId", "bluePayTransactionId", "maskedAccount", "status"}) {
+				statement.execute("CREATE INDEX `INDEX_bluePay_transactions_ON_" + column + "` ON `bluePay_transactions` (`tenantId`, `" + column + "`)");
+			}
+			statement.execute("INSERT INTO `bluePay_credentials` (`tenantId`, `accountId`, `secretKey`, `test`) VALUES ('" + TENANT_ID + "', '" + MERCHANT + "', '" + SECRET_KEY + "', TRUE)");
+			statement.execute("INSERT INTO `bluePay_paymentMethods` (`paymentMethodId`, `transactionId`) VALUES ('" + PAYMENT_METHOD_ID + "', '100366289484')");
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	static <T> T nullProxy(final Class<T> type) {
+		return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, new InvocationHandler() {
+			@Override
+			public Object invoke(final Object proxy, final Method method, final Object[] args) {
+				if (method.getReturnType() == boolean.class) {
+					return false;
+				} else if (method.getReturnType().isPrimitive() && method.getReturnType() != void.class) {
+					return 0;
+				}
+				return null;
+			}
+		});
+	}
+	
+	private static class StaticDataSource extends OSGIKillbillDataSource {
+		
+		private final DataSource dataSource;
+		
+		StaticDataSource(final BundleContext context, final DataSource dataSource) {
+			super(context);
+			this.dataSource = dataSource;
+		}
+		
+		@Override
+		public DataSource getDataSource() {
+			return dataSource;
+		}
+	}
+	
+	private static class StubKillbillAPI extends OSGIKillbillAPI {
+		
+		private final AccountUserApi accountUserApi = (AccountUserApi) Proxy.newProxyInstance(AccountUserApi.class.getClassLoader(), new Class<?>[]{AccountUserApi.class}, new InvocationHandler() {
+			@Override
+			public Object invoke(final Object proxy, final Method method, final Object[] args) {
+				return method.getName().equals("getAccountById") ? nullProxy(Account.class) : null;
+			}
+		});
+		
+		StubKillbillAPI(final BundleContext context) {
+			super(context);
+		}
+		
+		@Override
+		public AccountUserApi getAccountUserApi() {
+			return accountUserApi;
+		}
+	}
+	
+	private static class SilentLogService extends OSGIKillbillLogService {
+		
+		SilentLogService(final BundleContext context) {
+			super(context);
+		}
+		
+		@Override
+		public void log(final int level, final String message) {
+		}
+		
+		@Override
+		public void log(final int level, final String message, final Throwable exception) {
+		}
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbluepayplugin;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.CharBuffer;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading whole bpdailyreport2 reports: parsing alone, and streamed from the {@link BluePayGatewaySimulator} through
+ * the callback and iterator APIs. Run with {@code -jvmArgs -Xmx64m} to check large reports are read in constant memory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BluePayReportBenchmark {
+	
+	private static final BluePayCredentials CREDENTIALS = new BluePayCredentials("100221257378", "ABCDEFGHIJKLMNOPQRSTUVWXYZ012345", true);
+	
+	@Param({"100000"})
+	public int rows;
+	
+	private String report;
+	private BluePayGatewaySimulator gateway;
+	private BluePayHttpClient httpClient;
+	private BluePay bluePay;
+	private BluePayReportRequest request;
+	
+	@Setup
+	public void setUp() throws Exception {
+		final StringBuilder csv = new StringBuilder("\"id\",\"payment_type\",\"trans_type\",\"amount\",\"status\",\"message\",\"name2\"\r\n");
+		for (int i = 0; i < 10000; i++) {
+			csv.append('"').append(200000000000L + i).append("\",\"CREDIT\",\"SALE\",\"").append(i % 500).append(".25\",\"1\",\"Approved Sale\",\"Doe, \"\"JD\"\"\"\r\n");
+		}
+		report = csv.toString();
+		
+		gateway = new BluePayGatewaySimulator()
+				.addMerchant(CREDENTIALS.getAccountId(), CREDENTIALS.getSecretKey())
+				.setReportRows(rows);
+		httpClient = new BluePayHttpClient(new Properties());
+		bluePay = new BluePay(httpClient, gateway.getGatewayUrl());
+		request = BluePayReportRequest.settledTransactions(CREDENTIALS, "2017-06-01", "2017-06-30").build();
+	}
+	
+	@TearDown
+	public void tearDown() throws IOException {
+		httpClient.close();
+		gateway.close();
+	}
+	
+	/**
+	 * Parses 10000 rows already in memory.
+	 */
+	@Benchmark
+	public long parse() throws IOException {
+		final Total total = new Total();
+		final BluePayReportParser parser = new BluePayReportParser(total);
+		parser.feed(CharBuffer.wrap(report));
+		parser.finish();
+		return total.count;
+	}
+	
+	@Benchmark
+	public long streamCallback() throws InterruptedException, ExecutionException {
+		final Total total = new Total();
+		bluePay.processReport(request, total).get();
+		return total.count;
+	}
+	
+	@Benchmark
+	public BigDecimal streamIterator() throws IOException {
+		BigDecimal sum = BigDecimal.ZERO;
+		try (BluePayReportReader reader = bluePay.openReport(request)) {
+			while (reader.hasNext()) {
+				sum = sum.add(reader.next().getAmount());
+			}
+		}
+		return sum;
+	}
+	
+	private static class Total implements BluePayReportHandler {
+		
+		private long count;
+		private BigDecimal amount = BigDecimal.ZERO;
+		
+		@Override
+		public void onRow(final BluePayReportRow row) {
+			count++;
+			amount = amount.add(row.getAmount());
+		}
+	}
+}
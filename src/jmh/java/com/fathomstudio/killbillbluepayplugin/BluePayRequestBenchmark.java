@@ -0,0 +1,98 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbluepayplugin;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building requests and parsing responses, without any network I/O.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BluePayRequestBenchmark {
+	
+	static final String SALE_RESPONSE = "https://secure.bluepay.com/interfaces/bp10emu?Result=APPROVED&INVOICE_ID=100366289485"
+			+ "&BANK_NAME=&MESSAGE=Approved%20Sale&AUTH_CODE=TC1234&AVS=_&CVV2=_&ORDER_ID=7d2b4e8c-1f5a-4f5e-9d1c-2f0e3b4a5c6d"
+			+ "&PAYMENT_ACCOUNT=xxxxxxxxxxxx1111&CARD_TYPE=VISA&RRNO=100366289485";
+	
+	private static final BluePayCredentials CREDENTIALS = new BluePayCredentials("100221257378", "ABCDEFGHIJKLMNOPQRSTUVWXYZ012345", true);
+	
+	private BluePay bluePay;
+	private BluePayTransactionQuery query;
+	
+	@Setup
+	public void setUp() {
+		bluePay = new BluePay(null, BluePay.DEFAULT_GATEWAY_URL);
+		query = new BluePayTransactionQuery(CREDENTIALS, "100366289485", "2017-01-01", "2017-12-31", true);
+	}
+	
+	@Benchmark
+	public HttpPost buildSaleRequest() {
+		return bluePay.buildRequest(BluePayTransactionRequest.sale(CREDENTIALS, "25.00")
+				.transactionId("100366289484")
+				.memo("Kill Bill payment.")
+				.orderId("7d2b4e8c-1f5a-4f5e-9d1c-2f0e3b4a5c6d")
+				.build());
+	}
+	
+	@Benchmark
+	public HttpPost buildAuthRequest() {
+		return bluePay.buildRequest(BluePayTransactionRequest.auth(CREDENTIALS, "0.00")
+				.name("Jane", "Doe")
+				.address("123 Main St.", "Apt 4", "Springfield", "IL", "62701", "US")
+				.phone("2175550100")
+				.email("jane.doe@example.com")
+				.creditCard("4111111111111111", "1225", "123")
+				.build());
+	}
+	
+	@Benchmark
+	public Map<String, String> getQueryMap() {
+		return BluePay.getQueryMap(SALE_RESPONSE);
+	}
+	
+	@Benchmark
+	public BluePayResponse parseReportResponse() throws IOException {
+		final HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+		response.setEntity(new StringEntity("id=100366289485&payment_type=CREDIT&trans_type=SALE&amount=25.00&status=1&message=Approved%20Sale"));
+		return bluePay.parseResponse(query, response);
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbluepayplugin;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tamper Proof Seal computation: the hashing done for every gateway call. The {@code legacy} benchmarks keep the
+ * previous getInstance/getBytes/StringBuffer implementation as a baseline for {@link BluePaySeal}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BluePaySealBenchmark {
+	
+	private static final BluePayCredentials CREDENTIALS = new BluePayCredentials("100221257378", "ABCDEFGHIJKLMNOPQRSTUVWXYZ012345", true);
+	
+	private BluePayTransactionRequest sale;
+	private String message;
+	
+	@Setup
+	public void setUp() {
+		sale = BluePayTransactionRequest.sale(CREDENTIALS, "25.00").transactionId("100366289484").build();
+		message = "ABCDEFGHIJKLMNOPQRSTUVWXYZ012345100221257378SALE25.000100366289484TEST";
+	}
+	
+	@Benchmark
+	public String calcTPS() {
+		return sale.calcTPS();
+	}
+	
+	@Benchmark
+	public String calcReportTPS() {
+		return BluePayRequest.calcReportTPS(CREDENTIALS, "2017-01-01", "2017-12-31");
+	}
+	
+	@Benchmark
+	public String sha512() {
+		return BluePaySeal.sha512().update(message).toHex();
+	}
+	
+	@Benchmark
+	public String md5() {
+		return BluePaySeal.md5().update(message).toHex();
+	}
+	
+	@Benchmark
+	public String legacyCalcTPS() throws NoSuchAlgorithmException {
+		return legacyDigest("SHA-512", "ABCDEFGHIJKLMNOPQRSTUVWXYZ012345" + "100221257378" + "SALE" + "25.00" + "0" + "" + "" + "" + "" + "100366289484" + "TEST");
+	}
+	
+	@Benchmark
+	public String legacySha512() throws NoSuchAlgorithmException {
+		return legacyDigest("SHA-512", message);
+	}
+	
+	@Benchmark
+	public String legacyMd5() throws NoSuchAlgorithmException {
+		return legacyDigest("MD5", message);
+	}
+	
+	private static String legacyDigest(final String algorithm, final String message) throws NoSuchAlgorithmException {
+		final MessageDigest digest = MessageDigest.getInstance(algorithm);
+		final byte[] dig = digest.digest(message.getBytes());
+		final StringBuffer code = new StringBuffer();
+		for (int i = 0; i < dig.length; ++i) {
+			code.append(Integer.toHexString(0x0100 + (dig[i] & 0x00FF)).substring(1));
+		}
+		return code.toString();
+	}
+}
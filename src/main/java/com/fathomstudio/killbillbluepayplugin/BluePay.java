@@ -1,1043 +1,343 @@
 package com.fathomstudio.killbillbluepayplugin;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.apache.http.Consts;
+import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.utils.URLEncodedUtils;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.util.EntityUtils;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.io.InterruptedIOException;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 
 /**
  * BluePayPayment is an interface to Bluepay's payment gateway. Included are functions to call
- * numerous BluePay APIs for doing transactions, getting report data, etc.                           
+ * numerous BluePay APIs for doing transactions, getting report data, etc.
+ *
+ * The client holds no per-call state: every call is described by an immutable {@link BluePayRequest} and answered
+ * with an immutable {@link BluePayResponse}, so one instance is shared by all payment threads.
  */
 
 public class BluePay
 {
-	// required parameters
-	private String BP_URL = "";
-	private String BP_MERCHANT = "";
-	private String BP_SECRET_KEY = "";
-	private String BP_MODE = "";
+	public static final String DEFAULT_GATEWAY_URL = "https://secure.bluepay.com/interfaces/";
 	
-	// required for sale, auth
-	private String TRANSACTION_TYPE = "";
-	private String PAYMENT_TYPE = "";
-	private String CARD_NUM = "";
-	private String CVCCVV2 = "";
-	private String CARD_EXPIRE = "";
-	private String ACH_ROUTING = "";
-	private String ACH_ACCOUNT = "";
-	private String ACH_ACCOUNT_TYPE = "";
-	private String DOC_TYPE = "";
-	private String AMOUNT = "";
-	private String AMOUNT_TAX = "";
-	private String AMOUNT_TIP = "";
-	private String AMOUNT_FOOD = "";
-	private String AMOUNT_MISC = "";
-	private String NAME1 = "";
-	private String NAME2 = "";
-	private String ADDR1 = "";
-	private String ADDR2 = "";
-	private String CITY = "";
-	private String STATE = "";
-	private String ZIP = "";
-	private String COUNTRY = "";
-	private String PHONE = "";
-	private String EMAIL = "";
-	private String SWIPE = "";
-	
-	// optional parameters
-	private String MEMO = "";
-	private String CUSTOM_ID1 = "";
-	private String CUSTOM_ID2 = "";
-	private String ORDER_ID = "";
-	private String INVOICE_ID = "";
-	
-	// rebilling parameters
-	private String REBILLING = "0";
-	private String REB_FIRST_DATE = "";
-	private String REB_EXPR = "";
-	private String REB_CYCLES = "";
-	private String REB_AMOUNT = "";
-	private String NEXT_DATE = "";
-	private String NEXT_AMOUNT = "";
-	private String REBILL_STATUS = "";
-	private String REBILL_ID = "";
-	private String TEMPLATE_ID = "";
-	
-	// reporting parameters
-	private String REPORT_START = "";
-	private String REPORT_END = "";
-	private String DO_NOT_ESCAPE = "";
-	private String QUERY_BY_SETTLEMENT = "";
-	private String QUERY_BY_HIERARCHY = "";
-	private String EXCLUDE_ERRORS = "";
-	
-	// generating Simple Hosted Payment Form URL fields
-	private String DBA = "";
-	private String RETURN_URL = "";
-	private String DISCOVER_IMAGE = "";
-	private String AMEX_IMAGE = "";
-	private String PROTECT_AMOUNT = "No";
-	private String REB_PROTECT = "Yes";
-	private String PROTECT_CUSTOM_ID1 = "No";
-	private String PROTECT_CUSTOM_ID2 = "No";
-	private String SHPF_FORM_ID = "mobileform01";
-	private String RECEIPT_FORM_ID = "mobileresult01";
-	private String REMOTE_URL = "";
-	private String CARD_TYPES = "";
-	private String RECEIPT_TPS_DEF = "";
-	private String RECEIPT_TPS_STRING = "";
-	private String RECEIPT_TAMPER_PROOF_SEAL = "";
-	private String RECEIPT_URL = "";
-	private String BP10EMU_TPS_DEF = "";
-	private String BP10EMU_TPS_STRING = "";
-	private String BP10EMU_TAMPER_PROOF_SEAL = "";
-	private String SHPF_TPS_DEF = "";
-	private String SHPF_TPS_STRING = "";
-	private String SHPF_TAMPER_PROOF_SEAL = "";
-	
-	// private String MASTER_ID = "";
-	private String RRNO = "";
-	private String ID = "";
-	private String API = "";
-	public String CUSTOMER_IP = "";
-	
-	private HashMap<String, String> response = new HashMap<String, String>();
+	private final BluePayHttpClient httpClient;
+	private final String gatewayUrl;
+	private final BluePayRegistry<BluePayCircuitBreaker> circuitBreakers;
+	private final BluePayRegistry<BluePayConcurrencyLimiter> concurrencyLimiters;
+	private final BluePayRegistry<BluePayRateLimiter> rateLimiters;
+	private final BluePayRegistry<BluePayTimer> timers = BluePayTimer.registry();
 	
 	/**
-	 * Sole constructor.  Requires merchant credentials.
-	 *
-	 * @param merchant A string containing the merchant's Account ID.  A 12-digit numeral.
-	 * @param secretKey A string containing the merchant's Secret Key.  32 characters, alphanumeric.
-	 * @param mode A string indicating the desired processing mode, "TEST" or "LIVE"
+	 * @param httpClient The shared, non-blocking client used to reach the gateway.
+	 * @param gatewayUrl The base URL the API names (bp10emu, stq, ...) are appended to, ending with a slash;
+	 *                   {@link #DEFAULT_GATEWAY_URL} unless pointing at e.g. a simulator.
 	 *
 	 */
-	
-	public BluePay(String merchant, String secretKey, String mode)
+	public BluePay(BluePayHttpClient httpClient, String gatewayUrl)
 	{
-		BP_MERCHANT = merchant;
-		BP_SECRET_KEY = secretKey;
-		BP_MODE = mode;
-	}
-	
-	/**
-	 * Sets up object to process a SALE.  A SALE both authorizes the card and captures the funds in one step.
-	 *
-	 * In general, a SALE is the correct transaction type to use.  Use AUTH only if you have special needs.
-	 *
-	 * @param amount A string containing the amount of the transaction, e.g. "10.00"
-	 * @param transactionID - the transaction id of a previous sale.  Uses the customer and payment information of previous transaction.    
-	 *
-	 */
-	public void sale(HashMap<String, String> params) {
-		TRANSACTION_TYPE = "SALE";
-		AMOUNT = params.get("amount");
-		API = "bp10emu";
-		if (params.containsKey("transactionID")) {
-			RRNO = params.get("transactionID");
-		}
-	}
-	
-	/**
-	 * Sets up the object to process an AUTH.  An auth authorizes payment and garuntees the funds for later 
-	 * CAPTURE, but it does not transfer funds.  You must perform a CAPTURE or use Autocap.
-	 *
-	 * @param amount A string containing the amount of the transaction, e.g. "10.00"
-	 * @param transactionID An optional string containing the 12-digit transaction ID of the transaction to run a sale against.
-	 *
-	 */
-	
-	public void auth(HashMap<String, String> params) {
-		TRANSACTION_TYPE = "AUTH";
-		API = "bp10emu";
-		AMOUNT = params.get("amount");
-		if (params.containsKey("transactionID")) {
-			RRNO = params.get("transactionID");
-		}
-	}
-	
-	/**
-	 * Sets up the object to perform a REFUND.  The actual transaction performed will depend on the
-	 * original transaction status, especially whether it's batch has settled or not.
-	 *
-	 * @param transactionID A string containing the 12-digit transaction ID of the transaction to refund.
-	 * @param amount  An optional string containing the amount to refund.  By default, the entire original transaction is refunded.
-	 *
-	 */
-	public void refund(HashMap<String, String> params) {
-		TRANSACTION_TYPE = "REFUND";
-		RRNO = params.get("transactionID");
-		AMOUNT = params.get("amount");
-		API = "bp10emu";
-	}
-	
-	/**
-	 * Sets up the object to perform a VOID. 
-	 *
-	 * @param transactionID A string containing the 12-digit transaction ID of the transaction to refund.
-	 *
-	 */
-	public void voidTransaction(String transactionID) {
-		TRANSACTION_TYPE = "VOID";
-		API = "bp10emu";
-		AMOUNT = "";
-		RRNO = transactionID;
-	}
-	
-	/**
-	 * Sets up the object to CAPTURE a previous AUTH.  
-	 *
-	 * @param transID A string containing the 12-digit transaction ID of the AUTH to CAPTURE.
-	 * @param amount  An optional string containing the amount to capture.  By default, the entire original amount is captured.
-	 *
-	 */
-	public void capture(HashMap<String, String> params) {
-		API = "bp10emu";
-		TRANSACTION_TYPE = "CAPTURE";
-		AMOUNT = params.get("amount");
-		RRNO = params.get("transactionID");
+		this(httpClient, gatewayUrl, new Properties());
 	}
 	
 	/**
-	 * Sets the credit card values.  Required for SALE and AUTH.
-	 *
-	 * @param cardnum A string containing the Credit card number, all digits -- do not include spaces or dashes.  
-	 * @param expire A string containing the card's expiration date in MMYY format.
-	 * @param cvv2 A (sometimes) optional string containing the Card Verification Value -- the 3 digit number printed on the back of most cards.  Whether it is in fact optional depends on your credit card processing network's requirements.
+	 * @param properties The settings of the per-merchant circuit breakers, concurrency limiters and rate limiters.
 	 *
 	 */
-	
-	public void setCCInformation(HashMap<String, String> params) {
-		PAYMENT_TYPE = "CREDIT";
-		CARD_NUM = params.get("cardNumber");
-		CARD_EXPIRE = params.get("expirationDate");
-		CVCCVV2 = params.get("cvv2");
-	}
-	
-	/**
-	 * Sets the credit card values for a swipe transaction using a card reader
-	 *
-	 * @param trackData A string containing both track 1 and track 2 date directly from the credit card reader.  
-	 */
-	
-	public void swipe(String trackData) {
-		SWIPE = trackData;
-	}
-	
-	
-	/**
-	 * Sets the ACH values.  Required for SALE and AUTH.
-	 *
-	 * @param routingNum A string containing the routing number (9 digits). Make sure to include any leading zeros.
-	 * @param accountNum A string containing the account number. Make sure to include any leading zeros.
-	 * @param accountType Account type of ACH account. Checking ('C'), Savings ('S').
-	 * @param docType Documentation type of transaction. May be 'PPD', 'CCD', 'TEL', 'WEB', or 'ARC'.  Defaults to 'WEB' if not set.
-	 *
-	 */
-	
-	public void setACHInformation(HashMap<String, String> params) {
-		PAYMENT_TYPE = "ACH";
-		ACH_ROUTING = params.get("routingNum");
-		ACH_ACCOUNT = params.get("accountNum");
-		ACH_ACCOUNT_TYPE = params.get("accountType");
-		DOC_TYPE = params.get("docType");
-	}
-	
-	/**
-	 * Sets the customer information and billing address.  While this is technically optional, it is highly recommended.  Some 
-	 * payment processors may require this information.
-	 *
-	 * @param firstName A string containing the first name
-	 * @param lastName A string containing the last name
-	 * @param address1 A string containing the first line of the street address
-	 * @param address2 A string containing the second line of a street or unit number.
-	 * @param city A string containing the billing city
-	 * @param state A string containing the billing state, province, or regional equivalent
-	 * @param zip A string containing the postal code
-	 * @param country
-	 * @param phone
-	 * @param email
-	 *
-	 */
-	
-	public void setCustomerInformation(HashMap<String, String> params) {
-		NAME1 = params.get("firstName");
-		NAME2 = params.get("lastName");
-		ADDR1 = params.get("address1");
-		ADDR2 = params.get("address2");
-		CITY = params.get("city");
-		STATE = params.get("state");
-		ZIP = params.get("zip");
-		COUNTRY = params.get("country");
-		PHONE = params.get("phone");
-		EMAIL = params.get("email");
-	}
-	
-	/**
-	 * Adds a custom ID1 to a transaction.
-	 *
-	 * @param customID1 A string containing an optional custom ID1.
-	 *
-	 */
-	public void setCustomID1(String customID1) {
-		CUSTOM_ID1 = customID1;
-	}
-	/**
-	 * Adds a custom ID2 to a transaction.
-	 *
-	 * @param customID2 A string containing an optional custom ID2.
-	 *
-	 */
-	public void setCustomID2(String customID2) {
-		CUSTOM_ID2 = customID2;
-	}
-	/**
-	 * Adds an order ID to a transaction.
-	 *
-	 * @param orderID A string containing an optional order ID.
-	 *
-	 */
-	public void setOrderID(String orderID) {
-		ORDER_ID = orderID;
-	}
-	/**
-	 * Adds an invoice ID to a transaction.
-	 *
-	 * @param invoiceID A string containing an optional invoice ID.
-	 *
-	 */
-	public void setInvoiceID(String invoiceID) {
-		INVOICE_ID = invoiceID;
-	}
-	/**
-	 * Adds a tax to a transaction.
-	 *
-	 * @param taxAmount A string containing an optional tax amount.
-	 *
-	 */
-	public void setAmountTax(String taxAmount) {
-		AMOUNT_TAX = taxAmount;
-	}
-	/**
-	 * Adds a tip to a transaction.
-	 *
-	 * @param tipAmount A string containing an optional tip amount.
-	 *
-	 */
-	public void setAmountTip(String tipAmount) {
-		AMOUNT_TIP = tipAmount;
-	}
-	
-	/**
-	 * Adds a food amount to a transaction.
-	 *
-	 * @param foodAmount A string containing an optional food amount.
-	 *
-	 */
-	public void setAmountFood(String foodAmount) {
-		AMOUNT_FOOD = foodAmount;
-	}
-	
-	/**
-	 * Adds Amount Misc to a transaction.
-	 *
-	 * @param miscAmount A string containing an optional misc amount.
-	 *
-	 */
-	public void setAmountMisc(String miscAmount) {
-		AMOUNT_MISC = miscAmount;
-	}
-	
-	/**
-	 * Adds a comment to a transaction.
-	 *
-	 * @param comment A string containing an optional comment.
-	 *
-	 */
-	public void setMemo(String memo) {
-		MEMO = memo;
-	}
-	
-	/**
-	 * Sets the customer's phone number.
-	 *
-	 * @param phonenum A string containing the phone number.  It should contain digits only, no punctuation.
-	 *
-	 */
-	public void setPhone(String phonenum) {
-		PHONE = phonenum;
-	}
-	
-	/**
-	 * Sets the customer's email address.  Required if you expect them to get an email receipt from Bluepay.
-	 *
-	 * @param email A string containing the email address.  
-	 *
-	 */
-	public void setEmail(String email) {
-		EMAIL = email;
-	}
-	
-	/**
-	 * Adds rebilling to an AUTH or SALE.  
-	 *
-	 * @param amount A string containing the amount to rebill.
-	 * @param firstDate  A string containing the first rebilling date; can contain either a date in ISO format or a date expression such as "1 MONTH" to begin rebilling 1 month from now.
-	 * @param expr A string containing the Rebilling Expression; this indicates how often to rebill.  E.g. "1 MONTH" will rebill monthly; "365 DAY" or "1 YEAR" will rebill annually.
-	 * @param cycles A string containing the number of times to rebill; optional.  Will rebill forever if not set.
-	 *
-	 */
-	public void setRebillingInformation(HashMap<String, String> params) {
-		REBILLING = "1";
-		REB_AMOUNT = params.get("amount");
-		REB_FIRST_DATE = params.get("firstDate");
-		REB_EXPR = params.get("expr");
-		REB_CYCLES = params.get("cycles");
-	}
-	
-	/**
-	 * Updates an existing rebilling cycle.  
-	 *
-	 * @param rebillID A 12 digit string containing the rebill ID.
-	 * @template_id the id of a previous transaction to be used as the payment information for the rebill 
-	 * @param nextDate  A string containing the next rebilling date.
-	 * @param expr A string containing the Rebilling Expression; this indicates how often to rebill.  E.g. "1 MONTH" will rebill monthly; "365 DAY" or "1 YEAR" will rebill annually.
-	 * @param cycles A string containing the number of times to rebill; optional.  Will rebill forever if not set.
-	 * @param rebillAmount A string containing the amount to charge each time the rebilling is run.
-	 * @param nextAmount A string containing the *next* amount to charge the customer.
-	 *
-	 */
-	public void updateRebill(HashMap<String, String> params) {
-		TRANSACTION_TYPE = "SET";
-		REBILL_ID = params.get("rebillID");
-		TEMPLATE_ID = params.get("templateID");
-		NEXT_DATE = params.get("nextDate");
-		REB_EXPR = params.get("expr");
-		REB_CYCLES = params.get("cycles");
-		REB_AMOUNT = params.get("rebillAmount");
-		NEXT_AMOUNT = params.get("nextAmount");
-		API = "bp20rebadmin";
-	}
-	
-	/**
-	 * Cancels an existing rebilling cycle.  
-	 *
-	 * @param rebillID A 12 digit string containing the rebill ID.
-	 *
-	 */
-	public void cancelRebill(String rebillID){
-		TRANSACTION_TYPE = "SET";
-		REBILL_STATUS = "stopped";
-		REBILL_ID = rebillID;
-		API = "bp20rebadmin";
-	}
-	
-	/**
-	 * Restarts an existing rebilling cycle.  
-	 *
-	 * @param rebillID A 12 digit string containing the rebill ID.
-	 *
-	 */
-	public void restartRebill(HashMap<String, String> params) {
-		TRANSACTION_TYPE = "SET";
-		REBILL_ID = params.get("rebillID");
-		NEXT_DATE = params.get("nextDate");
-		REBILL_STATUS = "active";
-		API = "bp20rebadmin";
-	}
-	
-	/**
-	 * Gets a existing rebilling cycle's status.  
-	 *
-	 * @param rebillID A 12 digit string containing the rebill ID.
-	 *
-	 */
-	public void getRebillStatus(String rebillID) {
-		TRANSACTION_TYPE = "GET";
-		REBILL_ID = rebillID;
-		API = "bp20rebadmin";
-	}
-	
-	/**
-	 * Gets report of transaction data based upon a start and end date range. 
-	 *
-	 * @param reportStart A string containing the date to start the report
-	 * @param reportEnd A string containing the date to stop the report
-	 * @param subaccountsSearched Either a 1 or a 0 to indicate whether to search subaccounts as well as the main account
-	 * @param doNotEscape Either a 1 or a 0 to indicate whether the report should take off quotes around the data
-	 * @param errors Either a 1 or a 0 to indicate whether the report should exclude errored transactions
-	 *
-	 */
-	public void getTransactionReport(HashMap<String, String> params) {
-		QUERY_BY_SETTLEMENT = "0";
-		REPORT_START = params.get("reportStart");
-		REPORT_END = params.get("reportEnd");
-		QUERY_BY_HIERARCHY = params.get("subaccountsSearched");
-		DO_NOT_ESCAPE = params.get("doNotEscape");
-		EXCLUDE_ERRORS = params.get("excludeErrors");
-		API = "bpdailyreport2";
-	}
-	
-	/**
-	 * Gets report of settled transaction data based upon a start and end date range. 
-	 *
-	 * @param reportStart A string containing the date to start the report
-	 * @param reportEnd A string containing the date to stop the report
-	 * @param subaccountsSearched Either a 1 or a 0 to indicate whether to search subaccounts as well as the main account
-	 * @param doNotEscape Either a 1 or a 0 to indicate whether the report should take off quotes around the data
-	 * @param errors Either a 1 or a 0 to indicate whether the report should exclude errored transactions
-	 *
-	 */
-	
-	public void getSettledTransactionReport(HashMap<String, String> params) {
-		QUERY_BY_SETTLEMENT = "1";
-		REPORT_START = params.get("reportStart");
-		REPORT_END = params.get("reportEnd");
-		QUERY_BY_HIERARCHY = params.get("subaccountsSearched");
-		DO_NOT_ESCAPE = params.get("doNotEscape");
-		EXCLUDE_ERRORS = params.get("excludeErrors");
-		API = "bpdailyreport2";
+	public BluePay(BluePayHttpClient httpClient, String gatewayUrl, Properties properties)
+	{
+		this.httpClient = httpClient;
+		this.gatewayUrl = gatewayUrl == null || gatewayUrl.isEmpty() ? DEFAULT_GATEWAY_URL : gatewayUrl;
+		this.circuitBreakers = BluePayCircuitBreaker.registry(properties);
+		this.concurrencyLimiters = BluePayConcurrencyLimiter.registry(properties);
+		this.rateLimiters = BluePayRateLimiter.registry(properties);
 	}
 	
-	/**
-	 * Gets information about a specific transaction
-	 * @param transactionID - the id number of the transaction to be queried 
-	 * @param reportStart A string containing the date to start the report; required for tamper proof seal
-	 * @param reportEnd A string containing the date to stop the report;  required for tamper proof seal
-	 * @param errors Either a 1 or a 0 to indicate whether the query should exclude errored transactions
-	 *
-	 */
-	public void getSingleTransQuery(HashMap<String, String> params) {
-		ID = params.get("transactionID");
-		REPORT_START = params.get("reportStart");
-		REPORT_END = params.get("reportEnd");
-		EXCLUDE_ERRORS = params.get("excludeErrors");
-		API = "stq";
+	public String getGatewayUrl() {
+		return gatewayUrl;
 	}
 	
-	/**
-	 * Queries transactions by a specific Payment Type. Must be used with getSingleTransQuery
-	 *
-	 * @param transID A string containing the Payment Type to query.
-	 *
-	 */
-	public void queryByPaymentType(String payType) {
-		PAYMENT_TYPE = payType;
+	public BluePayRegistry<BluePayCircuitBreaker> getCircuitBreakers() {
+		return circuitBreakers;
 	}
 	
-	/**
-	 * Queries transactions by a specific Transaction Type. Must be used with getSingleTransQuery
-	 *
-	 * @param transID A string containing the Transaction Type to query.
-	 *
-	 */
-	public void queryBytransType(String transType) {
-		TRANSACTION_TYPE = transType;
-	}
-	
-	/**
-	 * Queries transactions by a specific Transaction Amount. Must be used with getSingleTransQuery
-	 *
-	 * @param transID A string containing the Transaction Amount to query.
-	 *
-	 */
-	public void queryByAmount(String amount) {
-		AMOUNT = amount;
+	public BluePayRegistry<BluePayConcurrencyLimiter> getConcurrencyLimiters() {
+		return concurrencyLimiters;
 	}
 	
-	/**
-	 * Queries transactions by a specific First Name. Must be used with getSingleTransQuery
-	 *
-	 * @param transID A string containing the First Name to query.
-	 *
-	 */
-	public void queryByName1(String name1) {
-		NAME1 = name1;
+	public BluePayRegistry<BluePayRateLimiter> getRateLimiters() {
+		return rateLimiters;
 	}
 	
 	/**
-	 * Queries transactions by a specific Last Name. Must be used with getSingleTransQuery
-	 *
-	 * @param transID A string containing the Last Name to query.
-	 *
+	 * @return the timers of the stages of {@link #processAsync}, by merchant account and mode and by API
 	 */
-	public void queryByName2(String name2) {
-		NAME2 = name2;
+	public BluePayRegistry<BluePayTimer> getTimers() {
+		return timers;
 	}
 	
 	/**
-	 * Calculates a hex sha512 based on input.
-	 *
-	 * @param message String to calculate sha512 of.
+	 * Sends a request, blocking until the gateway responds.
+	 * @throws IOException if the gateway could not be reached or its answer could not be read
 	 *
 	 */
-	private String sha512(String message) throws java.security.NoSuchAlgorithmException
-	{
-		MessageDigest sha512 = null;
+	public BluePayResponse process(BluePayRequest request) throws IOException {
+		final ListenableFuture<BluePayResponse> future = processAsync(request);
 		try {
-			sha512 = MessageDigest.getInstance("SHA-512");
-		}
-		catch (java.security.NoSuchAlgorithmException ex) {
-			ex.printStackTrace();
-			throw ex;
-		}
-		byte[] dig = sha512.digest((byte[]) message.getBytes());
-		StringBuffer code = new StringBuffer();
-		for (int i = 0; i < dig.length; ++i)
-		{
-			code.append(Integer.toHexString(0x0100 + (dig[i] & 0x00FF)).substring(1));
+			return future.get();
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while waiting for BluePay", e);
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
 		}
-		return code.toString();
 	}
+	
 	/**
-	 * Calculates a hex MD5 based on input.
-	 *
-	 * @param message String to calculate MD5 of.
+	 * Sends a request and returns a future completed with the parsed response once the gateway answers. The wait for
+	 * the answer does not block, but getting the request out may: the calling thread waits for the merchant's rate
+	 * limit and concurrency limit to let it through (up to their {@code maxWait}), then for a slot in the HTTP client
+	 * (up to {@code connectionRequestTimeout}). The future fails with a {@link BluePayRejectedException} if the
+	 * merchant's circuit breaker is open, if either limit does not let the request through in time, or if the HTTP
+	 * client has too many requests in flight. The stages of the call are timed by merchant account and mode, API and
+	 * outcome in {@link #getTimers()}.
 	 *
 	 */
-	private String md5(String message) throws java.security.NoSuchAlgorithmException
-	{
-		MessageDigest md5 = null;
-		try {
-			md5 = MessageDigest.getInstance("MD5");
+	public ListenableFuture<BluePayResponse> processAsync(final BluePayRequest request) {
+		if (request instanceof BluePayReportRequest) {
+			throw new IllegalArgumentException("reports are read with processReport or openReport");
 		}
-		catch (java.security.NoSuchAlgorithmException ex) {
-			ex.printStackTrace();
-			throw ex;
+		final BluePayCredentials credentials = request.getCredentials();
+		final BluePayTimer.Sample sample = timers.get(credentials.getName() + "/" + request.getApi()).start();
+		final BluePayCircuitBreaker circuitBreaker = circuitBreakers.get(credentials.getName());
+		if (!circuitBreaker.tryAcquirePermission()) {
+			sample.setOutcome(BluePayTimer.Outcome.REJECTED);
+			sample.finish();
+			return Futures.immediateFailedFuture(new BluePayCircuitBreaker.OpenException(circuitBreaker));
 		}
-		byte[] dig = md5.digest((byte[]) message.getBytes());
-		StringBuffer code = new StringBuffer();
-		for (int i = 0; i < dig.length; ++i)
-		{
-			code.append(Integer.toHexString(0x0100 + (dig[i] & 0x00FF)).substring(1));
+		final BluePayConcurrencyLimiter limiter = concurrencyLimiters.get(credentials.getName());
+		final IOException rejected = acquire(request, limiter);
+		sample.stage(BluePayTimer.Stage.ADMISSION);
+		if (rejected != null) {
+			circuitBreaker.releasePermission();
+			sample.setOutcome(BluePayTimer.Outcome.REJECTED);
+			sample.finish();
+			return Futures.immediateFailedFuture(rejected);
 		}
-		return code.toString();
-	}
-	
-	
-	
-	/**
-	 * Calculates the TAMPER_PROOF_SEAL string to send with each transaction
-	 *
-	 * @return tps The Tamper Proof Seal
-	 *
-	 */
-	private String calcTPS() throws java.security.NoSuchAlgorithmException {
-		String tps = BP_SECRET_KEY + BP_MERCHANT + TRANSACTION_TYPE + AMOUNT + REBILLING
-				+ REB_FIRST_DATE + REB_EXPR + REB_CYCLES + REB_AMOUNT + RRNO + BP_MODE;
-		return sha512(tps);
-	}
-	
-	/**
-	 * Calculates the TAMPER_PROOF_SEAL string to send with each transaction
-	 *
-	 * @return tps The Tamper Proof Seal
-	 *
-	 */
-	private String calcRebillTPS() throws java.security.NoSuchAlgorithmException {
-		String tps = BP_SECRET_KEY + BP_MERCHANT + TRANSACTION_TYPE + REBILL_ID;
-		return md5(tps);
-	}
-	
-	/**
-	 * Calculates the TAMPER_PROOF_SEAL string to send with each transaction
-	 *
-	 * @return tps The Tamper Proof Seal
-	 *
-	 */
-	private String calcReportTPS() throws java.security.NoSuchAlgorithmException {
-		String tps = BP_SECRET_KEY + BP_MERCHANT + REPORT_START + REPORT_END;
-		return md5(tps);
-	}
-	
-	/**
-	 * Calculates the TAMPER_PROOF_SEAL string to send with each transaction
-	 *
-	 * @return tps The Tamper Proof Seal
-	 *
-	 */
-	public String calcTransNotifyTPS(String secretKey, String transID, String transStatus, String transType,
-	                                 String amount, String batchID, String batchStatus, String totalCount, String totalAmount,
-	                                 String batchUploadID, String rebillID, String rebillAmount, String rebillStatus)
-			throws java.security.NoSuchAlgorithmException {
-		String tps = secretKey + transID + transStatus + transType + amount + batchID + batchStatus +
-				totalCount + totalAmount + batchUploadID + rebillID + rebillAmount + rebillStatus;
-		return md5(tps);
-	}
-	
-	/**
-	 * Calls the methods necessary to generate a SHPF URL
-	 * Required arguments for generate_url:
-	 * @param merchantName: Merchant name that will be displayed in the payment page.
-	 * @param returnURL: Link to be displayed on the transacton results page. Usually the merchant's web site home page.
-	 * @param transactionType: SALE/AUTH -- Whether the customer should be charged or only check for enough credit available.
-	 * @param acceptDiscover: Yes/No -- Yes for most US merchants. No for most Canadian merchants.
-	 * @param acceptAmex: Yes/No -- Has an American Express merchant account been set up?
-	 * @param amount: The amount if the merchant is setting the initial amount.
-	 * @param protectAmount: Yes/No -- Should the amount be protected from changes by the tamperproof seal?
-	 * @param rebilling: Yes/No -- Should a recurring transaction be set up?
-	 * @param paymentTemplate: Select one of our payment form template IDs or your own customized template ID. If the customer should not be allowed to change the amount, add a 'D' to the end of the template ID. Example: 'mobileform01D'
-	 * mobileform01 -- Credit Card Only - White Vertical (mobile capable) 
-	 * default1v5 -- Credit Card Only - Gray Horizontal 
-	 * default7v5 -- Credit Card Only - Gray Horizontal Donation
-	 * default7v5R -- Credit Card Only - Gray Horizontal Donation with Recurring
-	 * default3v4 -- Credit Card Only - Blue Vertical with card swipe
-	 * mobileform02 -- Credit Card & ACH - White Vertical (mobile capable)
-	 * default8v5 -- Credit Card & ACH - Gray Horizontal Donation
-	 * default8v5R -- Credit Card & ACH - Gray Horizontal Donation with Recurring
-	 * mobileform03 -- ACH Only - White Vertical (mobile capable)
-	 * @param receiptTemplate: Select one of our receipt form template IDs, your own customized template ID, or "remote_url" if you have one.
-	 * mobileresult01 -- Default without signature line - White Responsive (mobile)
-	 * defaultres1 -- Default without signature line - Blue
-	 * V5results -- Default without signature line - Gray
-	 * V5Iresults -- Default without signature line - White
-	 * defaultres2 -- Default with signature line - Blue
-	 * remote_url - Use a remote URL
-	 * @param receiptTempRemoteURL: Your remote URL ** Only required if receipt_template = "remote_url".
-	 *
-	 * Optional arguments for generate_url:
-	 * @param rebProtect: Yes/No -- Should the rebilling fields be protected by the tamperproof seal?
-	 * @param rebAmount: Amount that will be charged when a recurring transaction occurs.
-	 * @param rebCycles: Number of times that the recurring transaction should occur. Not set if recurring transactions should continue until canceled.
-	 * @param rebStartDate: Date (yyyy-mm-dd) or period (x units) until the first recurring transaction should occur. Possible units are DAY, DAYS, WEEK, WEEKS, MONTH, MONTHS, YEAR or YEARS. (ex. 2016-04-01 or 1 MONTH)
-	 * @param rebFrequency: How often the recurring transaction should occur. Format is 'X UNITS'. Possible units are DAY, DAYS, WEEK, WEEKS, MONTH, MONTHS, YEAR or YEARS. (ex. 1 MONTH) 
-	 * @param customID1: A merchant defined custom ID value.
-	 * @param protectCustomID1: Yes/No -- Should the Custom ID value be protected from change using the tamperproof seal?
-	 * @param customID2: A merchant defined custom ID 2 value.
-	 * @param protectCustomID2: Yes/No -- Should the Custom ID 2 value be protected from change using the tamperproof seal?
-	 *
-	 * @return hosted payment form url
-	 */
-	public String generateURL(HashMap<String, String> params) throws java.security.NoSuchAlgorithmException{
-		DBA  = params.get("merchantName");
-		RETURN_URL  = params.get("returnURL");
-		TRANSACTION_TYPE  = params.get("transactionType");
-		DISCOVER_IMAGE  = params.get("acceptDiscover").toUpperCase().startsWith("Y") ? "discvr.gif" : "spacer.gif";
-		AMEX_IMAGE  = params.get("acceptAmex").toUpperCase().startsWith("Y") ? "amex.gif" : "spacer.gif";
-		AMOUNT  = params.get("amount");
-		PROTECT_AMOUNT  = params.get("protectAmount");
-		REBILLING  = params.get("rebilling").toUpperCase().startsWith("Y") ? "1" : "0";
-		REB_PROTECT  = params.get("rebProtect");
-		REB_AMOUNT  = params.get("rebAmount");
-		REB_CYCLES  = params.get("rebCycles");
-		REB_FIRST_DATE  = params.get("rebStartDate");
-		REB_EXPR  = params.get("rebFrequency");
-		CUSTOM_ID1  = params.get("customID1");
-		PROTECT_CUSTOM_ID1  = params.get("protectCustomID1");
-		CUSTOM_ID2  = params.get("customID2");
-		PROTECT_CUSTOM_ID2  = params.get("protectCustomID2");
-		SHPF_FORM_ID  = params.get("paymentTemplate");
-		RECEIPT_FORM_ID  = params.get("receiptTemplate");
-		REMOTE_URL  = params.get("receiptTempRemoteURL");
-		CARD_TYPES = setCardTypes();
-		RECEIPT_TPS_DEF = "SHPF_ACCOUNT_ID SHPF_FORM_ID RETURN_URL DBA AMEX_IMAGE DISCOVER_IMAGE SHPF_TPS_DEF";
-		RECEIPT_TPS_STRING = setReceiptTpsString();
-		RECEIPT_TAMPER_PROOF_SEAL = calcURLTps(RECEIPT_TPS_STRING);
-		RECEIPT_URL = setReceiptURL();
-		BP10EMU_TPS_DEF = addDefProtectedStatus("MERCHANT APPROVED_URL DECLINED_URL MISSING_URL MODE TRANSACTION_TYPE TPS_DEF");
-		BP10EMU_TPS_STRING = setBp10emuTpsString();
-		BP10EMU_TAMPER_PROOF_SEAL = calcURLTps(BP10EMU_TPS_STRING);
-		SHPF_TPS_DEF = addDefProtectedStatus("SHPF_FORM_ID SHPF_ACCOUNT_ID DBA TAMPER_PROOF_SEAL AMEX_IMAGE DISCOVER_IMAGE TPS_DEF SHPF_TPS_DEF");
-		SHPF_TPS_STRING = setShpfTpsString();
-		SHPF_TAMPER_PROOF_SEAL = calcURLTps(SHPF_TPS_STRING);
-		return calcURLResponse();
-	}
-	
-	/**
-	 * Sets the types of credit card images to use on the Simple Hosted Payment Form. Must be used with generateURL.
-	 *
-	 * @return string of credit card types
-	 */
-	public String setCardTypes()
-	{
-		String creditCards = "vi-mc";
-		creditCards = (DISCOVER_IMAGE == "discvr.gif") ? (creditCards + "-di") : creditCards;
-		creditCards = (AMEX_IMAGE == "amex.gif") ? (creditCards + "-am") : creditCards;
-		return creditCards;
-	}
-	
-	/**
-	 * Sets the receipt Tamperproof Seal string. Must be used with GenerateURL.
-	 *
-	 * @return receipt Tamperproof Seal string
-	 */
-	public String setReceiptTpsString()
-	{
-		return BP_SECRET_KEY + BP_MERCHANT + RECEIPT_FORM_ID + RETURN_URL + DBA + AMEX_IMAGE + DISCOVER_IMAGE + RECEIPT_TPS_DEF;
+		final long start = System.nanoTime();
+		final SettableFuture<BluePayResponse> result = SettableFuture.create();
+		try {
+			final HttpPost post = buildRequest(request);
+			sample.stage(BluePayTimer.Stage.REQUEST);
+			Futures.addCallback(httpClient.execute(post), new FutureCallback<HttpResponse>() {
+				@Override
+				public void onSuccess(final HttpResponse httpResponse) {
+					sample.stage(BluePayTimer.Stage.ROUND_TRIP);
+					try {
+						final BluePayResponse response = parseResponse(request, httpResponse);
+						sample.stage(BluePayTimer.Stage.PARSE);
+						sample.setOutcome(response.isSuccessful() ? BluePayTimer.Outcome.APPROVED
+								: response.isDeclined() ? BluePayTimer.Outcome.DECLINED : BluePayTimer.Outcome.ERROR);
+						onResult(System.nanoTime() - start, false);
+						result.set(response);
+					} catch (IOException | RuntimeException e) {
+						sample.stage(BluePayTimer.Stage.PARSE);
+						onResult(System.nanoTime() - start, true);
+						result.setException(e);
+					}
+				}
+				
+				@Override
+				public void onFailure(final Throwable t) {
+					sample.stage(BluePayTimer.Stage.ROUND_TRIP);
+					if (t instanceof BluePayRejectedException) {
+						// the HTTP client refused to send it: like the limits' own rejections, it says nothing about the gateway
+						limiter.release();
+						circuitBreaker.releasePermission();
+						sample.setOutcome(BluePayTimer.Outcome.REJECTED);
+						sample.finish();
+					} else {
+						// a call the caller gave up on says nothing about the gateway but how long it took
+						onResult(System.nanoTime() - start, !(t instanceof CancellationException));
+					}
+					result.setException(t);
+				}
+				
+				private void onResult(final long duration, final boolean failed) {
+					limiter.release(duration, failed);
+					circuitBreaker.onResult(duration, failed);
+					sample.finish();
+				}
+			});
+		} catch (RuntimeException | Error e) {
+			// nothing was sent: give the slot and the permission back without judging the gateway by it
+			limiter.release();
+			circuitBreaker.releasePermission();
+			sample.setOutcome(BluePayTimer.Outcome.ERROR);
+			sample.finish();
+			throw e;
+		}
+		return result;
+	}
+	
+	/**
+	 * Sends a request straight to the gateway, past the merchant's circuit breaker, limits and timers: health probes
+	 * must reach BluePay while the breaker is open, and must not wait for, or take, the slots payments need. Only the
+	 * HTTP client's in-flight bound applies.
+	 */
+	public ListenableFuture<BluePayResponse> probe(final BluePayRequest request) {
+		final SettableFuture<BluePayResponse> result = SettableFuture.create();
+		Futures.addCallback(httpClient.execute(buildRequest(request)), new FutureCallback<HttpResponse>() {
+			@Override
+			public void onSuccess(final HttpResponse httpResponse) {
+				try {
+					result.set(parseResponse(request, httpResponse));
+				} catch (IOException | RuntimeException e) {
+					result.setException(e);
+				}
+			}
+			
+			@Override
+			public void onFailure(final Throwable t) {
+				result.setException(t);
+			}
+		});
+		return result;
 	}
 	
 	/**
-	 * Sets the bp10emu string that will be used to create a Tamperproof Seal. Must be used with GenerateURL.
+	 * Downloads a report, handing each transaction to the handler as soon as it is read. The handler runs on an I/O
+	 * thread and should not block for long.
 	 *
-	 * @return bp10emu Tamperproof Seal string
+	 * @return a future completed with the number of rows once the whole report has been read
 	 */
-	public String setBp10emuTpsString()
-	{
-		String bp10emu = BP_SECRET_KEY + BP_MERCHANT + RECEIPT_URL + RECEIPT_URL + RECEIPT_URL + BP_MODE + TRANSACTION_TYPE + BP10EMU_TPS_DEF;
-		return addStringProtectedStatus(bp10emu);
-		
+	public ListenableFuture<Long> processReport(final BluePayReportRequest request, final BluePayReportHandler handler) {
+		return download(request, new BluePayReportConsumer(handler));
 	}
 	
 	/**
-	 * Sets the Simple Hosted Payment Form string that will be used to create a Tamperproof Seal. Must be used with GenerateURL.
-	 *
-	 * @return shpf Tamperproof Seal string
+	 * Downloads a report, to be iterated over from the calling thread while it arrives.
 	 */
-	public String setShpfTpsString()
-	{
-		String shpf = BP_SECRET_KEY + SHPF_FORM_ID + BP_MERCHANT + DBA + BP10EMU_TAMPER_PROOF_SEAL + AMEX_IMAGE + DISCOVER_IMAGE + BP10EMU_TPS_DEF + SHPF_TPS_DEF;
-		return addStringProtectedStatus(shpf);
+	public BluePayReportReader openReport(final BluePayReportRequest request) {
+		final BluePayReportReader reader = new BluePayReportReader();
+		reader.start(download(request, reader.getConsumer()));
+		return reader;
 	}
 	
 	/**
-	 * Sets the receipt url or uses the remote url provided. Must be used with GenerateURL.
-	 *
-	 * @return receipt URL string
+	 * Downloads a report under the merchant's rate and concurrency limits, without adapting the latter: a report takes as long as it is
+	 * big, whatever the gateway's health.
 	 */
-	public String setReceiptURL()
-	{
-		String output ="";
-		if (RECEIPT_FORM_ID.equals("remote_url"))
-			output = REMOTE_URL;
-		else
-		{
-			output =  "https://secure.bluepay.com/interfaces/shpf?SHPF_FORM_ID=" + RECEIPT_FORM_ID +
-					"&SHPF_ACCOUNT_ID=" + BP_MERCHANT +
-					"&SHPF_TPS_DEF="    + encodeURL(RECEIPT_TPS_DEF) +
-					"&SHPF_TPS="        + encodeURL(RECEIPT_TAMPER_PROOF_SEAL) +
-					"&RETURN_URL="      + encodeURL(RETURN_URL) +
-					"&DBA="             + encodeURL(DBA) +
-					"&AMEX_IMAGE="      + encodeURL(AMEX_IMAGE) +
-					"&DISCOVER_IMAGE="  + encodeURL(DISCOVER_IMAGE);
+	private <T> ListenableFuture<T> download(final BluePayReportRequest request, final HttpAsyncResponseConsumer<T> consumer) {
+		final BluePayConcurrencyLimiter limiter = concurrencyLimiters.get(request.getCredentials().getName());
+		final IOException rejected = acquire(request, limiter);
+		if (rejected != null) {
+			return Futures.immediateFailedFuture(rejected);
 		}
-		return output;
-	}
-	
-	/**
-	 * Adds optional protected keys to a string. Must be used with GenerateURL.
-	 *
-	 * @return additonal string of keys to be used when calculating the Tamperproof Seal
-	 */
-	public String addDefProtectedStatus(String input)
-	{
-		if (PROTECT_AMOUNT.equals("Yes")) {input += " AMOUNT";}
-		if (REB_PROTECT.equals("Yes")) {input += " REBILLING REB_CYCLES REB_AMOUNT REB_EXPR REB_FIRST_DATE";}
-		if (PROTECT_CUSTOM_ID1.equals("Yes")) {input += " CUSTOM_ID";}
-		if (PROTECT_CUSTOM_ID2.equals("Yes")) {input += " CUSTOM_ID2";}
-		return input;
-	}
-	
-	/**
-	 * Adds optional protected values to a string. Must be used with GenerateURL.
-	 *
-	 * @return additional string of values to be used when calculating the Tamperproof Seal
-	 */
-	public String addStringProtectedStatus(String input)
-	{
-		if (PROTECT_AMOUNT.equals("Yes")) {input += AMOUNT;}
-		if (REB_PROTECT.equals("Yes")) {input += REBILLING + REB_CYCLES + REB_AMOUNT + REB_EXPR + REB_FIRST_DATE;}
-		if (PROTECT_CUSTOM_ID1.equals("Yes")) {input += CUSTOM_ID1;}
-		if (PROTECT_CUSTOM_ID2.equals("Yes")) {input += CUSTOM_ID2;}
-		return input;
+		// the slot is held until the exchange itself ends: a caller cancelling the returned future doesn't stop it
+		final SettableFuture<T> result = SettableFuture.create();
+		try {
+			Futures.addCallback(httpClient.execute(HttpAsyncMethods.create(buildRequest(request)), consumer), new FutureCallback<T>() {
+				@Override
+				public void onSuccess(final T value) {
+					limiter.release();
+					result.set(value);
+				}
+				
+				@Override
+				public void onFailure(final Throwable t) {
+					limiter.release();
+					result.setException(t);
+				}
+			});
+		} catch (RuntimeException | Error e) {
+			limiter.release();
+			throw e;
+		}
+		return result;
 	}
 	
 	/**
-	 * Encodes a string into a URL. Must be used with GenerateURL.
+	 * Waits for the merchant's rate limit to let the request through, then for a slot under its concurrency limit.
 	 *
-	 * @return URL encoded string
+	 * @return null once the slot is taken, or else why the request is rejected
 	 */
-	public String encodeURL(String input)
-	{
-		StringBuilder encodedString = new StringBuilder();
-		for(int i = 0; i < input.length(); i++)
-		{
-			char c = input.charAt(i);
-			boolean notEncoded = Character.isLetterOrDigit(c);
-			if (notEncoded)
-				encodedString.append(c);
-			else
-			{
-				int value = (int) c;
-				String hex = Integer.toHexString(value);
-				encodedString.append("%" + hex.toUpperCase());
+	private IOException acquire(final BluePayRequest request, final BluePayConcurrencyLimiter limiter) {
+		final BluePayRateLimiter rateLimiter = rateLimiters.get(request.getCredentials().getName());
+		try {
+			if (!rateLimiter.tryAcquire()) {
+				return new BluePayRejectedException("BluePay rate limit of " + rateLimiter.getRate() + " requests per second reached for " + rateLimiter.getName());
 			}
+			if (!limiter.tryAcquire()) {
+				return new BluePayRejectedException("too many BluePay requests outstanding for " + limiter.getName() + ", limit " + limiter.getLimit());
+			}
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return new InterruptedIOException("interrupted while waiting to send a BluePay request");
 		}
-		return encodedString.toString();
 	}
 	
 	/**
-	 * Generates a Tamperproof Seal for a URL. Must be used with GenerateURL.
-	 *
-	 * @return Tamperproof Seal for a URL.
+	 * Builds the POST for a request, including its Tamper Proof Seal.
 	 */
-	public String calcURLTps(String input) throws java.security.NoSuchAlgorithmException
-	{
-		return md5(input);
+	HttpPost buildRequest(BluePayRequest request) {
+		HttpPost httpost = new HttpPost(gatewayUrl + request.getApi());
+		httpost.setEntity(new UrlEncodedFormEntity(request.toParameters(), Consts.UTF_8));
+		return httpost;
 	}
 	
 	/**
-	 * Generates the final url for the Simple Hosted Payment Form. Must be used with GenerateURL.
-	 *
-	 * @return final Simple Hosted Payment Form URL
-	 */
-	public String calcURLResponse()
-	{
-		return
-				"https://secure.bluepay.com/interfaces/shpf?"                   +
-						"SHPF_FORM_ID="         + encodeURL(SHPF_FORM_ID)               +
-						"&SHPF_ACCOUNT_ID="     + encodeURL(BP_MERCHANT)                +
-						"&SHPF_TPS_DEF="        + encodeURL(SHPF_TPS_DEF)               +
-						"&SHPF_TPS="            + encodeURL(SHPF_TAMPER_PROOF_SEAL)     +
-						"&MODE="                + encodeURL(BP_MODE)                    +
-						"&TRANSACTION_TYPE="    + encodeURL(TRANSACTION_TYPE)           +
-						"&DBA="                 + encodeURL(DBA)                        +
-						"&AMOUNT="              + encodeURL(AMOUNT)                     +
-						"&TAMPER_PROOF_SEAL="   + encodeURL(BP10EMU_TAMPER_PROOF_SEAL)  +
-						"&CUSTOM_ID="           + encodeURL(CUSTOM_ID1)                 +
-						"&CUSTOM_ID2="          + encodeURL(CUSTOM_ID2)                 +
-						"&REBILLING="           + encodeURL(REBILLING)                  +
-						"&REB_CYCLES="          + encodeURL(REB_CYCLES)                 +
-						"&REB_AMOUNT="          + encodeURL(REB_AMOUNT)                 +
-						"&REB_EXPR="            + encodeURL(REB_EXPR)                   +
-						"&REB_FIRST_DATE="      + encodeURL(REB_FIRST_DATE)             +
-						"&AMEX_IMAGE="          + encodeURL(AMEX_IMAGE)                 +
-						"&DISCOVER_IMAGE="      + encodeURL(DISCOVER_IMAGE)             +
-						"&REDIRECT_URL="        + encodeURL(RECEIPT_URL)                +
-						"&TPS_DEF="             + encodeURL(BP10EMU_TPS_DEF)            +
-						"&CARD_TYPES="          + encodeURL(CARD_TYPES);
-	}
-	
-	/**
-	 * Processes a payment.
-	 * @throws IOException
-	 * @throws ClientProtocolException
-	 * @throws NoSuchAlgorithmException
-	 *
+	 * Reads the gateway's answer: bp10emu redirects with the result in the Location query string, stq and
+	 * bp20rebadmin answer with URL-encoded lines.
 	 */
-	public HashMap<String,String> process() throws ClientProtocolException, IOException, NoSuchAlgorithmException {
-		List <NameValuePair> nameValuePairs = new ArrayList <NameValuePair>();
-		nameValuePairs.add(new BasicNameValuePair("MODE", BP_MODE));
-		if (API.equals("bpdailyreport2")) {
-			BP_URL = "https://secure.bluepay.com/interfaces/bpdailyreport2";
-			nameValuePairs.add(new BasicNameValuePair("ACCOUNT_ID", BP_MERCHANT));
-			nameValuePairs.add(new BasicNameValuePair("TAMPER_PROOF_SEAL", calcReportTPS()));
-			nameValuePairs.add(new BasicNameValuePair("REPORT_START_DATE", REPORT_START));
-			nameValuePairs.add(new BasicNameValuePair("REPORT_END_DATE", REPORT_END));
-			nameValuePairs.add(new BasicNameValuePair("DO_NOT_ESCAPE", DO_NOT_ESCAPE));
-			nameValuePairs.add(new BasicNameValuePair("QUERY_BY_SETTLEMENT", QUERY_BY_SETTLEMENT));
-			nameValuePairs.add(new BasicNameValuePair("QUERY_BY_HIERARCHY", QUERY_BY_HIERARCHY));
-			nameValuePairs.add(new BasicNameValuePair("EXCLUDE_ERRORS", EXCLUDE_ERRORS));
-		} else if (API.equals("stq")) {
-			BP_URL = "https://secure.bluepay.com/interfaces/stq";
-			nameValuePairs.add(new BasicNameValuePair("ACCOUNT_ID", BP_MERCHANT));
-			nameValuePairs.add(new BasicNameValuePair("TAMPER_PROOF_SEAL", calcReportTPS()));
-			nameValuePairs.add(new BasicNameValuePair("REPORT_START_DATE", REPORT_START));
-			nameValuePairs.add(new BasicNameValuePair("REPORT_END_DATE", REPORT_END));
-			nameValuePairs.add(new BasicNameValuePair("EXCLUDE_ERRORS", EXCLUDE_ERRORS));
-			nameValuePairs.add(new BasicNameValuePair("id", ID));
-		} else if(API.equals("bp10emu")) {
-			BP_URL = "https://secure.bluepay.com/interfaces/bp10emu";
-			nameValuePairs.add(new BasicNameValuePair("MERCHANT", BP_MERCHANT));
-			nameValuePairs.add(new BasicNameValuePair("TAMPER_PROOF_SEAL", calcTPS()));
-			nameValuePairs.add(new BasicNameValuePair("CUSTOMER_IP", CUSTOMER_IP));
-			nameValuePairs.add(new BasicNameValuePair("PAYMENT_TYPE", PAYMENT_TYPE));
-			nameValuePairs.add(new BasicNameValuePair("TRANSACTION_TYPE", TRANSACTION_TYPE));
-			nameValuePairs.add(new BasicNameValuePair("AMOUNT", AMOUNT));
-			nameValuePairs.add(new BasicNameValuePair("NAME1", NAME1));
-			nameValuePairs.add(new BasicNameValuePair("NAME2", NAME2));
-			nameValuePairs.add(new BasicNameValuePair("ADDR1", ADDR1));
-			nameValuePairs.add(new BasicNameValuePair("ADDR2", ADDR2));
-			nameValuePairs.add(new BasicNameValuePair("CITY", CITY));
-			nameValuePairs.add(new BasicNameValuePair("STATE", STATE));
-			nameValuePairs.add(new BasicNameValuePair("ZIPCODE", ZIP));
-			nameValuePairs.add(new BasicNameValuePair("PHONE", PHONE));
-			nameValuePairs.add(new BasicNameValuePair("EMAIL", EMAIL));
-			nameValuePairs.add(new BasicNameValuePair("COUNTRY", COUNTRY));
-			nameValuePairs.add(new BasicNameValuePair("RRNO", RRNO));
-			nameValuePairs.add(new BasicNameValuePair("CUSTOM_ID", CUSTOM_ID1));
-			nameValuePairs.add(new BasicNameValuePair("CUSTOM_ID2", CUSTOM_ID2));
-			nameValuePairs.add(new BasicNameValuePair("INVOICE_ID", INVOICE_ID));
-			nameValuePairs.add(new BasicNameValuePair("ORDER_ID", ORDER_ID));
-			nameValuePairs.add(new BasicNameValuePair("COMMENT", MEMO));
-			nameValuePairs.add(new BasicNameValuePair("AMOUNT_TIP", AMOUNT_TIP));
-			nameValuePairs.add(new BasicNameValuePair("AMOUNT_TAX", AMOUNT_TAX));
-			nameValuePairs.add(new BasicNameValuePair("AMOUNT_FOOD", AMOUNT_FOOD));
-			nameValuePairs.add(new BasicNameValuePair("AMOUNT_MISC", AMOUNT_MISC));
-			nameValuePairs.add(new BasicNameValuePair("REBILLING", REBILLING));
-			nameValuePairs.add(new BasicNameValuePair("REB_FIRST_DATE", REB_FIRST_DATE));
-			nameValuePairs.add(new BasicNameValuePair("REB_EXPR", REB_EXPR));
-			nameValuePairs.add(new BasicNameValuePair("REB_CYCLES", REB_CYCLES));
-			nameValuePairs.add(new BasicNameValuePair("REB_AMOUNT", REB_AMOUNT));
-			nameValuePairs.add(new BasicNameValuePair("SWIPE", SWIPE));
-			nameValuePairs.add(new BasicNameValuePair("TPS_HASH_TYPE", "SHA512"));
-			if (PAYMENT_TYPE.equals("CREDIT")) {
-				nameValuePairs.add(new BasicNameValuePair("CC_NUM", CARD_NUM));
-				nameValuePairs.add(new BasicNameValuePair("CC_EXPIRES", CARD_EXPIRE));
-				nameValuePairs.add(new BasicNameValuePair("CVCCVV2", CVCCVV2));
-			} else if (PAYMENT_TYPE.equals("ACH")) {
-				nameValuePairs.add(new BasicNameValuePair("ACH_ROUTING", ACH_ROUTING));
-				nameValuePairs.add(new BasicNameValuePair("ACH_ACCOUNT", ACH_ACCOUNT));
-				nameValuePairs.add(new BasicNameValuePair("ACH_ACCOUNT_TYPE", ACH_ACCOUNT_TYPE));
-				nameValuePairs.add(new BasicNameValuePair("DOC_TYPE", DOC_TYPE));
-			}
-		} else if (API.equals("bp20rebadmin")) {
-			BP_URL = "https://secure.bluepay.com/interfaces/bp20rebadmin";
-			nameValuePairs.add(new BasicNameValuePair("ACCOUNT_ID", BP_MERCHANT));
-			nameValuePairs.add(new BasicNameValuePair("TAMPER_PROOF_SEAL", calcRebillTPS()));
-			nameValuePairs.add(new BasicNameValuePair("TRANS_TYPE", TRANSACTION_TYPE));
-			nameValuePairs.add(new BasicNameValuePair("REBILL_ID", REBILL_ID));
-			nameValuePairs.add(new BasicNameValuePair("TEMPLATE_ID", TEMPLATE_ID));
-			nameValuePairs.add(new BasicNameValuePair("NEXT_DATE", NEXT_DATE));
-			nameValuePairs.add(new BasicNameValuePair("REB_EXPR", REB_EXPR));
-			nameValuePairs.add(new BasicNameValuePair("REB_CYCLES", REB_CYCLES));
-			nameValuePairs.add(new BasicNameValuePair("REB_AMOUNT", REB_AMOUNT));
-			nameValuePairs.add(new BasicNameValuePair("NEXT_AMOUNT", NEXT_AMOUNT));
-			nameValuePairs.add(new BasicNameValuePair("STATUS", REBILL_STATUS));
-		}
-		HttpClient httpclient = HttpClientBuilder.create().build();
-		HttpPost httpost = new HttpPost(BP_URL);
-		httpost.setEntity(new UrlEncodedFormEntity(nameValuePairs));
-		HttpResponse responseString = httpclient.execute(httpost);
-		if (BP_URL.equals("https://secure.bluepay.com/interfaces/bp10emu")) {
-			String queryString = responseString.getFirstHeader("location").getValue();
-			//BufferedReader rd = new BufferedReader(new InputStreamReader(responseString.getEntity().getContent()));
-			//String line = "";
-			Map<String, String> map = getQueryMap(queryString);
-			Set<String> keys = map.keySet();
-			for (String key : keys) {
-				response.put(key, map.get(key));
-			}
-			return response;
-		} else {
-			BufferedReader rd = new BufferedReader(new InputStreamReader(responseString.getEntity().getContent()));
-			String line = "";
-			while ((line = rd.readLine()) != null) {
-				List<NameValuePair> params = URLEncodedUtils.parse(line, Charset.defaultCharset());
-				for (NameValuePair nameValuePair : params) {
-					response.put(nameValuePair.getName(), nameValuePair.getValue());
+	BluePayResponse parseResponse(BluePayRequest request, HttpResponse httpResponse) throws IOException {
+		try {
+			Map<String, String> fields = new HashMap<String, String>();
+			if (request instanceof BluePayTransactionRequest) {
+				Header location = httpResponse.getFirstHeader("location");
+				if (location == null) {
+					throw new IOException("BluePay answered without a result: " + httpResponse.getStatusLine());
+				}
+				fields.putAll(getQueryMap(location.getValue()));
+			} else {
+				BufferedReader rd = new BufferedReader(new InputStreamReader(httpResponse.getEntity().getContent(), Consts.UTF_8));
+				String line;
+				while ((line = rd.readLine()) != null) {
+					List<NameValuePair> params = URLEncodedUtils.parse(line, Consts.UTF_8);
+					for (NameValuePair nameValuePair : params) {
+						fields.put(nameValuePair.getName(), nameValuePair.getValue());
+					}
 				}
 			}
-			return response;
+			return new BluePayResponse(fields);
+		} finally {
+			EntityUtils.consumeQuietly(httpResponse.getEntity());
 		}
 	}
 	
-	public HashMap<String, String> getResponse() {
-		return response;
-	}
-	
 	public static Map<String, String> getQueryMap(String query)  {
 		query = query.split("\\?")[1];
 		String[] params = query.split("&");
@@ -1057,337 +357,17 @@ public class BluePay
 		return map;
 	}
 	
-	/** Returns a single character indicating the result.
-	 *
-	 * @return '1' = Approved, '0' = Declined, 'E' = Error
-	 *
-	 */
-	public String getStatus() {
-		if(response.containsKey("Result")) {
-			return response.get("Result");
-		} else {
-			return null;
-		}
-	}
-	
-	/**
-	 * Returns the transaction status.
-	 *
-	 * @return true if approved; false otherwise.
-	 *
-	 */
-	public boolean isApproved()
-	{
-		if(response.containsKey("Result")) {
-			if(response.get("Result").equals("APPROVED")) {
-				return true;
-			}
-		}
-		return false;
-	}
-	
-	/**
-	 * Returns the transaction status.
-	 *
-	 * @return true if Declined; false otherwise.
-	 *
-	 */
-	public boolean isDeclined()
-	{
-		if(response.containsKey("Result")) {
-			if(response.get("Result").equals("DECLINED")) {
-				return true;
-			}
-		}
-		return false;
-	}
-	
-	/**
-	 * Returns the transaction status.
-	 *
-	 * @return true if error; false otherwise.
-	 *
-	 */
-	public boolean isError() {
-		if (response.containsKey("Result")) {
-			if (response.get("Result").equals("E") || response.get("Result").equals("MISSING")) {
-				return true;
-			}
-		}
-		return false;
-	}
-	
-	/**
-	 * Returns true if the transaction was successful (i.e. was approved and not a duplicate) 
-	 *
-	 * @return true if error; false otherwise.
-	 *
-	 */
-	public boolean isSuccessful()
-	{
-		if (response.get("Result").equals("APPROVED") && !response.get("MESSAGE").equals("DUPLICATE")) {
-			return true;
-		} else {
-			return false;
-		}
-	}
-	
-	
-	/**
-	 * Returns a human-readable transaction status.
-	 *
-	 * @return A string containing the status; e.g. "Approved" or "Declined: Hold Card"
-	 *
-	 */
-	public String getMessage()
-	{
-		if(response.containsKey("MESSAGE")) {
-			return response.get("MESSAGE");
-		} else {
-			return null;
-		}
-	}
-	
-	/**
-	 * Returns the Transaction ID.
-	 *
-	 * @return String containing 12-digit ID or null if none.
-	 *
-	 */
-	public String getTransID()
-	{
-		if(response.containsKey("RRNO")) {
-			return response.get("RRNO");
-		} else {
-			return null;
-		}
-	}
-	
-	/**
-	 * Returns the rebilling ID.
-	 *
-	 * @return String containing 12-digit ID or null if none.
-	 *
-	 */
-	public String getRebillingID()
-	{
-		if(response.containsKey("REBID")) {
-			return response.get("REBID");
-		} else if(response.containsKey("rebill_id")) {
-			return response.get("rebill_id");
-		} else {
-			return null;
-		}
-	}
-	
 	/**
-	 * Returns the AVS response.
+	 * Calculates the TAMPER_PROOF_SEAL of a Trans Notify post, to check it came from BluePay.
 	 *
-	 * @return String containing the AVS result or null if none.
-	 *
-	 */
-	public String getAVS()
-	{
-		if(response.containsKey("AVS")) {
-			return response.get("AVS");
-		} else {
-			return null;
-		}
-	}
-	
-	/**
-	 * Returns the CVV2 response.
-	 *
-	 * @return String containing the CVV2 response or null if none.
-	 *
-	 */
-	public String getCVV2()
-	{
-		if(response.containsKey("CVV2")) {
-			return response.get("CVV2");
-		} else {
-			return null;
-		}
-	}
-	
-	/**
-	 * Returns the masked payment account of the customer
-	 *
-	 * @return String containing the masked payment account or null if none.
-	 *
-	 */
-	public String getMaskedPaymentAccount()
-	{
-		if(response.containsKey("PAYMENT_ACCOUNT")) {
-			return response.get("PAYMENT_ACCOUNT");
-		} else {
-			return null;
-		}
-	}
-	
-	/**
-	 * Returns the card type used for the transaction
-	 *
-	 * @return String containing the card type or null if none.
-	 *
-	 */
-	public String getCardType()
-	{
-		if(response.containsKey("CARD_TYPE")) {
-			return response.get("CARD_TYPE");
-		} else {
-			return null;
-		}
-	}
-	
-	/**
-	 * Returns the customer's bank used for the transaction
-	 *
-	 * @return String containing the bank name or null if none.
-	 *
-	 */
-	public String getBankName()
-	{
-		if(response.containsKey("BANK_NAME")) {
-			return response.get("BANK_NAME");
-		} else {
-			return null;
-		}
-	}
-	
-	/**
-	 * Returns the authorization code for the transaction
-	 *
-	 * @return String containing the auth code or null if none.
-	 *
-	 */
-	public String getAuthCode()
-	{
-		if(response.containsKey("AUTH_CODE")) {
-			return response.get("AUTH_CODE");
-		} else {
-			return null;
-		}
-	}
-	
-	/**
-	 * Returns the Rebill Status response.
-	 *
-	 * @return String containing the Rebill Status response or null if none.
-	 *
-	 */
-	public String getRebillStatus()
-	{
-		if(response.containsKey("status")) {
-			return response.get("status");
-		} else {
-			return null;
-		}
-	}
-	
-	/**
-	 * Returns the Rebill Creation Date response.
-	 *
-	 * @return String containing the Rebill Creation Date response or null if none.
-	 *
-	 */
-	public String getRebillCreationDate()
-	{
-		if(response.containsKey("creation_date")) {
-			return response.get("creation_date");
-		} else {
-			return null;
-		}
-	}
-	
-	/**
-	 * Returns the Rebill Next Date response.
-	 *
-	 * @return String containing the Rebill Next Date response or null if none.
-	 *
-	 */
-	public String getRebillNextDate()
-	{
-		if(response.containsKey("next_date")) {
-			return response.get("next_date");
-		} else {
-			return null;
-		}
-	}
-	
-	/**
-	 * Returns the Rebill Status response.
-	 *
-	 * @return String containing the Rebill Status response or null if none.
-	 *
-	 */
-	public String getRebillLastDate()
-	{
-		if(response.containsKey("last_date")) {
-			return response.get("last_date");
-		} else {
-			return null;
-		}
-	}
-	
-	/**
-	 * Returns the Rebill Schedule Expression response.
-	 *
-	 * @return String containing the Rebill Schedule Expression response or null if none.
-	 *
-	 */
-	public String getRebillSchedExpr()
-	{
-		if(response.containsKey("sched_expr")) {
-			return response.get("sched_expr");
-		} else {
-			return null;
-		}
-	}
-	
-	/**
-	 * Returns the Rebill Cycles Remaining response.
-	 *
-	 * @return String containing the Rebill Cycles Remaining response or null if none.
-	 *
-	 */
-	public String getRebillCyclesRemain()
-	{
-		if(response.containsKey("cycles_remain")) {
-			return response.get("cycles_remain");
-		} else {
-			return null;
-		}
-	}
-	
-	/**
-	 * Returns the Rebill Amount response.
-	 *
-	 * @return String containing the Rebill Amount response or null if none.
-	 *
-	 */
-	public String getRebillAmount()
-	{
-		if(response.containsKey("reb_amount")) {
-			return response.get("reb_amount");
-		} else {
-			return null;
-		}
-	}
-	
-	/**
-	 * Returns the Rebill Next Amount response.
-	 *
-	 * @return String containing the Rebill Next Amount response or null if none.
+	 * @return tps The Tamper Proof Seal
 	 *
 	 */
-	public String getRebillNextAmount()
-	{
-		if(response.containsKey("next_amount")) {
-			return response.get("next_amount");
-		} else {
-			return null;
-		}
+	public static String calcTransNotifyTPS(String secretKey, String transID, String transStatus, String transType,
+	                                        String amount, String batchID, String batchStatus, String totalCount, String totalAmount,
+	                                        String batchUploadID, String rebillID, String rebillAmount, String rebillStatus) {
+		return BluePaySeal.md5().update(secretKey).update(transID).update(transStatus).update(transType).update(amount).update(batchID)
+				.update(batchStatus).update(totalCount).update(totalAmount).update(batchUploadID).update(rebillID).update(rebillAmount)
+				.update(rebillStatus).toHex();
 	}
-	
-};
\ No newline at end of file
+}
@@ -38,21 +38,39 @@ public class BluePayActivator extends KillbillActivatorBase {
 	public static final String PLUGIN_NAME = "killbill-bluepay-plugin";
 	
 	private OSGIKillbillEventDispatcher.OSGIKillbillEventHandler killbillEventHandler;
+	private BluePayHttpClient httpClient;
+	private BluePayHealth health;
 	
 	@Override
 	public void start(final BundleContext context) throws Exception {
 		super.start(context);
 		
+		// One pooled HTTP client and one stateless BluePay client, with its per-merchant limits, for every gateway call; closed on stop
+		httpClient = new BluePayHttpClient(configProperties.getProperties());
+		final BluePay bluePay = new BluePay(httpClient, configProperties.getProperties().getProperty(BluePayPaymentPluginApi.GATEWAY_URL_PROPERTY),
+				configProperties.getProperties());
+		
+		// Tenant credentials, shared by the payment API and invalidated by the listener
+		final BluePayDao dao = new BluePayDao(dataSource);
+		final BluePayCredentialsCache credentialsCache = new BluePayCredentialsCache(configProperties.getProperties(), dao);
+		final BluePayPaymentMethodCache paymentMethodCache = new BluePayPaymentMethodCache(configProperties.getProperties());
+		final BluePayPaymentMethodRefresher paymentMethodRefresher = new BluePayPaymentMethodRefresher(configProperties.getProperties(), logService, bluePay, dao);
+		final BluePayRegistry<BluePayBulkhead> bulkheads = BluePayBulkhead.registry(configProperties.getProperties());
+		final BluePayRegistry<BluePayTimer> timers = BluePayTimer.registry();
+		
 		// Register an event listener (optional)
-		killbillEventHandler = new BluePayListener(logService, killbillAPI, dataSource);
+		killbillEventHandler = new BluePayListener(logService, killbillAPI, dao, credentialsCache);
 		dispatcher.registerEventHandlers(killbillEventHandler);
 		
 		// As an example, this plugin registers a PaymentPluginApi (this could be changed to any other plugin api)
-		final PaymentPluginApi paymentPluginApi = new BluePayPaymentPluginApi(configProperties.getProperties(), logService, killbillAPI, dataSource);
+		final PaymentPluginApi paymentPluginApi = new BluePayPaymentPluginApi(configProperties.getProperties(), logService, killbillAPI, dao, bluePay, credentialsCache, paymentMethodCache, paymentMethodRefresher, bulkheads, timers);
 		registerPaymentPluginApi(context, paymentPluginApi);
 		
 		// Register a servlet (optional)
-		final BluePayServlet analyticsServlet = new BluePayServlet(logService);
+		final BluePayMetrics metrics = new BluePayMetrics(bluePay, httpClient, credentialsCache, paymentMethodCache, bulkheads, timers);
+		health = new BluePayHealth(configProperties.getProperties(), logService, dao, bluePay, httpClient);
+		health.start();
+		final BluePayServlet analyticsServlet = new BluePayServlet(logService, metrics, health);
 		registerServlet(context, analyticsServlet);
 	}
 	
@@ -60,6 +78,14 @@ public class BluePayActivator extends KillbillActivatorBase {
 	public void stop(final BundleContext context) throws Exception {
 		super.stop(context);
 		// Do additional work on shutdown (optional)
+		if (health != null) {
+			health.close();
+			health = null;
+		}
+		if (httpClient != null) {
+			httpClient.close();
+			httpClient = null;
+		}
 	}
 	
 	private void registerServlet(final BundleContext context, final HttpServlet servlet) {
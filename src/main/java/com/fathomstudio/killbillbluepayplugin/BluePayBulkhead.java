@@ -0,0 +1,144 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbluepayplugin;
+
+import java.util.Properties;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounds how many payment threads one BluePay merchant account can keep waiting on the gateway, so that a slow or
+ * throttled merchant cannot take every thread Kill Bill has. Threads over {@code maxConcurrent} queue for up to
+ * {@code maxWait}; those that find {@code maxQueue} threads already waiting, or time out, are turned away.
+ */
+public class BluePayBulkhead {
+	
+	public static final String PROPERTY_PREFIX = "org.killbill.billing.plugin.bluepay.bulkhead.";
+	
+	private final String name;
+	private final int maxConcurrent;
+	private final int maxQueue;
+	private final long maxWait;
+	private final Semaphore permits;
+	private final AtomicInteger queued = new AtomicInteger();
+	private final AtomicLong queuedCalls = new AtomicLong();
+	private final AtomicLong rejectedCalls = new AtomicLong();
+	private final AtomicLong timedOutCalls = new AtomicLong();
+	
+	/**
+	 * @return the bulkheads of the payment API, one per BluePay merchant account
+	 */
+	public static BluePayRegistry<BluePayBulkhead> registry(final Properties properties) {
+		final int maxConcurrent = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "maxConcurrent", "50"));
+		final int maxQueue = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "maxQueue", "50"));
+		final long maxWait = Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "maxWait", "2000"));
+		return new BluePayRegistry<BluePayBulkhead>(new BluePayRegistry.Factory<BluePayBulkhead>() {
+			@Override
+			public BluePayBulkhead create(final String name) {
+				return new BluePayBulkhead(name, maxConcurrent, maxQueue, maxWait, TimeUnit.MILLISECONDS);
+			}
+		});
+	}
+	
+	public BluePayBulkhead(final String name, final int maxConcurrent, final int maxQueue, final long maxWait, final TimeUnit unit) {
+		this.name = name;
+		this.maxConcurrent = Math.max(1, maxConcurrent);
+		this.maxQueue = maxQueue;
+		this.maxWait = unit.toNanos(maxWait);
+		this.permits = new Semaphore(this.maxConcurrent, true);
+	}
+	
+	/**
+	 * Takes a slot, waiting up to {@code maxWait} for one. A slot taken must be given back with {@link #release}.
+	 *
+	 * @return false if the call is turned away, or the thread was interrupted while waiting
+	 */
+	public boolean tryAcquire() {
+		if (permits.tryAcquire()) {
+			return true;
+		}
+		if (queued.incrementAndGet() > maxQueue) {
+			queued.decrementAndGet();
+			rejectedCalls.incrementAndGet();
+			return false;
+		}
+		queuedCalls.incrementAndGet();
+		try {
+			if (permits.tryAcquire(maxWait, TimeUnit.NANOSECONDS)) {
+				return true;
+			}
+			timedOutCalls.incrementAndGet();
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			timedOutCalls.incrementAndGet();
+			return false;
+		} finally {
+			queued.decrementAndGet();
+		}
+	}
+	
+	public void release() {
+		permits.release();
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public int getMaxConcurrent() {
+		return maxConcurrent;
+	}
+	
+	/**
+	 * @return the number of slots taken
+	 */
+	public int getInUse() {
+		return maxConcurrent - permits.availablePermits();
+	}
+	
+	/**
+	 * @return the number of threads waiting for a slot
+	 */
+	public int getQueued() {
+		return queued.get();
+	}
+	
+	/**
+	 * @return the number of calls that had to wait for a slot since the bulkhead was created
+	 */
+	public long getQueuedCalls() {
+		return queuedCalls.get();
+	}
+	
+	/**
+	 * @return the number of calls turned away because the queue was full
+	 */
+	public long getRejectedCalls() {
+		return rejectedCalls.get();
+	}
+	
+	/**
+	 * @return the number of calls turned away because no slot freed up in time
+	 */
+	public long getTimedOutCalls() {
+		return timedOutCalls.get();
+	}
+}
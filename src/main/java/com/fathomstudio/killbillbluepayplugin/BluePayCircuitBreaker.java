@@ -0,0 +1,261 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbluepayplugin;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stops sending requests to BluePay for one merchant account and mode while too many of the recent ones failed or
+ * were slow, so that payment threads fail fast instead of queueing up behind a degraded gateway.
+ *
+ * The breaker is CLOSED while healthy and judges the last {@code windowSize} calls once it has seen
+ * {@code minimumCalls}. It OPENs when the failure or slow-call rate reaches its threshold and rejects every call for
+ * {@code openDuration}; then it is HALF_OPEN: {@code halfOpenCalls} probes are let through, and their outcome closes
+ * or reopens it. Only transport failures count, not declines.
+ */
+public class BluePayCircuitBreaker {
+	
+	public static final String PROPERTY_PREFIX = "org.killbill.billing.plugin.bluepay.circuitBreaker.";
+	
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+	
+	private static final int FAILED = 1;
+	private static final int SLOW = 2;
+	
+	private final String name;
+	private final int minimumCalls;
+	private final float failureRateThreshold;
+	private final float slowCallRateThreshold;
+	private final long slowCallDuration;
+	private final long openDuration;
+	private final int halfOpenCalls;
+	
+	// read without locking on the fast path, changed under the lock
+	private volatile State state = State.CLOSED;
+	private final AtomicLong notPermittedCalls = new AtomicLong();
+	
+	// the outcomes of the last calls made while CLOSED, as FAILED and SLOW bits
+	private final int[] window;
+	private int windowIndex;
+	private int bufferedCalls;
+	private int failedCalls;
+	private int slowCalls;
+	
+	// System.nanoTime() when the current state was entered
+	private long enteredAt = System.nanoTime();
+	private int halfOpenPermits;
+	private int probes;
+	private int failedProbes;
+	private int slowProbes;
+	private long stateChangedAt = System.currentTimeMillis();
+	
+	/**
+	 * @return the circuit breakers of the BluePay client, one per merchant account and mode
+	 */
+	public static BluePayRegistry<BluePayCircuitBreaker> registry(final Properties properties) {
+		final int windowSize = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "windowSize", "50"));
+		final int minimumCalls = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "minimumCalls", "20"));
+		final float failureRateThreshold = Float.parseFloat(properties.getProperty(PROPERTY_PREFIX + "failureRateThreshold", "50"));
+		final float slowCallRateThreshold = Float.parseFloat(properties.getProperty(PROPERTY_PREFIX + "slowCallRateThreshold", "80"));
+		final long slowCallDuration = Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "slowCallDuration", "10000"));
+		final long openDuration = Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "openDuration", "30000"));
+		final int halfOpenCalls = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "halfOpenCalls", "5"));
+		return new BluePayRegistry<BluePayCircuitBreaker>(new BluePayRegistry.Factory<BluePayCircuitBreaker>() {
+			@Override
+			public BluePayCircuitBreaker create(final String name) {
+				return new BluePayCircuitBreaker(name, windowSize, minimumCalls, failureRateThreshold, slowCallRateThreshold,
+						slowCallDuration, openDuration, halfOpenCalls, TimeUnit.MILLISECONDS);
+			}
+		});
+	}
+	
+	/**
+	 * @param failureRateThreshold  percentage of failed calls that opens the breaker
+	 * @param slowCallRateThreshold percentage of calls slower than {@code slowCallDuration} that opens the breaker
+	 */
+	public BluePayCircuitBreaker(final String name, final int windowSize, final int minimumCalls, final float failureRateThreshold,
+	                             final float slowCallRateThreshold, final long slowCallDuration, final long openDuration, final int halfOpenCalls,
+	                             final TimeUnit unit) {
+		this.name = name;
+		this.window = new int[Math.max(1, windowSize)];
+		this.minimumCalls = Math.max(1, Math.min(minimumCalls, window.length));
+		this.failureRateThreshold = failureRateThreshold;
+		this.slowCallRateThreshold = slowCallRateThreshold;
+		this.slowCallDuration = unit.toNanos(slowCallDuration);
+		this.openDuration = unit.toNanos(openDuration);
+		this.halfOpenCalls = Math.max(1, halfOpenCalls);
+	}
+	
+	/**
+	 * @return true if a call may be sent, in which case its outcome must be reported to {@link #onResult}
+	 */
+	public boolean tryAcquirePermission() {
+		if (state == State.CLOSED) {
+			return true;
+		}
+		synchronized (this) {
+			if (state == State.OPEN && System.nanoTime() - enteredAt >= openDuration) {
+				transitionTo(State.HALF_OPEN);
+			}
+			if (state == State.HALF_OPEN && halfOpenPermits > 0) {
+				halfOpenPermits--;
+				return true;
+			}
+			if (state == State.CLOSED) {
+				return true;
+			}
+		}
+		notPermittedCalls.incrementAndGet();
+		return false;
+	}
+	
+	/**
+	 * Gives back the permission of a call that was not sent after all.
+	 */
+	public synchronized void releasePermission() {
+		if (state == State.HALF_OPEN && halfOpenPermits < halfOpenCalls) {
+			halfOpenPermits++;
+		}
+	}
+	
+	/**
+	 * Records the outcome of a permitted call. A call that started before the breaker last changed state is not counted,
+	 * e.g. one let through while CLOSED that ends once HALF_OPEN is not a probe.
+	 *
+	 * @param duration how long the call took, in nanoseconds, up to now
+	 * @param failed   whether the gateway could not be reached or did not answer properly
+	 */
+	public void onResult(final long duration, final boolean failed) {
+		final int outcome = (failed ? FAILED : 0) | (duration >= slowCallDuration ? SLOW : 0);
+		final long startedAt = System.nanoTime() - duration;
+		synchronized (this) {
+			if (startedAt - enteredAt < 0) {
+				return;
+			}
+			switch (state) {
+				case CLOSED:
+					if (bufferedCalls == window.length) {
+						forget(window[windowIndex]);
+					} else {
+						bufferedCalls++;
+					}
+					window[windowIndex] = outcome;
+					windowIndex = (windowIndex + 1) % window.length;
+					failedCalls += outcome & FAILED;
+					slowCalls += (outcome & SLOW) >> 1;
+					if (bufferedCalls >= minimumCalls && exceedsThresholds(failedCalls, slowCalls, bufferedCalls)) {
+						transitionTo(State.OPEN);
+					}
+					break;
+				case HALF_OPEN:
+					probes++;
+					failedProbes += outcome & FAILED;
+					slowProbes += (outcome & SLOW) >> 1;
+					if (exceedsThresholds(failedProbes, slowProbes, probes)) {
+						transitionTo(State.OPEN);
+					} else if (probes >= halfOpenCalls) {
+						transitionTo(State.CLOSED);
+					}
+					break;
+				default:
+					// OPEN lets no call through
+					break;
+			}
+		}
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public State getState() {
+		return state;
+	}
+	
+	/**
+	 * @return when the breaker last changed state, in milliseconds since the epoch
+	 */
+	public synchronized long getStateChangedAt() {
+		return stateChangedAt;
+	}
+	
+	/**
+	 * @return the percentage of failed calls in the window, or -1 until it holds {@code minimumCalls}
+	 */
+	public synchronized float getFailureRate() {
+		return bufferedCalls < minimumCalls ? -1 : 100f * failedCalls / bufferedCalls;
+	}
+	
+	/**
+	 * @return the percentage of slow calls in the window, or -1 until it holds {@code minimumCalls}
+	 */
+	public synchronized float getSlowCallRate() {
+		return bufferedCalls < minimumCalls ? -1 : 100f * slowCalls / bufferedCalls;
+	}
+	
+	public synchronized int getBufferedCalls() {
+		return bufferedCalls;
+	}
+	
+	/**
+	 * @return the number of calls rejected since the breaker was created
+	 */
+	public long getNotPermittedCalls() {
+		return notPermittedCalls.get();
+	}
+	
+	private boolean exceedsThresholds(final int failed, final int slow, final int calls) {
+		return 100f * failed / calls >= failureRateThreshold || 100f * slow / calls >= slowCallRateThreshold;
+	}
+	
+	private void forget(final int outcome) {
+		failedCalls -= outcome & FAILED;
+		slowCalls -= (outcome & SLOW) >> 1;
+	}
+	
+	private void transitionTo(final State newState) {
+		if (newState == State.HALF_OPEN) {
+			halfOpenPermits = halfOpenCalls;
+			probes = 0;
+			failedProbes = 0;
+			slowProbes = 0;
+		} else if (newState == State.CLOSED) {
+			windowIndex = 0;
+			bufferedCalls = 0;
+			failedCalls = 0;
+			slowCalls = 0;
+		}
+		enteredAt = System.nanoTime();
+		stateChangedAt = System.currentTimeMillis();
+		state = newState;
+	}
+	
+	/**
+	 * Fails a call that the breaker did not let through.
+	 */
+	public static class OpenException extends BluePayRejectedException {
+		
+		public OpenException(final BluePayCircuitBreaker circuitBreaker) {
+			super("BluePay circuit breaker " + circuitBreaker.getName() + " is " + circuitBreaker.getState());
+		}
+	}
+}
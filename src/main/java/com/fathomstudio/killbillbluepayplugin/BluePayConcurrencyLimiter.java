@@ -0,0 +1,240 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbluepayplugin;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits how many requests are outstanding at BluePay for one merchant account and mode, adapting the limit to what
+ * the gateway serves without slowing down (additive increase, multiplicative decrease).
+ *
+ * While the limit is in use, each answer raises it by 1/limit, i.e. by one per limit's worth of answers. A failure, or
+ * a smoothed latency over {@code latencyTolerance} times the no-load latency, multiplies it by {@code backoffRatio},
+ * at most once per smoothed latency so that one burst of slow answers counts once. The no-load latency is the lowest
+ * smoothed latency seen, slowly drifting towards the current one in case the gateway itself got slower.
+ *
+ * Callers over the limit queue for up to {@code maxWait}; those that find {@code maxQueue} callers already waiting, or
+ * time out, are rejected.
+ */
+public class BluePayConcurrencyLimiter {
+	
+	public static final String PROPERTY_PREFIX = "org.killbill.billing.plugin.bluepay.concurrency.";
+	
+	// weight of a new answer in the smoothed latency, and of the smoothed latency in the no-load latency
+	private static final double SMOOTHING = 0.1;
+	private static final double DRIFT = 0.0001;
+	
+	private final String name;
+	private final int minLimit;
+	private final int maxLimit;
+	private final double backoffRatio;
+	private final double latencyTolerance;
+	private final int maxQueue;
+	private final long maxWait;
+	
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition available = lock.newCondition();
+	private final AtomicLong rejectedCalls = new AtomicLong();
+	// guarded by the lock
+	private double limit;
+	private int inFlight;
+	private int queued;
+	private double latency;
+	private double baseLatency;
+	private long lastDecrease;
+	
+	/**
+	 * @return the concurrency limiters of the BluePay client, one per merchant account and mode
+	 */
+	public static BluePayRegistry<BluePayConcurrencyLimiter> registry(final Properties properties) {
+		final int initialLimit = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "initialLimit", "20"));
+		final int minLimit = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "minLimit", "1"));
+		final int maxLimit = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "maxLimit", "200"));
+		final double backoffRatio = Double.parseDouble(properties.getProperty(PROPERTY_PREFIX + "backoffRatio", "0.9"));
+		final double latencyTolerance = Double.parseDouble(properties.getProperty(PROPERTY_PREFIX + "latencyTolerance", "2"));
+		final int maxQueue = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "maxQueue", "100"));
+		final long maxWait = Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "maxWait", "5000"));
+		return new BluePayRegistry<BluePayConcurrencyLimiter>(new BluePayRegistry.Factory<BluePayConcurrencyLimiter>() {
+			@Override
+			public BluePayConcurrencyLimiter create(final String name) {
+				return new BluePayConcurrencyLimiter(name, initialLimit, minLimit, maxLimit, backoffRatio, latencyTolerance, maxQueue,
+						maxWait, TimeUnit.MILLISECONDS);
+			}
+		});
+	}
+	
+	public BluePayConcurrencyLimiter(final String name, final int initialLimit, final int minLimit, final int maxLimit, final double backoffRatio,
+	                                 final double latencyTolerance, final int maxQueue, final long maxWait, final TimeUnit unit) {
+		this.name = name;
+		this.minLimit = Math.max(1, minLimit);
+		this.maxLimit = Math.max(this.minLimit, maxLimit);
+		this.backoffRatio = backoffRatio;
+		this.latencyTolerance = latencyTolerance;
+		this.maxQueue = maxQueue;
+		this.maxWait = unit.toNanos(maxWait);
+		this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+		this.lastDecrease = System.nanoTime();
+	}
+	
+	/**
+	 * Takes a slot, waiting up to {@code maxWait} for one. A slot taken must be given back with {@link #release}.
+	 *
+	 * @return false if the call is rejected
+	 */
+	public boolean tryAcquire() throws InterruptedException {
+		lock.lock();
+		try {
+			if (inFlight < (int) limit) {
+				inFlight++;
+				return true;
+			}
+			if (queued >= maxQueue) {
+				rejectedCalls.incrementAndGet();
+				return false;
+			}
+			queued++;
+			try {
+				long remaining = maxWait;
+				while (inFlight >= (int) limit) {
+					if (remaining <= 0) {
+						rejectedCalls.incrementAndGet();
+						return false;
+					}
+					remaining = available.awaitNanos(remaining);
+				}
+				inFlight++;
+				return true;
+			} finally {
+				queued--;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Gives back a slot and adapts the limit to the call's outcome.
+	 *
+	 * @param duration how long the call took, in nanoseconds
+	 * @param failed   whether the gateway could not be reached or did not answer properly
+	 */
+	public void release(final long duration, final boolean failed) {
+		lock.lock();
+		try {
+			final int outstanding = inFlight--;
+			if (!failed) {
+				latency = latency == 0 ? duration : latency + SMOOTHING * (duration - latency);
+				baseLatency = baseLatency == 0 || latency < baseLatency ? latency : baseLatency + DRIFT * (latency - baseLatency);
+			}
+			if (failed || latency > latencyTolerance * baseLatency) {
+				final long now = System.nanoTime();
+				if (now - lastDecrease >= latency) {
+					limit = Math.max(minLimit, limit * backoffRatio);
+					lastDecrease = now;
+				}
+			} else if (outstanding * 2 >= limit) {
+				limit = Math.min(maxLimit, limit + 1 / limit);
+			}
+			available.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Gives back a slot without adapting the limit, e.g. for a report whose duration depends on its size.
+	 */
+	public void release() {
+		lock.lock();
+		try {
+			inFlight--;
+			available.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public int getLimit() {
+		lock.lock();
+		try {
+			return (int) limit;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public int getInFlight() {
+		lock.lock();
+		try {
+			return inFlight;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return the number of callers waiting for a slot
+	 */
+	public int getQueued() {
+		lock.lock();
+		try {
+			return queued;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return the smoothed latency of successful calls, in milliseconds
+	 */
+	public double getLatencyMillis() {
+		lock.lock();
+		try {
+			return latency / TimeUnit.MILLISECONDS.toNanos(1);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return the latency the gateway answers with when not loaded, in milliseconds
+	 */
+	public double getBaseLatencyMillis() {
+		lock.lock();
+		try {
+			return baseLatency / TimeUnit.MILLISECONDS.toNanos(1);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return the number of calls rejected since the limiter was created
+	 */
+	public long getRejectedCalls() {
+		return rejectedCalls.get();
+	}
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbluepayplugin;
+
+/**
+ * The BluePay merchant credentials configured for a tenant.
+ */
+public class BluePayCredentials {
+	
+	private final String accountId;
+	private final String secretKey;
+	private final boolean test;
+	
+	public BluePayCredentials(final String accountId, final String secretKey, final boolean test) {
+		this.accountId = accountId;
+		this.secretKey = secretKey;
+		this.test = test;
+	}
+	
+	public String getAccountId() {
+		return accountId;
+	}
+	
+	public String getSecretKey() {
+		return secretKey;
+	}
+	
+	public boolean isTest() {
+		return test;
+	}
+	
+	/**
+	 * @return the BluePay processing mode, "TEST" or "LIVE"
+	 */
+	public String getMode() {
+		return test ? "TEST" : "LIVE";
+	}
+	
+	/**
+	 * @return the merchant account and mode, e.g. "100012345678/TEST", the per-merchant limits are kept by
+	 */
+	public String getName() {
+		return accountId + "/" + getMode();
+	}
+}
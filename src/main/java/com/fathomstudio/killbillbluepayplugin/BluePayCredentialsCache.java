@@ -0,0 +1,109 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbluepayplugin;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches the BluePay credentials of each tenant so payments don't have to read them from the database every time.
+ * Entries are dropped when the tenant's configuration changes, and expire after a TTL so that other nodes eventually
+ * pick up changes too.
+ */
+public class BluePayCredentialsCache {
+	
+	public static final String PROPERTY_PREFIX = "org.killbill.billing.plugin.bluepay.credentials.";
+	
+	private final LoadingCache<UUID, BluePayCredentials> cache;
+	
+	public BluePayCredentialsCache(final Properties properties, final BluePayDao dao) {
+		this.cache = CacheBuilder.newBuilder()
+				.maximumSize(Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "maxSize", "1000")))
+				.expireAfterWrite(Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "ttl", "300")), TimeUnit.SECONDS)
+				.recordStats()
+				.build(new CacheLoader<UUID, BluePayCredentials>() {
+					@Override
+					public BluePayCredentials load(final UUID kbTenantId) throws SQLException {
+						return dao.getCredentials(kbTenantId);
+					}
+				});
+	}
+	
+	/**
+	 * Gets the credentials for a tenant, reading them from the database if they aren't cached.
+	 *
+	 * @param kbTenantId - the tenant
+	 * @return the credentials
+	 * @throws SQLException if the tenant isn't configured or the database can't be read
+	 */
+	public BluePayCredentials get(final UUID kbTenantId) throws SQLException {
+		try {
+			return cache.get(kbTenantId);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof SQLException) {
+				throw (SQLException) e.getCause();
+			}
+			throw new SQLException(e.getCause());
+		}
+	}
+	
+	/**
+	 * @param kbTenantId - the tenant
+	 * @return the cached credentials, or null if they have to be read from the database
+	 */
+	public BluePayCredentials getIfPresent(final UUID kbTenantId) {
+		return cache.getIfPresent(kbTenantId);
+	}
+	
+	/**
+	 * Records credentials read from the database along with other data.
+	 *
+	 * @param kbTenantId  - the tenant
+	 * @param credentials - the credentials
+	 */
+	public void put(final UUID kbTenantId, final BluePayCredentials credentials) {
+		cache.put(kbTenantId, credentials);
+	}
+	
+	/**
+	 * Drops the cached credentials for a tenant, so the next payment reads them again.
+	 *
+	 * @param kbTenantId - the tenant
+	 */
+	public void invalidate(final UUID kbTenantId) {
+		if (kbTenantId != null) {
+			cache.invalidate(kbTenantId);
+		}
+	}
+	
+	public CacheStats getStats() {
+		return cache.stats();
+	}
+	
+	public long size() {
+		return cache.size();
+	}
+}
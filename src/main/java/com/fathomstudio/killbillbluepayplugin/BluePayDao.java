@@ -0,0 +1,687 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbluepayplugin;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillDataSource;
+import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.payment.plugin.api.PaymentMethodInfoPlugin;
+import org.killbill.billing.payment.plugin.api.PaymentPluginStatus;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Data access for the bluePay_credentials, bluePay_paymentMethods and bluePay_transactions tables.
+ *
+ * The SQL strings are constants so that the pool's prepared statement cache can reuse the statements across calls.
+ * Methods taking a {@link Connection} run on the caller's connection; the others borrow one for the duration of the call.
+ */
+public class BluePayDao {
+	
+	private static final String CREDENTIALS_QUERY = "SELECT `accountId`, `secretKey`, `test` FROM `bluePay_credentials` WHERE `tenantId` = ?";
+	private static final String ALL_CREDENTIALS_QUERY = "SELECT `tenantId`, `accountId`, `secretKey`, `test` FROM `bluePay_credentials` ORDER BY `id`";
+	private static final String[] CHECK_TABLES_QUERIES = {"SELECT 1 FROM `bluePay_credentials` LIMIT 1", "SELECT 1 FROM `bluePay_paymentMethods` LIMIT 1",
+			"SELECT 1 FROM `bluePay_transactions` LIMIT 1"};
+	private static final String SAVE_CREDENTIALS_QUERY = "INSERT INTO `bluePay_credentials` (`tenantId`, `accountId`, `secretKey`, `test`) VALUES (?, ?, ?, ?) ON DUPLICATE KEY UPDATE `accountId` = VALUES(`accountId`), `secretKey` = VALUES(`secretKey`), `test` = VALUES(`test`)";
+	private static final String PAYMENT_METHOD_QUERY = "SELECT * FROM `bluePay_paymentMethods` WHERE `paymentMethodId` = ?";
+	private static final String ACCOUNT_PAYMENT_METHODS_QUERY = "SELECT * FROM `bluePay_paymentMethods` WHERE `tenantId` = ? AND `kbAccountId` = ? ORDER BY `id`";
+	private static final String SAVE_PAYMENT_METHOD_QUERY = "INSERT INTO `bluePay_paymentMethods` (`tenantId`, `kbAccountId`, `paymentMethodId`, `transactionId`, `cardType`, `lastFour`, `maskedAccount`, `bankName`, `expiration`) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?) ON DUPLICATE KEY UPDATE `tenantId` = VALUES(`tenantId`), `kbAccountId` = VALUES(`kbAccountId`), `transactionId` = VALUES(`transactionId`), `cardType` = VALUES(`cardType`), `lastFour` = VALUES(`lastFour`), `maskedAccount` = VALUES(`maskedAccount`), `bankName` = VALUES(`bankName`), `expiration` = VALUES(`expiration`)";
+	private static final String DELETE_PAYMENT_METHOD_QUERY = "DELETE FROM `bluePay_paymentMethods` WHERE `paymentMethodId` = ?";
+	private static final String ACCOUNT_PAYMENT_METHOD_IDS_QUERY = "SELECT `paymentMethodId` FROM `bluePay_paymentMethods` WHERE `tenantId` = ? AND `kbAccountId` = ?";
+	// a reset only knows the token: the details of rows whose token changes are cleared first, so the upsert never reads
+	// a column it assigns and doesn't depend on the order MySQL evaluates assignments in
+	private static final String RESET_PAYMENT_METHODS_CLEAR = "UPDATE `bluePay_paymentMethods` SET `cardType` = NULL, `lastFour` = NULL, `maskedAccount` = NULL, `bankName` = NULL, `expiration` = NULL WHERE ";
+	private static final String RESET_PAYMENT_METHODS_INSERT = "INSERT INTO `bluePay_paymentMethods` (`tenantId`, `kbAccountId`, `paymentMethodId`, `transactionId`) VALUES ";
+	private static final String RESET_PAYMENT_METHODS_UPDATE = " ON DUPLICATE KEY UPDATE `tenantId` = VALUES(`tenantId`), `kbAccountId` = VALUES(`kbAccountId`), `transactionId` = VALUES(`transactionId`)";
+	// one round-trip for everything a purchase reads; the LEFT JOIN still returns the credentials when the token is missing
+	private static final String PURCHASE_QUERY = "SELECT c.`accountId`, c.`secretKey`, c.`test`, pm.* FROM `bluePay_credentials` c LEFT JOIN `bluePay_paymentMethods` pm ON pm.`paymentMethodId` = ? WHERE c.`tenantId` = ?";
+	
+	private static final String SAVE_TRANSACTION_QUERY = "INSERT INTO `bluePay_transactions` (`tenantId`, `kbAccountId`, `kbPaymentId`, `kbTransactionId`, `kbPaymentMethodId`, `transactionType`, `amount`, `currency`, `status`, `bluePayTransactionId`, `gatewayStatus`, `message`, `avs`, `cvv2`, `authCode`, `maskedAccount`, `cardType`, `createdDate`, `effectiveDate`) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) ON DUPLICATE KEY UPDATE `status` = VALUES(`status`), `bluePayTransactionId` = VALUES(`bluePayTransactionId`), `gatewayStatus` = VALUES(`gatewayStatus`), `message` = VALUES(`message`), `avs` = VALUES(`avs`), `cvv2` = VALUES(`cvv2`), `authCode` = VALUES(`authCode`), `maskedAccount` = VALUES(`maskedAccount`), `cardType` = VALUES(`cardType`), `effectiveDate` = VALUES(`effectiveDate`)";
+	// the claim is a plain insert: the unique kbTransactionId makes it fail for a transaction already journaled
+	private static final String CLAIM_TRANSACTION_QUERY = "INSERT INTO `bluePay_transactions` (`tenantId`, `kbAccountId`, `kbPaymentId`, `kbTransactionId`, `kbPaymentMethodId`, `transactionType`, `amount`, `currency`, `status`, `bluePayTransactionId`, `gatewayStatus`, `message`, `avs`, `cvv2`, `authCode`, `maskedAccount`, `cardType`, `createdDate`, `effectiveDate`) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+	// a CANCELED transaction never reached BluePay, so it may be claimed again
+	private static final String RECLAIM_TRANSACTION_QUERY = "UPDATE `bluePay_transactions` SET `status` = ?, `bluePayTransactionId` = NULL, `gatewayStatus` = NULL, `message` = NULL, `avs` = NULL, `cvv2` = NULL, `authCode` = NULL, `maskedAccount` = NULL, `cardType` = NULL, `effectiveDate` = ? WHERE `tenantId` = ? AND `kbTransactionId` = ? AND `status` = 'CANCELED'";
+	// settles a transaction only if it is still as it was read, so a claim taken over meanwhile is left alone
+	private static final String SETTLE_TRANSACTION_QUERY = "UPDATE `bluePay_transactions` SET `status` = ?, `bluePayTransactionId` = ?, `gatewayStatus` = ?, `message` = ?, `avs` = ?, `cvv2` = ?, `authCode` = ?, `maskedAccount` = ?, `cardType` = ?, `effectiveDate` = ? WHERE `tenantId` = ? AND `kbTransactionId` = ? AND `status` = ? AND `effectiveDate` = ?";
+	private static final String TRANSACTION_QUERY = "SELECT * FROM `bluePay_transactions` WHERE `tenantId` = ? AND `kbTransactionId` = ?";
+	// served from INDEX_bluePay_transactions_ON_kbPaymentId
+	private static final String TRANSACTIONS_QUERY = "SELECT * FROM `bluePay_transactions` WHERE `tenantId` = ? AND `kbPaymentId` = ? ORDER BY `id`";
+	
+	// searchPayments: each branch seeks one index from the cursor and reads IDs only, then the page is read by primary key
+	private static final String[] SEARCH_COLUMNS = {"bluePayTransactionId", "kbPaymentId", "kbTransactionId", "maskedAccount", "status"};
+	private static final String SEARCH_IDS = searchBranches("bluePay_transactions", SEARCH_COLUMNS);
+	private static final String SEARCH_TRANSACTIONS_QUERY = "SELECT t.* FROM `bluePay_transactions` t JOIN (" + SEARCH_IDS + ") m ON m.`id` = t.`id` ORDER BY t.`id` LIMIT ?";
+	// the page's last match and the one after it, if any: as deep into the index as the page, and no deeper
+	private static final String SEARCH_NEXT_QUERY = "SELECT m.`id` FROM (" + SEARCH_IDS + ") m ORDER BY m.`id` LIMIT 2 OFFSET ?";
+	private static final String SEARCH_COUNT_QUERY = "SELECT COUNT(*) FROM (" + SEARCH_IDS + ") m";
+	private static final String TRANSACTION_COUNT_QUERY = "SELECT COUNT(*) FROM `bluePay_transactions` WHERE `tenantId` = ?";
+	// searchPaymentMethods, the same way
+	private static final String[] PAYMENT_METHOD_SEARCH_COLUMNS = {"transactionId", "paymentMethodId", "cardType", "lastFour", "kbAccountId"};
+	private static final String PAYMENT_METHOD_SEARCH_IDS = searchBranches("bluePay_paymentMethods", PAYMENT_METHOD_SEARCH_COLUMNS);
+	private static final String SEARCH_PAYMENT_METHODS_QUERY = "SELECT p.* FROM `bluePay_paymentMethods` p JOIN (" + PAYMENT_METHOD_SEARCH_IDS + ") m ON m.`id` = p.`id` ORDER BY p.`id` LIMIT ?";
+	private static final String PAYMENT_METHOD_SEARCH_NEXT_QUERY = "SELECT m.`id` FROM (" + PAYMENT_METHOD_SEARCH_IDS + ") m ORDER BY m.`id` LIMIT 2 OFFSET ?";
+	private static final String PAYMENT_METHOD_SEARCH_COUNT_QUERY = "SELECT COUNT(*) FROM (" + PAYMENT_METHOD_SEARCH_IDS + ") m";
+	private static final String PAYMENT_METHOD_COUNT_QUERY = "SELECT COUNT(*) FROM `bluePay_paymentMethods` WHERE `tenantId` = ?";
+	// rows a search page reads per query, each query on its own connection
+	static final int SEARCH_FETCH_SIZE = 100;
+	// rows per multi-row upsert of a reset, and deletes per batch
+	static final int RESET_CHUNK_SIZE = 500;
+	private static final String RESET_PAYMENT_METHODS_QUERY = resetPaymentMethodsQuery(RESET_CHUNK_SIZE);
+	private static final String RESET_PAYMENT_METHODS_CLEAR_QUERY = resetPaymentMethodsClearQuery(RESET_CHUNK_SIZE);
+	
+	private final OSGIKillbillDataSource dataSource;
+	
+	public BluePayDao(final OSGIKillbillDataSource dataSource) {
+		this.dataSource = dataSource;
+	}
+	
+	public Connection getConnection() throws SQLException {
+		return dataSource.getDataSource().getConnection();
+	}
+	
+	/**
+	 * Same as {@link #getPurchaseRecord(Connection, UUID, UUID)}, on a connection returned to the pool before this returns.
+	 */
+	public BluePayPurchaseRecord getPurchaseRecord(final UUID kbTenantId, final UUID kbPaymentMethodId) throws SQLException {
+		try (Connection connection = getConnection()) {
+			return getPurchaseRecord(connection, kbTenantId, kbPaymentMethodId);
+		}
+	}
+	
+	/**
+	 * Reads the tenant's credentials and the payment method's token in a single query.
+	 *
+	 * @param connection        - the connection to use
+	 * @param kbTenantId        - the tenant
+	 * @param kbPaymentMethodId - the payment method
+	 * @return the credentials and payment method (which may be null)
+	 * @throws SQLException if the tenant isn't configured or the database can't be read
+	 */
+	public BluePayPurchaseRecord getPurchaseRecord(final Connection connection, final UUID kbTenantId, final UUID kbPaymentMethodId) throws SQLException {
+		try (PreparedStatement statement = connection.prepareStatement(PURCHASE_QUERY)) {
+			statement.setString(1, kbPaymentMethodId.toString());
+			statement.setString(2, kbTenantId.toString());
+			try (ResultSet resultSet = statement.executeQuery()) {
+				if (!resultSet.next()) {
+					throw new SQLException("no results");
+				}
+				return new BluePayPurchaseRecord(readCredentials(resultSet), resultSet.getString("paymentMethodId") == null ? null : readPaymentMethod(resultSet));
+			}
+		}
+	}
+	
+	public BluePayCredentials getCredentials(final UUID kbTenantId) throws SQLException {
+		try (Connection connection = getConnection()) {
+			return getCredentials(connection, kbTenantId);
+		}
+	}
+	
+	public BluePayCredentials getCredentials(final Connection connection, final UUID kbTenantId) throws SQLException {
+		try (PreparedStatement statement = connection.prepareStatement(CREDENTIALS_QUERY)) {
+			statement.setString(1, kbTenantId.toString());
+			try (ResultSet resultSet = statement.executeQuery()) {
+				if (!resultSet.next()) {
+					throw new SQLException("no results");
+				}
+				return readCredentials(resultSet);
+			}
+		}
+	}
+	
+	/**
+	 * @return the credentials of every tenant that has some, by tenant
+	 */
+	public Map<UUID, BluePayCredentials> getAllCredentials() throws SQLException {
+		try (Connection connection = getConnection();
+		     PreparedStatement statement = connection.prepareStatement(ALL_CREDENTIALS_QUERY);
+		     ResultSet resultSet = statement.executeQuery()) {
+			final Map<UUID, BluePayCredentials> credentials = new LinkedHashMap<UUID, BluePayCredentials>();
+			while (resultSet.next()) {
+				credentials.put(UUID.fromString(resultSet.getString("tenantId")), readCredentials(resultSet));
+			}
+			return credentials;
+		}
+	}
+	
+	/**
+	 * Reads a row from each of the plugin's tables, to check they can be reached.
+	 *
+	 * @throws SQLException if one of them cannot
+	 */
+	public void checkTables() throws SQLException {
+		try (Connection connection = getConnection()) {
+			for (String query : CHECK_TABLES_QUERIES) {
+				try (PreparedStatement statement = connection.prepareStatement(query);
+				     ResultSet resultSet = statement.executeQuery()) {
+					resultSet.next();
+				}
+			}
+		}
+	}
+	
+	public void saveCredentials(final UUID kbTenantId, final BluePayCredentials credentials) throws SQLException {
+		try (Connection connection = getConnection();
+		     PreparedStatement statement = connection.prepareStatement(SAVE_CREDENTIALS_QUERY)) {
+			statement.setString(1, kbTenantId.toString());
+			statement.setString(2, credentials.getAccountId());
+			statement.setString(3, credentials.getSecretKey());
+			statement.setBoolean(4, credentials.isTest());
+			statement.executeUpdate();
+		}
+	}
+	
+	/**
+	 * @return the payment method, or null if none is stored
+	 */
+	public BluePayPaymentMethod getPaymentMethod(final UUID kbPaymentMethodId) throws SQLException {
+		try (Connection connection = getConnection();
+		     PreparedStatement statement = connection.prepareStatement(PAYMENT_METHOD_QUERY)) {
+			statement.setString(1, kbPaymentMethodId.toString());
+			try (ResultSet resultSet = statement.executeQuery()) {
+				return resultSet.next() ? readPaymentMethod(resultSet) : null;
+			}
+		}
+	}
+	
+	/**
+	 * @return the payment methods of an account, oldest first
+	 */
+	public List<BluePayPaymentMethod> getPaymentMethods(final UUID kbTenantId, final UUID kbAccountId) throws SQLException {
+		try (Connection connection = getConnection();
+		     PreparedStatement statement = connection.prepareStatement(ACCOUNT_PAYMENT_METHODS_QUERY)) {
+			statement.setString(1, kbTenantId.toString());
+			statement.setString(2, kbAccountId.toString());
+			try (ResultSet resultSet = statement.executeQuery()) {
+				final List<BluePayPaymentMethod> paymentMethods = new ArrayList<BluePayPaymentMethod>();
+				while (resultSet.next()) {
+					paymentMethods.add(readPaymentMethod(resultSet));
+				}
+				return paymentMethods;
+			}
+		}
+	}
+	
+	/**
+	 * Stores a payment method's token and what BluePay told about the payment information, replacing any previous one.
+	 */
+	public void savePaymentMethod(final BluePayPaymentMethod paymentMethod) throws SQLException {
+		try (Connection connection = getConnection();
+		     PreparedStatement statement = connection.prepareStatement(SAVE_PAYMENT_METHOD_QUERY)) {
+			bindPaymentMethod(statement, paymentMethod);
+			statement.executeUpdate();
+		}
+	}
+	
+	/**
+	 * Same as {@link #savePaymentMethod}, for several payment methods in one batch on one connection.
+	 */
+	public void savePaymentMethods(final List<BluePayPaymentMethod> paymentMethods) throws SQLException {
+		if (paymentMethods.isEmpty()) {
+			return;
+		}
+		try (Connection connection = getConnection();
+		     PreparedStatement statement = connection.prepareStatement(SAVE_PAYMENT_METHOD_QUERY)) {
+			for (final BluePayPaymentMethod paymentMethod : paymentMethods) {
+				bindPaymentMethod(statement, paymentMethod);
+				statement.addBatch();
+			}
+			statement.executeBatch();
+		}
+	}
+	
+	/**
+	 * Makes an account's stored payment methods match Kill Bill's, whose external IDs are the BluePay tokens. The listed
+	 * methods are upserted {@link #RESET_CHUNK_SIZE} rows per statement, keeping their details unless the token changed;
+	 * the others, and listed ones without a token, are deleted. Every statement commits on its own, so an interrupted
+	 * reset is finished by running it again.
+	 *
+	 * @return the IDs of the deleted payment methods
+	 */
+	public List<UUID> resetPaymentMethods(final UUID kbTenantId, final UUID kbAccountId, final List<PaymentMethodInfoPlugin> paymentMethods) throws SQLException {
+		final Set<String> kept = new HashSet<String>();
+		final List<UUID> deleted = new ArrayList<UUID>();
+		try (Connection connection = getConnection()) {
+			try (PreparedStatement clear = connection.prepareStatement(RESET_PAYMENT_METHODS_CLEAR_QUERY);
+			     PreparedStatement statement = connection.prepareStatement(RESET_PAYMENT_METHODS_QUERY)) {
+				final PaymentMethodInfoPlugin[] chunk = new PaymentMethodInfoPlugin[RESET_CHUNK_SIZE];
+				int size = 0;
+				for (final PaymentMethodInfoPlugin paymentMethod : paymentMethods) {
+					if (paymentMethod.getExternalPaymentMethodId() == null) {
+						continue;
+					}
+					chunk[size++] = paymentMethod;
+					kept.add(paymentMethod.getPaymentMethodId().toString());
+					if (size == RESET_CHUNK_SIZE) {
+						reset(clear, statement, kbTenantId, kbAccountId, chunk, size);
+						size = 0;
+					}
+				}
+				if (size > 0) {
+					try (PreparedStatement lastClear = connection.prepareStatement(resetPaymentMethodsClearQuery(size));
+					     PreparedStatement last = connection.prepareStatement(resetPaymentMethodsQuery(size))) {
+						reset(lastClear, last, kbTenantId, kbAccountId, chunk, size);
+					}
+				}
+			}
+			try (PreparedStatement statement = connection.prepareStatement(ACCOUNT_PAYMENT_METHOD_IDS_QUERY)) {
+				statement.setString(1, kbTenantId.toString());
+				statement.setString(2, kbAccountId.toString());
+				try (ResultSet resultSet = statement.executeQuery()) {
+					while (resultSet.next()) {
+						final String kbPaymentMethodId = resultSet.getString(1);
+						if (!kept.contains(kbPaymentMethodId)) {
+							deleted.add(UUID.fromString(kbPaymentMethodId));
+						}
+					}
+				}
+			}
+			try (PreparedStatement statement = connection.prepareStatement(DELETE_PAYMENT_METHOD_QUERY)) {
+				for (int i = 0; i < deleted.size(); i++) {
+					statement.setString(1, deleted.get(i).toString());
+					statement.addBatch();
+					if ((i + 1) % RESET_CHUNK_SIZE == 0 || i == deleted.size() - 1) {
+						statement.executeBatch();
+					}
+				}
+			}
+		}
+		return deleted;
+	}
+	
+	/**
+	 * Journals a transaction. A transaction that is recorded again, e.g. once a pending one completes, replaces the
+	 * gateway's answer but keeps its creation date.
+	 */
+	public void saveTransaction(final BluePayTransaction transaction) throws SQLException {
+		try (Connection connection = getConnection();
+		     PreparedStatement statement = connection.prepareStatement(SAVE_TRANSACTION_QUERY)) {
+			bindTransaction(statement, transaction);
+			statement.executeUpdate();
+		}
+	}
+	
+	/**
+	 * Journals a transaction that is about to be sent to BluePay, unless one with the same Kill Bill transaction ID
+	 * already is. A CANCELED one, which never reached BluePay, is replaced. The claim's effective date is when it was
+	 * taken, which tells a claim left PENDING by a node that died from one still in progress.
+	 *
+	 * @return null if the transaction was claimed, or else the one already journaled
+	 */
+	public BluePayTransaction claimTransaction(final BluePayTransaction transaction) throws SQLException {
+		try (Connection connection = getConnection()) {
+			try (PreparedStatement statement = connection.prepareStatement(CLAIM_TRANSACTION_QUERY)) {
+				bindTransaction(statement, transaction);
+				statement.executeUpdate();
+				return null;
+			} catch (SQLException e) {
+				// class 23 is an integrity constraint violation, here the unique kbTransactionId
+				if (e.getSQLState() == null || !e.getSQLState().startsWith("23")) {
+					throw e;
+				}
+			}
+			try (PreparedStatement statement = connection.prepareStatement(RECLAIM_TRANSACTION_QUERY)) {
+				statement.setString(1, transaction.getStatus().name());
+				statement.setTimestamp(2, new Timestamp(transaction.getEffectiveDate().getMillis()));
+				statement.setString(3, transaction.getKbTenantId().toString());
+				statement.setString(4, transaction.getKbTransactionPaymentId().toString());
+				if (statement.executeUpdate() > 0) {
+					return null;
+				}
+			}
+			try (PreparedStatement statement = connection.prepareStatement(TRANSACTION_QUERY)) {
+				statement.setString(1, transaction.getKbTenantId().toString());
+				statement.setString(2, transaction.getKbTransactionPaymentId().toString());
+				try (ResultSet resultSet = statement.executeQuery()) {
+					if (!resultSet.next()) {
+						throw new SQLException("transaction " + transaction.getKbTransactionPaymentId() + " could neither be claimed nor read");
+					}
+					return readTransaction(resultSet);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Replaces the outcome of a journaled transaction, unless it changed since it was read.
+	 *
+	 * @param journaled - the transaction, as read from the journal
+	 * @param settled   - its new outcome
+	 * @return false if the journaled transaction changed meanwhile, e.g. because another node settled or reclaimed it
+	 */
+	public boolean settleTransaction(final BluePayTransaction journaled, final BluePayTransaction settled) throws SQLException {
+		try (Connection connection = getConnection();
+		     PreparedStatement statement = connection.prepareStatement(SETTLE_TRANSACTION_QUERY)) {
+			statement.setString(1, settled.getStatus().name());
+			statement.setString(2, settled.getBluePayTransactionId());
+			statement.setString(3, settled.getGatewayErrorCode());
+			statement.setString(4, settled.getGatewayError());
+			statement.setString(5, settled.getAVS());
+			statement.setString(6, settled.getCVV2());
+			statement.setString(7, settled.getAuthCode());
+			statement.setString(8, settled.getMaskedAccount());
+			statement.setString(9, settled.getCardType());
+			statement.setTimestamp(10, new Timestamp(settled.getEffectiveDate().getMillis()));
+			statement.setString(11, journaled.getKbTenantId().toString());
+			statement.setString(12, journaled.getKbTransactionPaymentId().toString());
+			statement.setString(13, journaled.getStatus().name());
+			statement.setTimestamp(14, new Timestamp(journaled.getEffectiveDate().getMillis()));
+			return statement.executeUpdate() > 0;
+		}
+	}
+	
+	/**
+	 * @return the journaled transaction, or null if there is none
+	 */
+	public BluePayTransaction getTransaction(final UUID kbTenantId, final UUID kbTransactionId) throws SQLException {
+		try (Connection connection = getConnection();
+		     PreparedStatement statement = connection.prepareStatement(TRANSACTION_QUERY)) {
+			statement.setString(1, kbTenantId.toString());
+			statement.setString(2, kbTransactionId.toString());
+			try (ResultSet resultSet = statement.executeQuery()) {
+				return resultSet.next() ? readTransaction(resultSet) : null;
+			}
+		}
+	}
+	
+	/**
+	 * @return the journaled transactions of a payment, oldest first
+	 */
+	public List<BluePayTransaction> getTransactions(final UUID kbTenantId, final UUID kbPaymentId) throws SQLException {
+		try (Connection connection = getConnection();
+		     PreparedStatement statement = connection.prepareStatement(TRANSACTIONS_QUERY)) {
+			statement.setString(1, kbTenantId.toString());
+			statement.setString(2, kbPaymentId.toString());
+			try (ResultSet resultSet = statement.executeQuery()) {
+				final List<BluePayTransaction> transactions = new ArrayList<BluePayTransaction>();
+				while (resultSet.next()) {
+					transactions.add(readTransaction(resultSet));
+				}
+				return transactions;
+			}
+		}
+	}
+	
+	/**
+	 * Finds the journaled transactions whose BluePay transaction ID, payment ID, transaction ID (the order ID sent to
+	 * BluePay), masked account or status is the search key.
+	 *
+	 * @param afterRecordId - only rows journaled after this one are returned
+	 * @param limit         - the maximum number of rows
+	 * @return the matches, oldest first
+	 */
+	public List<BluePayTransaction> searchTransactions(final UUID kbTenantId, final String searchKey, final long afterRecordId, final int limit) throws SQLException {
+		try (Connection connection = getConnection();
+		     PreparedStatement statement = connection.prepareStatement(SEARCH_TRANSACTIONS_QUERY)) {
+			final int index = bindSearch(statement, SEARCH_COLUMNS.length, kbTenantId, searchKey, afterRecordId, limit);
+			statement.setLong(index, limit);
+			try (ResultSet resultSet = statement.executeQuery()) {
+				final List<BluePayTransaction> transactions = new ArrayList<BluePayTransaction>(limit);
+				while (resultSet.next()) {
+					transactions.add(readTransaction(resultSet));
+				}
+				return transactions;
+			}
+		}
+	}
+	
+	/**
+	 * Finds where the next search page starts, reading only index entries.
+	 *
+	 * @param afterRecordId - the record ID the page starts after
+	 * @param limit         - the number of rows of the page
+	 * @return the record ID of the page's last match if more matches follow it, or else null
+	 */
+	public Long getSearchNextRecordId(final UUID kbTenantId, final String searchKey, final long afterRecordId, final int limit) throws SQLException {
+		return getSearchNextRecordId(SEARCH_NEXT_QUERY, SEARCH_COLUMNS.length, kbTenantId, searchKey, afterRecordId, limit);
+	}
+	
+	/**
+	 * @return the number of journaled transactions that {@link #searchTransactions} finds for the search key
+	 */
+	public long countSearchTransactions(final UUID kbTenantId, final String searchKey) throws SQLException {
+		return count(SEARCH_COUNT_QUERY, SEARCH_COLUMNS.length, kbTenantId, searchKey);
+	}
+	
+	/**
+	 * @return the number of journaled transactions of the tenant
+	 */
+	public long countTransactions(final UUID kbTenantId) throws SQLException {
+		return count(TRANSACTION_COUNT_QUERY, 0, kbTenantId, null);
+	}
+	
+	/**
+	 * Finds the payment methods whose token, payment method ID, card type, last four digits or account ID is the
+	 * search key.
+	 *
+	 * @param afterRecordId - only rows stored after this one are returned
+	 * @param limit         - the maximum number of rows
+	 * @return the matches, oldest first
+	 */
+	public List<BluePayPaymentMethod> searchPaymentMethods(final UUID kbTenantId, final String searchKey, final long afterRecordId, final int limit) throws SQLException {
+		try (Connection connection = getConnection();
+		     PreparedStatement statement = connection.prepareStatement(SEARCH_PAYMENT_METHODS_QUERY)) {
+			final int index = bindSearch(statement, PAYMENT_METHOD_SEARCH_COLUMNS.length, kbTenantId, searchKey, afterRecordId, limit);
+			statement.setLong(index, limit);
+			try (ResultSet resultSet = statement.executeQuery()) {
+				final List<BluePayPaymentMethod> paymentMethods = new ArrayList<BluePayPaymentMethod>(limit);
+				while (resultSet.next()) {
+					paymentMethods.add(readPaymentMethod(resultSet));
+				}
+				return paymentMethods;
+			}
+		}
+	}
+	
+	/**
+	 * Same as {@link #getSearchNextRecordId(UUID, String, long, int)}, for {@link #searchPaymentMethods}.
+	 */
+	public Long getPaymentMethodSearchNextRecordId(final UUID kbTenantId, final String searchKey, final long afterRecordId, final int limit) throws SQLException {
+		return getSearchNextRecordId(PAYMENT_METHOD_SEARCH_NEXT_QUERY, PAYMENT_METHOD_SEARCH_COLUMNS.length, kbTenantId, searchKey, afterRecordId, limit);
+	}
+	
+	/**
+	 * @return the number of payment methods that {@link #searchPaymentMethods} finds for the search key
+	 */
+	public long countSearchPaymentMethods(final UUID kbTenantId, final String searchKey) throws SQLException {
+		return count(PAYMENT_METHOD_SEARCH_COUNT_QUERY, PAYMENT_METHOD_SEARCH_COLUMNS.length, kbTenantId, searchKey);
+	}
+	
+	/**
+	 * @return the number of payment methods stored for the tenant
+	 */
+	public long countPaymentMethods(final UUID kbTenantId) throws SQLException {
+		return count(PAYMENT_METHOD_COUNT_QUERY, 0, kbTenantId, null);
+	}
+	
+	private Long getSearchNextRecordId(final String query, final int branches, final UUID kbTenantId, final String searchKey, final long afterRecordId, final int limit) throws SQLException {
+		try (Connection connection = getConnection();
+		     PreparedStatement statement = connection.prepareStatement(query)) {
+			final int index = bindSearch(statement, branches, kbTenantId, searchKey, afterRecordId, limit + 1L);
+			statement.setLong(index, limit - 1);
+			try (ResultSet resultSet = statement.executeQuery()) {
+				if (!resultSet.next()) {
+					return null;
+				}
+				final long last = resultSet.getLong(1);
+				return resultSet.next() ? last : null;
+			}
+		}
+	}
+	
+	/**
+	 * @param branches - the number of search branches in the query, or 0 to count every row of the tenant
+	 */
+	private long count(final String query, final int branches, final UUID kbTenantId, final String searchKey) throws SQLException {
+		try (Connection connection = getConnection();
+		     PreparedStatement statement = connection.prepareStatement(query)) {
+			if (branches == 0) {
+				statement.setString(1, kbTenantId.toString());
+			} else {
+				bindSearch(statement, branches, kbTenantId, searchKey, 0, Integer.MAX_VALUE);
+			}
+			try (ResultSet resultSet = statement.executeQuery()) {
+				resultSet.next();
+				return resultSet.getLong(1);
+			}
+		}
+	}
+	
+	public void deletePaymentMethod(final UUID kbPaymentMethodId) throws SQLException {
+		try (Connection connection = getConnection();
+		     PreparedStatement statement = connection.prepareStatement(DELETE_PAYMENT_METHOD_QUERY)) {
+			statement.setString(1, kbPaymentMethodId.toString());
+			statement.executeUpdate();
+		}
+	}
+	
+	private static String resetPaymentMethodsQuery(final int rows) {
+		final StringBuilder sql = new StringBuilder(RESET_PAYMENT_METHODS_INSERT);
+		for (int i = 0; i < rows; i++) {
+			sql.append(i == 0 ? "(?, ?, ?, ?)" : ", (?, ?, ?, ?)");
+		}
+		return sql.append(RESET_PAYMENT_METHODS_UPDATE).toString();
+	}
+	
+	private static String resetPaymentMethodsClearQuery(final int rows) {
+		final StringBuilder sql = new StringBuilder(RESET_PAYMENT_METHODS_CLEAR);
+		for (int i = 0; i < rows; i++) {
+			sql.append(i == 0 ? "(`paymentMethodId` = ? AND `transactionId` <> ?)" : " OR (`paymentMethodId` = ? AND `transactionId` <> ?)");
+		}
+		return sql.toString();
+	}
+	
+	private static void reset(final PreparedStatement clear, final PreparedStatement upsert, final UUID kbTenantId, final UUID kbAccountId, final PaymentMethodInfoPlugin[] chunk, final int size) throws SQLException {
+		int clearIndex = 1;
+		int index = 1;
+		for (int i = 0; i < size; i++) {
+			clear.setString(clearIndex++, chunk[i].getPaymentMethodId().toString());
+			clear.setString(clearIndex++, chunk[i].getExternalPaymentMethodId());
+			upsert.setString(index++, kbTenantId.toString());
+			upsert.setString(index++, kbAccountId.toString());
+			upsert.setString(index++, chunk[i].getPaymentMethodId().toString());
+			upsert.setString(index++, chunk[i].getExternalPaymentMethodId());
+			chunk[i] = null;
+		}
+		clear.executeUpdate();
+		upsert.executeUpdate();
+	}
+	
+	private static String searchBranches(final String table, final String... columns) {
+		final StringBuilder sql = new StringBuilder();
+		for (final String column : columns) {
+			if (sql.length() > 0) {
+				sql.append(" UNION ");
+			}
+			sql.append("(SELECT `id` FROM `").append(table).append("` WHERE `tenantId` = ? AND `").append(column).append("` = ? AND `id` > ? ORDER BY `id` LIMIT ?)");
+		}
+		return sql.toString();
+	}
+	
+	/**
+	 * @return the index of the first parameter after the search branches
+	 */
+	private static int bindSearch(final PreparedStatement statement, final int branches, final UUID kbTenantId, final String searchKey, final long afterRecordId, final long limit) throws SQLException {
+		int index = 1;
+		for (int i = 0; i < branches; i++) {
+			statement.setString(index++, kbTenantId.toString());
+			statement.setString(index++, searchKey);
+			statement.setLong(index++, afterRecordId);
+			statement.setLong(index++, limit);
+		}
+		return index;
+	}
+	
+	private static BluePayTransaction readTransaction(final ResultSet resultSet) throws SQLException {
+		final String kbPaymentMethodId = resultSet.getString("kbPaymentMethodId");
+		final String currency = resultSet.getString("currency");
+		return new BluePayTransaction(resultSet.getLong("id"), UUID.fromString(resultSet.getString("tenantId")), UUID.fromString(resultSet.getString("kbAccountId")),
+				UUID.fromString(resultSet.getString("kbPaymentId")), UUID.fromString(resultSet.getString("kbTransactionId")),
+				kbPaymentMethodId == null ? null : UUID.fromString(kbPaymentMethodId), TransactionType.valueOf(resultSet.getString("transactionType")),
+				resultSet.getBigDecimal("amount"), currency == null ? null : Currency.valueOf(currency), PaymentPluginStatus.valueOf(resultSet.getString("status")),
+				resultSet.getString("bluePayTransactionId"), resultSet.getString("gatewayStatus"), resultSet.getString("message"), resultSet.getString("avs"),
+				resultSet.getString("cvv2"), resultSet.getString("authCode"), resultSet.getString("maskedAccount"), resultSet.getString("cardType"),
+				readDate(resultSet, "createdDate"), readDate(resultSet, "effectiveDate"));
+	}
+	
+	private static void bindTransaction(final PreparedStatement statement, final BluePayTransaction transaction) throws SQLException {
+		statement.setString(1, transaction.getKbTenantId().toString());
+		statement.setString(2, transaction.getKbAccountId().toString());
+		statement.setString(3, transaction.getKbPaymentId().toString());
+		statement.setString(4, transaction.getKbTransactionPaymentId().toString());
+		statement.setString(5, transaction.getKbPaymentMethodId() == null ? null : transaction.getKbPaymentMethodId().toString());
+		statement.setString(6, transaction.getTransactionType().name());
+		statement.setBigDecimal(7, transaction.getAmount());
+		statement.setString(8, transaction.getCurrency() == null ? null : transaction.getCurrency().name());
+		statement.setString(9, transaction.getStatus().name());
+		statement.setString(10, transaction.getBluePayTransactionId());
+		statement.setString(11, transaction.getGatewayErrorCode());
+		statement.setString(12, transaction.getGatewayError());
+		statement.setString(13, transaction.getAVS());
+		statement.setString(14, transaction.getCVV2());
+		statement.setString(15, transaction.getAuthCode());
+		statement.setString(16, transaction.getMaskedAccount());
+		statement.setString(17, transaction.getCardType());
+		statement.setTimestamp(18, new Timestamp(transaction.getCreatedDate().getMillis()));
+		statement.setTimestamp(19, new Timestamp(transaction.getEffectiveDate().getMillis()));
+	}
+	
+	private static void bindPaymentMethod(final PreparedStatement statement, final BluePayPaymentMethod paymentMethod) throws SQLException {
+		statement.setString(1, paymentMethod.getKbTenantId().toString());
+		statement.setString(2, paymentMethod.getKbAccountId().toString());
+		statement.setString(3, paymentMethod.getKbPaymentMethodId().toString());
+		statement.setString(4, paymentMethod.getTransactionId());
+		statement.setString(5, paymentMethod.getCardType());
+		statement.setString(6, paymentMethod.getLastFour());
+		statement.setString(7, paymentMethod.getMaskedAccount());
+		statement.setString(8, paymentMethod.getBankName());
+		statement.setString(9, paymentMethod.getExpiration());
+	}
+	
+	private static BluePayPaymentMethod readPaymentMethod(final ResultSet resultSet) throws SQLException {
+		return new BluePayPaymentMethod(resultSet.getLong("id"), readUUID(resultSet, "tenantId"), readUUID(resultSet, "kbAccountId"),
+				UUID.fromString(resultSet.getString("paymentMethodId")), resultSet.getString("transactionId"), resultSet.getString("cardType"),
+				resultSet.getString("lastFour"), resultSet.getString("maskedAccount"), resultSet.getString("bankName"), resultSet.getString("expiration"));
+	}
+	
+	private static UUID readUUID(final ResultSet resultSet, final String column) throws SQLException {
+		final String value = resultSet.getString(column);
+		return value == null ? null : UUID.fromString(value);
+	}
+	
+	private static DateTime readDate(final ResultSet resultSet, final String column) throws SQLException {
+		final Timestamp timestamp = resultSet.getTimestamp(column);
+		return timestamp == null ? null : new DateTime(timestamp.getTime(), DateTimeZone.UTC);
+	}
+	
+	private static BluePayCredentials readCredentials(final ResultSet resultSet) throws SQLException {
+		return new BluePayCredentials(resultSet.getString("accountId"), resultSet.getString("secretKey"), resultSet.getBoolean("test"));
+	}
+}
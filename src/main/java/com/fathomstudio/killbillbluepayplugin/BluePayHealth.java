@@ -0,0 +1,396 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.fathomstudio.killbillbluepayplugin;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.apache.http.pool.PoolStats;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillLogService;
+import org.osgi.service.log.LogService;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Tells load balancers whether this node can take payments. A background thread checks the plugin's tables and reads
+ * the tenants' credentials every {@code checkInterval}, and every {@code probeInterval} times an stq query to
+ * BluePay for each merchant account and mode, sent outside its circuit breaker and limits. The health checks only read those results, along with the state of the
+ * connection pool, circuit breakers and concurrency limiters, so they never wait on the database or the gateway.
+ *
+ * A node is healthy while its tables can be read. It is ready if it is also healthy, its connection pool is not
+ * saturated, and no more than {@code maxDegradedShare} of the merchant accounts it serves are degraded on it: their
+ * circuit breaker is open, or their last probe is stale, failed or was too slow. One merchant's trouble with BluePay
+ * is reported, but does not take the node out of rotation for every other merchant.
+ */
+public class BluePayHealth implements Closeable {
+	
+	public static final String PROPERTY_PREFIX = "org.killbill.billing.plugin.bluepay.health.";
+	
+	// looked up by the probe, which only needs BluePay to answer
+	private static final String PROBE_TRANSACTION_ID = "0";
+	
+	private final OSGIKillbillLogService logService;
+	private final BluePayDao dao;
+	private final BluePay bluePay;
+	private final BluePayHttpClient httpClient;
+	private final long checkInterval;
+	private final long probeInterval;
+	private final long probeTimeout;
+	private final long maxProbeLatency;
+	private final double maxSaturation;
+	private final double maxDegradedShare;
+	private final ScheduledExecutorService scheduler;
+	private final ConcurrentMap<String, Probe> probes = new ConcurrentHashMap<String, Probe>();
+	private volatile Probe database;
+	private volatile Map<UUID, BluePayCredentials> credentials = Collections.emptyMap();
+	
+	public BluePayHealth(final Properties properties, final OSGIKillbillLogService logService, final BluePayDao dao, final BluePay bluePay, final BluePayHttpClient httpClient) {
+		this.logService = logService;
+		this.dao = dao;
+		this.bluePay = bluePay;
+		this.httpClient = httpClient;
+		this.checkInterval = Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "checkInterval", "10000"));
+		this.probeInterval = Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "probeInterval", "60000"));
+		this.probeTimeout = Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "probeTimeout", "10000"));
+		this.maxProbeLatency = Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "maxProbeLatency", "5000"));
+		this.maxSaturation = Double.parseDouble(properties.getProperty(PROPERTY_PREFIX + "maxSaturation", "0.9"));
+		this.maxDegradedShare = Double.parseDouble(properties.getProperty(PROPERTY_PREFIX + "maxDegradedShare", "0.5"));
+		// one thread each, so that slow probes do not hold up the database check
+		this.scheduler = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				final Thread thread = new Thread(runnable, "bluepay-health");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	/**
+	 * Starts checking the database and probing the gateway in the background.
+	 */
+	public void start() {
+		// the first probe waits for the first check, which loads the merchants to probe
+		scheduler.execute(new Runnable() {
+			@Override
+			public void run() {
+				checkDatabase();
+				scheduler.scheduleWithFixedDelay(new Runnable() {
+					@Override
+					public void run() {
+						checkDatabase();
+					}
+				}, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+				scheduler.scheduleWithFixedDelay(new Runnable() {
+					@Override
+					public void run() {
+						probeGateway();
+					}
+				}, 0, probeInterval, TimeUnit.MILLISECONDS);
+			}
+		});
+	}
+	
+	@Override
+	public void close() {
+		scheduler.shutdownNow();
+	}
+	
+	private void checkDatabase() {
+		final long start = System.nanoTime();
+		try {
+			dao.checkTables();
+			credentials = dao.getAllCredentials();
+			database = new Probe(System.currentTimeMillis(), System.nanoTime() - start, true, null);
+		} catch (Exception e) {
+			logService.log(LogService.LOG_WARNING, "health check could not read the BluePay tables: ", e);
+			database = new Probe(System.currentTimeMillis(), System.nanoTime() - start, false, String.valueOf(e.getMessage()));
+		}
+	}
+	
+	/**
+	 * Times an stq query for each merchant account and mode, all at once and within one {@code probeTimeout}. The
+	 * query looks up a transaction that does not exist, within a day: any answer but a security error shows BluePay
+	 * can be reached and accepts the merchant's credentials and seal.
+	 */
+	private void probeGateway() {
+		final LocalDate today = new LocalDate(DateTimeZone.UTC);
+		final String reportStart = today.toString();
+		final String reportEnd = today.plusDays(1).toString();
+		final long start = System.nanoTime();
+		final long deadline = start + TimeUnit.MILLISECONDS.toNanos(probeTimeout);
+		final Map<String, ListenableFuture<Probe>> sent = new HashMap<String, ListenableFuture<Probe>>();
+		for (BluePayCredentials each : credentials.values()) {
+			if (isEmpty(each.getAccountId()) || isEmpty(each.getSecretKey()) || sent.containsKey(each.getName())) {
+				continue;
+			}
+			sent.put(each.getName(), probe(new BluePayTransactionQuery(each, PROBE_TRANSACTION_ID, reportStart, reportEnd, false)));
+		}
+		for (Map.Entry<String, ListenableFuture<Probe>> entry : sent.entrySet()) {
+			Probe probe;
+			try {
+				probe = entry.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				for (ListenableFuture<Probe> each : sent.values()) {
+					each.cancel(true);
+				}
+				Thread.currentThread().interrupt();
+				return;
+			} catch (TimeoutException e) {
+				entry.getValue().cancel(true);
+				probe = new Probe(System.currentTimeMillis(), System.nanoTime() - start, false, "no answer within " + probeTimeout + " ms");
+			} catch (ExecutionException e) {
+				probe = new Probe(System.currentTimeMillis(), System.nanoTime() - start, false, String.valueOf(e.getCause().getMessage()));
+			}
+			if (!probe.isUp()) {
+				logService.log(LogService.LOG_WARNING, "BluePay probe failed for " + entry.getKey() + ": " + probe.getMessage());
+			}
+			probes.put(entry.getKey(), probe);
+		}
+		// forget the merchants no tenant uses anymore
+		probes.keySet().retainAll(sent.keySet());
+	}
+	
+	/**
+	 * Sends one probe.
+	 *
+	 * @return a future completed with its outcome as soon as BluePay answers or the request fails
+	 */
+	private ListenableFuture<Probe> probe(final BluePayTransactionQuery query) {
+		final SettableFuture<Probe> probe = SettableFuture.create();
+		final long start = System.nanoTime();
+		try {
+			Futures.addCallback(bluePay.probe(query), new FutureCallback<BluePayResponse>() {
+				@Override
+				public void onSuccess(final BluePayResponse response) {
+					// a merchant whose requests BluePay refuses can't take payments, however fast the refusal
+					probe.set(new Probe(System.currentTimeMillis(), System.nanoTime() - start, !response.isSecurityError(), response.getMessage()));
+				}
+				
+				@Override
+				public void onFailure(final Throwable t) {
+					probe.set(new Probe(System.currentTimeMillis(), System.nanoTime() - start, false, String.valueOf(t.getMessage())));
+				}
+			});
+		} catch (RuntimeException e) {
+			probe.set(new Probe(System.currentTimeMillis(), System.nanoTime() - start, false, String.valueOf(e.getMessage())));
+		}
+		return probe;
+	}
+	
+	/**
+	 * @param readiness whether to check readiness, rather than health
+	 * @return the verdict, with every check behind it
+	 */
+	public Report check(final boolean readiness) {
+		final long now = System.currentTimeMillis();
+		final StringBuilder json = new StringBuilder(512);
+		
+		final Probe database = this.database;
+		final boolean healthy = database != null && database.isUp() && now - database.getCheckedAt() <= 3 * checkInterval;
+		json.append("{\"database\":");
+		if (database == null) {
+			json.append("{\"status\":\"UNKNOWN\"}");
+		} else {
+			appendProbe(json, database, healthy);
+		}
+		
+		final Map<UUID, BluePayCredentials> credentials = this.credentials;
+		json.append(",\"credentials\":{\"tenants\":").append(credentials.size()).append(",\"incomplete\":[");
+		boolean first = true;
+		for (Map.Entry<UUID, BluePayCredentials> entry : credentials.entrySet()) {
+			if (isEmpty(entry.getValue().getAccountId()) || isEmpty(entry.getValue().getSecretKey())) {
+				json.append(first ? "" : ",").append('"').append(entry.getKey()).append('"');
+				first = false;
+			}
+		}
+		json.append("]}");
+		
+		final PoolStats poolStats = httpClient.getPoolStats();
+		final double saturation = Math.max(poolStats.getMax() == 0 ? 0 : (double) poolStats.getLeased() / poolStats.getMax(),
+				(double) httpClient.getInFlight() / httpClient.getMaxInFlight());
+		final boolean poolUp = saturation < maxSaturation;
+		json.append(",\"http\":{\"status\":\"").append(poolUp ? "UP" : "DOWN")
+				.append("\",\"leased\":").append(poolStats.getLeased())
+				.append(",\"pending\":").append(poolStats.getPending())
+				.append(",\"available\":").append(poolStats.getAvailable())
+				.append(",\"max\":").append(poolStats.getMax())
+				.append(",\"inFlight\":").append(httpClient.getInFlight())
+				.append(",\"maxInFlight\":").append(httpClient.getMaxInFlight())
+				.append(",\"saturation\":").append(Math.round(saturation * 1000) / 1000d).append('}');
+		
+		// merchant account and mode -> whether it is degraded on this node
+		final Map<String, Boolean> merchants = new HashMap<String, Boolean>();
+		json.append(",\"circuitBreakers\":{");
+		first = true;
+		for (BluePayCircuitBreaker circuitBreaker : bluePay.getCircuitBreakers().getAll().values()) {
+			final BluePayCircuitBreaker.State state = circuitBreaker.getState();
+			markMerchant(merchants, circuitBreaker.getName(), state == BluePayCircuitBreaker.State.OPEN);
+			appendString(json.append(first ? "" : ","), circuitBreaker.getName()).append(":\"").append(state).append('"');
+			first = false;
+		}
+		json.append('}');
+		
+		json.append(",\"concurrencyLimiters\":{");
+		first = true;
+		for (BluePayConcurrencyLimiter limiter : bluePay.getConcurrencyLimiters().getAll().values()) {
+			appendString(json.append(first ? "" : ","), limiter.getName()).append(":{\"limit\":").append(limiter.getLimit())
+					.append(",\"inFlight\":").append(limiter.getInFlight()).append(",\"queued\":").append(limiter.getQueued()).append('}');
+			first = false;
+		}
+		json.append('}');
+		
+		json.append(",\"gateway\":{");
+		first = true;
+		for (Map.Entry<String, Probe> entry : probes.entrySet()) {
+			final Probe probe = entry.getValue();
+			final boolean up = probe.isUp() && probe.getLatencyMillis() <= maxProbeLatency && now - probe.getCheckedAt() <= 3 * probeInterval;
+			markMerchant(merchants, entry.getKey(), !up);
+			appendString(json.append(first ? "" : ","), entry.getKey()).append(':');
+			appendProbe(json, probe, up);
+			first = false;
+		}
+		json.append('}');
+		
+		int degraded = 0;
+		for (Boolean each : merchants.values()) {
+			degraded += each ? 1 : 0;
+		}
+		final double degradedShare = merchants.isEmpty() ? 0 : (double) degraded / merchants.size();
+		final boolean merchantsUp = degradedShare <= maxDegradedShare;
+		json.append(",\"merchants\":{\"status\":\"").append(merchantsUp ? "UP" : "DOWN")
+				.append("\",\"total\":").append(merchants.size())
+				.append(",\"degraded\":").append(degraded)
+				.append(",\"degradedShare\":").append(Math.round(degradedShare * 1000) / 1000d).append('}');
+		
+		final boolean up = readiness ? healthy && poolUp && merchantsUp : healthy;
+		json.insert(0, "{\"status\":\"" + (up ? "UP" : "DOWN") + "\",\"checks\":").append("}\n");
+		return new Report(up, json.toString());
+	}
+	
+	private static void markMerchant(final Map<String, Boolean> merchants, final String merchant, final boolean degraded) {
+		final Boolean known = merchants.get(merchant);
+		merchants.put(merchant, degraded || (known != null && known));
+	}
+	
+	private static void appendProbe(final StringBuilder json, final Probe probe, final boolean up) {
+		json.append("{\"status\":\"").append(up ? "UP" : "DOWN")
+				.append("\",\"latencyMillis\":").append(probe.getLatencyMillis())
+				.append(",\"checkedAt\":\"").append(new DateTime(probe.getCheckedAt(), DateTimeZone.UTC)).append('"');
+		if (probe.getMessage() != null) {
+			appendString(json.append(",\"message\":"), probe.getMessage());
+		}
+		json.append('}');
+	}
+	
+	/**
+	 * Appends a JSON string.
+	 */
+	private static StringBuilder appendString(final StringBuilder json, final String value) {
+		json.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			final char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				json.append('\\').append(c);
+			} else if (c < ' ') {
+				json.append(String.format("\\u%04x", (int) c));
+			} else {
+				json.append(c);
+			}
+		}
+		return json.append('"');
+	}
+	
+	private static boolean isEmpty(final String value) {
+		return value == null || value.isEmpty();
+	}
+	
+	/**
+	 * The outcome of a background check.
+	 */
+	private static class Probe {
+		
+		private final long checkedAt;
+		private final long latency;
+		private final boolean up;
+		private final String message;
+		
+		private Probe(final long checkedAt, final long latency, final boolean up, final String message) {
+			this.checkedAt = checkedAt;
+			this.latency = latency;
+			this.up = up;
+			this.message = message;
+		}
+		
+		public long getCheckedAt() {
+			return checkedAt;
+		}
+		
+		public long getLatencyMillis() {
+			return TimeUnit.NANOSECONDS.toMillis(latency);
+		}
+		
+		public boolean isUp() {
+			return up;
+		}
+		
+		public String getMessage() {
+			return message;
+		}
+	}
+	
+	/**
+	 * The answer to a health or readiness check: UP or DOWN, with the details as JSON.
+	 */
+	public static class Report {
+		
+		private final boolean up;
+		private final String json;
+		
+		private Report(final boolean up, final String json) {
+			this.up = up;
+			this.json = json;
+		}
+		
+		public boolean isUp() {
+			return up;
+		}
+		
+		public String toJson() {
+			return json;
+		}
+	}
+}
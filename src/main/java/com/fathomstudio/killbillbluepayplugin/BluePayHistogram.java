@@ -0,0 +1,190 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.fathomstudio.killbillbluepayplugin;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations in logarithmic buckets, HdrHistogram-style: each power of two is split into 16 buckets, so a
+ * percentile is known to within 1/16th of its value, from about a microsecond up to about 18 minutes, in under 3.5 KB.
+ * Durations are counted in units of 1024 nanoseconds: no gateway or database call is quicker, and finer buckets would
+ * only take room.
+ *
+ * Recording takes no lock and allocates nothing, so it can be done on every call; counts are cumulative from
+ * creation. Percentiles are read from a {@link #snapshot()}, which may miss calls recorded while it is taken.
+ */
+public class BluePayHistogram {
+	
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	// a unit is 1024 ns
+	private static final int UNIT_BITS = 10;
+	// longer durations are counted as this one, in nanoseconds
+	private static final long MAX_VALUE = (1L << 40) - 1;
+	private static final int BUCKETS = index(MAX_VALUE >>> UNIT_BITS) + 1;
+	
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+	
+	/**
+	 * Counts a duration, in nanoseconds.
+	 */
+	public void record(final long nanos) {
+		final long value = Math.max(0, Math.min(nanos, MAX_VALUE));
+		counts.incrementAndGet(index(value >>> UNIT_BITS));
+		sum.addAndGet(value);
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+	
+	/**
+	 * Counts the durations at or below each bound, e.g. for the buckets of a Prometheus histogram, in a single pass
+	 * and without allocating. A bound falling inside a bucket counts it only if the bound is past its end, so the
+	 * counts are exact to within 1/16th of the bound, or 1024 ns if that is more.
+	 *
+	 * @param bounds in nanoseconds, in increasing order
+	 * @param counts receives the count for each bound
+	 * @return the number of durations counted
+	 */
+	public long getCumulativeCounts(final long[] bounds, final long[] counts) {
+		long total = 0;
+		int bound = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			final long count = this.counts.get(i);
+			if (count == 0) {
+				continue;
+			}
+			final long highest = highestValue(i);
+			while (bound < bounds.length && bounds[bound] < highest) {
+				counts[bound++] = total;
+			}
+			total += count;
+		}
+		while (bound < bounds.length) {
+			counts[bound++] = total;
+		}
+		return total;
+	}
+	
+	/**
+	 * @return the total of the durations counted, in nanoseconds
+	 */
+	public long getSum() {
+		return sum.get();
+	}
+	
+	public Snapshot snapshot() {
+		final long[] snapshot = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			count += snapshot[i];
+		}
+		return new Snapshot(snapshot, count, sum.get(), max.get());
+	}
+	
+	/**
+	 * Values below 16 units have a bucket each; above, the bucket is given by the position of the highest bit and the
+	 * four bits following it.
+	 *
+	 * @param value in units
+	 */
+	private static int index(final long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+	}
+	
+	/**
+	 * @return the highest value counted in the given bucket, in nanoseconds
+	 */
+	private static long highestValue(final int index) {
+		if (index < 2 * SUB_BUCKETS) {
+			return ((index + 1L) << UNIT_BITS) - 1;
+		}
+		final int shift = (index >>> SUB_BUCKET_BITS) - 1;
+		final long lowest = (long) (index - (shift << SUB_BUCKET_BITS)) << shift;
+		return ((lowest + (1L << shift)) << UNIT_BITS) - 1;
+	}
+	
+	/**
+	 * The counts of a histogram at one point in time.
+	 */
+	public static class Snapshot {
+		
+		private final long[] counts;
+		private final long count;
+		private final long sum;
+		private final long max;
+		
+		private Snapshot(final long[] counts, final long count, final long sum, final long max) {
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+		
+		public long getCount() {
+			return count;
+		}
+		
+		/**
+		 * @return the total of the durations counted, in nanoseconds
+		 */
+		public long getSum() {
+			return sum;
+		}
+		
+		/**
+		 * @return the longest duration counted, in nanoseconds
+		 */
+		public long getMax() {
+			return max;
+		}
+		
+		/**
+		 * @return the average duration, in nanoseconds; 0 if none was counted
+		 */
+		public double getMean() {
+			return count == 0 ? 0 : (double) sum / count;
+		}
+		
+		/**
+		 * @param percentile between 0 and 100, e.g. 99.9
+		 * @return the duration that percentile of the calls took at most, in nanoseconds; 0 if none was counted
+		 */
+		public long getValueAtPercentile(final double percentile) {
+			final long rank = Math.max(1, (long) Math.ceil(Math.min(100, percentile) / 100 * count));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					return Math.min(highestValue(i), max);
+				}
+			}
+			return count == 0 ? 0 : max;
+		}
+	}
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbluepayplugin;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The plugin-wide, non-blocking HTTP client shared by every BluePay gateway call. Owned by the activator.
+ */
+public class BluePayHttpClient implements Closeable {
+
+	public static final String PROPERTY_PREFIX = "org.killbill.billing.plugin.bluepay.http.";
+
+	private final PoolingNHttpClientConnectionManager connectionManager;
+	private final CloseableHttpAsyncClient httpClient;
+	private final ScheduledExecutorService connectionEvictor;
+	private final Semaphore inFlight;
+	private final int maxInFlight;
+	private final long inFlightTimeout;
+
+	public BluePayHttpClient(final Properties properties) throws IOReactorException {
+		final int maxTotal = getInt(properties, "maxTotal", 200);
+		final int maxPerRoute = getInt(properties, "maxPerRoute", 100);
+		final int connectTimeout = getInt(properties, "connectTimeout", 5000);
+		final int socketTimeout = getInt(properties, "socketTimeout", 60000);
+		final int connectionRequestTimeout = getInt(properties, "connectionRequestTimeout", 5000);
+		final long keepAlive = getInt(properties, "keepAlive", 30000);
+		final long idleTimeout = getInt(properties, "idleTimeout", 60000);
+		final long evictionInterval = getInt(properties, "evictionInterval", 5000);
+		final int ioThreads = getInt(properties, "ioThreads", Runtime.getRuntime().availableProcessors());
+		maxInFlight = getInt(properties, "maxInFlight", 500);
+		inFlightTimeout = connectionRequestTimeout;
+
+		final IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
+				.setIoThreadCount(ioThreads)
+				.setConnectTimeout(connectTimeout)
+				.setSoTimeout(socketTimeout)
+				.setSoKeepAlive(true)
+				.build();
+		connectionManager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(ioReactorConfig));
+		connectionManager.setMaxTotal(maxTotal);
+		connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+
+		final RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(connectTimeout)
+				.setSocketTimeout(socketTimeout)
+				.setConnectionRequestTimeout(connectionRequestTimeout)
+				.build();
+
+		// honor the server's Keep-Alive header, but never keep a connection longer than configured
+		final ConnectionKeepAliveStrategy keepAliveStrategy = new ConnectionKeepAliveStrategy() {
+			@Override
+			public long getKeepAliveDuration(final HttpResponse response, final HttpContext context) {
+				final long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+				return duration > 0 && duration < keepAlive ? duration : keepAlive;
+			}
+		};
+
+		httpClient = HttpAsyncClients.custom()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(requestConfig)
+				.setKeepAliveStrategy(keepAliveStrategy)
+				.build();
+		httpClient.start();
+
+		inFlight = new Semaphore(maxInFlight, true);
+
+		connectionEvictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				final Thread thread = new Thread(runnable, "bluepay-connection-evictor");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		connectionEvictor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				connectionManager.closeExpiredConnections();
+				connectionManager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+			}
+		}, evictionInterval, evictionInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Sends a request without blocking on the response. At most {@code maxInFlight} requests are outstanding at once;
+	 * callers beyond that wait up to {@code connectionRequestTimeout} for a slot.
+	 *
+	 * @param request the request to send
+	 * @return a future completed with the fully buffered response
+	 */
+	public ListenableFuture<HttpResponse> execute(final HttpUriRequest request) {
+		final SettableFuture<HttpResponse> future = SettableFuture.create();
+		if (!acquire(future)) {
+			return future;
+		}
+		httpClient.execute(request, new ReleasingCallback<HttpResponse>(future));
+		return future;
+	}
+
+	/**
+	 * Sends a request, handing the response body to the given consumer as it arrives.
+	 *
+	 * @param producer the request producer
+	 * @param consumer the response consumer
+	 * @return a future completed with the consumer's result
+	 */
+	public <T> ListenableFuture<T> execute(final HttpAsyncRequestProducer producer, final HttpAsyncResponseConsumer<T> consumer) {
+		final SettableFuture<T> future = SettableFuture.create();
+		if (!acquire(future)) {
+			return future;
+		}
+		httpClient.execute(producer, consumer, new ReleasingCallback<T>(future));
+		return future;
+	}
+
+	/**
+	 * @return the current leased/pending/available counts of the connection pool
+	 */
+	public PoolStats getPoolStats() {
+		return connectionManager.getTotalStats();
+	}
+
+	/**
+	 * @return the number of requests currently outstanding
+	 */
+	public int getInFlight() {
+		return maxInFlight - inFlight.availablePermits();
+	}
+
+	/**
+	 * @return the maximum number of requests allowed to be outstanding at once
+	 */
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	@Override
+	public void close() throws IOException {
+		connectionEvictor.shutdownNow();
+		// closing the client also shuts down the connection manager and its I/O reactor
+		httpClient.close();
+	}
+
+	private boolean acquire(final SettableFuture<?> future) {
+		try {
+			if (inFlight.tryAcquire(inFlightTimeout, TimeUnit.MILLISECONDS)) {
+				return true;
+			}
+			future.setException(new BluePayRejectedException("too many BluePay requests in flight: " + maxInFlight));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			future.setException(e);
+		}
+		return false;
+	}
+
+	private static int getInt(final Properties properties, final String key, final int defaultValue) {
+		final String value = properties.getProperty(PROPERTY_PREFIX + key);
+		if (value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+		return Integer.parseInt(value.trim());
+	}
+
+	/**
+	 * Completes the future and gives the in-flight slot back.
+	 */
+	private class ReleasingCallback<T> implements FutureCallback<T> {
+
+		private final SettableFuture<T> future;
+
+		ReleasingCallback(final SettableFuture<T> future) {
+			this.future = future;
+		}
+
+		@Override
+		public void completed(final T result) {
+			inFlight.release();
+			future.set(result);
+		}
+
+		@Override
+		public void failed(final Exception e) {
+			inFlight.release();
+			future.setException(e);
+		}
+
+		@Override
+		public void cancelled() {
+			inFlight.release();
+			future.cancel(false);
+		}
+	}
+}
@@ -22,7 +22,6 @@ import org.killbill.billing.account.api.Account;
 import org.killbill.billing.account.api.AccountApiException;
 import org.killbill.billing.notification.plugin.api.ExtBusEvent;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
-import org.killbill.billing.osgi.libs.killbill.OSGIKillbillDataSource;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillEventDispatcher;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillLogService;
 import org.killbill.billing.plugin.api.PluginTenantContext;
@@ -31,8 +30,6 @@ import org.killbill.billing.plugin.api.notification.PluginConfigurationHandler;
 import org.osgi.service.log.LogService;
 
 import javax.annotation.Nullable;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.UUID;
 
@@ -43,11 +40,13 @@ public class BluePayListener extends PluginConfigurationEventHandler implements
 	
 	private final LogService logService;
 	private final OSGIKillbillAPI osgiKillbillAPI;
+	private final BluePayCredentialsCache credentialsCache;
 	
-	public BluePayListener(final OSGIKillbillLogService logService, final OSGIKillbillAPI killbillAPI, final OSGIKillbillDataSource dataSource) {
-		super(new BluePayPluginConfigurationHandler(BluePayActivator.PLUGIN_NAME, killbillAPI, logService, dataSource));
+	public BluePayListener(final OSGIKillbillLogService logService, final OSGIKillbillAPI killbillAPI, final BluePayDao dao, final BluePayCredentialsCache credentialsCache) {
+		super(new BluePayPluginConfigurationHandler(BluePayActivator.PLUGIN_NAME, killbillAPI, logService, dao));
 		this.logService = logService;
 		this.osgiKillbillAPI = killbillAPI;
+		this.credentialsCache = credentialsCache;
 	}
 	
 	@Override
@@ -59,6 +58,8 @@ public class BluePayListener extends PluginConfigurationEventHandler implements
 			case TENANT_CONFIG_CHANGE:
 			case TENANT_CONFIG_DELETION:
 				super.handleKillbillEvent(killbillEvent);
+				// the credentials may have changed: make the next payment read them again
+				credentialsCache.invalidate(killbillEvent.getTenantId());
 				break;
 			
 			//
@@ -97,12 +98,12 @@ public class BluePayListener extends PluginConfigurationEventHandler implements
 	private static class BluePayPluginConfigurationHandler extends PluginConfigurationHandler {
 		
 		private final LogService logService;
-		private final OSGIKillbillDataSource dataSource;
+		private final BluePayDao dao;
 		
-		public BluePayPluginConfigurationHandler(String pluginName, OSGIKillbillAPI osgiKillbillAPI, OSGIKillbillLogService osgiKillbillLogService, OSGIKillbillDataSource dataSource) {
+		public BluePayPluginConfigurationHandler(String pluginName, OSGIKillbillAPI osgiKillbillAPI, OSGIKillbillLogService osgiKillbillLogService, BluePayDao dao) {
 			super(pluginName, osgiKillbillAPI, osgiKillbillLogService);
 			this.logService = osgiKillbillLogService;
-			this.dataSource = dataSource;
+			this.dao = dao;
 		}
 		
 		@Override
@@ -126,22 +127,9 @@ public class BluePayListener extends PluginConfigurationEventHandler implements
 			logService.log(LogService.LOG_INFO, "configured with secretKey: " + secretKey);
 			logService.log(LogService.LOG_INFO, "configured with test: " + test);
 			
-			try (Connection connection = dataSource.getDataSource().getConnection()) {
-				// save the details to the database
-				String credentialsQuery = "INSERT INTO `bluePay_credentials` (`tenantId`, `accountId`, `secretKey`, `test`) VALUES (?, ?, ?, ?) ON DUPLICATE KEY UPDATE `tenantId` = ?, `accountId` = ?, `secretKey` = ?, `test` = ?";
-				try (PreparedStatement statement = connection.prepareStatement(credentialsQuery)) {
-					statement.setString(1, kbTenantId.toString());
-					statement.setString(2, accountId);
-					statement.setString(3, secretKey);
-					statement.setBoolean(4, test);
-					statement.setString(5, kbTenantId.toString());
-					statement.setString(6, accountId);
-					statement.setString(7, secretKey);
-					statement.setBoolean(8, test);
-					statement.executeUpdate();
-				} catch (SQLException e) {
-					logService.log(LogService.LOG_ERROR, "could not configure tenant: ", e);
-				}
+			// save the details to the database
+			try {
+				dao.saveCredentials(kbTenantId, new BluePayCredentials(accountId, secretKey, test));
 			} catch (SQLException e) {
 				logService.log(LogService.LOG_ERROR, "could not configure tenant: ", e);
 			}
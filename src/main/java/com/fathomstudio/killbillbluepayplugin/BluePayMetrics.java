@@ -0,0 +1,412 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.fathomstudio.killbillbluepayplugin;
+
+import com.google.common.cache.CacheStats;
+import org.apache.http.pool.PoolStats;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes the plugin's counters and timers in the Prometheus text exposition format: stage timings of the payment
+ * API by tenant, BluePay requests by merchant account and API with their outcomes and timings, the state of the
+ * per-merchant circuit breakers, limits and bulkheads, the HTTP connection pool and the caches.
+ *
+ * A scrape streams straight to the caller through a fixed buffer and reads every value in place, so the garbage it
+ * makes does not grow with the number of tenants or merchant accounts.
+ */
+public class BluePayMetrics {
+	
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+	
+	// bucket bounds of the latency histograms, in seconds
+	private static final String[] BOUND_LABELS = {"0.0005", "0.001", "0.0025", "0.005", "0.01", "0.025", "0.05", "0.1", "0.25", "0.5",
+			"1", "2.5", "5", "10", "30", "60"};
+	private static final long[] BOUNDS = new long[BOUND_LABELS.length];
+	// values() copies its array on every call
+	private static final BluePayTimer.Stage[] STAGES = BluePayTimer.Stage.values();
+	private static final BluePayTimer.Outcome[] OUTCOMES = BluePayTimer.Outcome.values();
+	private static final BluePayCircuitBreaker.State[] STATES = BluePayCircuitBreaker.State.values();
+	private static final String[] STAGE_LABELS = new String[STAGES.length];
+	private static final String[] OUTCOME_LABELS = new String[OUTCOMES.length];
+	private static final String[] STATE_LABELS = new String[STATES.length];
+	
+	static {
+		for (int i = 0; i < BOUNDS.length; i++) {
+			BOUNDS[i] = (long) (Double.parseDouble(BOUND_LABELS[i]) * TimeUnit.SECONDS.toNanos(1));
+		}
+		for (BluePayTimer.Stage stage : STAGES) {
+			STAGE_LABELS[stage.ordinal()] = stage.name().toLowerCase(Locale.ROOT);
+		}
+		for (BluePayTimer.Outcome outcome : OUTCOMES) {
+			OUTCOME_LABELS[outcome.ordinal()] = outcome.name().toLowerCase(Locale.ROOT);
+		}
+		for (BluePayCircuitBreaker.State state : STATES) {
+			STATE_LABELS[state.ordinal()] = state.name().toLowerCase(Locale.ROOT);
+		}
+	}
+	
+	private final BluePay bluePay;
+	private final BluePayHttpClient httpClient;
+	private final BluePayCredentialsCache credentialsCache;
+	private final BluePayPaymentMethodCache paymentMethodCache;
+	private final BluePayRegistry<BluePayBulkhead> bulkheads;
+	private final BluePayRegistry<BluePayTimer> timers;
+	
+	/**
+	 * @param timers The stage timers of the payment API.
+	 */
+	public BluePayMetrics(final BluePay bluePay, final BluePayHttpClient httpClient, final BluePayCredentialsCache credentialsCache,
+	                      final BluePayPaymentMethodCache paymentMethodCache, final BluePayRegistry<BluePayBulkhead> bulkheads, final BluePayRegistry<BluePayTimer> timers) {
+		this.bluePay = bluePay;
+		this.httpClient = httpClient;
+		this.credentialsCache = credentialsCache;
+		this.paymentMethodCache = paymentMethodCache;
+		this.bulkheads = bulkheads;
+		this.timers = timers;
+	}
+	
+	/**
+	 * Writes every metric; the writer is flushed but not closed.
+	 */
+	public void write(final Writer writer) throws IOException {
+		final Output out = new Output(writer);
+		final long[] counts = new long[BOUNDS.length];
+		
+		out.family("bluepay_payment_seconds", "histogram", "Time spent in each stage of the payment API calls, by API and outcome.");
+		for (BluePayTimer timer : timers.getAll().values()) {
+			writeHistograms(out, "bluepay_payment_seconds", null, timer, counts);
+		}
+		out.family("bluepay_gateway_seconds", "histogram", "Time spent in each stage of the BluePay requests, by merchant account and mode, BluePay API and outcome.");
+		for (BluePayTimer timer : bluePay.getTimers().getAll().values()) {
+			writeHistograms(out, "bluepay_gateway_seconds", "merchant", timer, counts);
+		}
+		
+		final PoolStats poolStats = httpClient.getPoolStats();
+		out.family("bluepay_http_connections", "gauge", "Connections to the gateway, by state; pending requests wait for one.");
+		out.sample("bluepay_http_connections").label("state", "leased").value(poolStats.getLeased());
+		out.sample("bluepay_http_connections").label("state", "available").value(poolStats.getAvailable());
+		out.sample("bluepay_http_connections").label("state", "pending").value(poolStats.getPending());
+		out.family("bluepay_http_connections_max", "gauge", "Maximum number of connections to the gateway.");
+		out.sample("bluepay_http_connections_max").value(poolStats.getMax());
+		out.family("bluepay_http_in_flight", "gauge", "Requests outstanding at the gateway.");
+		out.sample("bluepay_http_in_flight").value(httpClient.getInFlight());
+		out.family("bluepay_http_in_flight_max", "gauge", "Maximum number of requests outstanding at the gateway.");
+		out.sample("bluepay_http_in_flight_max").value(httpClient.getMaxInFlight());
+		
+		final CacheStats credentialsStats = credentialsCache.getStats();
+		final CacheStats paymentMethodStats = paymentMethodCache.getStats();
+		final CacheStats accountStats = paymentMethodCache.getAccountStats();
+		out.family("bluepay_cache_hits_total", "counter", "Cache lookups answered from the cache.");
+		out.sample("bluepay_cache_hits_total").label("cache", "credentials").value(credentialsStats.hitCount());
+		out.sample("bluepay_cache_hits_total").label("cache", "paymentMethods").value(paymentMethodStats.hitCount());
+		out.sample("bluepay_cache_hits_total").label("cache", "accounts").value(accountStats.hitCount());
+		out.family("bluepay_cache_misses_total", "counter", "Cache lookups that had to go to the database.");
+		out.sample("bluepay_cache_misses_total").label("cache", "credentials").value(credentialsStats.missCount());
+		out.sample("bluepay_cache_misses_total").label("cache", "paymentMethods").value(paymentMethodStats.missCount());
+		out.sample("bluepay_cache_misses_total").label("cache", "accounts").value(accountStats.missCount());
+		out.family("bluepay_cache_hit_ratio", "gauge", "Share of the cache lookups answered from the cache since the plugin started.");
+		out.sample("bluepay_cache_hit_ratio").label("cache", "credentials").value(credentialsStats.hitRate());
+		out.sample("bluepay_cache_hit_ratio").label("cache", "paymentMethods").value(paymentMethodStats.hitRate());
+		out.sample("bluepay_cache_hit_ratio").label("cache", "accounts").value(accountStats.hitRate());
+		out.family("bluepay_cache_evictions_total", "counter", "Entries evicted from the cache by size or age.");
+		out.sample("bluepay_cache_evictions_total").label("cache", "credentials").value(credentialsStats.evictionCount());
+		out.sample("bluepay_cache_evictions_total").label("cache", "paymentMethods").value(paymentMethodStats.evictionCount());
+		out.sample("bluepay_cache_evictions_total").label("cache", "accounts").value(accountStats.evictionCount());
+		out.family("bluepay_cache_size", "gauge", "Entries in the cache.");
+		out.sample("bluepay_cache_size").label("cache", "credentials").value(credentialsCache.size());
+		out.sample("bluepay_cache_size").label("cache", "paymentMethods").value(paymentMethodCache.size());
+		
+		out.family("bluepay_circuit_breaker_state", "gauge", "1 for the state the circuit breaker is in, by merchant account and mode.");
+		for (BluePayCircuitBreaker circuitBreaker : bluePay.getCircuitBreakers().getAll().values()) {
+			final BluePayCircuitBreaker.State state = circuitBreaker.getState();
+			for (BluePayCircuitBreaker.State each : STATES) {
+				out.sample("bluepay_circuit_breaker_state").label("merchant", circuitBreaker.getName()).label("state", STATE_LABELS[each.ordinal()])
+						.value(each == state ? 1 : 0);
+			}
+		}
+		out.family("bluepay_circuit_breaker_failure_rate", "gauge", "Percentage of failed calls in the circuit breaker's window; -1 until it holds enough calls.");
+		for (BluePayCircuitBreaker circuitBreaker : bluePay.getCircuitBreakers().getAll().values()) {
+			out.sample("bluepay_circuit_breaker_failure_rate").label("merchant", circuitBreaker.getName()).value(circuitBreaker.getFailureRate());
+		}
+		out.family("bluepay_circuit_breaker_slow_call_rate", "gauge", "Percentage of slow calls in the circuit breaker's window; -1 until it holds enough calls.");
+		for (BluePayCircuitBreaker circuitBreaker : bluePay.getCircuitBreakers().getAll().values()) {
+			out.sample("bluepay_circuit_breaker_slow_call_rate").label("merchant", circuitBreaker.getName()).value(circuitBreaker.getSlowCallRate());
+		}
+		out.family("bluepay_circuit_breaker_not_permitted_calls_total", "counter", "Requests not sent because the circuit breaker was open.");
+		for (BluePayCircuitBreaker circuitBreaker : bluePay.getCircuitBreakers().getAll().values()) {
+			out.sample("bluepay_circuit_breaker_not_permitted_calls_total").label("merchant", circuitBreaker.getName()).value(circuitBreaker.getNotPermittedCalls());
+		}
+		
+		out.family("bluepay_concurrency_limit", "gauge", "Requests allowed outstanding at the gateway, by merchant account and mode.");
+		for (BluePayConcurrencyLimiter limiter : bluePay.getConcurrencyLimiters().getAll().values()) {
+			out.sample("bluepay_concurrency_limit").label("merchant", limiter.getName()).value(limiter.getLimit());
+		}
+		out.family("bluepay_concurrency_in_flight", "gauge", "Requests outstanding at the gateway, by merchant account and mode.");
+		for (BluePayConcurrencyLimiter limiter : bluePay.getConcurrencyLimiters().getAll().values()) {
+			out.sample("bluepay_concurrency_in_flight").label("merchant", limiter.getName()).value(limiter.getInFlight());
+		}
+		out.family("bluepay_concurrency_queued", "gauge", "Requests waiting for the concurrency limit, by merchant account and mode.");
+		for (BluePayConcurrencyLimiter limiter : bluePay.getConcurrencyLimiters().getAll().values()) {
+			out.sample("bluepay_concurrency_queued").label("merchant", limiter.getName()).value(limiter.getQueued());
+		}
+		out.family("bluepay_concurrency_rejected_calls_total", "counter", "Requests not sent because the concurrency limit was reached.");
+		for (BluePayConcurrencyLimiter limiter : bluePay.getConcurrencyLimiters().getAll().values()) {
+			out.sample("bluepay_concurrency_rejected_calls_total").label("merchant", limiter.getName()).value(limiter.getRejectedCalls());
+		}
+		out.family("bluepay_concurrency_latency_seconds", "gauge", "Smoothed latency of the gateway, as seen by the concurrency limiter.");
+		for (BluePayConcurrencyLimiter limiter : bluePay.getConcurrencyLimiters().getAll().values()) {
+			out.sample("bluepay_concurrency_latency_seconds").label("merchant", limiter.getName()).value(limiter.getLatencyMillis() / 1000);
+		}
+		out.family("bluepay_concurrency_base_latency_seconds", "gauge", "Latency of the gateway when not loaded, as seen by the concurrency limiter.");
+		for (BluePayConcurrencyLimiter limiter : bluePay.getConcurrencyLimiters().getAll().values()) {
+			out.sample("bluepay_concurrency_base_latency_seconds").label("merchant", limiter.getName()).value(limiter.getBaseLatencyMillis() / 1000);
+		}
+		
+		out.family("bluepay_rate_limit_tokens", "gauge", "Requests that may be sent right away under the rate limit, by merchant account and mode.");
+		for (BluePayRateLimiter limiter : bluePay.getRateLimiters().getAll().values()) {
+			out.sample("bluepay_rate_limit_tokens").label("merchant", limiter.getName()).value(limiter.getTokens());
+		}
+		out.family("bluepay_rate_limit_delayed_calls_total", "counter", "Requests that waited for the rate limit.");
+		for (BluePayRateLimiter limiter : bluePay.getRateLimiters().getAll().values()) {
+			out.sample("bluepay_rate_limit_delayed_calls_total").label("merchant", limiter.getName()).value(limiter.getDelayedCalls());
+		}
+		out.family("bluepay_rate_limit_rejected_calls_total", "counter", "Requests not sent because the rate limit would have delayed them too long.");
+		for (BluePayRateLimiter limiter : bluePay.getRateLimiters().getAll().values()) {
+			out.sample("bluepay_rate_limit_rejected_calls_total").label("merchant", limiter.getName()).value(limiter.getRejectedCalls());
+		}
+		out.family("bluepay_rate_limit_wait_seconds_total", "counter", "Time requests spent waiting for the rate limit.");
+		for (BluePayRateLimiter limiter : bluePay.getRateLimiters().getAll().values()) {
+			out.sample("bluepay_rate_limit_wait_seconds_total").label("merchant", limiter.getName()).value(limiter.getWaitTimeMillis() / 1000d);
+		}
+		
+		out.family("bluepay_bulkhead_in_use", "gauge", "Payments in progress at the gateway, by merchant account.");
+		for (BluePayBulkhead bulkhead : bulkheads.getAll().values()) {
+			out.sample("bluepay_bulkhead_in_use").label("merchant", bulkhead.getName()).value(bulkhead.getInUse());
+		}
+		out.family("bluepay_bulkhead_queued", "gauge", "Payments waiting for a bulkhead slot, by merchant account.");
+		for (BluePayBulkhead bulkhead : bulkheads.getAll().values()) {
+			out.sample("bluepay_bulkhead_queued").label("merchant", bulkhead.getName()).value(bulkhead.getQueued());
+		}
+		out.family("bluepay_bulkhead_rejected_calls_total", "counter", "Payments turned away because the bulkhead's queue was full.");
+		for (BluePayBulkhead bulkhead : bulkheads.getAll().values()) {
+			out.sample("bluepay_bulkhead_rejected_calls_total").label("merchant", bulkhead.getName()).value(bulkhead.getRejectedCalls());
+		}
+		out.family("bluepay_bulkhead_timed_out_calls_total", "counter", "Payments turned away because no bulkhead slot freed up in time.");
+		for (BluePayBulkhead bulkhead : bulkheads.getAll().values()) {
+			out.sample("bluepay_bulkhead_timed_out_calls_total").label("merchant", bulkhead.getName()).value(bulkhead.getTimedOutCalls());
+		}
+		
+		out.flush();
+	}
+	
+	/**
+	 * @param scope the label of the timer's scope, or null if the timer has none
+	 */
+	private static void writeHistograms(final Output out, final String name, final String scope, final BluePayTimer timer, final long[] counts) throws IOException {
+		for (BluePayTimer.Stage stage : STAGES) {
+			for (BluePayTimer.Outcome outcome : OUTCOMES) {
+				final BluePayHistogram histogram = timer.getHistogram(stage, outcome);
+				if (histogram == null) {
+					continue;
+				}
+				final long count = histogram.getCumulativeCounts(BOUNDS, counts);
+				for (int i = 0; i <= BOUNDS.length; i++) {
+					labels(out.sample(name, "_bucket"), scope, timer, stage, outcome)
+							.label("le", i < BOUNDS.length ? BOUND_LABELS[i] : "+Inf").value(i < BOUNDS.length ? counts[i] : count);
+				}
+				labels(out.sample(name, "_sum"), scope, timer, stage, outcome).seconds(histogram.getSum());
+				labels(out.sample(name, "_count"), scope, timer, stage, outcome).value(count);
+			}
+		}
+	}
+	
+	private static Output labels(final Output sample, final String scope, final BluePayTimer timer, final BluePayTimer.Stage stage, final BluePayTimer.Outcome outcome) throws IOException {
+		if (scope != null) {
+			sample.label(scope, timer.getScope());
+		}
+		return sample.label("api", timer.getApi()).label("stage", STAGE_LABELS[stage.ordinal()]).label("outcome", OUTCOME_LABELS[outcome.ordinal()]);
+	}
+	
+	/**
+	 * Formats samples into a fixed buffer, numbers included, so that a scrape allocates the same whatever its size.
+	 */
+	private static final class Output {
+		
+		private static final long[] POWERS_OF_TEN = {1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L};
+		
+		private final Writer writer;
+		private final char[] buffer = new char[8192];
+		private final char[] digits = new char[20];
+		private int length;
+		private boolean labels;
+		
+		private Output(final Writer writer) {
+			this.writer = writer;
+		}
+		
+		private void family(final String name, final String type, final String help) throws IOException {
+			append("# HELP ").append(name).append(' ').append(help).append('\n');
+			append("# TYPE ").append(name).append(' ').append(type).append('\n');
+		}
+		
+		private Output sample(final String name) throws IOException {
+			labels = false;
+			return append(name);
+		}
+		
+		private Output sample(final String name, final String suffix) throws IOException {
+			return sample(name).append(suffix);
+		}
+		
+		private Output label(final String name, final String value) throws IOException {
+			append(labels ? ',' : '{').append(name).append("=\"");
+			labels = true;
+			if (value.indexOf('\\') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+				return append(value).append('"');
+			}
+			for (int i = 0; i < value.length(); i++) {
+				final char c = value.charAt(i);
+				if (c == '\\' || c == '"') {
+					append('\\').append(c);
+				} else if (c == '\n') {
+					append("\\n");
+				} else {
+					append(c);
+				}
+			}
+			return append('"');
+		}
+		
+		private void value(final long value) throws IOException {
+			endLabels();
+			appendLong(value);
+			append('\n');
+		}
+		
+		private void value(final double value) throws IOException {
+			endLabels();
+			if (Double.isNaN(value)) {
+				append("NaN");
+			} else if (Double.isInfinite(value)) {
+				append(value > 0 ? "+Inf" : "-Inf");
+			} else if (Math.abs(value) < 1e12) {
+				appendDecimal(Math.round(value * POWERS_OF_TEN[6]), 6);
+			} else {
+				append(Double.toString(value));
+			}
+			append('\n');
+		}
+		
+		/**
+		 * Writes a duration in nanoseconds as seconds.
+		 */
+		private void seconds(final long nanos) throws IOException {
+			endLabels();
+			appendDecimal(nanos, 9);
+			append('\n');
+		}
+		
+		private void endLabels() throws IOException {
+			if (labels) {
+				append('}');
+			}
+			append(' ');
+		}
+		
+		/**
+		 * Writes {@code value / 10^scale}, without trailing zeros.
+		 */
+		private void appendDecimal(final long value, int scale) throws IOException {
+			if (value < 0) {
+				append('-');
+			}
+			final long unscaled = Math.abs(value);
+			appendLong(unscaled / POWERS_OF_TEN[scale]);
+			long fraction = unscaled % POWERS_OF_TEN[scale];
+			if (fraction == 0) {
+				return;
+			}
+			while (fraction % 10 == 0) {
+				fraction /= 10;
+				scale--;
+			}
+			append('.');
+			for (long power = POWERS_OF_TEN[scale - 1]; power > fraction; power /= 10) {
+				append('0');
+			}
+			appendLong(fraction);
+		}
+		
+		private void appendLong(final long value) throws IOException {
+			if (value == Long.MIN_VALUE) {
+				append(Long.toString(value));
+				return;
+			}
+			long remaining = Math.abs(value);
+			int start = digits.length;
+			do {
+				digits[--start] = (char) ('0' + remaining % 10);
+				remaining /= 10;
+			} while (remaining > 0);
+			if (value < 0) {
+				append('-');
+			}
+			if (buffer.length - length < digits.length) {
+				writer.write(buffer, 0, length);
+				length = 0;
+			}
+			System.arraycopy(digits, start, buffer, length, digits.length - start);
+			length += digits.length - start;
+		}
+		
+		private Output append(final String value) throws IOException {
+			int copied = 0;
+			while (copied < value.length()) {
+				if (length == buffer.length) {
+					writer.write(buffer, 0, length);
+					length = 0;
+				}
+				final int count = Math.min(value.length() - copied, buffer.length - length);
+				value.getChars(copied, copied + count, buffer, length);
+				copied += count;
+				length += count;
+			}
+			return this;
+		}
+		
+		private Output append(final char c) throws IOException {
+			if (length == buffer.length) {
+				writer.write(buffer, 0, length);
+				length = 0;
+			}
+			buffer[length++] = c;
+			return this;
+		}
+		
+		private void flush() throws IOException {
+			writer.write(buffer, 0, length);
+			length = 0;
+			writer.flush();
+		}
+	}
+}
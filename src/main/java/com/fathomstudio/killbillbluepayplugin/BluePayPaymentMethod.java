@@ -0,0 +1,201 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbluepayplugin;
+
+import org.killbill.billing.payment.api.PaymentMethodPlugin;
+import org.killbill.billing.payment.api.PluginProperty;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * One row of the bluePay_paymentMethods table: a Kill Bill payment method and its BluePay token. Immutable.
+ *
+ * The external payment method ID is the token, the transaction ID of the $0 AUTH that stored the payment information.
+ */
+public class BluePayPaymentMethod implements PaymentMethodPlugin {
+	
+	private final Long recordId;
+	private final UUID kbTenantId;
+	private final UUID kbAccountId;
+	private final UUID kbPaymentMethodId;
+	private final String transactionId;
+	private final String cardType;
+	private final String lastFour;
+	private final String maskedAccount;
+	private final String bankName;
+	private final String expiration;
+	
+	/**
+	 * @param recordId - the table's ID of the row, or null if it isn't stored yet
+	 */
+	public BluePayPaymentMethod(final Long recordId, final UUID kbTenantId, final UUID kbAccountId, final UUID kbPaymentMethodId, final String transactionId,
+	                            final String cardType, final String lastFour, final String maskedAccount, final String bankName, final String expiration) {
+		this.recordId = recordId;
+		this.kbTenantId = kbTenantId;
+		this.kbAccountId = kbAccountId;
+		this.kbPaymentMethodId = kbPaymentMethodId;
+		this.transactionId = transactionId;
+		this.cardType = cardType;
+		this.lastFour = lastFour;
+		this.maskedAccount = maskedAccount;
+		this.bankName = bankName;
+		this.expiration = expiration;
+	}
+	
+	/**
+	 * Records the token returned for a payment method's $0 AUTH, along with what BluePay told about the payment
+	 * information.
+	 *
+	 * @param expiration - the card's expiration as sent to BluePay, e.g. "1225"; null for a bank account
+	 */
+	public static BluePayPaymentMethod fromResponse(final UUID kbTenantId, final UUID kbAccountId, final UUID kbPaymentMethodId, final String expiration,
+	                                                final BluePayResponse response) {
+		return new BluePayPaymentMethod(null, kbTenantId, kbAccountId, kbPaymentMethodId, response.getTransID(), response.getCardType(),
+				lastFour(response.getMaskedPaymentAccount()), response.getMaskedPaymentAccount(), response.getBankName(), expiration);
+	}
+	
+	/**
+	 * Merges what an stq query about the token returned: its card type, masked account, bank name and expiration.
+	 * Fields the gateway left empty keep their stored value.
+	 *
+	 * @return the updated payment method, or this one if the gateway didn't find the token
+	 */
+	public BluePayPaymentMethod merge(final BluePayResponse query) {
+		if (query.get("id") == null) {
+			return this;
+		}
+		final String queriedAccount = emptyToNull(query.get("payment_account"));
+		return new BluePayPaymentMethod(recordId, kbTenantId, kbAccountId, kbPaymentMethodId, transactionId,
+				valueOrDefault(query.get("card_type"), cardType), queriedAccount == null ? lastFour : lastFour(queriedAccount),
+				queriedAccount == null ? maskedAccount : queriedAccount, valueOrDefault(query.get("bank_name"), bankName),
+				valueOrDefault(query.get("card_expire"), expiration));
+	}
+	
+	private static String valueOrDefault(final String value, final String defaultValue) {
+		final String result = emptyToNull(value);
+		return result == null ? defaultValue : result;
+	}
+	
+	private static String emptyToNull(final String value) {
+		return value == null || value.isEmpty() ? null : value;
+	}
+	
+	/**
+	 * @return the last four digits of a masked account, e.g. "1111" for "xxxxxxxxxxxx1111"; null if none
+	 */
+	static String lastFour(final String maskedAccount) {
+		if (maskedAccount == null || maskedAccount.length() < 4) {
+			return null;
+		}
+		return maskedAccount.substring(maskedAccount.length() - 4);
+	}
+	
+	/**
+	 * @return the table's ID of the row, or null if it isn't stored yet
+	 */
+	public Long getRecordId() {
+		return recordId;
+	}
+	
+	public UUID getKbTenantId() {
+		return kbTenantId;
+	}
+	
+	public UUID getKbAccountId() {
+		return kbAccountId;
+	}
+	
+	@Override
+	public UUID getKbPaymentMethodId() {
+		return kbPaymentMethodId;
+	}
+	
+	@Override
+	public String getExternalPaymentMethodId() {
+		return transactionId;
+	}
+	
+	/**
+	 * @return the BluePay token
+	 */
+	public String getTransactionId() {
+		return transactionId;
+	}
+	
+	public String getCardType() {
+		return cardType;
+	}
+	
+	public String getLastFour() {
+		return lastFour;
+	}
+	
+	/**
+	 * @return the card or bank account number as masked by BluePay, e.g. "xxxxxxxxxxxx1111"
+	 */
+	public String getMaskedAccount() {
+		return maskedAccount;
+	}
+	
+	public String getBankName() {
+		return bankName;
+	}
+	
+	/**
+	 * @return the card's expiration, MMYY; null for a bank account
+	 */
+	public String getExpiration() {
+		return expiration;
+	}
+	
+	/**
+	 * Kill Bill keeps track of the default payment method itself.
+	 */
+	@Override
+	public boolean isDefaultPaymentMethod() {
+		return false;
+	}
+	
+	/**
+	 * @return the card type, last four digits, masked account, bank name and expiration, when known
+	 */
+	@Override
+	public List<PluginProperty> getProperties() {
+		final List<PluginProperty> properties = new ArrayList<PluginProperty>(5);
+		addProperty(properties, "cardType", cardType);
+		addProperty(properties, "lastFour", lastFour);
+		addProperty(properties, "maskedPaymentAccount", maskedAccount);
+		addProperty(properties, "bankName", bankName);
+		addProperty(properties, "expiration", expiration);
+		return properties;
+	}
+	
+	private static void addProperty(final List<PluginProperty> properties, final String key, final String value) {
+		if (value != null) {
+			properties.add(new PluginProperty(key, value, false));
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return "BluePayPaymentMethod{kbPaymentMethodId=" + kbPaymentMethodId + ", transactionId=" + transactionId + ", cardType=" + cardType
+				+ ", lastFour=" + lastFour + "}";
+	}
+}
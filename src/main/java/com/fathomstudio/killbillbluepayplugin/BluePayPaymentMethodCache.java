@@ -0,0 +1,173 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbluepayplugin;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Caches the stored payment methods: each Kill Bill payment method with its BluePay token (the transaction ID of the
+ * $0 AUTH) and card or bank account details, and the list of payment methods of each account.
+ * A payment method doesn't change once stored, so entries are only dropped when the method is deleted or re-tokenized,
+ * when the cache is full, or after a long TTL as a safety net for multi-node setups. Account lists change whenever a
+ * payment method is added or deleted, possibly on another node, so they expire after a short TTL instead.
+ *
+ * Each account list is stored against the generation read before the list was read from the database. Invalidating an
+ * account moves its generation on, so a list read before the invalidation is never cached after it. Generations are
+ * striped by account, so the bookkeeping stays bounded; an invalidation only makes lists of other accounts of the same
+ * stripe that are being read at the time skip the cache once.
+ */
+public class BluePayPaymentMethodCache {
+	
+	public static final String PROPERTY_PREFIX = "org.killbill.billing.plugin.bluepay.paymentMethods.";
+	
+	private static final int GENERATION_STRIPES = 1024;
+	
+	private final Cache<UUID, BluePayPaymentMethod> cache;
+	private final Cache<UUID, List<BluePayPaymentMethod>> accounts;
+	private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+	
+	public BluePayPaymentMethodCache(final Properties properties) {
+		final long ttl = Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "ttl", "86400"));
+		this.cache = CacheBuilder.newBuilder()
+				.maximumSize(Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "maxSize", "500000")))
+				.expireAfterWrite(ttl, TimeUnit.SECONDS)
+				.recordStats()
+				.build();
+		this.accounts = CacheBuilder.newBuilder()
+				.maximumSize(Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "maxAccounts", "10000")))
+				.expireAfterWrite(Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "accountTtl", "300")), TimeUnit.SECONDS)
+				.recordStats()
+				.build();
+	}
+	
+	/**
+	 * @param kbPaymentMethodId - the payment method
+	 * @return the cached payment method, or null if it has to be read from the database
+	 */
+	public BluePayPaymentMethod get(final UUID kbPaymentMethodId) {
+		return cache.getIfPresent(kbPaymentMethodId);
+	}
+	
+	/**
+	 * @param kbPaymentMethodId - the payment method
+	 * @return the cached token, or null if it has to be read from the database
+	 */
+	public String getTransactionId(final UUID kbPaymentMethodId) {
+		final BluePayPaymentMethod paymentMethod = cache.getIfPresent(kbPaymentMethodId);
+		return paymentMethod == null ? null : paymentMethod.getTransactionId();
+	}
+	
+	/**
+	 * Records a payment method, replacing any previous one.
+	 *
+	 * @param paymentMethod - the payment method, as stored
+	 */
+	public void put(final BluePayPaymentMethod paymentMethod) {
+		if (paymentMethod.getTransactionId() == null) {
+			cache.invalidate(paymentMethod.getKbPaymentMethodId());
+		} else {
+			cache.put(paymentMethod.getKbPaymentMethodId(), paymentMethod);
+		}
+	}
+	
+	/**
+	 * Forgets a payment method, e.g. because it was deleted.
+	 *
+	 * @param kbPaymentMethodId - the payment method
+	 */
+	public void invalidate(final UUID kbPaymentMethodId) {
+		cache.invalidate(kbPaymentMethodId);
+	}
+	
+	/**
+	 * @param kbAccountId - the account
+	 * @return the cached payment methods of the account, or null if they have to be read from the database
+	 */
+	public List<BluePayPaymentMethod> getAccount(final UUID kbAccountId) {
+		return accounts.getIfPresent(kbAccountId);
+	}
+	
+	/**
+	 * @param kbAccountId - the account
+	 * @return the account's generation, to be read before its payment methods are read from the database
+	 */
+	public long getAccountGeneration(final UUID kbAccountId) {
+		return generations.get(stripe(kbAccountId));
+	}
+	
+	/**
+	 * Records the payment methods of an account, as read from the database, unless the account was invalidated since.
+	 *
+	 * @param kbAccountId    - the account
+	 * @param generation     - the account's generation, as read before the payment methods were
+	 * @param paymentMethods - its payment methods; kept as is, so not to be modified afterwards
+	 */
+	public void putAccount(final UUID kbAccountId, final long generation, final List<BluePayPaymentMethod> paymentMethods) {
+		final int stripe = stripe(kbAccountId);
+		if (generations.get(stripe) != generation) {
+			return;
+		}
+		accounts.put(kbAccountId, paymentMethods);
+		// an invalidation between the check and the put may have missed the new entry
+		if (generations.get(stripe) != generation) {
+			accounts.invalidate(kbAccountId);
+		}
+	}
+	
+	/**
+	 * Forgets the list of payment methods of an account, e.g. because one was added or deleted.
+	 *
+	 * @param kbAccountId - the account
+	 */
+	public void invalidateAccount(final UUID kbAccountId) {
+		if (kbAccountId != null) {
+			generations.incrementAndGet(stripe(kbAccountId));
+			accounts.invalidate(kbAccountId);
+		}
+	}
+	
+	/**
+	 * @return hit, miss and eviction counts since the plugin started
+	 */
+	public CacheStats getStats() {
+		return cache.stats();
+	}
+	
+	/**
+	 * @return hit, miss and eviction counts of the account lists since the plugin started
+	 */
+	public CacheStats getAccountStats() {
+		return accounts.stats();
+	}
+	
+	public long size() {
+		return cache.size();
+	}
+	
+	private static int stripe(final UUID kbAccountId) {
+		return (kbAccountId.hashCode() & 0x7fffffff) % GENERATION_STRIPES;
+	}
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbluepayplugin;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillLogService;
+import org.osgi.service.log.LogService;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Re-validates stored payment methods against the gateway with one stq query per token, and stores the card or bank
+ * account details it returns.
+ *
+ * The queries of a refresh are sent concurrently, at most maxConcurrency at a time, so a refresh takes about one
+ * gateway round-trip rather than one per payment method. They go through the same per-merchant rate and concurrency
+ * limits as payments ({@link BluePay#processAsync}), whose waits hold the refreshing thread. Tokens the gateway
+ * doesn't find, or doesn't answer for in time, are kept as stored.
+ */
+public class BluePayPaymentMethodRefresher {
+	
+	public static final String PROPERTY_PREFIX = "org.killbill.billing.plugin.bluepay.refresh.";
+	
+	private final OSGIKillbillLogService logService;
+	private final BluePay bluePay;
+	private final BluePayDao dao;
+	private final int maxConcurrency;
+	private final long timeoutMillis;
+	private final int lookbackDays;
+	
+	public BluePayPaymentMethodRefresher(final Properties properties, final OSGIKillbillLogService logService, final BluePay bluePay, final BluePayDao dao) {
+		this.logService = logService;
+		this.bluePay = bluePay;
+		this.dao = dao;
+		this.maxConcurrency = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "maxConcurrency", "8"));
+		this.timeoutMillis = Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "timeout", "30000"));
+		this.lookbackDays = Integer.parseInt(properties.getProperty(PROPERTY_PREFIX + "lookbackDays", "3650"));
+	}
+	
+	/**
+	 * Queries the gateway about each payment method's token, then stores every answer in one batch.
+	 *
+	 * @param credentials    - the merchant the tokens belong to
+	 * @param paymentMethods - the payment methods, as stored
+	 * @return the payment methods, updated with what the gateway returned
+	 * @throws SQLException if the answers can't be stored
+	 */
+	public List<BluePayPaymentMethod> refresh(final BluePayCredentials credentials, final List<BluePayPaymentMethod> paymentMethods) throws SQLException {
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		final LocalDate today = new LocalDate(DateTimeZone.UTC);
+		final String reportStart = today.minusDays(lookbackDays).toString();
+		final String reportEnd = today.plusDays(1).toString();
+		final Semaphore inFlight = new Semaphore(maxConcurrency);
+		
+		// gateway phase: send the queries as fast as the limits allow, without waiting for the answers
+		final List<ListenableFuture<BluePayResponse>> queries = new ArrayList<ListenableFuture<BluePayResponse>>(paymentMethods.size());
+		try {
+			for (final BluePayPaymentMethod paymentMethod : paymentMethods) {
+				if (!inFlight.tryAcquire(remaining(deadline), TimeUnit.NANOSECONDS)) {
+					break;
+				}
+				final ListenableFuture<BluePayResponse> query = bluePay.processAsync(
+						new BluePayTransactionQuery(credentials, paymentMethod.getTransactionId(), reportStart, reportEnd, false));
+				query.addListener(new Runnable() {
+					@Override
+					public void run() {
+						inFlight.release();
+					}
+				}, MoreExecutors.directExecutor());
+				queries.add(query);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (queries.size() < paymentMethods.size()) {
+			logService.log(LogService.LOG_WARNING, "refresh timed out: " + (paymentMethods.size() - queries.size()) + " of " + paymentMethods.size()
+					+ " payment methods were not queried");
+		}
+		
+		final List<BluePayPaymentMethod> refreshed = new ArrayList<BluePayPaymentMethod>(paymentMethods.size());
+		final List<BluePayPaymentMethod> answered = new ArrayList<BluePayPaymentMethod>(queries.size());
+		for (int i = 0; i < paymentMethods.size(); i++) {
+			final BluePayPaymentMethod paymentMethod = paymentMethods.get(i);
+			final BluePayPaymentMethod merged = i < queries.size() ? merge(paymentMethod, queries.get(i), deadline) : paymentMethod;
+			refreshed.add(merged);
+			if (merged != paymentMethod) {
+				answered.add(merged);
+			}
+		}
+		
+		// write phase: one batch for every payment method the gateway told about
+		dao.savePaymentMethods(answered);
+		return refreshed;
+	}
+	
+	private BluePayPaymentMethod merge(final BluePayPaymentMethod paymentMethod, final ListenableFuture<BluePayResponse> query, final long deadline) {
+		try {
+			final BluePayPaymentMethod merged = paymentMethod.merge(query.get(remaining(deadline), TimeUnit.NANOSECONDS));
+			if (merged == paymentMethod) {
+				logService.log(LogService.LOG_WARNING, "token " + paymentMethod.getTransactionId() + " of payment method "
+						+ paymentMethod.getKbPaymentMethodId() + " was not found by the gateway");
+			}
+			return merged;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			query.cancel(true);
+		} catch (TimeoutException e) {
+			query.cancel(true);
+			logService.log(LogService.LOG_WARNING, "refresh timed out waiting for payment method " + paymentMethod.getKbPaymentMethodId());
+		} catch (ExecutionException e) {
+			logService.log(LogService.LOG_WARNING, "could not refresh payment method " + paymentMethod.getKbPaymentMethodId() + ": ", e.getCause());
+		}
+		return paymentMethod;
+	}
+	
+	private static long remaining(final long deadline) {
+		return Math.max(0, deadline - System.nanoTime());
+	}
+}
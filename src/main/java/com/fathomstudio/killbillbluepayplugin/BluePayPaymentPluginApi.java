@@ -17,48 +17,106 @@
 
 package com.fathomstudio.killbillbluepayplugin;
 
+import com.google.common.util.concurrent.SettableFuture;
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
 import org.killbill.billing.account.api.Account;
 import org.killbill.billing.account.api.AccountApiException;
 import org.killbill.billing.catalog.api.Currency;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
-import org.killbill.billing.osgi.libs.killbill.OSGIKillbillDataSource;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillLogService;
 import org.killbill.billing.payment.api.PaymentMethodPlugin;
 import org.killbill.billing.payment.api.PluginProperty;
 import org.killbill.billing.payment.api.TransactionType;
 import org.killbill.billing.payment.plugin.api.*;
+import org.killbill.billing.plugin.api.payment.PluginPaymentMethodInfoPlugin;
 import org.killbill.billing.util.callcontext.CallContext;
 import org.killbill.billing.util.callcontext.TenantContext;
 import org.killbill.billing.util.entity.Pagination;
 import org.osgi.service.log.LogService;
 
+import java.io.IOException;
 import java.math.BigDecimal;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 
 /**
  * The BluePay gateway interface.
  */
 public class BluePayPaymentPluginApi implements PaymentPluginApi {
 	
+	public static final String GATEWAY_URL_PROPERTY = "org.killbill.billing.plugin.bluepay.gatewayUrl";
+	
+	public static final String PROPERTY_PREFIX = "org.killbill.billing.plugin.bluepay.transactions.";
+	
 	private final Properties properties;
 	private final OSGIKillbillLogService logService;
 	private OSGIKillbillAPI killbillAPI;
-	private OSGIKillbillDataSource dataSource;
+	private final BluePayDao dao;
+	private final BluePay bluePay;
+	private final BluePayCredentialsCache credentialsCache;
+	private final BluePayPaymentMethodCache paymentMethodCache;
+	private final BluePayPaymentMethodRefresher paymentMethodRefresher;
+	private final BluePayRegistry<BluePayBulkhead> bulkheads;
+	private final BluePayRegistry<BluePayTimer> timers;
+	private final long pendingTimeoutMillis;
+	// transactions being sent by this node, by Kill Bill transaction ID
+	private final ConcurrentMap<UUID, SettableFuture<BluePayTransaction>> inFlight = new ConcurrentHashMap<UUID, SettableFuture<BluePayTransaction>>();
 	
-	public BluePayPaymentPluginApi(final Properties properties, final OSGIKillbillLogService logService, final OSGIKillbillAPI killbillAPI, OSGIKillbillDataSource dataSource) {
+	public BluePayPaymentPluginApi(final Properties properties, final OSGIKillbillLogService logService, final OSGIKillbillAPI killbillAPI, final BluePayDao dao, final BluePay bluePay, final BluePayCredentialsCache credentialsCache, final BluePayPaymentMethodCache paymentMethodCache, final BluePayPaymentMethodRefresher paymentMethodRefresher, final BluePayRegistry<BluePayBulkhead> bulkheads, final BluePayRegistry<BluePayTimer> timers) {
 		this.properties = properties;
 		this.logService = logService;
 		this.killbillAPI = killbillAPI;
-		this.dataSource = dataSource;
+		this.dao = dao;
+		this.bluePay = bluePay;
+		this.credentialsCache = credentialsCache;
+		this.paymentMethodCache = paymentMethodCache;
+		this.paymentMethodRefresher = paymentMethodRefresher;
+		this.bulkheads = bulkheads;
+		this.timers = timers;
+		this.pendingTimeoutMillis = Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "pendingTimeout", "300000"));
 	}
 	
 	@Override
 	public PaymentTransactionInfoPlugin authorizePayment(final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId, final BigDecimal amount, final Currency currency, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
+		return chargePaymentMethod(TransactionType.AUTHORIZE, kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, amount, currency, properties, context);
+	}
+	
+	@Override
+	public PaymentTransactionInfoPlugin capturePayment(final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId, final BigDecimal amount, final Currency currency, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
+		return followUpPayment(TransactionType.CAPTURE, kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, amount, currency, context);
+	}
+	
+	/**
+	 * Called to actually make the payment.
+	 *
+	 * @param kbAccountId       - the account
+	 * @param kbPaymentId       - the paymentID
+	 * @param kbTransactionId   - the transactionId
+	 * @param kbPaymentMethodId - the paymentMethodId to make the payment with
+	 * @param amount            - the amount
+	 * @param currency          - the currency
+	 * @param properties        - properties specified by the client
+	 * @param context           - the context
+	 * @return
+	 * @throws PaymentPluginApiException
+	 */
+	@Override
+	public PaymentTransactionInfoPlugin purchasePayment(final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId, final BigDecimal amount, final Currency currency, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
+		return chargePaymentMethod(TransactionType.PURCHASE, kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, amount, currency, properties, context);
+	}
+	
+	@Override
+	public PaymentTransactionInfoPlugin voidPayment(final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
+		return followUpPayment(TransactionType.VOID, kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, null, null, context);
+	}
+	
+	@Override
+	public PaymentTransactionInfoPlugin creditPayment(final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId, final BigDecimal amount, final Currency currency, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
 		// not implemented
 		return new PaymentTransactionInfoPlugin() {
 			@Override
@@ -129,66 +187,420 @@ public class BluePayPaymentPluginApi implements PaymentPluginApi {
 	}
 	
 	@Override
-	public PaymentTransactionInfoPlugin capturePayment(final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId, final BigDecimal amount, final Currency currency, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
-		// not implemented
-		return new PaymentTransactionInfoPlugin() {
-			@Override
-			public UUID getKbPaymentId() {
-				return kbPaymentId;
+	public PaymentTransactionInfoPlugin refundPayment(final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId, final BigDecimal amount, final Currency currency, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
+		return followUpPayment(TransactionType.REFUND, kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, amount, currency, context);
+	}
+	
+	/**
+	 * Reads the transactions of a payment from the local journal. The gateway is only called for transactions whose
+	 * outcome the journal doesn't know, which are reconciled first; this is how Kill Bill's Janitor settles them.
+	 */
+	@Override
+	public List<PaymentTransactionInfoPlugin> getPaymentInfo(final UUID kbAccountId, final UUID kbPaymentId, final Iterable<PluginProperty> properties, final TenantContext context) throws PaymentPluginApiException {
+		final List<BluePayTransaction> transactions;
+		try {
+			transactions = dao.getTransactions(context.getTenantId(), kbPaymentId);
+		} catch (SQLException e) {
+			logService.log(LogService.LOG_ERROR, "could not retrieve payment info: ", e);
+			throw new PaymentPluginApiException("could not retrieve payment info", e);
+		}
+		for (int i = 0; i < transactions.size(); i++) {
+			if (isUnsettled(transactions.get(i))) {
+				transactions.set(i, reconcileTransaction(transactions.get(i)));
 			}
-			
-			@Override
-			public UUID getKbTransactionPaymentId() {
-				return kbTransactionId;
+		}
+		return Collections.<PaymentTransactionInfoPlugin>unmodifiableList(transactions);
+	}
+	
+	/**
+	 * Searches the local journal by BluePay transaction ID, Kill Bill payment or transaction ID, masked account or
+	 * status. The offset is the journal record ID a page starts after, as returned by the previous page.
+	 */
+	@Override
+	public Pagination<PaymentTransactionInfoPlugin> searchPayments(final String searchKey, final Long offset, final Long limit, final Iterable<PluginProperty> properties, final TenantContext context) throws PaymentPluginApiException {
+		return new BluePayTransactionSearch(dao, context.getTenantId(), searchKey, offset == null ? 0 : offset, limit);
+	}
+	
+	/**
+	 * Create a payment method with the given details.
+	 *
+	 * @param kbAccountId        - the account
+	 * @param kbPaymentMethodId  - the paymentMethodId
+	 * @param paymentMethodProps - the properties
+	 * @param setDefault         - if this should be the default
+	 * @param properties         - client-specified properties
+	 * @param context            - the context
+	 * @throws PaymentPluginApiException
+	 */
+	@Override
+	public void addPaymentMethod(final UUID kbAccountId, final UUID kbPaymentMethodId, final PaymentMethodPlugin paymentMethodProps, final boolean setDefault, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
+		final BluePayTimer.Sample sample = timers.get("addPaymentMethod").start();
+		try {
+			addPaymentMethod(sample, kbAccountId, kbPaymentMethodId, paymentMethodProps, context);
+		} finally {
+			sample.finish();
+		}
+	}
+	
+	private void addPaymentMethod(final BluePayTimer.Sample sample, final UUID kbAccountId, final UUID kbPaymentMethodId, final PaymentMethodPlugin paymentMethodProps, final CallContext context) throws PaymentPluginApiException {
+		// see: https://www.bluepay.com/developers/api-documentation/java/transactions/store-payment-information/
+		
+		String accountId;
+		String secretKey;
+		Boolean test;
+		
+		
+		// read phase: a cache miss borrows a connection only for the duration of the query
+		try {
+			final BluePayCredentials credentials = credentialsCache.get(context.getTenantId());
+			accountId = credentials.getAccountId();
+			secretKey = credentials.getSecretKey();
+			test = credentials.isTest();
+			logService.log(LogService.LOG_INFO, "accountId: " + accountId);
+			logService.log(LogService.LOG_INFO, "secretKey: " + secretKey);
+			logService.log(LogService.LOG_INFO, "test: " + test);
+		} catch (SQLException e) {
+			logService.log(LogService.LOG_ERROR, "could not retrieve credentials: ", e);
+			throw new PaymentPluginApiException("could not retrieve credentials", e);
+		}
+		sample.stage(BluePayTimer.Stage.LOOKUP);
+		
+		String paymentType = null;
+		
+		String creditCardNumber = null;
+		String creditCardCVV2 = null;
+		String creditCardExpirationMonth = null;
+		String creditCardExpirationYear = null;
+		
+		String routingNumber = null;
+		String accountNumber = null;
+		
+		String donorIp = null;
+		
+		// get the client-passed properties including BluePay auth details and appropriate credit card or ACH details
+		for (PluginProperty property : paymentMethodProps.getProperties()) {
+			String key = property.getKey();
+			Object value = property.getValue();
+			logService.log(LogService.LOG_INFO, "key: " + key);
+			logService.log(LogService.LOG_INFO, "value: " + value);
+			if (Objects.equals(key, "paymentType")) {
+				logService.log(LogService.LOG_INFO, "setting paymentType");
+				paymentType = value.toString();
+			} else if (Objects.equals(key, "creditCardNumber")) {
+				creditCardNumber = value.toString();
+			} else if (Objects.equals(key, "creditCardCVV2")) {
+				creditCardCVV2 = value.toString();
+			} else if (Objects.equals(key, "creditCardExpirationMonth")) {
+				creditCardExpirationMonth = value.toString();
+			} else if (Objects.equals(key, "creditCardExpirationYear")) {
+				creditCardExpirationYear = value.toString();
+			} else if (Objects.equals(key, "routingNumber")) {
+				routingNumber = value.toString();
+			} else if (Objects.equals(key, "accountNumber")) {
+				accountNumber = value.toString();
+			} else if (Objects.equals(key, "donorIp")) {
+				if (value != null) {
+					donorIp = value.toString();
+				}
+			} else {
+				throw new PaymentPluginApiException("unrecognized plugin property: " + key, new IllegalArgumentException());
+			}
+		}
+		
+		// setup the BluePay payment object with the given auth details
+		if (accountId == null || accountId.isEmpty()) {
+			throw new PaymentPluginApiException("missing accountId", new IllegalArgumentException());
+		}
+		if (secretKey == null || accountId.isEmpty()) {
+			throw new PaymentPluginApiException("missing secretKey", new IllegalArgumentException());
+		}
+		final BluePayTransactionRequest.Builder auth = BluePayTransactionRequest.auth(new BluePayCredentials(accountId, secretKey, test), "0.00");
+		
+		// get the account object for the account ID
+		final Account account;
+		try {
+			account = killbillAPI.getAccountUserApi().getAccountById(kbAccountId, context);
+		} catch (AccountApiException e) {
+			logService.log(LogService.LOG_ERROR, "could not retrieve account: ", e);
+			throw new PaymentPluginApiException("could not retrieve account", e);
+		}
+		sample.stage(BluePayTimer.Stage.ACCOUNT);
+		
+		// setup the customer that will be associated with this token
+		String firstName = account.getName() == null ? null : account.getName().substring(0, account.getFirstNameLength());
+		String lastName = account.getName() == null ? null : account.getName().substring(account.getFirstNameLength());
+		logService.log(LogService.LOG_INFO, "firstName: " + firstName);
+		logService.log(LogService.LOG_INFO, "lastName: " + lastName);
+		auth.name(firstName, lastName)
+				.address(account.getAddress1(), account.getAddress2(), account.getCity(), account.getStateOrProvince(), account.getPostalCode(), account.getCountry())
+				.phone(account.getPhone())
+				.email(account.getEmail());
+		
+		// setup paymentType-specific payment details
+		String expiration = null;
+		if (paymentType == null || paymentType.isEmpty()) {
+			throw new PaymentPluginApiException("missing paymentType", new IllegalArgumentException());
+		}
+		if (Objects.equals(paymentType, "card")) { // credit card
+			if (creditCardNumber == null || creditCardNumber.isEmpty()) {
+				throw new PaymentPluginApiException("missing creditCardNumber", new IllegalArgumentException());
+			}
+			if (creditCardExpirationMonth == null || creditCardExpirationMonth.isEmpty()) {
+				throw new PaymentPluginApiException("missing creditCardExpirationMonth", new IllegalArgumentException());
+			}
+			if (creditCardExpirationYear == null || creditCardExpirationYear.isEmpty()) {
+				throw new PaymentPluginApiException("missing creditCardExpirationYear", new IllegalArgumentException());
+			}
+			if (creditCardCVV2 == null || creditCardCVV2.isEmpty()) {
+				throw new PaymentPluginApiException("missing creditCardCVV2", new IllegalArgumentException());
 			}
 			
-			@Override
-			public TransactionType getTransactionType() {
-				return null;
+			String twoDigitMonth = creditCardExpirationMonth;
+			if (twoDigitMonth.length() == 1) {
+				twoDigitMonth = "0" + twoDigitMonth;
+			}
+			expiration = twoDigitMonth + creditCardExpirationYear;
+			auth.creditCard(creditCardNumber, expiration, creditCardCVV2);
+		} else if (Objects.equals(paymentType, "ach")) { // ACH
+			if (routingNumber == null) {
+				throw new PaymentPluginApiException("missing routingNumber", new IllegalArgumentException());
+			}
+			if (accountNumber == null) {
+				throw new PaymentPluginApiException("missing accountNumber", new IllegalArgumentException());
 			}
 			
+			auth.ach(routingNumber, accountNumber, null, null);
+		} else {
+			throw new PaymentPluginApiException("unknown paymentType: " + paymentType, new IllegalArgumentException());
+		}
+		
+		auth.memo("authorization")
+				.orderId(kbPaymentMethodId.toString())
+				.customerIp(donorIp);
+		
+		// gateway phase: request the token without holding a database connection, within the merchant's bulkhead
+		final BluePayTransactionRequest request = auth.build();
+		final BluePayBulkhead bulkhead = bulkheads.get(request.getCredentials().getAccountId());
+		final boolean acquired = bulkhead.tryAcquire();
+		sample.stage(BluePayTimer.Stage.BULKHEAD);
+		if (!acquired) {
+			logService.log(LogService.LOG_WARNING, "not requesting token: too many payments in progress for merchant " + bulkhead.getName());
+			sample.setOutcome(BluePayTimer.Outcome.REJECTED);
+			throw new PaymentPluginApiException("too many payments in progress for merchant " + bulkhead.getName(), new BluePayRejectedException("bulkhead full"));
+		}
+		final BluePayResponse response;
+		try {
+			response = bluePay.process(request);
+		} catch (BluePayRejectedException e) {
+			logService.log(LogService.LOG_WARNING, "not requesting token: " + e.getMessage());
+			sample.setOutcome(BluePayTimer.Outcome.REJECTED);
+			throw new PaymentPluginApiException("could not request token", e);
+		} catch (Exception e) {
+			logService.log(LogService.LOG_ERROR, "could not request token: ", e);
+			throw new PaymentPluginApiException("could not request token", e);
+		} finally {
+			bulkhead.release();
+			sample.stage(BluePayTimer.Stage.GATEWAY);
+		}
+		
+		// make sure the request was successful
+		if (response.isSuccessful()) {
+			logService.log(LogService.LOG_INFO, "BluePay token request successful");
+			logService.log(LogService.LOG_INFO, "Transaction Status: " + response.getStatus());
+			logService.log(LogService.LOG_INFO, "Transaction ID: " + response.getTransID());
+			logService.log(LogService.LOG_INFO, "Transaction Message: " + response.getMessage());
+			logService.log(LogService.LOG_INFO, "AVS Result: " + response.getAVS());
+			logService.log(LogService.LOG_INFO, "CVV2: " + response.getCVV2());
+			logService.log(LogService.LOG_INFO, "Masked Payment Account: " + response.getMaskedPaymentAccount());
+			logService.log(LogService.LOG_INFO, "Card Type: " + response.getCardType());
+			logService.log(LogService.LOG_INFO, "Authorization Code: " + response.getAuthCode());
+		} else {
+			logService.log(LogService.LOG_ERROR, "BluePay token request unsuccessful: " + response.getMessage());
+			sample.setOutcome(response.isDeclined() ? BluePayTimer.Outcome.DECLINED : BluePayTimer.Outcome.ERROR);
+			throw new PaymentPluginApiException("BluePay token request unsuccessful", response.getMessage());
+		}
+		
+		final BluePayPaymentMethod paymentMethod = BluePayPaymentMethod.fromResponse(context.getTenantId(), kbAccountId, kbPaymentMethodId, expiration, response);
+		
+		// write phase: store the token and payment details on a fresh short-lived connection
+		try {
+			dao.savePaymentMethod(paymentMethod);
+			paymentMethodCache.put(paymentMethod);
+			paymentMethodCache.invalidateAccount(kbAccountId);
+		} catch (SQLException e) {
+			paymentMethodCache.invalidate(kbPaymentMethodId);
+			paymentMethodCache.invalidateAccount(kbAccountId);
+			logService.log(LogService.LOG_ERROR, "could not save transactionn ID: ", e);
+			throw new PaymentPluginApiException("could not save transaction ID", e);
+		} finally {
+			sample.stage(BluePayTimer.Stage.WRITE);
+		}
+		sample.setOutcome(BluePayTimer.Outcome.APPROVED);
+	}
+	
+	@Override
+	public void deletePaymentMethod(final UUID kbAccountId, final UUID kbPaymentMethodId, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
+		// forget the token first so no payment can use it once it's gone
+		paymentMethodCache.invalidate(kbPaymentMethodId);
+		paymentMethodCache.invalidateAccount(kbAccountId);
+		try {
+			dao.deletePaymentMethod(kbPaymentMethodId);
+		} catch (SQLException e) {
+			logService.log(LogService.LOG_ERROR, "could not delete payment method: ", e);
+			throw new PaymentPluginApiException("could not delete payment method", e);
+		}
+	}
+	
+	/**
+	 * Reads the payment method's token and card or bank account details, from the cache or the database.
+	 */
+	@Override
+	public PaymentMethodPlugin getPaymentMethodDetail(final UUID kbAccountId, final UUID kbPaymentMethodId, final Iterable<PluginProperty> properties, final TenantContext context) throws PaymentPluginApiException {
+		BluePayPaymentMethod paymentMethod = paymentMethodCache.get(kbPaymentMethodId);
+		if (paymentMethod == null) {
+			try {
+				paymentMethod = dao.getPaymentMethod(kbPaymentMethodId);
+			} catch (SQLException e) {
+				logService.log(LogService.LOG_ERROR, "could not retrieve payment method: ", e);
+				throw new PaymentPluginApiException("could not retrieve payment method", e);
+			}
+			if (paymentMethod == null) {
+				// not tokenized (yet): nothing to tell beyond the ID
+				return new BluePayPaymentMethod(null, context.getTenantId(), kbAccountId, kbPaymentMethodId, null, null, null, null, null, null);
+			}
+			paymentMethodCache.put(paymentMethod);
+		}
+		return paymentMethod;
+	}
+	
+	@Override
+	public void setDefaultPaymentMethod(final UUID kbAccountId, final UUID kbPaymentMethodId, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
+		// not implemented
+	}
+	
+	/**
+	 * Lists the account's payment methods from the cache or the database. A refresh re-validates every token with the
+	 * gateway first and stores what it returns.
+	 */
+	@Override
+	public List<PaymentMethodInfoPlugin> getPaymentMethods(final UUID kbAccountId, final boolean refreshFromGateway, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
+		List<BluePayPaymentMethod> paymentMethods = refreshFromGateway ? null : paymentMethodCache.getAccount(kbAccountId);
+		// read before the database, so a list that changes meanwhile is not cached
+		final long generation = paymentMethodCache.getAccountGeneration(kbAccountId);
+		if (refreshFromGateway) {
+			try {
+				final BluePayCredentials credentials = credentialsCache.get(context.getTenantId());
+				paymentMethods = Collections.unmodifiableList(paymentMethodRefresher.refresh(credentials, dao.getPaymentMethods(context.getTenantId(), kbAccountId)));
+			} catch (SQLException e) {
+				paymentMethodCache.invalidateAccount(kbAccountId);
+				logService.log(LogService.LOG_ERROR, "could not refresh payment methods: ", e);
+				throw new PaymentPluginApiException("could not refresh payment methods", e);
+			}
+			for (final BluePayPaymentMethod paymentMethod : paymentMethods) {
+				paymentMethodCache.put(paymentMethod);
+			}
+			paymentMethodCache.putAccount(kbAccountId, generation, paymentMethods);
+		} else if (paymentMethods == null) {
+			try {
+				paymentMethods = Collections.unmodifiableList(dao.getPaymentMethods(context.getTenantId(), kbAccountId));
+			} catch (SQLException e) {
+				logService.log(LogService.LOG_ERROR, "could not retrieve payment methods: ", e);
+				throw new PaymentPluginApiException("could not retrieve payment methods", e);
+			}
+			paymentMethodCache.putAccount(kbAccountId, generation, paymentMethods);
+		}
+		final List<PaymentMethodInfoPlugin> result = new ArrayList<PaymentMethodInfoPlugin>(paymentMethods.size());
+		for (final BluePayPaymentMethod paymentMethod : paymentMethods) {
+			result.add(new PluginPaymentMethodInfoPlugin(kbAccountId, paymentMethod.getKbPaymentMethodId(), false, paymentMethod.getExternalPaymentMethodId()));
+		}
+		return result;
+	}
+	
+	/**
+	 * Searches the stored payment methods by token, Kill Bill payment method ID, card type, last four digits or Kill
+	 * Bill account ID. The offset is the record ID a page starts after, as returned by the previous page.
+	 */
+	@Override
+	public Pagination<PaymentMethodPlugin> searchPaymentMethods(final String searchKey, final Long offset, final Long limit, final Iterable<PluginProperty> properties, final TenantContext context) throws PaymentPluginApiException {
+		return new BluePayPaymentMethodSearch(dao, context.getTenantId(), searchKey, offset == null ? 0 : offset, limit);
+	}
+	
+	/**
+	 * Replaces the account's stored payment methods with Kill Bill's, e.g. after a migration from another gateway.
+	 */
+	@Override
+	public void resetPaymentMethods(final UUID kbAccountId, final List<PaymentMethodInfoPlugin> paymentMethods, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
+		final List<UUID> deleted;
+		try {
+			deleted = dao.resetPaymentMethods(context.getTenantId(), kbAccountId, paymentMethods);
+		} catch (SQLException e) {
+			logService.log(LogService.LOG_ERROR, "could not reset payment methods: ", e);
+			throw new PaymentPluginApiException("could not reset payment methods", e);
+		} finally {
+			// whatever part of the reset went through, the cached details may be stale
+			paymentMethodCache.invalidateAccount(kbAccountId);
+			for (final PaymentMethodInfoPlugin paymentMethod : paymentMethods) {
+				paymentMethodCache.invalidate(paymentMethod.getPaymentMethodId());
+			}
+		}
+		for (final UUID kbPaymentMethodId : deleted) {
+			paymentMethodCache.invalidate(kbPaymentMethodId);
+		}
+		logService.log(LogService.LOG_INFO, "reset " + paymentMethods.size() + " payment methods of account " + kbAccountId + ", deleted " + deleted.size());
+	}
+	
+	@Override
+	public HostedPaymentPageFormDescriptor buildFormDescriptor(final UUID kbAccountId, final Iterable<PluginProperty> customFields, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
+		// not implemented
+		return new HostedPaymentPageFormDescriptor() {
 			@Override
-			public BigDecimal getAmount() {
-				return null;
+			public UUID getKbAccountId() {
+				return kbAccountId;
 			}
 			
 			@Override
-			public Currency getCurrency() {
+			public String getFormMethod() {
 				return null;
 			}
 			
 			@Override
-			public DateTime getCreatedDate() {
+			public String getFormUrl() {
 				return null;
 			}
 			
 			@Override
-			public DateTime getEffectiveDate() {
+			public List<PluginProperty> getFormFields() {
 				return null;
 			}
 			
 			@Override
-			public PaymentPluginStatus getStatus() {
-				return PaymentPluginStatus.CANCELED;
+			public List<PluginProperty> getProperties() {
+				return null;
 			}
-			
+		};
+	}
+	
+	@Override
+	public GatewayNotification processNotification(final String notification, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
+		// not implemented
+		return new GatewayNotification() {
 			@Override
-			public String getGatewayError() {
+			public UUID getKbPaymentId() {
 				return null;
 			}
 			
 			@Override
-			public String getGatewayErrorCode() {
-				return null;
+			public int getStatus() {
+				return 0;
 			}
 			
 			@Override
-			public String getFirstPaymentReferenceId() {
+			public String getEntity() {
 				return null;
 			}
 			
 			@Override
-			public String getSecondPaymentReferenceId() {
+			public Map<String, List<String>> getHeaders() {
 				return null;
 			}
 			
@@ -200,804 +612,393 @@ public class BluePayPaymentPluginApi implements PaymentPluginApi {
 	}
 	
 	/**
-	 * Called to actually make the payment.
-	 *
-	 * @param kbAccountId       - the account
-	 * @param kbPaymentId       - the paymentID
-	 * @param kbTransactionId   - the transactionId
-	 * @param kbPaymentMethodId - the paymentMethodId to make the payment with
-	 * @param amount            - the amount
-	 * @param currency          - the currency
-	 * @param properties        - properties specified by the client
-	 * @param context           - the context
-	 * @return
-	 * @throws PaymentPluginApiException
+	 * Charges a stored payment method: a SALE for a purchase, an AUTH for an authorization.
 	 */
-	@Override
-	public PaymentTransactionInfoPlugin purchasePayment(final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId, final BigDecimal amount, final Currency currency, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
+	private PaymentTransactionInfoPlugin chargePaymentMethod(final TransactionType transactionType, final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId, final BigDecimal amount, final Currency currency, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
+		final BluePayTimer.Sample sample = timers.get(getApiName(transactionType)).start();
+		try {
+			final PaymentTransactionInfoPlugin transaction = chargePaymentMethod(sample, transactionType, kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, amount, currency, properties, context);
+			sample.setOutcome(getOutcome(transaction));
+			return transaction;
+		} finally {
+			sample.finish();
+		}
+	}
+	
+	private PaymentTransactionInfoPlugin chargePaymentMethod(final BluePayTimer.Sample sample, final TransactionType transactionType, final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId, final BigDecimal amount, final Currency currency, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
 		// see: https://www.bluepay.com/developers/api-documentation/java/transactions/how-use-token/
 		
 		String accountId;
 		String secretKey;
 		Boolean test;
 		
-		try (Connection connection = dataSource.getDataSource().getConnection()) {
-			// TODO switch to NamedParameterStatement: http://www.javaworld.com/article/2077706/core-java/named-parameters-for-preparedstatement.html
-			String credentialsQuery = "SELECT `accountId`, `secretKey`, `test` FROM `bluePay_credentials` WHERE `tenantId` = ?";
-			try (PreparedStatement statement = connection.prepareStatement(credentialsQuery)) {
-				statement.setString(1, context.getTenantId().toString());
-				ResultSet resultSet = statement.executeQuery();
-				if (!resultSet.next()) {
-					throw new SQLException("no results");
-				}
-				accountId = resultSet.getString("accountId");
-				secretKey = resultSet.getString("secretKey");
-				test = resultSet.getBoolean("test");
+		// read phase: both lookups are usually cached; otherwise fetch whatever is missing in one round-trip, on a
+		// connection that goes back to the pool before the gateway is called
+		BluePayCredentials credentials = credentialsCache.getIfPresent(context.getTenantId());
+		String transactionId = paymentMethodCache.getTransactionId(kbPaymentMethodId);
+		if (credentials == null || transactionId == null) {
+			final BluePayPurchaseRecord record;
+			try {
+				record = dao.getPurchaseRecord(context.getTenantId(), kbPaymentMethodId);
 			} catch (SQLException e) {
 				logService.log(LogService.LOG_ERROR, "could not retrieve credentials: ", e);
 				throw new PaymentPluginApiException("could not retrieve credentials", e);
 			}
-			
-			// setup the payment object with auth details and testing mode
-			if (accountId == null) {
-				throw new PaymentPluginApiException("missing accountId", new IllegalArgumentException());
-			}
-			if (secretKey == null) {
-				throw new PaymentPluginApiException("missing secretKey", new IllegalArgumentException());
-			}
-			final BluePay payment = new BluePay(accountId, secretKey, test ? "TEST" : "LIVE");
-			
-			// get the account associated with the ID
-			final Account account;
-			try {
-				account = killbillAPI.getAccountUserApi().getAccountById(kbAccountId, context);
-			} catch (AccountApiException e) {
-				throw new RuntimeException(e);
-			}
-			
-			String transactionId;
-			String donorIp = null;
-			
-			String transactionIdQuery = "SELECT `transactionId` FROM `bluePay_paymentMethods` WHERE `paymentMethodId` = ?";
-			try (PreparedStatement statement = connection.prepareStatement(transactionIdQuery)) {
-				statement.setString(1, kbPaymentMethodId.toString());
-				ResultSet resultSet = statement.executeQuery();
-				if (!resultSet.next()) {
-					throw new SQLException("no results");
-				}
-				transactionId = resultSet.getString("transactionId");
-			} catch (SQLException e) {
-				logService.log(LogService.LOG_ERROR, "could not retrieve transaction ID: ", e);
-				throw new PaymentPluginApiException("could not retrieve transaction ID", e);
+			credentials = record.getCredentials();
+			credentialsCache.put(context.getTenantId(), credentials);
+			transactionId = record.getTransactionId();
+			if (transactionId == null) {
+				logService.log(LogService.LOG_ERROR, "could not retrieve transaction ID: no results");
+				throw new PaymentPluginApiException("could not retrieve transaction ID", new SQLException("no results"));
 			}
-			
-			String description = "Kill Bill payment.";
-			for (PluginProperty property : properties) {
-				Object key = property.getKey();
-				Object value = property.getValue();
-				if (Objects.equals(key, "description")) {
-					description = value == null ? "" : value.toString();
-				} else if (Objects.equals(key, "donorIp")) {
-					if (value != null) {
-						donorIp = value.toString();
-					}
+			paymentMethodCache.put(record.getPaymentMethod());
+		}
+		sample.stage(BluePayTimer.Stage.LOOKUP);
+		accountId = credentials.getAccountId();
+		secretKey = credentials.getSecretKey();
+		test = credentials.isTest();
+		
+		// setup the payment object with auth details and testing mode
+		if (accountId == null) {
+			throw new PaymentPluginApiException("missing accountId", new IllegalArgumentException());
+		}
+		if (secretKey == null) {
+			throw new PaymentPluginApiException("missing secretKey", new IllegalArgumentException());
+		}
+		// get the account associated with the ID
+		final Account account;
+		try {
+			account = killbillAPI.getAccountUserApi().getAccountById(kbAccountId, context);
+		} catch (AccountApiException e) {
+			throw new RuntimeException(e);
+		}
+		sample.stage(BluePayTimer.Stage.ACCOUNT);
+		
+		String donorIp = null;
+		
+		String description = "Kill Bill payment.";
+		for (PluginProperty property : properties) {
+			Object key = property.getKey();
+			Object value = property.getValue();
+			if (Objects.equals(key, "description")) {
+				description = value == null ? "" : value.toString();
+			} else if (Objects.equals(key, "donorIp")) {
+				if (value != null) {
+					donorIp = value.toString();
 				}
 			}
-			payment.setMemo(description);
-			
-			payment.setOrderID(kbTransactionId.toString());
-			
-			// setup the sale including amount and the transactionId
-			HashMap<String, String> sale = new HashMap<>();
-			sale.put("amount", amount.toString());
-			sale.put("transactionID", transactionId);
-			payment.sale(sale);
-			
-			payment.CUSTOMER_IP = donorIp;
-			
-			// do the payment
-			try {
-				payment.process();
-			} catch (Exception e) {
-				logService.log(LogService.LOG_ERROR, "could not make payment: ", e);
-			}
-			
-			// make sure the request was successful
-			if (payment.isSuccessful()) {
-				logService.log(LogService.LOG_INFO, "BluePay payment successful");
-				logService.log(LogService.LOG_INFO, "Transaction Status: " + payment.getStatus());
-				logService.log(LogService.LOG_INFO, "Transaction ID: " + payment.getTransID());
-				logService.log(LogService.LOG_INFO, "Transaction Message: " + payment.getMessage());
-				logService.log(LogService.LOG_INFO, "AVS Result: " + payment.getAVS());
-				logService.log(LogService.LOG_INFO, "CVV2: " + payment.getCVV2());
-				logService.log(LogService.LOG_INFO, "Masked Payment Account: " + payment.getMaskedPaymentAccount());
-				logService.log(LogService.LOG_INFO, "Card Type: " + payment.getCardType());
-				logService.log(LogService.LOG_INFO, "Authorization Code: " + payment.getAuthCode());
-			} else {
-				logService.log(LogService.LOG_INFO, "BluePay payment successful");
-				logService.log(LogService.LOG_INFO, "Transaction Status: " + payment.getStatus());
-				logService.log(LogService.LOG_INFO, "Transaction ID: " + payment.getTransID());
-				logService.log(LogService.LOG_INFO, "Transaction Message: " + payment.getMessage());
-				logService.log(LogService.LOG_INFO, "AVS Result: " + payment.getAVS());
-				logService.log(LogService.LOG_INFO, "CVV2: " + payment.getCVV2());
-				logService.log(LogService.LOG_INFO, "Masked Payment Account: " + payment.getMaskedPaymentAccount());
-				logService.log(LogService.LOG_INFO, "Card Type: " + payment.getCardType());
-				logService.log(LogService.LOG_INFO, "Authorization Code: " + payment.getAuthCode());
-			}
-			
-			// send response
-			return new PaymentTransactionInfoPlugin() {
-				@Override
-				public UUID getKbPaymentId() {
-					return kbPaymentId;
-				}
-				
-				@Override
-				public UUID getKbTransactionPaymentId() {
-					return kbTransactionId;
-				}
-				
-				@Override
-				public TransactionType getTransactionType() {
-					return TransactionType.PURCHASE;
-				}
-				
-				@Override
-				public BigDecimal getAmount() {
-					return amount;
-				}
-				
-				@Override
-				public Currency getCurrency() {
-					return currency;
-				}
-				
-				@Override
-				public DateTime getCreatedDate() {
-					return DateTime.now();
-				}
-				
-				@Override
-				public DateTime getEffectiveDate() {
-					return DateTime.now();
-				}
-				
-				@Override
-				public PaymentPluginStatus getStatus() {
-					return payment.isSuccessful() ? PaymentPluginStatus.PROCESSED : PaymentPluginStatus.ERROR;
-				}
-				
-				@Override
-				public String getGatewayError() {
-					return payment.getMessage();
-				}
-				
-				@Override
-				public String getGatewayErrorCode() {
-					return payment.getStatus();
-				}
-				
-				@Override
-				public String getFirstPaymentReferenceId() {
-					return null;
-				}
-				
-				@Override
-				public String getSecondPaymentReferenceId() {
-					return null;
-				}
-				
-				@Override
-				public List<PluginProperty> getProperties() {
-					return null;
-				}
-			};
-		} catch (SQLException e) {
-			logService.log(LogService.LOG_ERROR, "could not retrieve credentials: ", e);
-			throw new PaymentPluginApiException("could not retrieve credentials", e);
 		}
+		// setup the transaction including amount and the transactionId
+		final BluePayTransactionRequest.Builder request = transactionType == TransactionType.AUTHORIZE
+				? BluePayTransactionRequest.auth(credentials, amount.toString())
+				: BluePayTransactionRequest.sale(credentials, amount.toString());
+		request.transactionId(transactionId)
+				.memo(description)
+				.orderId(kbTransactionId.toString())
+				.customerIp(donorIp);
+		
+		return processTransaction(sample, transactionType, request.build(), kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, amount, currency, context);
 	}
 	
-	@Override
-	public PaymentTransactionInfoPlugin voidPayment(final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
-		// not implemented
-		return new PaymentTransactionInfoPlugin() {
-			@Override
-			public UUID getKbPaymentId() {
-				return kbPaymentId;
-			}
-			
-			@Override
-			public UUID getKbTransactionPaymentId() {
-				return kbTransactionId;
-			}
-			
-			@Override
-			public TransactionType getTransactionType() {
-				return null;
-			}
-			
-			@Override
-			public BigDecimal getAmount() {
-				return null;
-			}
-			
-			@Override
-			public Currency getCurrency() {
-				return null;
-			}
-			
-			@Override
-			public DateTime getCreatedDate() {
-				return null;
-			}
-			
-			@Override
-			public DateTime getEffectiveDate() {
-				return null;
-			}
-			
-			@Override
-			public PaymentPluginStatus getStatus() {
-				return PaymentPluginStatus.CANCELED;
-			}
-			
-			@Override
-			public String getGatewayError() {
-				return null;
-			}
-			
-			@Override
-			public String getGatewayErrorCode() {
-				return null;
-			}
-			
-			@Override
-			public String getFirstPaymentReferenceId() {
-				return null;
-			}
-			
-			@Override
-			public String getSecondPaymentReferenceId() {
-				return null;
-			}
-			
-			@Override
-			public List<PluginProperty> getProperties() {
-				return null;
-			}
-		};
+	/**
+	 * Captures, refunds or voids the BluePay transaction journaled for an earlier step of the payment.
+	 */
+	private PaymentTransactionInfoPlugin followUpPayment(final TransactionType transactionType, final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId, final BigDecimal amount, final Currency currency, final CallContext context) throws PaymentPluginApiException {
+		final BluePayTimer.Sample sample = timers.get(getApiName(transactionType)).start();
+		try {
+			final PaymentTransactionInfoPlugin transaction = followUpPayment(sample, transactionType, kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, amount, currency, context);
+			sample.setOutcome(getOutcome(transaction));
+			return transaction;
+		} finally {
+			sample.finish();
+		}
 	}
 	
-	@Override
-	public PaymentTransactionInfoPlugin creditPayment(final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId, final BigDecimal amount, final Currency currency, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
-		// not implemented
-		return new PaymentTransactionInfoPlugin() {
-			@Override
-			public UUID getKbPaymentId() {
-				return kbPaymentId;
-			}
-			
-			@Override
-			public UUID getKbTransactionPaymentId() {
-				return kbTransactionId;
-			}
-			
-			@Override
-			public TransactionType getTransactionType() {
-				return null;
-			}
-			
-			@Override
-			public BigDecimal getAmount() {
-				return null;
-			}
-			
-			@Override
-			public Currency getCurrency() {
-				return null;
-			}
-			
-			@Override
-			public DateTime getCreatedDate() {
-				return null;
-			}
-			
-			@Override
-			public DateTime getEffectiveDate() {
-				return null;
-			}
-			
-			@Override
-			public PaymentPluginStatus getStatus() {
-				return PaymentPluginStatus.CANCELED;
-			}
-			
-			@Override
-			public String getGatewayError() {
-				return null;
-			}
-			
-			@Override
-			public String getGatewayErrorCode() {
-				return null;
-			}
-			
-			@Override
-			public String getFirstPaymentReferenceId() {
-				return null;
-			}
-			
-			@Override
-			public String getSecondPaymentReferenceId() {
-				return null;
-			}
-			
-			@Override
-			public List<PluginProperty> getProperties() {
-				return null;
-			}
-		};
+	private PaymentTransactionInfoPlugin followUpPayment(final BluePayTimer.Sample sample, final TransactionType transactionType, final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId, final BigDecimal amount, final Currency currency, final CallContext context) throws PaymentPluginApiException {
+		// read phase: the credentials and the transaction to act on, each on a short-lived connection
+		final BluePayCredentials credentials;
+		final BluePayTransaction original;
+		try {
+			credentials = credentialsCache.get(context.getTenantId());
+			original = findOriginalTransaction(dao.getTransactions(context.getTenantId(), kbPaymentId), transactionType);
+		} catch (SQLException e) {
+			logService.log(LogService.LOG_ERROR, "could not retrieve transaction: ", e);
+			throw new PaymentPluginApiException("could not retrieve transaction", e);
+		}
+		if (original == null) {
+			logService.log(LogService.LOG_ERROR, "no BluePay transaction to " + transactionType + " for payment " + kbPaymentId);
+			throw new PaymentPluginApiException("no BluePay transaction to " + transactionType + " for payment " + kbPaymentId, new IllegalStateException());
+		}
+		sample.stage(BluePayTimer.Stage.LOOKUP);
+		
+		final String amountToProcess = amount == null ? "" : amount.toString();
+		final BluePayTransactionRequest.Builder request;
+		switch (transactionType) {
+			case CAPTURE:
+				request = BluePayTransactionRequest.capture(credentials, original.getBluePayTransactionId(), amountToProcess);
+				break;
+			case REFUND:
+				request = BluePayTransactionRequest.refund(credentials, original.getBluePayTransactionId(), amountToProcess);
+				break;
+			default:
+				request = BluePayTransactionRequest.voidTransaction(credentials, original.getBluePayTransactionId());
+				break;
+		}
+		request.orderId(kbTransactionId.toString());
+		
+		return processTransaction(sample, transactionType, request.build(), kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, amount, currency, context);
 	}
 	
-	@Override
-	public PaymentTransactionInfoPlugin refundPayment(final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId, final BigDecimal amount, final Currency currency, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
-		// not implemented
-		return new PaymentTransactionInfoPlugin() {
-			@Override
-			public UUID getKbPaymentId() {
-				return kbPaymentId;
-			}
-			
-			@Override
-			public UUID getKbTransactionPaymentId() {
-				return kbTransactionId;
-			}
-			
-			@Override
-			public TransactionType getTransactionType() {
-				return null;
-			}
-			
-			@Override
-			public BigDecimal getAmount() {
-				return null;
-			}
-			
-			@Override
-			public Currency getCurrency() {
-				return null;
-			}
-			
-			@Override
-			public DateTime getCreatedDate() {
-				return null;
-			}
-			
-			@Override
-			public DateTime getEffectiveDate() {
-				return null;
-			}
-			
-			@Override
-			public PaymentPluginStatus getStatus() {
-				return PaymentPluginStatus.CANCELED;
-			}
-			
-			@Override
-			public String getGatewayError() {
-				return null;
-			}
-			
-			@Override
-			public String getGatewayErrorCode() {
-				return null;
-			}
-			
-			@Override
-			public String getFirstPaymentReferenceId() {
-				return null;
-			}
-			
-			@Override
-			public String getSecondPaymentReferenceId() {
-				return null;
-			}
-			
-			@Override
-			public List<PluginProperty> getProperties() {
-				return null;
+	/**
+	 * @return the latest approved transaction a capture (an authorization), refund (a purchase or capture) or void
+	 * (any of them) applies to; null if there is none
+	 */
+	private static BluePayTransaction findOriginalTransaction(final List<BluePayTransaction> transactions, final TransactionType transactionType) {
+		for (int i = transactions.size() - 1; i >= 0; i--) {
+			final BluePayTransaction transaction = transactions.get(i);
+			if (transaction.getStatus() != PaymentPluginStatus.PROCESSED || transaction.getBluePayTransactionId() == null) {
+				continue;
+			}
+			final TransactionType type = transaction.getTransactionType();
+			final boolean applies;
+			switch (transactionType) {
+				case CAPTURE:
+					applies = type == TransactionType.AUTHORIZE;
+					break;
+				case REFUND:
+					applies = type == TransactionType.PURCHASE || type == TransactionType.CAPTURE;
+					break;
+				default:
+					applies = type == TransactionType.AUTHORIZE || type == TransactionType.PURCHASE || type == TransactionType.CAPTURE;
+					break;
+			}
+			if (applies) {
+				return transaction;
 			}
-		};
+		}
+		return null;
 	}
 	
-	@Override
-	public List<PaymentTransactionInfoPlugin> getPaymentInfo(final UUID kbAccountId, final UUID kbPaymentId, final Iterable<PluginProperty> properties, final TenantContext context) throws PaymentPluginApiException {
-		// not implemented
-		return Collections.emptyList();
+	/**
+	 * Sends a transaction to the gateway and journals the answer. Kill Bill may retry a transaction with the same ID:
+	 * it is sent at most once, later attempts being answered from the journal, and concurrent attempts on this node
+	 * share the first one's answer.
+	 */
+	private PaymentTransactionInfoPlugin processTransaction(final BluePayTimer.Sample sample, final TransactionType transactionType, final BluePayTransactionRequest request, final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId, final BigDecimal amount, final Currency currency, final CallContext context) throws PaymentPluginApiException {
+		final SettableFuture<BluePayTransaction> flight = SettableFuture.create();
+		final SettableFuture<BluePayTransaction> leader = inFlight.putIfAbsent(kbTransactionId, flight);
+		if (leader != null) {
+			logService.log(LogService.LOG_INFO, "transaction " + kbTransactionId + " is already being processed, waiting for its answer");
+			return awaitTransaction(kbTransactionId, leader);
+		}
+		try {
+			final BluePayTransaction transaction = sendTransaction(sample, transactionType, request, kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, amount, currency, context);
+			flight.set(transaction);
+			return transaction;
+		} catch (PaymentPluginApiException | RuntimeException | Error e) {
+			flight.setException(e);
+			throw e;
+		} finally {
+			inFlight.remove(kbTransactionId, flight);
+		}
 	}
 	
-	@Override
-	public Pagination<PaymentTransactionInfoPlugin> searchPayments(final String searchKey, final Long offset, final Long limit, final Iterable<PluginProperty> properties, final TenantContext context) throws PaymentPluginApiException {
-		// not implemented
-		return new Pagination<PaymentTransactionInfoPlugin>() {
-			@Override
-			public Long getCurrentOffset() {
-				return null;
-			}
-			
-			@Override
-			public Long getNextOffset() {
-				return null;
-			}
-			
-			@Override
-			public Long getMaxNbRecords() {
-				return null;
-			}
-			
-			@Override
-			public Long getTotalNbRecords() {
-				return null;
-			}
-			
-			@Override
-			public Iterator<PaymentTransactionInfoPlugin> iterator() {
-				return null;
-			}
-		};
+	private BluePayTransaction awaitTransaction(final UUID kbTransactionId, final SettableFuture<BluePayTransaction> leader) throws PaymentPluginApiException {
+		try {
+			return leader.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new PaymentPluginApiException("interrupted while waiting for transaction " + kbTransactionId, e);
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof PaymentPluginApiException) {
+				throw (PaymentPluginApiException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new PaymentPluginApiException("could not process transaction " + kbTransactionId, cause);
+		}
 	}
 	
-	/**
-	 * Create a payment method with the given details.
-	 *
-	 * @param kbAccountId        - the account
-	 * @param kbPaymentMethodId  - the paymentMethodId
-	 * @param paymentMethodProps - the properties
-	 * @param setDefault         - if this should be the default
-	 * @param properties         - client-specified properties
-	 * @param context            - the context
-	 * @throws PaymentPluginApiException
-	 */
-	@Override
-	public void addPaymentMethod(final UUID kbAccountId, final UUID kbPaymentMethodId, final PaymentMethodPlugin paymentMethodProps, final boolean setDefault, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
-		// see: https://www.bluepay.com/developers/api-documentation/java/transactions/store-payment-information/
+	private BluePayTransaction sendTransaction(final BluePayTimer.Sample sample, final TransactionType transactionType, final BluePayTransactionRequest request, final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId, final BigDecimal amount, final Currency currency, final CallContext context) throws PaymentPluginApiException {
+		// claim phase: journal the transaction as PENDING before it leaves, unless an earlier attempt already did. An
+		// earlier attempt whose outcome is unknown is reconciled first, and claimed again if it never reached BluePay.
+		final BluePayTransaction pending = BluePayTransaction.pending(context.getTenantId(), kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, transactionType, amount, currency);
+		BluePayTransaction journaled = claimTransaction(pending);
+		if (journaled != null && isUnsettled(journaled)) {
+			journaled = reconcileTransaction(journaled);
+			if (journaled.getStatus() == PaymentPluginStatus.CANCELED) {
+				journaled = claimTransaction(pending);
+			}
+		}
+		sample.stage(BluePayTimer.Stage.CLAIM);
+		if (journaled != null) {
+			logService.log(LogService.LOG_INFO, "transaction " + kbTransactionId + " was already sent to BluePay, answering " + journaled.getStatus() + " from the journal");
+			return journaled;
+		}
 		
-		String accountId;
-		String secretKey;
-		Boolean test;
+		// gateway phase: no database connection is held while waiting for BluePay, and the merchant's bulkhead bounds
+		// how many threads wait with this one
+		final BluePayBulkhead bulkhead = bulkheads.get(request.getCredentials().getAccountId());
+		final boolean acquired = bulkhead.tryAcquire();
+		sample.stage(BluePayTimer.Stage.BULKHEAD);
+		if (!acquired) {
+			final String message = "too many payments in progress for merchant " + bulkhead.getName();
+			logService.log(LogService.LOG_WARNING, "not sending " + transactionType + " " + kbTransactionId + ": " + message);
+			return journalTransaction(sample, BluePayTransaction.canceled(context.getTenantId(), kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, transactionType, amount, currency, message));
+		}
+		final BluePayResponse response;
+		try {
+			response = bluePay.process(request);
+		} catch (BluePayRejectedException e) {
+			// the breaker, the merchant's limits or the HTTP client refused to send it: it never left, so it may be retried
+			logService.log(LogService.LOG_WARNING, "not sending " + transactionType + " " + kbTransactionId + ": " + e.getMessage());
+			return journalTransaction(sample, BluePayTransaction.canceled(context.getTenantId(), kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, transactionType, amount, currency, e.getMessage()));
+		} catch (Exception e) {
+			// the request may have reached BluePay before the connection failed or timed out: leave it to be reconciled
+			logService.log(LogService.LOG_ERROR, "could not process " + transactionType + ", its outcome is unknown: ", e);
+			return journalTransaction(sample, BluePayTransaction.undefined(context.getTenantId(), kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, transactionType, amount, currency, e.getMessage()));
+		} finally {
+			bulkhead.release();
+			sample.stage(BluePayTimer.Stage.GATEWAY);
+		}
 		
-		try (Connection connection = dataSource.getDataSource().getConnection()) {
-			
-			String credentialsQuery = "SELECT `accountId`, `secretKey`, `test` FROM `bluePay_credentials` WHERE `tenantId` = ?";
-			try (PreparedStatement statement = connection.prepareStatement(credentialsQuery)) {
-				statement.setString(1, context.getTenantId().toString());
-				ResultSet resultSet = statement.executeQuery();
-				if (!resultSet.next()) {
-					throw new SQLException("no results");
-				}
-				accountId = resultSet.getString("accountId");
-				secretKey = resultSet.getString("secretKey");
-				test = resultSet.getBoolean("test");
-				logService.log(LogService.LOG_INFO, "accountId: " + accountId);
-				logService.log(LogService.LOG_INFO, "secretKey: " + secretKey);
-				logService.log(LogService.LOG_INFO, "test: " + test);
-			} catch (SQLException e) {
-				logService.log(LogService.LOG_ERROR, "could not retrieve credentials: ", e);
-				throw new PaymentPluginApiException("could not retrieve credentials", e);
-			}
-			
-			String paymentType = null;
-			
-			String creditCardNumber = null;
-			String creditCardCVV2 = null;
-			String creditCardExpirationMonth = null;
-			String creditCardExpirationYear = null;
-			
-			String routingNumber = null;
-			String accountNumber = null;
-			
-			String donorIp = null;
-			
-			// get the client-passed properties including BluePay auth details and appropriate credit card or ACH details
-			for (PluginProperty property : paymentMethodProps.getProperties()) {
-				String key = property.getKey();
-				Object value = property.getValue();
-				logService.log(LogService.LOG_INFO, "key: " + key);
-				logService.log(LogService.LOG_INFO, "value: " + value);
-				if (Objects.equals(key, "paymentType")) {
-					logService.log(LogService.LOG_INFO, "setting paymentType");
-					paymentType = value.toString();
-				} else if (Objects.equals(key, "creditCardNumber")) {
-					creditCardNumber = value.toString();
-				} else if (Objects.equals(key, "creditCardCVV2")) {
-					creditCardCVV2 = value.toString();
-				} else if (Objects.equals(key, "creditCardExpirationMonth")) {
-					creditCardExpirationMonth = value.toString();
-				} else if (Objects.equals(key, "creditCardExpirationYear")) {
-					creditCardExpirationYear = value.toString();
-				} else if (Objects.equals(key, "routingNumber")) {
-					routingNumber = value.toString();
-				} else if (Objects.equals(key, "accountNumber")) {
-					accountNumber = value.toString();
-				} else if (Objects.equals(key, "donorIp")) {
-					if (value != null) {
-						donorIp = value.toString();
-					}
-				} else {
-					throw new PaymentPluginApiException("unrecognized plugin property: " + key, new IllegalArgumentException());
-				}
-			}
-			
-			// setup the BluePay payment object with the given auth details
-			if (accountId == null || accountId.isEmpty()) {
-				throw new PaymentPluginApiException("missing accountId", new IllegalArgumentException());
-			}
-			if (secretKey == null || accountId.isEmpty()) {
-				throw new PaymentPluginApiException("missing secretKey", new IllegalArgumentException());
-			}
-			BluePay bluePay = new BluePay(accountId, secretKey, test ? "TEST" : "LIVE");
-			
-			// get the account object for the account ID
-			final Account account;
-			try {
-				account = killbillAPI.getAccountUserApi().getAccountById(kbAccountId, context);
-			} catch (AccountApiException e) {
-				logService.log(LogService.LOG_ERROR, "could not retrieve account: ", e);
-				throw new PaymentPluginApiException("could not retrieve account", e);
-			}
-			
-			// setup the customer that will be associated with this token
-			HashMap<String, String> customer = new HashMap<>();
-			String firstName = account.getName() == null ? null : account.getName().substring(0, account.getFirstNameLength());
-			String lastName = account.getName() == null ? null : account.getName().substring(account.getFirstNameLength());
-			logService.log(LogService.LOG_INFO, "firstName: " + firstName);
-			logService.log(LogService.LOG_INFO, "lastName: " + lastName);
-			customer.put("firstName", firstName);
-			customer.put("lastName", lastName);
-			customer.put("address1", account.getAddress1());
-			customer.put("address2", account.getAddress2());
-			customer.put("city", account.getCity());
-			customer.put("state", account.getStateOrProvince());
-			customer.put("zip", account.getPostalCode());
-			customer.put("country", account.getCountry());
-			customer.put("phone", account.getPhone());
-			customer.put("email", account.getEmail());
-			bluePay.setCustomerInformation(customer);
-			
-			// setup paymentType-specific payment details
-			if (paymentType == null || paymentType.isEmpty()) {
-				throw new PaymentPluginApiException("missing paymentType", new IllegalArgumentException());
-			}
-			if (Objects.equals(paymentType, "card")) { // credit card
-				if (creditCardNumber == null || creditCardNumber.isEmpty()) {
-					throw new PaymentPluginApiException("missing creditCardNumber", new IllegalArgumentException());
-				}
-				if (creditCardExpirationMonth == null || creditCardExpirationMonth.isEmpty()) {
-					throw new PaymentPluginApiException("missing creditCardExpirationMonth", new IllegalArgumentException());
-				}
-				if (creditCardExpirationYear == null || creditCardExpirationYear.isEmpty()) {
-					throw new PaymentPluginApiException("missing creditCardExpirationYear", new IllegalArgumentException());
-				}
-				if (creditCardCVV2 == null || creditCardCVV2.isEmpty()) {
-					throw new PaymentPluginApiException("missing creditCardCVV2", new IllegalArgumentException());
-				}
-				
-				HashMap<String, String> card = new HashMap<>();
-				card.put("cardNumber", creditCardNumber);
-				String twoDigitMonth = creditCardExpirationMonth;
-				if (twoDigitMonth.length() == 1) {
-					twoDigitMonth = "0" + twoDigitMonth;
-				}
-				card.put("expirationDate", twoDigitMonth + creditCardExpirationYear);
-				card.put("cvv2", creditCardCVV2);
-				bluePay.setCCInformation(card);
-			} else if (Objects.equals(paymentType, "ach")) { // ACH
-				if (routingNumber == null) {
-					throw new PaymentPluginApiException("missing routingNumber", new IllegalArgumentException());
-				}
-				if (accountNumber == null) {
-					throw new PaymentPluginApiException("missing accountNumber", new IllegalArgumentException());
-				}
-				
-				HashMap<String, String> ach = new HashMap<>();
-				ach.put("routingNum", routingNumber);
-				ach.put("accountNum", accountNumber);
-				bluePay.setACHInformation(ach);
-			} else {
-				throw new PaymentPluginApiException("unknown paymentType: " + paymentType, new IllegalArgumentException());
-			}
-			
-			bluePay.setMemo("authorization");
-			
-			bluePay.setOrderID(kbPaymentMethodId.toString());
-			
-			HashMap<String, String> auth = new HashMap<>();
-			auth.put("amount", "0.00");
-			bluePay.auth(auth);
-			
-			bluePay.CUSTOMER_IP = donorIp;
-			
-			// request the token
-			try {
-				bluePay.process();
-			} catch (Exception e) {
-				logService.log(LogService.LOG_ERROR, "could not request token: ", e);
-				throw new PaymentPluginApiException("could not request token", e);
-			}
-			
-			// make sure the request was successful
-			if (bluePay.isSuccessful()) {
-				logService.log(LogService.LOG_INFO, "BluePay token request successful");
-				logService.log(LogService.LOG_INFO, "Transaction Status: " + bluePay.getStatus());
-				logService.log(LogService.LOG_INFO, "Transaction ID: " + bluePay.getTransID());
-				logService.log(LogService.LOG_INFO, "Transaction Message: " + bluePay.getMessage());
-				logService.log(LogService.LOG_INFO, "AVS Result: " + bluePay.getAVS());
-				logService.log(LogService.LOG_INFO, "CVV2: " + bluePay.getCVV2());
-				logService.log(LogService.LOG_INFO, "Masked Payment Account: " + bluePay.getMaskedPaymentAccount());
-				logService.log(LogService.LOG_INFO, "Card Type: " + bluePay.getCardType());
-				logService.log(LogService.LOG_INFO, "Authorization Code: " + bluePay.getAuthCode());
-			} else {
-				logService.log(LogService.LOG_ERROR, "BluePay token request unsuccessful: " + bluePay.getMessage());
-				throw new PaymentPluginApiException("BluePay token request unsuccessful", bluePay.getMessage());
-			}
-			
-			String transactionId = bluePay.getTransID();
-			
-			String transactionIdQuery = "INSERT INTO `bluePay_paymentMethods` (`paymentMethodId`, `transactionId`) VALUES (?, ?) ON DUPLICATE KEY UPDATE `paymentMethodId` = ?, `transactionId` = ?";
-			try (PreparedStatement statement = connection.prepareStatement(transactionIdQuery)) {
-				statement.setString(1, kbPaymentMethodId.toString());
-				statement.setString(2, transactionId);
-				statement.setString(3, kbPaymentMethodId.toString());
-				statement.setString(4, transactionId);
-				statement.executeUpdate();
-			} catch (SQLException e) {
-				logService.log(LogService.LOG_ERROR, "could not save transactionn ID: ", e);
-				throw new PaymentPluginApiException("could not save transaction ID", e);
-			}
-		} catch (SQLException e) {
-			logService.log(LogService.LOG_ERROR, "could not retrieve credentials: ", e);
-			throw new PaymentPluginApiException("could not retrieve credentials", e);
+		if (response.isSuccessful()) {
+			logService.log(LogService.LOG_INFO, "BluePay " + transactionType + " successful");
+		} else {
+			logService.log(LogService.LOG_INFO, "BluePay " + transactionType + " unsuccessful");
 		}
+		logService.log(LogService.LOG_INFO, "Transaction Status: " + response.getStatus());
+		logService.log(LogService.LOG_INFO, "Transaction ID: " + response.getTransID());
+		logService.log(LogService.LOG_INFO, "Transaction Message: " + response.getMessage());
+		logService.log(LogService.LOG_INFO, "AVS Result: " + response.getAVS());
+		logService.log(LogService.LOG_INFO, "CVV2: " + response.getCVV2());
+		logService.log(LogService.LOG_INFO, "Masked Payment Account: " + response.getMaskedPaymentAccount());
+		logService.log(LogService.LOG_INFO, "Card Type: " + response.getCardType());
+		logService.log(LogService.LOG_INFO, "Authorization Code: " + response.getAuthCode());
+		
+		return journalTransaction(sample, BluePayTransaction.fromResponse(context.getTenantId(), kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, transactionType, amount, currency, response));
 	}
 	
-	@Override
-	public void deletePaymentMethod(final UUID kbAccountId, final UUID kbPaymentMethodId, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
-		// not implemented
-	}
-	
-	@Override
-	public PaymentMethodPlugin getPaymentMethodDetail(final UUID kbAccountId, final UUID kbPaymentMethodId, final Iterable<PluginProperty> properties, final TenantContext context) throws PaymentPluginApiException {
-		// not implemented
-		return new PaymentMethodPlugin() {
-			@Override
-			public UUID getKbPaymentMethodId() {
-				return kbPaymentMethodId;
-			}
-			
-			@Override
-			public String getExternalPaymentMethodId() {
-				return null;
-			}
-			
-			@Override
-			public boolean isDefaultPaymentMethod() {
-				return false;
-			}
-			
-			@Override
-			public List<PluginProperty> getProperties() {
-				return null;
-			}
-		};
+	/**
+	 * @return null if the transaction was claimed, or else the one already journaled
+	 */
+	private BluePayTransaction claimTransaction(final BluePayTransaction pending) throws PaymentPluginApiException {
+		try {
+			return dao.claimTransaction(pending);
+		} catch (SQLException e) {
+			logService.log(LogService.LOG_ERROR, "could not journal transaction " + pending.getKbTransactionPaymentId() + ": ", e);
+			throw new PaymentPluginApiException("could not journal transaction " + pending.getKbTransactionPaymentId(), e);
+		}
 	}
 	
-	@Override
-	public void setDefaultPaymentMethod(final UUID kbAccountId, final UUID kbPaymentMethodId, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
-		// not implemented
+	/**
+	 * @return true if the journal doesn't know the transaction's outcome: it is UNDEFINED, or has been PENDING for
+	 * longer than any gateway call takes, i.e. its claim was left behind by a node that died
+	 */
+	private boolean isUnsettled(final BluePayTransaction transaction) {
+		return transaction.getStatus() == PaymentPluginStatus.UNDEFINED || (transaction.getStatus() == PaymentPluginStatus.PENDING && isExpired(transaction));
 	}
 	
-	@Override
-	public List<PaymentMethodInfoPlugin> getPaymentMethods(final UUID kbAccountId, final boolean refreshFromGateway, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
-		// not implemented
-		return Collections.emptyList();
+	private boolean isExpired(final BluePayTransaction transaction) {
+		return transaction.getEffectiveDate().plus(pendingTimeoutMillis).isBeforeNow();
 	}
 	
-	@Override
-	public Pagination<PaymentMethodPlugin> searchPaymentMethods(final String searchKey, final Long offset, final Long limit, final Iterable<PluginProperty> properties, final TenantContext context) throws PaymentPluginApiException {
-		// not implemented
-		return new Pagination<PaymentMethodPlugin>() {
-			@Override
-			public Long getCurrentOffset() {
-				return null;
-			}
-			
-			@Override
-			public Long getNextOffset() {
-				return null;
-			}
-			
-			@Override
-			public Long getMaxNbRecords() {
-				return null;
+	/**
+	 * Looks up an unsettled transaction at BluePay by its order ID, and journals what the gateway knows about it. A
+	 * transaction the gateway doesn't know once the pending timeout is over never reached it, and is CANCELED so it may
+	 * be sent again. If the lookup fails, or another node changed the transaction meanwhile, nothing is journaled.
+	 *
+	 * @return the transaction, as settled or as journaled
+	 */
+	private BluePayTransaction reconcileTransaction(final BluePayTransaction transaction) {
+		final UUID kbTransactionId = transaction.getKbTransactionPaymentId();
+		final BluePayResponse query;
+		try {
+			final BluePayCredentials credentials = credentialsCache.get(transaction.getKbTenantId());
+			final LocalDate today = new LocalDate(DateTimeZone.UTC);
+			query = bluePay.process(BluePayTransactionQuery.byOrderId(credentials, kbTransactionId.toString(),
+					transaction.getCreatedDate().toLocalDate().minusDays(1).toString(), today.plusDays(1).toString(), false));
+		} catch (SQLException | IOException e) {
+			logService.log(LogService.LOG_WARNING, "could not reconcile transaction " + kbTransactionId + ": ", e);
+			return transaction;
+		}
+		BluePayTransaction settled = transaction.reconcile(query);
+		if (settled == null) {
+			if (!isNotFound(query)) {
+				logService.log(LogService.LOG_WARNING, "could not reconcile transaction " + kbTransactionId + ": " + query.getMessage());
+				return transaction;
 			}
-			
-			@Override
-			public Long getTotalNbRecords() {
-				return null;
+			if (!isExpired(transaction)) {
+				// it may still be on its way to the gateway
+				return transaction;
 			}
-			
-			@Override
-			public Iterator<PaymentMethodPlugin> iterator() {
-				return null;
+			settled = transaction.cancel("not found by BluePay");
+		}
+		try {
+			if (!dao.settleTransaction(transaction, settled)) {
+				final BluePayTransaction current = dao.getTransaction(transaction.getKbTenantId(), kbTransactionId);
+				return current == null ? transaction : current;
 			}
-		};
+		} catch (SQLException e) {
+			logService.log(LogService.LOG_ERROR, "could not journal transaction " + kbTransactionId + ": ", e);
+			return transaction;
+		}
+		logService.log(LogService.LOG_INFO, "reconciled " + transaction.getStatus() + " transaction " + kbTransactionId + " as " + settled.getStatus());
+		return settled;
 	}
 	
-	@Override
-	public void resetPaymentMethods(final UUID kbAccountId, final List<PaymentMethodInfoPlugin> paymentMethods, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
-		// not implemented
+	/**
+	 * @return true if an stq lookup answered that there is no such transaction, rather than failing
+	 */
+	private static boolean isNotFound(final BluePayResponse query) {
+		final String message = query.getMessage();
+		return query.isError() && message != null && message.toLowerCase(Locale.ROOT).contains("not found");
 	}
 	
-	@Override
-	public HostedPaymentPageFormDescriptor buildFormDescriptor(final UUID kbAccountId, final Iterable<PluginProperty> customFields, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
-		// not implemented
-		return new HostedPaymentPageFormDescriptor() {
-			@Override
-			public UUID getKbAccountId() {
-				return kbAccountId;
-			}
-			
-			@Override
-			public String getFormMethod() {
-				return null;
-			}
-			
-			@Override
-			public String getFormUrl() {
-				return null;
-			}
-			
-			@Override
-			public List<PluginProperty> getFormFields() {
-				return null;
-			}
-			
-			@Override
-			public List<PluginProperty> getProperties() {
-				return null;
-			}
-		};
+	private BluePayTransaction journalTransaction(final BluePayTimer.Sample sample, final BluePayTransaction transaction) {
+		// write phase: journal the result on a fresh short-lived connection. The gateway may already have acted on the
+		// transaction, so a failed write is logged rather than reported to Kill Bill as a failed payment; the claim
+		// stays PENDING, so the transaction is not sent again before it has been reconciled.
+		try {
+			dao.saveTransaction(transaction);
+		} catch (SQLException e) {
+			logService.log(LogService.LOG_ERROR, "could not journal transaction " + transaction.getKbTransactionPaymentId() + ": ", e);
+		}
+		sample.stage(BluePayTimer.Stage.WRITE);
+		return transaction;
 	}
 	
-	@Override
-	public GatewayNotification processNotification(final String notification, final Iterable<PluginProperty> properties, final CallContext context) throws PaymentPluginApiException {
-		// not implemented
-		return new GatewayNotification() {
-			@Override
-			public UUID getKbPaymentId() {
-				return null;
-			}
-			
-			@Override
-			public int getStatus() {
-				return 0;
-			}
-			
-			@Override
-			public String getEntity() {
-				return null;
-			}
-			
-			@Override
-			public Map<String, List<String>> getHeaders() {
-				return null;
-			}
-			
-			@Override
-			public List<PluginProperty> getProperties() {
-				return null;
-			}
-		};
+	private static String getApiName(final TransactionType transactionType) {
+		switch (transactionType) {
+			case AUTHORIZE:
+				return "authorizePayment";
+			case PURCHASE:
+				return "purchasePayment";
+			case CAPTURE:
+				return "capturePayment";
+			case REFUND:
+				return "refundPayment";
+			case VOID:
+				return "voidPayment";
+			default:
+				return transactionType.name();
+		}
+	}
+	
+	/**
+	 * @return how a transaction ended, to time it by: declined if BluePay said so, rejected if it was not sent
+	 */
+	private static BluePayTimer.Outcome getOutcome(final PaymentTransactionInfoPlugin transaction) {
+		switch (transaction.getStatus()) {
+			case PROCESSED:
+				return BluePayTimer.Outcome.APPROVED;
+			case CANCELED:
+				return BluePayTimer.Outcome.REJECTED;
+			default:
+				return "DECLINED".equals(transaction.getGatewayErrorCode()) ? BluePayTimer.Outcome.DECLINED : BluePayTimer.Outcome.ERROR;
+		}
 	}
 }
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbluepayplugin;
+
+/**
+ * What a purchase needs from the database: the tenant's credentials and the payment method with its BluePay token.
+ */
+public class BluePayPurchaseRecord {
+	
+	private final BluePayCredentials credentials;
+	private final BluePayPaymentMethod paymentMethod;
+	
+	public BluePayPurchaseRecord(final BluePayCredentials credentials, final BluePayPaymentMethod paymentMethod) {
+		this.credentials = credentials;
+		this.paymentMethod = paymentMethod;
+	}
+	
+	public BluePayCredentials getCredentials() {
+		return credentials;
+	}
+	
+	/**
+	 * @return the payment method, or null if none is stored
+	 */
+	public BluePayPaymentMethod getPaymentMethod() {
+		return paymentMethod;
+	}
+	
+	/**
+	 * @return the BluePay token of the payment method, or null if none is stored
+	 */
+	public String getTransactionId() {
+		return paymentMethod == null ? null : paymentMethod.getTransactionId();
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbluepayplugin;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the requests sent to BluePay for one merchant account and mode under the rate the gateway allows, so that
+ * bursts are spread out instead of being answered with errors. A token bucket: it holds up to {@code capacity}
+ * tokens, refilled at {@code rate} per second, and each request takes one.
+ *
+ * A request finding the bucket empty reserves the next token and waits for it, unless that would take longer than
+ * {@code maxWait}, in which case it is rejected right away. A rate of zero or less disables the limit.
+ */
+public class BluePayRateLimiter {
+	
+	public static final String PROPERTY_PREFIX = "org.killbill.billing.plugin.bluepay.rateLimit.";
+	
+	private final String name;
+	private final double rate;
+	private final double capacity;
+	private final long maxWait;
+	private final AtomicLong delayedCalls = new AtomicLong();
+	private final AtomicLong rejectedCalls = new AtomicLong();
+	private final AtomicLong waitTime = new AtomicLong();
+	// guarded by this; negative while requests wait for tokens they reserved
+	private double tokens;
+	private long refilledAt;
+	
+	/**
+	 * @return the rate limiters of the BluePay client, one per merchant account and mode
+	 */
+	public static BluePayRegistry<BluePayRateLimiter> registry(final Properties properties) {
+		final double rate = Double.parseDouble(properties.getProperty(PROPERTY_PREFIX + "rate", "0"));
+		final double capacity = Double.parseDouble(properties.getProperty(PROPERTY_PREFIX + "capacity", "10"));
+		final long maxWait = Long.parseLong(properties.getProperty(PROPERTY_PREFIX + "maxWait", "5000"));
+		return new BluePayRegistry<BluePayRateLimiter>(new BluePayRegistry.Factory<BluePayRateLimiter>() {
+			@Override
+			public BluePayRateLimiter create(final String name) {
+				return new BluePayRateLimiter(name, rate, capacity, maxWait, TimeUnit.MILLISECONDS);
+			}
+		});
+	}
+	
+	public BluePayRateLimiter(final String name, final double rate, final double capacity, final long maxWait, final TimeUnit unit) {
+		this.name = name;
+		this.rate = rate;
+		this.capacity = Math.max(1, capacity);
+		this.maxWait = unit.toNanos(maxWait);
+		this.tokens = this.capacity;
+		this.refilledAt = System.nanoTime();
+	}
+	
+	/**
+	 * Takes a token, waiting for one if needed.
+	 *
+	 * @return false if no token would be available within {@code maxWait}
+	 */
+	public boolean tryAcquire() throws InterruptedException {
+		if (rate <= 0) {
+			return true;
+		}
+		final long wait;
+		synchronized (this) {
+			final long now = System.nanoTime();
+			tokens = Math.min(capacity, tokens + (now - refilledAt) * rate / TimeUnit.SECONDS.toNanos(1));
+			refilledAt = now;
+			wait = tokens >= 1 ? 0 : (long) ((1 - tokens) * TimeUnit.SECONDS.toNanos(1) / rate);
+			if (wait > maxWait) {
+				rejectedCalls.incrementAndGet();
+				return false;
+			}
+			tokens--;
+		}
+		if (wait > 0) {
+			delayedCalls.incrementAndGet();
+			waitTime.addAndGet(wait);
+			try {
+				TimeUnit.NANOSECONDS.sleep(wait);
+			} catch (InterruptedException e) {
+				synchronized (this) {
+					tokens++;
+				}
+				throw e;
+			}
+		}
+		return true;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * @return the sustained number of requests allowed per second, zero or less if unlimited
+	 */
+	public double getRate() {
+		return rate;
+	}
+	
+	/**
+	 * @return the tokens left in the bucket, negative while requests wait for the next ones
+	 */
+	public synchronized double getTokens() {
+		return Math.min(capacity, tokens + (System.nanoTime() - refilledAt) * rate / TimeUnit.SECONDS.toNanos(1));
+	}
+	
+	/**
+	 * @return the number of requests that had to wait for a token
+	 */
+	public long getDelayedCalls() {
+		return delayedCalls.get();
+	}
+	
+	/**
+	 * @return the number of requests rejected because no token would come in time
+	 */
+	public long getRejectedCalls() {
+		return rejectedCalls.get();
+	}
+	
+	/**
+	 * @return the total time requests waited for tokens, in milliseconds
+	 */
+	public long getWaitTimeMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(waitTime.get());
+	}
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbluepayplugin;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A bp20rebadmin call reading or changing an existing rebilling cycle.
+ */
+public class BluePayRebillRequest extends BluePayRequest {
+	
+	private final String transactionType;
+	private final String rebillId;
+	private final String templateId;
+	private final String nextDate;
+	private final String rebExpr;
+	private final String rebCycles;
+	private final String rebAmount;
+	private final String nextAmount;
+	private final String status;
+	
+	private BluePayRebillRequest(final Builder builder) {
+		super(builder.credentials);
+		transactionType = builder.transactionType;
+		rebillId = builder.rebillId;
+		templateId = builder.templateId;
+		nextDate = builder.nextDate;
+		rebExpr = builder.rebExpr;
+		rebCycles = builder.rebCycles;
+		rebAmount = builder.rebAmount;
+		nextAmount = builder.nextAmount;
+		status = builder.status;
+	}
+	
+	/**
+	 * Reads the status of a rebilling cycle.
+	 */
+	public static BluePayRebillRequest status(final BluePayCredentials credentials, final String rebillId) {
+		return new Builder(credentials, "GET", rebillId).build();
+	}
+	
+	/**
+	 * Stops a rebilling cycle.
+	 */
+	public static BluePayRebillRequest cancel(final BluePayCredentials credentials, final String rebillId) {
+		final Builder builder = new Builder(credentials, "SET", rebillId);
+		builder.status = "stopped";
+		return builder.build();
+	}
+	
+	/**
+	 * Restarts a stopped rebilling cycle.
+	 *
+	 * @param nextDate - the next rebilling date
+	 */
+	public static BluePayRebillRequest restart(final BluePayCredentials credentials, final String rebillId, final String nextDate) {
+		final Builder builder = new Builder(credentials, "SET", rebillId).nextDate(nextDate);
+		builder.status = "active";
+		return builder.build();
+	}
+	
+	/**
+	 * Changes a rebilling cycle; only the fields set on the builder are updated.
+	 */
+	public static Builder update(final BluePayCredentials credentials, final String rebillId) {
+		return new Builder(credentials, "SET", rebillId);
+	}
+	
+	@Override
+	public String getApi() {
+		return "bp20rebadmin";
+	}
+	
+	public String getTransactionType() {
+		return transactionType;
+	}
+	
+	public String getRebillId() {
+		return rebillId;
+	}
+	
+	/**
+	 * Calculates the TAMPER_PROOF_SEAL sent with the call.
+	 */
+	String calcTPS() {
+		final BluePayCredentials credentials = getCredentials();
+		return BluePaySeal.md5().update(credentials.getSecretKey()).update(credentials.getAccountId()).update(transactionType).update(rebillId).toHex();
+	}
+	
+	@Override
+	List<NameValuePair> toParameters() {
+		final List<NameValuePair> parameters = new ArrayList<NameValuePair>(13);
+		parameters.add(new BasicNameValuePair("MODE", getCredentials().getMode()));
+		parameters.add(new BasicNameValuePair("ACCOUNT_ID", getCredentials().getAccountId()));
+		parameters.add(new BasicNameValuePair("TAMPER_PROOF_SEAL", calcTPS()));
+		parameters.add(new BasicNameValuePair("TRANS_TYPE", transactionType));
+		parameters.add(new BasicNameValuePair("REBILL_ID", rebillId));
+		parameters.add(new BasicNameValuePair("TEMPLATE_ID", templateId));
+		parameters.add(new BasicNameValuePair("NEXT_DATE", nextDate));
+		parameters.add(new BasicNameValuePair("REB_EXPR", rebExpr));
+		parameters.add(new BasicNameValuePair("REB_CYCLES", rebCycles));
+		parameters.add(new BasicNameValuePair("REB_AMOUNT", rebAmount));
+		parameters.add(new BasicNameValuePair("NEXT_AMOUNT", nextAmount));
+		parameters.add(new BasicNameValuePair("STATUS", status));
+		return parameters;
+	}
+	
+	/**
+	 * Collects the fields of a rebilling update; unset fields are sent empty and left unchanged by the gateway.
+	 */
+	public static class Builder {
+		
+		private final BluePayCredentials credentials;
+		private final String transactionType;
+		private final String rebillId;
+		private String templateId = "";
+		private String nextDate = "";
+		private String rebExpr = "";
+		private String rebCycles = "";
+		private String rebAmount = "";
+		private String nextAmount = "";
+		private String status = "";
+		
+		private Builder(final BluePayCredentials credentials, final String transactionType, final String rebillId) {
+			this.credentials = credentials;
+			this.transactionType = transactionType;
+			this.rebillId = nullToEmpty(rebillId);
+		}
+		
+		/**
+		 * @param templateId - a previous transaction whose payment information the rebilling uses from now on
+		 */
+		public Builder templateId(final String templateId) {
+			this.templateId = nullToEmpty(templateId);
+			return this;
+		}
+		
+		public Builder nextDate(final String nextDate) {
+			this.nextDate = nullToEmpty(nextDate);
+			return this;
+		}
+		
+		/**
+		 * @param expr - how often to rebill, e.g. "1 MONTH" or "1 YEAR"
+		 */
+		public Builder expr(final String expr) {
+			this.rebExpr = nullToEmpty(expr);
+			return this;
+		}
+		
+		public Builder cycles(final String cycles) {
+			this.rebCycles = nullToEmpty(cycles);
+			return this;
+		}
+		
+		/**
+		 * @param rebillAmount - the amount charged each time the rebilling runs
+		 */
+		public Builder rebillAmount(final String rebillAmount) {
+			this.rebAmount = nullToEmpty(rebillAmount);
+			return this;
+		}
+		
+		/**
+		 * @param nextAmount - the amount charged the next time only
+		 */
+		public Builder nextAmount(final String nextAmount) {
+			this.nextAmount = nullToEmpty(nextAmount);
+			return this;
+		}
+		
+		public BluePayRebillRequest build() {
+			return new BluePayRebillRequest(this);
+		}
+	}
+}
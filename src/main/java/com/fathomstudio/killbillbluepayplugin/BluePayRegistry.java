@@ -0,0 +1,64 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbluepayplugin;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Named instances of one kind, e.g. the circuit breaker of each merchant account and mode, created on first use by
+ * a factory that holds their common settings and kept for monitoring.
+ */
+public class BluePayRegistry<T> {
+	
+	public interface Factory<T> {
+		
+		T create(String name);
+	}
+	
+	private final Factory<T> factory;
+	private final ConcurrentMap<String, T> instances = new ConcurrentHashMap<String, T>();
+	
+	public BluePayRegistry(final Factory<T> factory) {
+		this.factory = factory;
+	}
+	
+	/**
+	 * @return the instance with the given name, created if there is none yet
+	 */
+	public T get(final String name) {
+		T instance = instances.get(name);
+		if (instance == null) {
+			final T created = factory.create(name);
+			instance = instances.putIfAbsent(name, created);
+			if (instance == null) {
+				instance = created;
+			}
+		}
+		return instance;
+	}
+	
+	/**
+	 * @return every instance created so far, by name
+	 */
+	public Map<String, T> getAll() {
+		return Collections.unmodifiableMap(instances);
+	}
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbluepayplugin;
+
+import java.io.IOException;
+
+/**
+ * Fails a request that the BluePay client refused to send, e.g. because the gateway is unhealthy or saturated for
+ * the merchant. The request never reached BluePay, so it is safe to retry.
+ */
+public class BluePayRejectedException extends IOException {
+	
+	public BluePayRejectedException(final String message) {
+		super(message);
+	}
+}
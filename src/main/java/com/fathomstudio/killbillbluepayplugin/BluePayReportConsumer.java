@@ -0,0 +1,115 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbluepayplugin;
+
+import org.apache.http.Consts;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Reads a bpdailyreport2 response as it arrives on the I/O thread, decoding each chunk and feeding it to a
+ * {@link BluePayReportParser}. Memory use is bounded by the two chunk buffers, whatever the size of the report.
+ */
+class BluePayReportConsumer extends AbstractAsyncResponseConsumer<Long> {
+	
+	private final BluePayReportParser parser;
+	private final ByteBuffer bytes = ByteBuffer.allocate(8192);
+	private final CharBuffer chars = CharBuffer.allocate(8192);
+	private CharsetDecoder decoder;
+	
+	BluePayReportConsumer(final BluePayReportHandler handler) {
+		this.parser = new BluePayReportParser(handler);
+	}
+	
+	@Override
+	protected void onResponseReceived(final HttpResponse response) throws IOException {
+		final int status = response.getStatusLine().getStatusCode();
+		if (status != 200) {
+			throw new IOException("BluePay report failed: " + response.getStatusLine());
+		}
+	}
+	
+	@Override
+	protected void onEntityEnclosed(final HttpEntity entity, final ContentType contentType) {
+		final Charset charset = contentType == null || contentType.getCharset() == null ? Consts.UTF_8 : contentType.getCharset();
+		decoder = charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+	
+	@Override
+	protected void onContentReceived(final ContentDecoder contentDecoder, final IOControl ioctrl) throws IOException {
+		while (contentDecoder.read(bytes) > 0) {
+			decode(false);
+		}
+		if (contentDecoder.isCompleted()) {
+			decode(true);
+		}
+		onChunkParsed(ioctrl);
+	}
+	
+	/**
+	 * Called after every chunk, on the I/O thread; lets a subclass throttle the download.
+	 */
+	protected void onChunkParsed(final IOControl ioctrl) {
+	}
+	
+	@Override
+	protected Long buildResult(final HttpContext context) throws IOException {
+		if (decoder == null) {
+			throw new IOException("BluePay returned an empty report");
+		}
+		return parser.finish();
+	}
+	
+	@Override
+	protected void releaseResources() {
+	}
+	
+	/**
+	 * @return the rows read so far
+	 */
+	long getRows() {
+		return parser.getRows();
+	}
+	
+	private void decode(final boolean endOfInput) throws IOException {
+		bytes.flip();
+		decoder.decode(bytes, chars, endOfInput);
+		if (endOfInput) {
+			decoder.flush(chars);
+		}
+		// keep an incomplete multi-byte sequence for the next chunk
+		bytes.compact();
+		chars.flip();
+		parser.feed(chars);
+		chars.clear();
+	}
+}
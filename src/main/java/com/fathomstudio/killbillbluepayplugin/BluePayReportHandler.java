@@ -0,0 +1,30 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbluepayplugin;
+
+/**
+ * Receives the rows of a report as they are read from the gateway.
+ */
+public interface BluePayReportHandler {
+	
+	/**
+	 * Called once per transaction, in report order, on the thread reading the response. Rows are not retained, so a
+	 * report of any size is read in constant memory; a slow handler slows the download down.
+	 */
+	void onRow(BluePayReportRow row) throws Exception;
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbluepayplugin;
+
+import org.apache.http.Consts;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An incremental CSV parser for bpdailyreport2: characters are pushed in as they arrive and each complete row is handed
+ * to the handler straight away, so only the row being read is held in memory. Handles quoted (the default) and
+ * unquoted (DO_NOT_ESCAPE) reports, quotes doubled inside quoted fields, and line breaks inside quoted fields.
+ */
+class BluePayReportParser {
+	
+	private static final int FIELD_START = 0;
+	private static final int UNQUOTED = 1;
+	private static final int QUOTED = 2;
+	private static final int QUOTE_IN_QUOTED = 3;
+	
+	private final BluePayReportHandler handler;
+	private final StringBuilder field = new StringBuilder(64);
+	private final List<String> fields = new ArrayList<String>(64);
+	private BluePayReportRow.Columns columns;
+	private int state = FIELD_START;
+	private long rows;
+	
+	BluePayReportParser(final BluePayReportHandler handler) {
+		this.handler = handler;
+	}
+	
+	/**
+	 * Parses the characters remaining in the buffer.
+	 */
+	void feed(final CharBuffer chars) throws IOException {
+		while (chars.hasRemaining()) {
+			final char c = chars.get();
+			switch (state) {
+				case FIELD_START:
+					if (c == '"') {
+						state = QUOTED;
+					} else if (c == ',') {
+						endField();
+					} else if (c == '\n') {
+						endRow();
+					} else if (c != '\r') {
+						field.append(c);
+						state = UNQUOTED;
+					}
+					break;
+				case UNQUOTED:
+					if (c == ',') {
+						endField();
+					} else if (c == '\n') {
+						endRow();
+					} else if (c != '\r') {
+						field.append(c);
+					}
+					break;
+				case QUOTED:
+					if (c == '"') {
+						state = QUOTE_IN_QUOTED;
+					} else {
+						field.append(c);
+					}
+					break;
+				default:
+					if (c == '"') {
+						// a doubled quote stands for one quote
+						field.append('"');
+						state = QUOTED;
+					} else if (c == ',') {
+						endField();
+					} else if (c == '\n') {
+						endRow();
+					} else if (c != '\r') {
+						field.append(c);
+						state = UNQUOTED;
+					}
+					break;
+			}
+		}
+	}
+	
+	/**
+	 * Ends the report, emitting a last row that has no line break.
+	 *
+	 * @return the number of rows read, not counting the header
+	 */
+	long finish() throws IOException {
+		if (state != FIELD_START || field.length() > 0 || !fields.isEmpty()) {
+			endRow();
+		}
+		if (columns == null) {
+			throw new IOException("BluePay returned an empty report");
+		}
+		return rows;
+	}
+	
+	long getRows() {
+		return rows;
+	}
+	
+	private void endField() {
+		fields.add(field.toString());
+		field.setLength(0);
+		state = FIELD_START;
+	}
+	
+	private void endRow() throws IOException {
+		endField();
+		final String[] values = fields.toArray(new String[fields.size()]);
+		fields.clear();
+		if (values.length == 1 && values[0].isEmpty()) {
+			// blank line
+			return;
+		}
+		if (columns == null) {
+			columns = new BluePayReportRow.Columns(values);
+			if (!columns.contains("id")) {
+				// not a report: the gateway answers errors as "Result=ERROR&MESSAGE=..."
+				throw new IOException("BluePay report failed: " + describeError(values));
+			}
+			return;
+		}
+		rows++;
+		try {
+			handler.onRow(new BluePayReportRow(columns, values));
+		} catch (IOException | RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+	}
+	
+	private static String describeError(final String[] values) {
+		final StringBuilder line = new StringBuilder();
+		for (int i = 0; i < values.length; i++) {
+			line.append(i == 0 ? "" : ",").append(values[i]);
+		}
+		for (final NameValuePair pair : URLEncodedUtils.parse(line.toString(), Consts.UTF_8)) {
+			if ("MESSAGE".equals(pair.getName())) {
+				return pair.getValue();
+			}
+		}
+		return line.toString();
+	}
+}
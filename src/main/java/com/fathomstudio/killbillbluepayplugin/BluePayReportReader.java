@@ -0,0 +1,163 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbluepayplugin;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.apache.http.nio.IOControl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Iterates over a report while it downloads. Rows are buffered up to a small high-water mark; beyond it the socket is
+ * no longer read until the caller catches up, so memory stays bounded however large the report and however slow the
+ * caller. Must be closed if not read to the end.
+ *
+ * {@link #hasNext()} and {@link #next()} block while waiting for the gateway and throw an
+ * {@link IllegalStateException} if the download fails.
+ */
+public class BluePayReportReader implements Iterator<BluePayReportRow>, Closeable {
+	
+	private static final int HIGH_WATER_MARK = 4096;
+	private static final int LOW_WATER_MARK = 1024;
+	private static final Object END = new Object();
+	
+	private final LinkedBlockingQueue<Object> queue = new LinkedBlockingQueue<Object>();
+	private final Consumer consumer = new Consumer();
+	private ListenableFuture<Long> download;
+	private Object next;
+	private boolean done;
+	private volatile boolean closed;
+	
+	BluePayReportReader() {
+	}
+	
+	/**
+	 * Wires the reader to the download once it has started.
+	 */
+	void start(final ListenableFuture<Long> download) {
+		this.download = download;
+		Futures.addCallback(download, new FutureCallback<Long>() {
+			@Override
+			public void onSuccess(final Long rows) {
+				queue.add(END);
+			}
+			
+			@Override
+			public void onFailure(final Throwable t) {
+				queue.add(t);
+			}
+		});
+	}
+	
+	BluePayReportConsumer getConsumer() {
+		return consumer;
+	}
+	
+	@Override
+	public boolean hasNext() {
+		if (next == null && !done) {
+			try {
+				next = queue.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("interrupted while reading BluePay report", e);
+			}
+			consumer.resumeIfDrained();
+		}
+		if (next == END) {
+			done = true;
+			return false;
+		}
+		if (next instanceof Throwable) {
+			done = true;
+			throw new IllegalStateException("could not read BluePay report", (Throwable) next);
+		}
+		return !done;
+	}
+	
+	@Override
+	public BluePayReportRow next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		final BluePayReportRow row = (BluePayReportRow) next;
+		next = null;
+		return row;
+	}
+	
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+	
+	/**
+	 * Stops the download if it is still running and drops the buffered rows.
+	 */
+	@Override
+	public void close() throws IOException {
+		done = true;
+		closed = true;
+		if (download != null && !download.isDone()) {
+			download.cancel(true);
+		}
+		queue.clear();
+		consumer.resumeIfDrained();
+	}
+	
+	/**
+	 * Queues the rows and suspends reading from the socket while too many are waiting.
+	 */
+	private class Consumer extends BluePayReportConsumer {
+		
+		private IOControl suspended;
+		
+		Consumer() {
+			super(new BluePayReportHandler() {
+				@Override
+				public void onRow(final BluePayReportRow row) throws IOException {
+					if (closed) {
+						// abandons the download and its connection
+						throw new IOException("BluePay report closed");
+					}
+					queue.add(row);
+				}
+			});
+		}
+		
+		@Override
+		protected synchronized void onChunkParsed(final IOControl ioctrl) {
+			if (queue.size() >= HIGH_WATER_MARK) {
+				ioctrl.suspendInput();
+				suspended = ioctrl;
+			}
+		}
+		
+		synchronized void resumeIfDrained() {
+			if (suspended != null && queue.size() <= LOW_WATER_MARK) {
+				suspended.requestInput();
+				suspended = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbluepayplugin;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A bpdailyreport2 call listing the transactions processed, or settled, over a date range.
+ */
+public class BluePayReportRequest extends BluePayRequest {
+	
+	private final String reportStart;
+	private final String reportEnd;
+	private final String queryBySettlement;
+	private final String queryByHierarchy;
+	private final String doNotEscape;
+	private final String excludeErrors;
+	
+	private BluePayReportRequest(final Builder builder) {
+		super(builder.credentials);
+		reportStart = builder.reportStart;
+		reportEnd = builder.reportEnd;
+		queryBySettlement = builder.queryBySettlement;
+		queryByHierarchy = builder.queryByHierarchy;
+		doNotEscape = builder.doNotEscape;
+		excludeErrors = builder.excludeErrors;
+	}
+	
+	/**
+	 * The transactions processed between the two dates.
+	 */
+	public static Builder transactions(final BluePayCredentials credentials, final String reportStart, final String reportEnd) {
+		return new Builder(credentials, reportStart, reportEnd, "0");
+	}
+	
+	/**
+	 * The transactions settled between the two dates.
+	 */
+	public static Builder settledTransactions(final BluePayCredentials credentials, final String reportStart, final String reportEnd) {
+		return new Builder(credentials, reportStart, reportEnd, "1");
+	}
+	
+	@Override
+	public String getApi() {
+		return "bpdailyreport2";
+	}
+	
+	public String getReportStart() {
+		return reportStart;
+	}
+	
+	public String getReportEnd() {
+		return reportEnd;
+	}
+	
+	public boolean isSettled() {
+		return "1".equals(queryBySettlement);
+	}
+	
+	/**
+	 * @return whether the gateway leaves the report fields unquoted
+	 */
+	public boolean isDoNotEscape() {
+		return "1".equals(doNotEscape);
+	}
+	
+	@Override
+	List<NameValuePair> toParameters() {
+		final List<NameValuePair> parameters = new ArrayList<NameValuePair>(9);
+		parameters.add(new BasicNameValuePair("MODE", getCredentials().getMode()));
+		parameters.add(new BasicNameValuePair("ACCOUNT_ID", getCredentials().getAccountId()));
+		parameters.add(new BasicNameValuePair("TAMPER_PROOF_SEAL", calcReportTPS(getCredentials(), reportStart, reportEnd)));
+		parameters.add(new BasicNameValuePair("REPORT_START_DATE", reportStart));
+		parameters.add(new BasicNameValuePair("REPORT_END_DATE", reportEnd));
+		parameters.add(new BasicNameValuePair("DO_NOT_ESCAPE", doNotEscape));
+		parameters.add(new BasicNameValuePair("QUERY_BY_SETTLEMENT", queryBySettlement));
+		parameters.add(new BasicNameValuePair("QUERY_BY_HIERARCHY", queryByHierarchy));
+		parameters.add(new BasicNameValuePair("EXCLUDE_ERRORS", excludeErrors));
+		return parameters;
+	}
+	
+	public static class Builder {
+		
+		private final BluePayCredentials credentials;
+		private final String reportStart;
+		private final String reportEnd;
+		private final String queryBySettlement;
+		private String queryByHierarchy = "";
+		private String doNotEscape = "";
+		private String excludeErrors = "";
+		
+		private Builder(final BluePayCredentials credentials, final String reportStart, final String reportEnd, final String queryBySettlement) {
+			this.credentials = credentials;
+			this.reportStart = nullToEmpty(reportStart);
+			this.reportEnd = nullToEmpty(reportEnd);
+			this.queryBySettlement = queryBySettlement;
+		}
+		
+		/**
+		 * @param subaccountsSearched - whether the subaccounts are searched as well as the main account
+		 */
+		public Builder subaccountsSearched(final boolean subaccountsSearched) {
+			this.queryByHierarchy = flag(subaccountsSearched);
+			return this;
+		}
+		
+		/**
+		 * @param doNotEscape - whether the quotes around the fields are left out
+		 */
+		public Builder doNotEscape(final boolean doNotEscape) {
+			this.doNotEscape = flag(doNotEscape);
+			return this;
+		}
+		
+		/**
+		 * @param excludeErrors - whether errored transactions are left out
+		 */
+		public Builder excludeErrors(final boolean excludeErrors) {
+			this.excludeErrors = flag(excludeErrors);
+			return this;
+		}
+		
+		public BluePayReportRequest build() {
+			return new BluePayReportRequest(this);
+		}
+	}
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbluepayplugin;
+
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * One transaction of a bpdailyreport2 report. Fields the gateway did not return are empty.
+ */
+public class BluePayReportRow {
+	
+	private final Columns columns;
+	private final String[] values;
+	
+	BluePayReportRow(final Columns columns, final String[] values) {
+		this.columns = columns;
+		this.values = values;
+	}
+	
+	/**
+	 * @return the value of any column of the report, by the gateway's name (e.g. "auth_code"); null if the report has
+	 * no such column
+	 */
+	public String get(final String column) {
+		final Integer index = columns.indexes.get(column);
+		return index == null ? null : value(index);
+	}
+	
+	/**
+	 * @return the 12-digit transaction ID
+	 */
+	public String getId() {
+		return value(columns.id);
+	}
+	
+	/**
+	 * @return CREDIT or ACH
+	 */
+	public String getPaymentType() {
+		return value(columns.paymentType);
+	}
+	
+	/**
+	 * @return SALE, AUTH, CAPTURE, REFUND, CREDIT or VOID
+	 */
+	public String getTransType() {
+		return value(columns.transType);
+	}
+	
+	/**
+	 * @return the amount; null if none
+	 */
+	public BigDecimal getAmount() {
+		final String amount = value(columns.amount);
+		return amount.isEmpty() ? null : new BigDecimal(amount);
+	}
+	
+	public String getCardType() {
+		return value(columns.cardType);
+	}
+	
+	public String getPaymentAccount() {
+		return value(columns.paymentAccount);
+	}
+	
+	public String getOrderId() {
+		return value(columns.orderId);
+	}
+	
+	public String getInvoiceId() {
+		return value(columns.invoiceId);
+	}
+	
+	/**
+	 * @return the transaction this one refers to, e.g. the AUTH of a CAPTURE
+	 */
+	public String getMasterId() {
+		return value(columns.masterId);
+	}
+	
+	/**
+	 * @return "1" if approved, "0" if declined, "E" if errored
+	 */
+	public String getStatus() {
+		return value(columns.status);
+	}
+	
+	public boolean isApproved() {
+		return "1".equals(getStatus());
+	}
+	
+	public boolean isVoided() {
+		return "1".equals(value(columns.voided));
+	}
+	
+	public String getMessage() {
+		return value(columns.message);
+	}
+	
+	/**
+	 * @return when the transaction was processed, as reported: "yyyy-MM-dd HH:mm:ss"
+	 */
+	public String getIssueDate() {
+		return value(columns.issueDate);
+	}
+	
+	/**
+	 * @return when the transaction settled, as reported; empty if not settled
+	 */
+	public String getSettleDate() {
+		return value(columns.settleDate);
+	}
+	
+	public String getSettlementId() {
+		return value(columns.settlementId);
+	}
+	
+	public String getRebillingId() {
+		return value(columns.rebillingId);
+	}
+	
+	private String value(final int index) {
+		return index >= 0 && index < values.length ? values[index] : "";
+	}
+	
+	@Override
+	public String toString() {
+		return "BluePayReportRow{id=" + getId() + ", transType=" + getTransType() + ", amount=" + value(columns.amount) + ", status=" + getStatus() + "}";
+	}
+	
+	/**
+	 * The header of a report, resolved once and shared by all its rows.
+	 */
+	static class Columns {
+		
+		private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+		private final int id;
+		private final int paymentType;
+		private final int transType;
+		private final int amount;
+		private final int cardType;
+		private final int paymentAccount;
+		private final int orderId;
+		private final int invoiceId;
+		private final int masterId;
+		private final int status;
+		private final int voided;
+		private final int message;
+		private final int issueDate;
+		private final int settleDate;
+		private final int settlementId;
+		private final int rebillingId;
+		
+		Columns(final String[] header) {
+			for (int i = 0; i < header.length; i++) {
+				indexes.put(header[i], i);
+			}
+			id = indexOf("id");
+			paymentType = indexOf("payment_type");
+			transType = indexOf("trans_type");
+			amount = indexOf("amount");
+			cardType = indexOf("card_type");
+			paymentAccount = indexOf("payment_account");
+			orderId = indexOf("order_id");
+			invoiceId = indexOf("invoice_id");
+			masterId = indexOf("master_id");
+			status = indexOf("status");
+			voided = indexOf("f_void");
+			message = indexOf("message");
+			issueDate = indexOf("issue_date");
+			settleDate = indexOf("settle_date");
+			settlementId = indexOf("settlement_id");
+			rebillingId = indexOf("rebilling_id");
+		}
+		
+		boolean contains(final String column) {
+			return indexes.containsKey(column);
+		}
+		
+		private int indexOf(final String column) {
+			final Integer index = indexes.get(column);
+			return index == null ? -1 : index;
+		}
+	}
+}
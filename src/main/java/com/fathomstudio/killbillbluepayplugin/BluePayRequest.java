@@ -0,0 +1,67 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbluepayplugin;
+
+import org.apache.http.NameValuePair;
+
+import java.util.List;
+
+/**
+ * An immutable call to one of the BluePay APIs, signed with the merchant's credentials. Requests carry everything the
+ * gateway needs, so a single {@link BluePay} client can send them from any thread.
+ */
+public abstract class BluePayRequest {
+	
+	private final BluePayCredentials credentials;
+	
+	protected BluePayRequest(final BluePayCredentials credentials) {
+		if (credentials == null) {
+			throw new IllegalArgumentException("missing credentials");
+		}
+		this.credentials = credentials;
+	}
+	
+	public BluePayCredentials getCredentials() {
+		return credentials;
+	}
+	
+	/**
+	 * @return the API called, appended to the gateway URL: bp10emu, bp20rebadmin, stq or bpdailyreport2
+	 */
+	public abstract String getApi();
+	
+	/**
+	 * @return the form fields to post, including the Tamper Proof Seal
+	 */
+	abstract List<NameValuePair> toParameters();
+	
+	/**
+	 * The seal shared by the reporting APIs (stq and bpdailyreport2).
+	 */
+	static String calcReportTPS(final BluePayCredentials credentials, final String reportStart, final String reportEnd) {
+		return BluePaySeal.md5().update(credentials.getSecretKey()).update(credentials.getAccountId()).update(reportStart).update(reportEnd).toHex();
+	}
+	
+	static String nullToEmpty(final String value) {
+		return value == null ? "" : value;
+	}
+	
+	static String flag(final boolean value) {
+		return value ? "1" : "0";
+	}
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbluepayplugin;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The fields returned by the gateway for one call. Immutable.
+ */
+public class BluePayResponse {
+	
+	private final Map<String, String> fields;
+	
+	public BluePayResponse(final Map<String, String> fields) {
+		this.fields = Collections.unmodifiableMap(new HashMap<String, String>(fields));
+	}
+	
+	/**
+	 * @return a response standing for a call that never got an answer from the gateway
+	 */
+	public static BluePayResponse error(final String message) {
+		final Map<String, String> fields = new HashMap<String, String>(2);
+		fields.put("Result", "ERROR");
+		fields.put("MESSAGE", message);
+		return new BluePayResponse(fields);
+	}
+	
+	/**
+	 * @return every field returned, keyed by the gateway's name
+	 */
+	public Map<String, String> getFields() {
+		return fields;
+	}
+	
+	public String get(final String field) {
+		return fields.get(field);
+	}
+	
+	/**
+	 * @return the result: APPROVED, DECLINED, ERROR or MISSING; null if none
+	 */
+	public String getStatus() {
+		return fields.get("Result");
+	}
+	
+	public boolean isApproved() {
+		return "APPROVED".equals(getStatus());
+	}
+	
+	public boolean isDeclined() {
+		return "DECLINED".equals(getStatus());
+	}
+	
+	public boolean isError() {
+		final String status = getStatus();
+		return "E".equals(status) || "ERROR".equals(status) || "MISSING".equals(status);
+	}
+	
+	/**
+	 * @return true if the transaction was approved and was not a duplicate
+	 */
+	public boolean isSuccessful() {
+		return isApproved() && !"DUPLICATE".equals(getMessage());
+	}
+	
+	/**
+	 * @return true if the gateway refused the request itself rather than answering it: the Tamper Proof Seal did not
+	 * match, or the account is not allowed to make it
+	 */
+	public boolean isSecurityError() {
+		final String message = getMessage();
+		return isError() && message != null && message.toUpperCase(Locale.ROOT).startsWith("SECURITY ERROR");
+	}
+	
+	/**
+	 * @return a human-readable status, e.g. "Approved" or "Declined: Hold Card"; null if none
+	 */
+	public String getMessage() {
+		return fields.get("MESSAGE");
+	}
+	
+	/**
+	 * @return the 12-digit transaction ID; null if none
+	 */
+	public String getTransID() {
+		return fields.get("RRNO");
+	}
+	
+	/**
+	 * @return the 12-digit rebilling ID; null if none
+	 */
+	public String getRebillingID() {
+		return fields.containsKey("REBID") ? fields.get("REBID") : fields.get("rebill_id");
+	}
+	
+	public String getAVS() {
+		return fields.get("AVS");
+	}
+	
+	public String getCVV2() {
+		return fields.get("CVV2");
+	}
+	
+	public String getMaskedPaymentAccount() {
+		return fields.get("PAYMENT_ACCOUNT");
+	}
+	
+	public String getCardType() {
+		return fields.get("CARD_TYPE");
+	}
+	
+	public String getBankName() {
+		return fields.get("BANK_NAME");
+	}
+	
+	public String getAuthCode() {
+		return fields.get("AUTH_CODE");
+	}
+	
+	public String getRebillStatus() {
+		return fields.get("status");
+	}
+	
+	public String getRebillCreationDate() {
+		return fields.get("creation_date");
+	}
+	
+	public String getRebillNextDate() {
+		return fields.get("next_date");
+	}
+	
+	public String getRebillLastDate() {
+		return fields.get("last_date");
+	}
+	
+	public String getRebillSchedExpr() {
+		return fields.get("sched_expr");
+	}
+	
+	public String getRebillCyclesRemain() {
+		return fields.get("cycles_remain");
+	}
+	
+	public String getRebillAmount() {
+		return fields.get("reb_amount");
+	}
+	
+	public String getRebillNextAmount() {
+		return fields.get("next_amount");
+	}
+	
+	@Override
+	public String toString() {
+		return "BluePayResponse" + fields;
+	}
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbluepayplugin;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Computes Tamper Proof Seals without intermediate garbage: engines and their digests and buffers are reused, the seal
+ * components are fed in as UTF-8 one after the other instead of being concatenated, and the hex form is written into a
+ * preallocated array. The only allocation per seal is the returned string.
+ *
+ * Usage: {@code BluePaySeal.sha512().update(secretKey).update(merchant).toHex()}. An engine is taken from a small pool
+ * and belongs to the caller until {@link #toHex()} hands it back, so seals may be nested. The pool is a static array
+ * of this class rather than a ThreadLocal: nothing of it is reachable from the container's threads, so it goes away
+ * with the bundle's classloader.
+ */
+final class BluePaySeal {
+	
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	
+	// enough for every thread that can be sealing at once; engines beyond it are left to the garbage collector
+	private static final AtomicReferenceArray<BluePaySeal> POOL = new AtomicReferenceArray<BluePaySeal>(4 * Runtime.getRuntime().availableProcessors());
+	
+	private final MessageDigest sha512 = getDigest("SHA-512");
+	private final MessageDigest md5 = getDigest("MD5");
+	private final byte[] bytes = new byte[256];
+	private final byte[] digest = new byte[64];
+	private final char[] hex = new char[128];
+	private MessageDigest current;
+	private int length;
+	
+	private BluePaySeal() {
+	}
+	
+	/**
+	 * @return an engine, reset for a SHA-512 seal
+	 */
+	static BluePaySeal sha512() {
+		return acquire().reset(true);
+	}
+	
+	/**
+	 * @return an engine, reset for an MD5 seal
+	 */
+	static BluePaySeal md5() {
+		return acquire().reset(false);
+	}
+	
+	/**
+	 * Appends a seal component. {@code null} is treated as empty, the way it is sent to the gateway.
+	 */
+	BluePaySeal update(final String component) {
+		if (component == null) {
+			return this;
+		}
+		final int n = component.length();
+		for (int i = 0; i < n; i++) {
+			if (length > bytes.length - 4) {
+				flush();
+			}
+			final char c = component.charAt(i);
+			if (c < 0x80) {
+				bytes[length++] = (byte) c;
+			} else if (c < 0x800) {
+				bytes[length++] = (byte) (0xc0 | (c >> 6));
+				bytes[length++] = (byte) (0x80 | (c & 0x3f));
+			} else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(component.charAt(i + 1))) {
+				final int codePoint = Character.toCodePoint(c, component.charAt(++i));
+				bytes[length++] = (byte) (0xf0 | (codePoint >> 18));
+				bytes[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+				bytes[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+				bytes[length++] = (byte) (0x80 | (codePoint & 0x3f));
+			} else if (Character.isSurrogate(c)) {
+				// unpaired surrogate: replaced the same way String.getBytes does
+				bytes[length++] = '?';
+			} else {
+				bytes[length++] = (byte) (0xe0 | (c >> 12));
+				bytes[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				bytes[length++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+		return this;
+	}
+	
+	/**
+	 * Hands the engine back: it must not be used afterwards.
+	 *
+	 * @return the lowercase hex digest of the components appended since the engine was obtained
+	 */
+	String toHex() {
+		flush();
+		final int digestLength = current.getDigestLength();
+		try {
+			current.digest(digest, 0, digestLength);
+		} catch (DigestException e) {
+			throw new IllegalStateException(e);
+		}
+		for (int i = 0; i < digestLength; i++) {
+			hex[2 * i] = HEX[(digest[i] >> 4) & 0x0f];
+			hex[2 * i + 1] = HEX[digest[i] & 0x0f];
+		}
+		final String seal = new String(hex, 0, 2 * digestLength);
+		release(this);
+		return seal;
+	}
+	
+	private BluePaySeal reset(final boolean useSha512) {
+		current = useSha512 ? sha512 : md5;
+		current.reset();
+		length = 0;
+		return this;
+	}
+	
+	private void flush() {
+		current.update(bytes, 0, length);
+		length = 0;
+	}
+	
+	private static BluePaySeal acquire() {
+		// start from a slot that depends on the thread, so that threads mostly take back the engine they gave back
+		final int start = slot();
+		for (int i = 0; i < POOL.length(); i++) {
+			final int index = (start + i) % POOL.length();
+			if (POOL.get(index) != null) {
+				final BluePaySeal engine = POOL.getAndSet(index, null);
+				if (engine != null) {
+					return engine;
+				}
+			}
+		}
+		return new BluePaySeal();
+	}
+	
+	private static void release(final BluePaySeal engine) {
+		final int start = slot();
+		for (int i = 0; i < POOL.length(); i++) {
+			if (POOL.compareAndSet((start + i) % POOL.length(), null, engine)) {
+				return;
+			}
+		}
+	}
+	
+	private static int slot() {
+		return (int) ((Thread.currentThread().getId() & Integer.MAX_VALUE) % POOL.length());
+	}
+	
+	private static MessageDigest getDigest(final String algorithm) {
+		try {
+			return MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			// both algorithms are required of every Java platform
+			throw new IllegalStateException(e);
+		}
+	}
+}
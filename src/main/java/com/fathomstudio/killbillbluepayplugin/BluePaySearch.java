@@ -0,0 +1,188 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbluepayplugin;
+
+import org.killbill.billing.util.entity.Pagination;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A page of search results. Offsets are record IDs: a page holds the matches after its offset, oldest first, and
+ * {@link #getNextOffset()} is the record ID of its last row. No query reads past the page, however deep into the
+ * matches it is, and rows added meanwhile don't shift later pages.
+ *
+ * Rows are read lazily, in chunks of {@link BluePayDao#SEARCH_FETCH_SIZE} after the record ID of the last row read,
+ * each chunk on a short-lived connection. A large page is never held in memory, and an iterator that is dropped
+ * half-way holds nothing. The next offset and the record counts are read when first asked for: the next offset from
+ * the search indexes, in one query as deep as the page; the counts with one COUNT each, which is as costly as the
+ * number of matches or of the tenant's rows.
+ */
+public abstract class BluePaySearch<T> implements Pagination<T> {
+	
+	private final long offset;
+	private final Long limit;
+	
+	private boolean nextOffsetRead;
+	private Long nextOffset;
+	private Long maxNbRecords;
+	private Long totalNbRecords;
+	
+	/**
+	 * @param offset - the record ID the page starts after; 0 for the first page
+	 * @param limit  - the maximum number of rows, or null for every match
+	 */
+	protected BluePaySearch(final long offset, final Long limit) {
+		this.offset = offset;
+		this.limit = limit;
+	}
+	
+	/**
+	 * Reads the next chunk of the page.
+	 *
+	 * @param afterRecordId - the record ID of the last row read
+	 * @param limit         - the maximum number of rows
+	 * @return the matches, oldest first
+	 */
+	protected abstract List<? extends T> search(long afterRecordId, int limit) throws SQLException;
+	
+	/**
+	 * @param afterRecordId - the record ID the page starts after
+	 * @param limit         - the number of rows of the page
+	 * @return the record ID of the page's last match if more matches follow it, or else null
+	 */
+	protected abstract Long getNextRecordId(long afterRecordId, int limit) throws SQLException;
+	
+	/**
+	 * @return the number of rows of the tenant
+	 */
+	protected abstract long countAll() throws SQLException;
+	
+	/**
+	 * @return the number of matches
+	 */
+	protected abstract long countMatches() throws SQLException;
+	
+	protected abstract long getRecordId(T row);
+	
+	@Override
+	public Long getCurrentOffset() {
+		return offset;
+	}
+	
+	/**
+	 * @throws IllegalStateException if the end of the page can't be read
+	 */
+	@Override
+	public synchronized Long getNextOffset() {
+		if (!nextOffsetRead) {
+			// a page of every match, or of more than a query can return, is the last one
+			if (limit != null && limit > 0 && limit <= Integer.MAX_VALUE) {
+				try {
+					nextOffset = getNextRecordId(offset, limit.intValue());
+				} catch (SQLException e) {
+					throw new IllegalStateException("could not search", e);
+				}
+			}
+			nextOffsetRead = true;
+		}
+		return nextOffset;
+	}
+	
+	/**
+	 * @throws IllegalStateException if the rows can't be counted
+	 */
+	@Override
+	public synchronized Long getMaxNbRecords() {
+		if (maxNbRecords == null) {
+			try {
+				maxNbRecords = countAll();
+			} catch (SQLException e) {
+				throw new IllegalStateException("could not count", e);
+			}
+		}
+		return maxNbRecords;
+	}
+	
+	/**
+	 * @throws IllegalStateException if the matches can't be counted
+	 */
+	@Override
+	public synchronized Long getTotalNbRecords() {
+		if (totalNbRecords == null) {
+			try {
+				totalNbRecords = countMatches();
+			} catch (SQLException e) {
+				throw new IllegalStateException("could not count", e);
+			}
+		}
+		return totalNbRecords;
+	}
+	
+	/**
+	 * @throws IllegalStateException from the iterator if a chunk can't be read
+	 */
+	@Override
+	public Iterator<T> iterator() {
+		return new Iterator<T>() {
+			private long lastRecordId = offset;
+			private long remaining = limit == null ? Long.MAX_VALUE : limit;
+			private Iterator<? extends T> chunk = Collections.emptyIterator();
+			private boolean exhausted;
+			
+			@Override
+			public boolean hasNext() {
+				while (!chunk.hasNext()) {
+					if (exhausted || remaining <= 0) {
+						return false;
+					}
+					final int size = (int) Math.min(BluePayDao.SEARCH_FETCH_SIZE, remaining);
+					final List<? extends T> rows;
+					try {
+						rows = search(lastRecordId, size);
+					} catch (SQLException e) {
+						throw new IllegalStateException("could not search", e);
+					}
+					exhausted = rows.size() < size;
+					if (!rows.isEmpty()) {
+						lastRecordId = getRecordId(rows.get(rows.size() - 1));
+					}
+					chunk = rows.iterator();
+				}
+				return true;
+			}
+			
+			@Override
+			public T next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				remaining--;
+				return chunk.next();
+			}
+			
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+}
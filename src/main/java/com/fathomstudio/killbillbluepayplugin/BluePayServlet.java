@@ -31,13 +31,32 @@ import java.io.IOException;
 public class BluePayServlet extends HttpServlet {
 	
 	private final LogService logService;
+	private final BluePayMetrics metrics;
+	private final BluePayHealth health;
 	
-	public BluePayServlet(final LogService logService) {
+	public BluePayServlet(final LogService logService, final BluePayMetrics metrics, final BluePayHealth health) {
 		this.logService = logService;
+		this.metrics = metrics;
+		this.health = health;
 	}
 	
 	@Override
 	protected void doGet(final HttpServletRequest req, final HttpServletResponse resp) throws ServletException, IOException {
+		// scraped by Prometheus on http://killbill:8080/plugins/killbill-bluepay-plugin/metrics
+		if ("/metrics".equals(req.getPathInfo())) {
+			resp.setContentType(BluePayMetrics.CONTENT_TYPE);
+			metrics.write(resp.getWriter());
+			return;
+		}
+		// polled by load balancers: answered from the last background checks, without reaching the database or BluePay
+		if ("/healthz".equals(req.getPathInfo()) || "/readyz".equals(req.getPathInfo())) {
+			final BluePayHealth.Report report = health.check("/readyz".equals(req.getPathInfo()));
+			resp.setStatus(report.isUp() ? HttpServletResponse.SC_OK : HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			resp.setContentType("application/json; charset=utf-8");
+			resp.getWriter().write(report.toJson());
+			return;
+		}
+		
 		// find me on http://killbill:8080/plugins/killbill-bluepay-plugin
 		logService.log(LogService.LOG_INFO, "Hello, world!");
 		resp.getOutputStream().print("Hello, world!");
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.fathomstudio.killbillbluepayplugin;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Times the stages of the calls to one API, across all tenants (payment API) or for one merchant account and mode
+ * (BluePay client), with a {@link BluePayHistogram} per stage and outcome created on first use.
+ */
+public class BluePayTimer {
+	
+	/**
+	 * The stages a call goes through; each API goes through some of them.
+	 */
+	public enum Stage {
+		/** reading the credentials and payment method token, from the caches or the database */
+		LOOKUP,
+		/** reading the Kill Bill account */
+		ACCOUNT,
+		/** journaling the transaction as PENDING before it is sent */
+		CLAIM,
+		/** waiting for a slot in the merchant's bulkhead */
+		BULKHEAD,
+		/** the whole BluePay call, admission included */
+		GATEWAY,
+		/** writing the result to the database */
+		WRITE,
+		/** waiting for the merchant's circuit breaker, rate limit and concurrency limit */
+		ADMISSION,
+		/** building the POST, Tamper Proof Seal included */
+		REQUEST,
+		/** waiting for BluePay's answer */
+		ROUND_TRIP,
+		/** reading BluePay's answer */
+		PARSE,
+		/** the whole call */
+		TOTAL
+	}
+	
+	public enum Outcome {
+		APPROVED,
+		DECLINED,
+		ERROR,
+		/** not sent to the gateway, e.g. while the circuit breaker is open */
+		REJECTED
+	}
+	
+	private static final Stage[] STAGES = Stage.values();
+	private static final Outcome[] OUTCOMES = Outcome.values();
+	
+	private final String scope;
+	private final String api;
+	private final AtomicReferenceArray<BluePayHistogram> histograms = new AtomicReferenceArray<BluePayHistogram>(STAGES.length * OUTCOMES.length);
+	
+	/**
+	 * @return stage timers named "api", or "scope/api" for one merchant account and mode
+	 */
+	public static BluePayRegistry<BluePayTimer> registry() {
+		return new BluePayRegistry<BluePayTimer>(new BluePayRegistry.Factory<BluePayTimer>() {
+			@Override
+			public BluePayTimer create(final String name) {
+				final int separator = name.lastIndexOf('/');
+				return separator < 0 ? new BluePayTimer(null, name) : new BluePayTimer(name.substring(0, separator), name.substring(separator + 1));
+			}
+		});
+	}
+	
+	public BluePayTimer(final String scope, final String api) {
+		this.scope = scope;
+		this.api = api;
+	}
+	
+	/**
+	 * @return the merchant account and mode the calls are made for; null if they are timed across all of them
+	 */
+	public String getScope() {
+		return scope;
+	}
+	
+	/**
+	 * @return the API called, e.g. purchasePayment or bp10emu
+	 */
+	public String getApi() {
+		return api;
+	}
+	
+	/**
+	 * @return the durations of a stage of the calls that ended with the given outcome; null if there was none
+	 */
+	public BluePayHistogram getHistogram(final Stage stage, final Outcome outcome) {
+		return histograms.get(stage.ordinal() * OUTCOMES.length + outcome.ordinal());
+	}
+	
+	private BluePayHistogram histogram(final int stage, final Outcome outcome) {
+		final int index = stage * OUTCOMES.length + outcome.ordinal();
+		BluePayHistogram histogram = histograms.get(index);
+		if (histogram == null) {
+			histograms.compareAndSet(index, null, new BluePayHistogram());
+			histogram = histograms.get(index);
+		}
+		return histogram;
+	}
+	
+	/**
+	 * Starts timing a call.
+	 */
+	public Sample start() {
+		return new Sample();
+	}
+	
+	/**
+	 * The stages of one call, recorded once its outcome is known. Used by one thread at a time.
+	 */
+	public class Sample {
+		
+		private final long start = System.nanoTime();
+		private final long[] durations = new long[STAGES.length];
+		private long mark = start;
+		private int stages;
+		private Outcome outcome = Outcome.ERROR;
+		
+		/**
+		 * Ends a stage: the time since the previous one ended, or since the call started, is counted against it.
+		 */
+		public void stage(final Stage stage) {
+			final long now = System.nanoTime();
+			durations[stage.ordinal()] += now - mark;
+			stages |= 1 << stage.ordinal();
+			mark = now;
+		}
+		
+		/**
+		 * Sets how the call ended; ERROR unless set.
+		 */
+		public void setOutcome(final Outcome outcome) {
+			this.outcome = outcome;
+		}
+		
+		/**
+		 * Records the stages the call went through, and its total duration, under its outcome.
+		 */
+		public void finish() {
+			durations[Stage.TOTAL.ordinal()] = System.nanoTime() - start;
+			stages |= 1 << Stage.TOTAL.ordinal();
+			for (int i = 0; i < durations.length; i++) {
+				if ((stages & 1 << i) != 0) {
+					histogram(i, outcome).record(durations[i]);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbluepayplugin;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.payment.plugin.api.PaymentPluginStatus;
+import org.killbill.billing.payment.plugin.api.PaymentTransactionInfoPlugin;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * One row of the bluePay_transactions journal: a Kill Bill transaction and what the gateway answered. Immutable.
+ *
+ * The first payment reference is the BluePay transaction ID and the second the authorization code.
+ */
+public class BluePayTransaction implements PaymentTransactionInfoPlugin {
+	
+	private final Long recordId;
+	private final UUID kbTenantId;
+	private final UUID kbAccountId;
+	private final UUID kbPaymentId;
+	private final UUID kbTransactionId;
+	private final UUID kbPaymentMethodId;
+	private final TransactionType transactionType;
+	private final BigDecimal amount;
+	private final Currency currency;
+	private final PaymentPluginStatus status;
+	private final String bluePayTransactionId;
+	private final String gatewayStatus;
+	private final String message;
+	private final String avs;
+	private final String cvv2;
+	private final String authCode;
+	private final String maskedAccount;
+	private final String cardType;
+	private final DateTime createdDate;
+	private final DateTime effectiveDate;
+	
+	/**
+	 * @param recordId - the journal's ID of the row, or null if it isn't journaled yet
+	 */
+	public BluePayTransaction(final Long recordId, final UUID kbTenantId, final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId, final UUID kbPaymentMethodId,
+	                          final TransactionType transactionType, final BigDecimal amount, final Currency currency, final PaymentPluginStatus status,
+	                          final String bluePayTransactionId, final String gatewayStatus, final String message, final String avs, final String cvv2,
+	                          final String authCode, final String maskedAccount, final String cardType, final DateTime createdDate, final DateTime effectiveDate) {
+		this.recordId = recordId;
+		this.kbTenantId = kbTenantId;
+		this.kbAccountId = kbAccountId;
+		this.kbPaymentId = kbPaymentId;
+		this.kbTransactionId = kbTransactionId;
+		this.kbPaymentMethodId = kbPaymentMethodId;
+		this.transactionType = transactionType;
+		this.amount = amount;
+		this.currency = currency;
+		this.status = status;
+		this.bluePayTransactionId = bluePayTransactionId;
+		this.gatewayStatus = gatewayStatus;
+		this.message = message;
+		this.avs = avs;
+		this.cvv2 = cvv2;
+		this.authCode = authCode;
+		this.maskedAccount = maskedAccount;
+		this.cardType = cardType;
+		this.createdDate = createdDate;
+		this.effectiveDate = effectiveDate;
+	}
+	
+	/**
+	 * Records the gateway's answer to a transaction: PROCESSED if it was approved, ERROR otherwise.
+	 */
+	public static BluePayTransaction fromResponse(final UUID kbTenantId, final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId,
+	                                              final UUID kbPaymentMethodId, final TransactionType transactionType, final BigDecimal amount,
+	                                              final Currency currency, final BluePayResponse response) {
+		final DateTime now = DateTime.now();
+		return new BluePayTransaction(null, kbTenantId, kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, transactionType, amount, currency,
+				response.isSuccessful() ? PaymentPluginStatus.PROCESSED : PaymentPluginStatus.ERROR, response.getTransID(), response.getStatus(),
+				response.getMessage(), response.getAVS(), response.getCVV2(), response.getAuthCode(), response.getMaskedPaymentAccount(),
+				response.getCardType(), now, now);
+	}
+	
+	/**
+	 * Records that a transaction is being sent to the gateway. It stays PENDING until the gateway's answer replaces it,
+	 * as {@link #fromResponse} never builds a PENDING transaction.
+	 */
+	public static BluePayTransaction pending(final UUID kbTenantId, final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId,
+	                                         final UUID kbPaymentMethodId, final TransactionType transactionType, final BigDecimal amount,
+	                                         final Currency currency) {
+		final DateTime now = DateTime.now();
+		return new BluePayTransaction(null, kbTenantId, kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, transactionType, amount, currency,
+				PaymentPluginStatus.PENDING, null, null, null, null, null, null, null, null, now, now);
+	}
+	
+	/**
+	 * Records a transaction that was not sent to the gateway, e.g. while its circuit breaker is open: CANCELED, which
+	 * lets Kill Bill retry it.
+	 */
+	public static BluePayTransaction canceled(final UUID kbTenantId, final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId,
+	                                          final UUID kbPaymentMethodId, final TransactionType transactionType, final BigDecimal amount,
+	                                          final Currency currency, final String message) {
+		final DateTime now = DateTime.now();
+		return new BluePayTransaction(null, kbTenantId, kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, transactionType, amount, currency,
+				PaymentPluginStatus.CANCELED, null, null, message, null, null, null, null, null, now, now);
+	}
+	
+	/**
+	 * Records a transaction whose outcome is unknown: it may have reached the gateway, e.g. when the connection failed
+	 * or timed out after the request was sent. UNDEFINED, which tells Kill Bill to ask again later, until
+	 * {@link #reconcile} settles it.
+	 */
+	public static BluePayTransaction undefined(final UUID kbTenantId, final UUID kbAccountId, final UUID kbPaymentId, final UUID kbTransactionId,
+	                                           final UUID kbPaymentMethodId, final TransactionType transactionType, final BigDecimal amount,
+	                                           final Currency currency, final String message) {
+		final DateTime now = DateTime.now();
+		return new BluePayTransaction(null, kbTenantId, kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, transactionType, amount, currency,
+				PaymentPluginStatus.UNDEFINED, null, null, message, null, null, null, null, null, now, now);
+	}
+	
+	/**
+	 * Settles this transaction with what an stq lookup by its order ID returned: PROCESSED if the gateway approved it,
+	 * ERROR if it declined or failed it.
+	 *
+	 * @return the settled transaction, or null if the lookup didn't find one
+	 */
+	public BluePayTransaction reconcile(final BluePayResponse query) {
+		final String id = emptyToNull(query.get("id"));
+		if (id == null) {
+			return null;
+		}
+		final String result = query.get("status");
+		final boolean approved = "1".equals(result);
+		return new BluePayTransaction(recordId, kbTenantId, kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, transactionType, amount, currency,
+				approved ? PaymentPluginStatus.PROCESSED : PaymentPluginStatus.ERROR, id, approved ? "APPROVED" : "0".equals(result) ? "DECLINED" : "ERROR",
+				query.get("message"), null, null, emptyToNull(query.get("auth_code")), emptyToNull(query.get("payment_account")),
+				emptyToNull(query.get("card_type")), createdDate, DateTime.now());
+	}
+	
+	/**
+	 * @return this transaction, CANCELED: it never reached the gateway, so it may be sent again
+	 */
+	public BluePayTransaction cancel(final String message) {
+		return new BluePayTransaction(recordId, kbTenantId, kbAccountId, kbPaymentId, kbTransactionId, kbPaymentMethodId, transactionType, amount, currency,
+				PaymentPluginStatus.CANCELED, null, null, message, null, null, null, null, null, createdDate, DateTime.now());
+	}
+	
+	/**
+	 * @return the journal's ID of the row, or null if it isn't journaled yet
+	 */
+	public Long getRecordId() {
+		return recordId;
+	}
+	
+	public UUID getKbTenantId() {
+		return kbTenantId;
+	}
+	
+	public UUID getKbAccountId() {
+		return kbAccountId;
+	}
+	
+	@Override
+	public UUID getKbPaymentId() {
+		return kbPaymentId;
+	}
+	
+	@Override
+	public UUID getKbTransactionPaymentId() {
+		return kbTransactionId;
+	}
+	
+	public UUID getKbPaymentMethodId() {
+		return kbPaymentMethodId;
+	}
+	
+	@Override
+	public TransactionType getTransactionType() {
+		return transactionType;
+	}
+	
+	@Override
+	public BigDecimal getAmount() {
+		return amount;
+	}
+	
+	@Override
+	public Currency getCurrency() {
+		return currency;
+	}
+	
+	@Override
+	public DateTime getCreatedDate() {
+		return createdDate;
+	}
+	
+	@Override
+	public DateTime getEffectiveDate() {
+		return effectiveDate;
+	}
+	
+	@Override
+	public PaymentPluginStatus getStatus() {
+		return status;
+	}
+	
+	/**
+	 * @return the gateway's message, e.g. "Approved" or "Declined: Hold Card"
+	 */
+	@Override
+	public String getGatewayError() {
+		return message;
+	}
+	
+	/**
+	 * @return the gateway's result: APPROVED, DECLINED, ERROR or MISSING
+	 */
+	@Override
+	public String getGatewayErrorCode() {
+		return gatewayStatus;
+	}
+	
+	@Override
+	public String getFirstPaymentReferenceId() {
+		return bluePayTransactionId;
+	}
+	
+	@Override
+	public String getSecondPaymentReferenceId() {
+		return authCode;
+	}
+	
+	public String getBluePayTransactionId() {
+		return bluePayTransactionId;
+	}
+	
+	public String getAVS() {
+		return avs;
+	}
+	
+	public String getCVV2() {
+		return cvv2;
+	}
+	
+	public String getAuthCode() {
+		return authCode;
+	}
+	
+	public String getMaskedAccount() {
+		return maskedAccount;
+	}
+	
+	public String getCardType() {
+		return cardType;
+	}
+	
+	/**
+	 * @return the AVS and CVV2 results, masked account and card type, when the gateway returned them
+	 */
+	@Override
+	public List<PluginProperty> getProperties() {
+		final List<PluginProperty> properties = new ArrayList<PluginProperty>(4);
+		addProperty(properties, "avs", avs);
+		addProperty(properties, "cvv2", cvv2);
+		addProperty(properties, "maskedPaymentAccount", maskedAccount);
+		addProperty(properties, "cardType", cardType);
+		return properties;
+	}
+	
+	private static String emptyToNull(final String value) {
+		return value == null || value.isEmpty() ? null : value;
+	}
+	
+	private static void addProperty(final List<PluginProperty> properties, final String key, final String value) {
+		if (value != null) {
+			properties.add(new PluginProperty(key, value, false));
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return "BluePayTransaction{kbPaymentId=" + kbPaymentId + ", kbTransactionId=" + kbTransactionId + ", transactionType=" + transactionType
+				+ ", status=" + status + ", bluePayTransactionId=" + bluePayTransactionId + ", message=" + message + "}";
+	}
+}
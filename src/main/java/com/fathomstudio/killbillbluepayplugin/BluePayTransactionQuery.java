@@ -0,0 +1,104 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbluepayplugin;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An stq (single transaction query) call looking up one transaction, by its BluePay transaction ID or by the order ID
+ * it was sent with.
+ */
+public class BluePayTransactionQuery extends BluePayRequest {
+	
+	private final String field;
+	private final String value;
+	private final String reportStart;
+	private final String reportEnd;
+	private final String excludeErrors;
+	
+	/**
+	 * @param transactionId - the transaction to look up
+	 * @param reportStart   - the start of the date range searched, required by the seal
+	 * @param reportEnd     - the end of the date range searched, required by the seal
+	 * @param excludeErrors - whether errored transactions are left out
+	 */
+	public BluePayTransactionQuery(final BluePayCredentials credentials, final String transactionId, final String reportStart, final String reportEnd, final boolean excludeErrors) {
+		this(credentials, "id", transactionId, reportStart, reportEnd, excludeErrors);
+	}
+	
+	private BluePayTransactionQuery(final BluePayCredentials credentials, final String field, final String value, final String reportStart, final String reportEnd, final boolean excludeErrors) {
+		super(credentials);
+		this.field = field;
+		this.value = nullToEmpty(value);
+		this.reportStart = nullToEmpty(reportStart);
+		this.reportEnd = nullToEmpty(reportEnd);
+		this.excludeErrors = flag(excludeErrors);
+	}
+	
+	/**
+	 * @param orderId - the order ID the transaction was sent with
+	 * @see #BluePayTransactionQuery(BluePayCredentials, String, String, String, boolean)
+	 */
+	public static BluePayTransactionQuery byOrderId(final BluePayCredentials credentials, final String orderId, final String reportStart, final String reportEnd, final boolean excludeErrors) {
+		return new BluePayTransactionQuery(credentials, "order_id", orderId, reportStart, reportEnd, excludeErrors);
+	}
+	
+	@Override
+	public String getApi() {
+		return "stq";
+	}
+	
+	/**
+	 * @return the transaction ID looked up, or null if the query is by order ID
+	 */
+	public String getTransactionId() {
+		return "id".equals(field) ? value : null;
+	}
+	
+	/**
+	 * @return the order ID looked up, or null if the query is by transaction ID
+	 */
+	public String getOrderId() {
+		return "order_id".equals(field) ? value : null;
+	}
+	
+	public String getReportStart() {
+		return reportStart;
+	}
+	
+	public String getReportEnd() {
+		return reportEnd;
+	}
+	
+	@Override
+	List<NameValuePair> toParameters() {
+		final List<NameValuePair> parameters = new ArrayList<NameValuePair>(7);
+		parameters.add(new BasicNameValuePair("MODE", getCredentials().getMode()));
+		parameters.add(new BasicNameValuePair("ACCOUNT_ID", getCredentials().getAccountId()));
+		parameters.add(new BasicNameValuePair("TAMPER_PROOF_SEAL", calcReportTPS(getCredentials(), reportStart, reportEnd)));
+		parameters.add(new BasicNameValuePair("REPORT_START_DATE", reportStart));
+		parameters.add(new BasicNameValuePair("REPORT_END_DATE", reportEnd));
+		parameters.add(new BasicNameValuePair("EXCLUDE_ERRORS", excludeErrors));
+		parameters.add(new BasicNameValuePair(field, value));
+		return parameters;
+	}
+}
@@ -0,0 +1,436 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbluepayplugin;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.message.BasicNameValuePair;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A bp10emu transaction: SALE, AUTH, CAPTURE, REFUND or VOID, paid with a card, a bank account or a previous
+ * transaction (token). Built with one of the static factories, e.g.
+ * {@code BluePayTransactionRequest.sale(credentials, "10.00").transactionId(token).orderId(id).build()}.
+ */
+public class BluePayTransactionRequest extends BluePayRequest {
+	
+	public static final String CREDIT = "CREDIT";
+	public static final String ACH = "ACH";
+	
+	private final String transactionType;
+	private final String amount;
+	private final String transactionId;
+	private final String paymentType;
+	private final String cardNumber;
+	private final String cardExpire;
+	private final String cvv2;
+	private final String achRouting;
+	private final String achAccount;
+	private final String achAccountType;
+	private final String docType;
+	private final String swipe;
+	private final String name1;
+	private final String name2;
+	private final String addr1;
+	private final String addr2;
+	private final String city;
+	private final String state;
+	private final String zip;
+	private final String country;
+	private final String phone;
+	private final String email;
+	private final String memo;
+	private final String customId1;
+	private final String customId2;
+	private final String orderId;
+	private final String invoiceId;
+	private final String amountTax;
+	private final String amountTip;
+	private final String amountFood;
+	private final String amountMisc;
+	private final String rebilling;
+	private final String rebFirstDate;
+	private final String rebExpr;
+	private final String rebCycles;
+	private final String rebAmount;
+	private final String customerIp;
+	
+	private BluePayTransactionRequest(final Builder builder) {
+		super(builder.credentials);
+		transactionType = builder.transactionType;
+		amount = builder.amount;
+		transactionId = builder.transactionId;
+		paymentType = builder.paymentType;
+		cardNumber = builder.cardNumber;
+		cardExpire = builder.cardExpire;
+		cvv2 = builder.cvv2;
+		achRouting = builder.achRouting;
+		achAccount = builder.achAccount;
+		achAccountType = builder.achAccountType;
+		docType = builder.docType;
+		swipe = builder.swipe;
+		name1 = builder.name1;
+		name2 = builder.name2;
+		addr1 = builder.addr1;
+		addr2 = builder.addr2;
+		city = builder.city;
+		state = builder.state;
+		zip = builder.zip;
+		country = builder.country;
+		phone = builder.phone;
+		email = builder.email;
+		memo = builder.memo;
+		customId1 = builder.customId1;
+		customId2 = builder.customId2;
+		orderId = builder.orderId;
+		invoiceId = builder.invoiceId;
+		amountTax = builder.amountTax;
+		amountTip = builder.amountTip;
+		amountFood = builder.amountFood;
+		amountMisc = builder.amountMisc;
+		rebilling = builder.rebilling;
+		rebFirstDate = builder.rebFirstDate;
+		rebExpr = builder.rebExpr;
+		rebCycles = builder.rebCycles;
+		rebAmount = builder.rebAmount;
+		customerIp = builder.customerIp;
+	}
+	
+	/**
+	 * A SALE both authorizes the payment and captures the funds in one step.
+	 *
+	 * @param amount - the amount, e.g. "10.00"
+	 */
+	public static Builder sale(final BluePayCredentials credentials, final String amount) {
+		return new Builder(credentials, "SALE", amount);
+	}
+	
+	/**
+	 * An AUTH guarantees the funds for a later CAPTURE without transferring them. A $0 AUTH stores the payment
+	 * information as a token.
+	 *
+	 * @param amount - the amount, e.g. "10.00"
+	 */
+	public static Builder auth(final BluePayCredentials credentials, final String amount) {
+		return new Builder(credentials, "AUTH", amount);
+	}
+	
+	/**
+	 * @param transactionId - the AUTH to capture
+	 * @param amount        - the amount to capture, or empty for the whole authorization
+	 */
+	public static Builder capture(final BluePayCredentials credentials, final String transactionId, final String amount) {
+		return new Builder(credentials, "CAPTURE", amount).transactionId(transactionId);
+	}
+	
+	/**
+	 * @param transactionId - the transaction to refund
+	 * @param amount        - the amount to refund, or empty for the whole transaction
+	 */
+	public static Builder refund(final BluePayCredentials credentials, final String transactionId, final String amount) {
+		return new Builder(credentials, "REFUND", amount).transactionId(transactionId);
+	}
+	
+	/**
+	 * @param transactionId - the transaction to void
+	 */
+	public static Builder voidTransaction(final BluePayCredentials credentials, final String transactionId) {
+		return new Builder(credentials, "VOID", "").transactionId(transactionId);
+	}
+	
+	@Override
+	public String getApi() {
+		return "bp10emu";
+	}
+	
+	public String getTransactionType() {
+		return transactionType;
+	}
+	
+	public String getAmount() {
+		return amount;
+	}
+	
+	/**
+	 * @return the referenced transaction (RRNO): the token paid with, or the transaction captured, refunded or voided
+	 */
+	public String getTransactionId() {
+		return transactionId;
+	}
+	
+	public String getPaymentType() {
+		return paymentType;
+	}
+	
+	public String getOrderId() {
+		return orderId;
+	}
+	
+	/**
+	 * Calculates the TAMPER_PROOF_SEAL sent with the transaction.
+	 */
+	String calcTPS() {
+		final BluePayCredentials credentials = getCredentials();
+		return BluePaySeal.sha512().update(credentials.getSecretKey()).update(credentials.getAccountId()).update(transactionType).update(amount)
+				.update(rebilling).update(rebFirstDate).update(rebExpr).update(rebCycles).update(rebAmount).update(transactionId)
+				.update(credentials.getMode()).toHex();
+	}
+	
+	@Override
+	List<NameValuePair> toParameters() {
+		final List<NameValuePair> parameters = new ArrayList<NameValuePair>(44);
+		parameters.add(new BasicNameValuePair("MODE", getCredentials().getMode()));
+		parameters.add(new BasicNameValuePair("MERCHANT", getCredentials().getAccountId()));
+		parameters.add(new BasicNameValuePair("TAMPER_PROOF_SEAL", calcTPS()));
+		parameters.add(new BasicNameValuePair("CUSTOMER_IP", customerIp));
+		parameters.add(new BasicNameValuePair("PAYMENT_TYPE", paymentType));
+		parameters.add(new BasicNameValuePair("TRANSACTION_TYPE", transactionType));
+		parameters.add(new BasicNameValuePair("AMOUNT", amount));
+		parameters.add(new BasicNameValuePair("NAME1", name1));
+		parameters.add(new BasicNameValuePair("NAME2", name2));
+		parameters.add(new BasicNameValuePair("ADDR1", addr1));
+		parameters.add(new BasicNameValuePair("ADDR2", addr2));
+		parameters.add(new BasicNameValuePair("CITY", city));
+		parameters.add(new BasicNameValuePair("STATE", state));
+		parameters.add(new BasicNameValuePair("ZIPCODE", zip));
+		parameters.add(new BasicNameValuePair("PHONE", phone));
+		parameters.add(new BasicNameValuePair("EMAIL", email));
+		parameters.add(new BasicNameValuePair("COUNTRY", country));
+		parameters.add(new BasicNameValuePair("RRNO", transactionId));
+		parameters.add(new BasicNameValuePair("CUSTOM_ID", customId1));
+		parameters.add(new BasicNameValuePair("CUSTOM_ID2", customId2));
+		parameters.add(new BasicNameValuePair("INVOICE_ID", invoiceId));
+		parameters.add(new BasicNameValuePair("ORDER_ID", orderId));
+		parameters.add(new BasicNameValuePair("COMMENT", memo));
+		parameters.add(new BasicNameValuePair("AMOUNT_TIP", amountTip));
+		parameters.add(new BasicNameValuePair("AMOUNT_TAX", amountTax));
+		parameters.add(new BasicNameValuePair("AMOUNT_FOOD", amountFood));
+		parameters.add(new BasicNameValuePair("AMOUNT_MISC", amountMisc));
+		parameters.add(new BasicNameValuePair("REBILLING", rebilling));
+		parameters.add(new BasicNameValuePair("REB_FIRST_DATE", rebFirstDate));
+		parameters.add(new BasicNameValuePair("REB_EXPR", rebExpr));
+		parameters.add(new BasicNameValuePair("REB_CYCLES", rebCycles));
+		parameters.add(new BasicNameValuePair("REB_AMOUNT", rebAmount));
+		parameters.add(new BasicNameValuePair("SWIPE", swipe));
+		parameters.add(new BasicNameValuePair("TPS_HASH_TYPE", "SHA512"));
+		if (CREDIT.equals(paymentType)) {
+			parameters.add(new BasicNameValuePair("CC_NUM", cardNumber));
+			parameters.add(new BasicNameValuePair("CC_EXPIRES", cardExpire));
+			parameters.add(new BasicNameValuePair("CVCCVV2", cvv2));
+		} else if (ACH.equals(paymentType)) {
+			parameters.add(new BasicNameValuePair("ACH_ROUTING", achRouting));
+			parameters.add(new BasicNameValuePair("ACH_ACCOUNT", achAccount));
+			parameters.add(new BasicNameValuePair("ACH_ACCOUNT_TYPE", achAccountType));
+			parameters.add(new BasicNameValuePair("DOC_TYPE", docType));
+		}
+		return parameters;
+	}
+	
+	/**
+	 * Collects the optional fields of a transaction; unset fields are sent empty.
+	 */
+	public static class Builder {
+		
+		private final BluePayCredentials credentials;
+		private final String transactionType;
+		private final String amount;
+		private String transactionId = "";
+		private String paymentType = "";
+		private String cardNumber = "";
+		private String cardExpire = "";
+		private String cvv2 = "";
+		private String achRouting = "";
+		private String achAccount = "";
+		private String achAccountType = "";
+		private String docType = "";
+		private String swipe = "";
+		private String name1 = "";
+		private String name2 = "";
+		private String addr1 = "";
+		private String addr2 = "";
+		private String city = "";
+		private String state = "";
+		private String zip = "";
+		private String country = "";
+		private String phone = "";
+		private String email = "";
+		private String memo = "";
+		private String customId1 = "";
+		private String customId2 = "";
+		private String orderId = "";
+		private String invoiceId = "";
+		private String amountTax = "";
+		private String amountTip = "";
+		private String amountFood = "";
+		private String amountMisc = "";
+		private String rebilling = "0";
+		private String rebFirstDate = "";
+		private String rebExpr = "";
+		private String rebCycles = "";
+		private String rebAmount = "";
+		private String customerIp = "";
+		
+		private Builder(final BluePayCredentials credentials, final String transactionType, final String amount) {
+			this.credentials = credentials;
+			this.transactionType = transactionType;
+			this.amount = nullToEmpty(amount);
+		}
+		
+		/**
+		 * @param transactionId - a previous transaction whose customer and payment information is reused (a token)
+		 */
+		public Builder transactionId(final String transactionId) {
+			this.transactionId = nullToEmpty(transactionId);
+			return this;
+		}
+		
+		/**
+		 * @param cardNumber - the card number, digits only
+		 * @param expire     - the expiration date, MMYY
+		 * @param cvv2       - the card verification value
+		 */
+		public Builder creditCard(final String cardNumber, final String expire, final String cvv2) {
+			this.paymentType = CREDIT;
+			this.cardNumber = nullToEmpty(cardNumber);
+			this.cardExpire = nullToEmpty(expire);
+			this.cvv2 = nullToEmpty(cvv2);
+			return this;
+		}
+		
+		/**
+		 * @param routingNumber - the 9-digit routing number, including leading zeros
+		 * @param accountNumber - the account number, including leading zeros
+		 * @param accountType   - checking ("C") or savings ("S"); may be empty
+		 * @param docType       - PPD, CCD, TEL, WEB or ARC; the gateway defaults to WEB when empty
+		 */
+		public Builder ach(final String routingNumber, final String accountNumber, final String accountType, final String docType) {
+			this.paymentType = ACH;
+			this.achRouting = nullToEmpty(routingNumber);
+			this.achAccount = nullToEmpty(accountNumber);
+			this.achAccountType = nullToEmpty(accountType);
+			this.docType = nullToEmpty(docType);
+			return this;
+		}
+		
+		/**
+		 * @param trackData - track 1 and track 2 data read from the card
+		 */
+		public Builder swipe(final String trackData) {
+			this.swipe = nullToEmpty(trackData);
+			return this;
+		}
+		
+		public Builder name(final String firstName, final String lastName) {
+			this.name1 = nullToEmpty(firstName);
+			this.name2 = nullToEmpty(lastName);
+			return this;
+		}
+		
+		public Builder address(final String address1, final String address2, final String city, final String state, final String zip, final String country) {
+			this.addr1 = nullToEmpty(address1);
+			this.addr2 = nullToEmpty(address2);
+			this.city = nullToEmpty(city);
+			this.state = nullToEmpty(state);
+			this.zip = nullToEmpty(zip);
+			this.country = nullToEmpty(country);
+			return this;
+		}
+		
+		public Builder phone(final String phone) {
+			this.phone = nullToEmpty(phone);
+			return this;
+		}
+		
+		public Builder email(final String email) {
+			this.email = nullToEmpty(email);
+			return this;
+		}
+		
+		public Builder memo(final String memo) {
+			this.memo = nullToEmpty(memo);
+			return this;
+		}
+		
+		public Builder customId1(final String customId1) {
+			this.customId1 = nullToEmpty(customId1);
+			return this;
+		}
+		
+		public Builder customId2(final String customId2) {
+			this.customId2 = nullToEmpty(customId2);
+			return this;
+		}
+		
+		public Builder orderId(final String orderId) {
+			this.orderId = nullToEmpty(orderId);
+			return this;
+		}
+		
+		public Builder invoiceId(final String invoiceId) {
+			this.invoiceId = nullToEmpty(invoiceId);
+			return this;
+		}
+		
+		public Builder amountTax(final String amountTax) {
+			this.amountTax = nullToEmpty(amountTax);
+			return this;
+		}
+		
+		public Builder amountTip(final String amountTip) {
+			this.amountTip = nullToEmpty(amountTip);
+			return this;
+		}
+		
+		public Builder amountFood(final String amountFood) {
+			this.amountFood = nullToEmpty(amountFood);
+			return this;
+		}
+		
+		public Builder amountMisc(final String amountMisc) {
+			this.amountMisc = nullToEmpty(amountMisc);
+			return this;
+		}
+		
+		/**
+		 * Adds rebilling to an AUTH or SALE.
+		 *
+		 * @param amount    - the amount to rebill
+		 * @param firstDate - the first rebilling date, as an ISO date or an expression such as "1 MONTH"
+		 * @param expr      - how often to rebill, e.g. "1 MONTH" or "1 YEAR"
+		 * @param cycles    - how many times to rebill; rebills forever when empty
+		 */
+		public Builder rebilling(final String amount, final String firstDate, final String expr, final String cycles) {
+			this.rebilling = "1";
+			this.rebAmount = nullToEmpty(amount);
+			this.rebFirstDate = nullToEmpty(firstDate);
+			this.rebExpr = nullToEmpty(expr);
+			this.rebCycles = nullToEmpty(cycles);
+			return this;
+		}
+		
+		public Builder customerIp(final String customerIp) {
+			this.customerIp = nullToEmpty(customerIp);
+			return this;
+		}
+		
+		public BluePayTransactionRequest build() {
+			return new BluePayTransactionRequest(this);
+		}
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbluepayplugin;
+
+import org.killbill.billing.payment.plugin.api.PaymentTransactionInfoPlugin;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A page of searchPayments results, read from the transaction journal. See {@link BluePaySearch} for the offsets
+ * and how rows are read.
+ */
+public class BluePayTransactionSearch extends BluePaySearch<PaymentTransactionInfoPlugin> {
+	
+	private final BluePayDao dao;
+	private final UUID kbTenantId;
+	private final String searchKey;
+	
+	/**
+	 * @param offset - the record ID the page starts after; 0 for the first page
+	 * @param limit  - the maximum number of rows, or null for every match
+	 */
+	public BluePayTransactionSearch(final BluePayDao dao, final UUID kbTenantId, final String searchKey, final long offset, final Long limit) {
+		super(offset, limit);
+		this.dao = dao;
+		this.kbTenantId = kbTenantId;
+		this.searchKey = searchKey;
+	}
+	
+	@Override
+	protected List<BluePayTransaction> search(final long afterRecordId, final int limit) throws SQLException {
+		return dao.searchTransactions(kbTenantId, searchKey, afterRecordId, limit);
+	}
+	
+	@Override
+	protected Long getNextRecordId(final long afterRecordId, final int limit) throws SQLException {
+		return dao.getSearchNextRecordId(kbTenantId, searchKey, afterRecordId, limit);
+	}
+	
+	@Override
+	protected long countAll() throws SQLException {
+		return dao.countTransactions(kbTenantId);
+	}
+	
+	@Override
+	protected long countMatches() throws SQLException {
+		return dao.countSearchTransactions(kbTenantId, searchKey);
+	}
+	
+	@Override
+	protected long getRecordId(final PaymentTransactionInfoPlugin row) {
+		return ((BluePayTransaction) row).getRecordId();
+	}
+}
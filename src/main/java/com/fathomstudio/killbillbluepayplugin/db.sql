@@ -1,9 +1,21 @@
 DROP TABLE IF EXISTS `bluePay_paymentMethods`;
 CREATE TABLE `bluePay_paymentMethods` (
   `id`              INT(11)      NOT NULL AUTO_INCREMENT PRIMARY KEY,
+  `tenantId`        VARCHAR(255),
+  `kbAccountId`     VARCHAR(255),
   `paymentMethodId` VARCHAR(255) NOT NULL UNIQUE,
   `transactionId`   VARCHAR(255) NOT NULL,
-  INDEX `INDEX_bluePay_paymentMethods_ON_paymentMethodId`(`paymentMethodId`)
+  `cardType`        VARCHAR(32),
+  `lastFour`        VARCHAR(4),
+  `maskedAccount`   VARCHAR(255),
+  `bankName`        VARCHAR(255),
+  `expiration`      VARCHAR(8),
+  INDEX `INDEX_bluePay_paymentMethods_ON_paymentMethodId`(`paymentMethodId`),
+  INDEX `INDEX_bluePay_paymentMethods_ON_tenantId_paymentMethodId`(`tenantId`, `paymentMethodId`),
+  INDEX `INDEX_bluePay_paymentMethods_ON_transactionId`(`tenantId`, `transactionId`),
+  INDEX `INDEX_bluePay_paymentMethods_ON_cardType`(`tenantId`, `cardType`),
+  INDEX `INDEX_bluePay_paymentMethods_ON_lastFour`(`tenantId`, `lastFour`),
+  INDEX `INDEX_bluePay_paymentMethods_ON_kbAccountId`(`tenantId`, `kbAccountId`)
 )
   ENGINE = InnoDB
   CHARACTER SET utf8
@@ -21,4 +33,35 @@ CREATE TABLE `bluePay_credentials` (
 )
   ENGINE = InnoDB
   CHARACTER SET utf8
-  COLLATE utf8_bin;
\ No newline at end of file
+  COLLATE utf8_bin;
+DROP TABLE IF EXISTS `bluePay_transactions`;
+CREATE TABLE `bluePay_transactions` (
+  `id`                   BIGINT(20)     NOT NULL AUTO_INCREMENT PRIMARY KEY,
+  `tenantId`             VARCHAR(255)   NOT NULL,
+  `kbAccountId`          VARCHAR(255)   NOT NULL,
+  `kbPaymentId`          VARCHAR(255)   NOT NULL,
+  `kbTransactionId`      VARCHAR(255)   NOT NULL UNIQUE,
+  `kbPaymentMethodId`    VARCHAR(255),
+  `transactionType`      VARCHAR(32)    NOT NULL,
+  `amount`               DECIMAL(15, 9),
+  `currency`             CHAR(3),
+  `status`               VARCHAR(32)    NOT NULL,
+  `bluePayTransactionId` VARCHAR(255),
+  `gatewayStatus`        VARCHAR(32),
+  `message`              TEXT,
+  `avs`                  VARCHAR(8),
+  `cvv2`                 VARCHAR(8),
+  `authCode`             VARCHAR(32),
+  `maskedAccount`        VARCHAR(255),
+  `cardType`             VARCHAR(32),
+  `createdDate`          DATETIME       NOT NULL,
+  `effectiveDate`        DATETIME       NOT NULL,
+  INDEX `INDEX_bluePay_transactions_ON_kbPaymentId`(`tenantId`, `kbPaymentId`),
+  INDEX `INDEX_bluePay_transactions_ON_kbTransactionId`(`tenantId`, `kbTransactionId`),
+  INDEX `INDEX_bluePay_transactions_ON_bluePayTransactionId`(`tenantId`, `bluePayTransactionId`),
+  INDEX `INDEX_bluePay_transactions_ON_maskedAccount`(`tenantId`, `maskedAccount`),
+  INDEX `INDEX_bluePay_transactions_ON_status`(`tenantId`, `status`)
+)
+  ENGINE = InnoDB
+  CHARACTER SET utf8
+  COLLATE utf8_bin;
@@ -0,0 +1,51 @@
+-- Upgrades the tables of an earlier release in place; new installations use db.sql.
+
+ALTER TABLE `bluePay_paymentMethods`
+  ADD COLUMN `tenantId`    VARCHAR(255) AFTER `id`,
+  ADD COLUMN `kbAccountId` VARCHAR(255) AFTER `tenantId`,
+  ADD COLUMN `cardType`    VARCHAR(32),
+  ADD COLUMN `lastFour`    VARCHAR(4),
+  ADD INDEX `INDEX_bluePay_paymentMethods_ON_tenantId_paymentMethodId`(`tenantId`, `paymentMethodId`),
+  ADD INDEX `INDEX_bluePay_paymentMethods_ON_transactionId`(`tenantId`, `transactionId`),
+  ADD INDEX `INDEX_bluePay_paymentMethods_ON_cardType`(`tenantId`, `cardType`),
+  ADD INDEX `INDEX_bluePay_paymentMethods_ON_kbAccountId`(`tenantId`, `kbAccountId`),
+  ADD INDEX `INDEX_bluePay_paymentMethods_ON_lastFour`(`tenantId`, `lastFour`);
+
+-- Older rows only have the token: take their tenant and account from Kill Bill's own payment methods, so search
+-- finds them. Card type and last four digits stay empty until the payment method is stored again.
+UPDATE `bluePay_paymentMethods` m
+  JOIN `payment_methods` pm ON pm.`id` = m.`paymentMethodId`
+  JOIN `tenants` t ON t.`record_id` = pm.`tenant_record_id`
+SET m.`tenantId` = t.`id`, m.`kbAccountId` = pm.`account_id`
+WHERE m.`tenantId` IS NULL;
+
+CREATE TABLE IF NOT EXISTS `bluePay_transactions` (
+  `id`                   BIGINT(20)     NOT NULL AUTO_INCREMENT PRIMARY KEY,
+  `tenantId`             VARCHAR(255)   NOT NULL,
+  `kbAccountId`          VARCHAR(255)   NOT NULL,
+  `kbPaymentId`          VARCHAR(255)   NOT NULL,
+  `kbTransactionId`      VARCHAR(255)   NOT NULL UNIQUE,
+  `kbPaymentMethodId`    VARCHAR(255),
+  `transactionType`      VARCHAR(32)    NOT NULL,
+  `amount`               DECIMAL(15, 9),
+  `currency`             CHAR(3),
+  `status`               VARCHAR(32)    NOT NULL,
+  `bluePayTransactionId` VARCHAR(255),
+  `gatewayStatus`        VARCHAR(32),
+  `message`              TEXT,
+  `avs`                  VARCHAR(8),
+  `cvv2`                 VARCHAR(8),
+  `authCode`             VARCHAR(32),
+  `maskedAccount`        VARCHAR(255),
+  `cardType`             VARCHAR(32),
+  `createdDate`          DATETIME       NOT NULL,
+  `effectiveDate`        DATETIME       NOT NULL,
+  INDEX `INDEX_bluePay_transactions_ON_kbPaymentId`(`tenantId`, `kbPaymentId`),
+  INDEX `INDEX_bluePay_transactions_ON_kbTransactionId`(`tenantId`, `kbTransactionId`),
+  INDEX `INDEX_bluePay_transactions_ON_bluePayTransactionId`(`tenantId`, `bluePayTransactionId`),
+  INDEX `INDEX_bluePay_transactions_ON_maskedAccount`(`tenantId`, `maskedAccount`),
+  INDEX `INDEX_bluePay_transactions_ON_status`(`tenantId`, `status`)
+)
+  ENGINE = InnoDB
+  CHARACTER SET utf8
+  COLLATE utf8_bin;
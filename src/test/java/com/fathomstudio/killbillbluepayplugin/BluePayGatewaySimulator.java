@@ -0,0 +1,546 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbluepayplugin;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process BluePay gateway for load and latency testing. Speaks bp10emu (302 with the result in the Location
+ * query string), bp20rebadmin, stq and bpdailyreport2, checks every Tamper Proof Seal against the registered merchants,
+ * and can inject latency, declines, errors and timeouts.
+ *
+ * Point the plugin at {@link #getGatewayUrl()} through {@link BluePayPaymentPluginApi#GATEWAY_URL_PROPERTY}, or run
+ * {@link #main(String[])} to start a standalone simulator.
+ */
+public class BluePayGatewaySimulator implements Closeable {
+	
+	private static final String[] REPORT_COLUMNS = {"id", "payment_type", "trans_type", "amount", "card_type", "payment_account",
+			"order_id", "invoice_id", "custom_id", "custom_id2", "master_id", "status", "f_void", "message", "origin",
+			"issue_date", "settle_date", "rebilling_id", "settlement_id", "card_expire", "bank_name", "name1", "name2"};
+	
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final Map<String, String> secretKeys = new ConcurrentHashMap<String, String>();
+	private final Map<String, Map<String, String>> transactions;
+	private final AtomicLong transactionIds = new AtomicLong(100000000000L);
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong sealFailures = new AtomicLong();
+	
+	private volatile long latencyMillis;
+	private volatile long latencyJitterMillis;
+	private volatile double declineRate;
+	private volatile double errorRate;
+	private volatile double timeoutRate;
+	private volatile long timeoutMillis = TimeUnit.MINUTES.toMillis(2);
+	private volatile int reportRows = -1;
+	
+	/**
+	 * Starts a simulator on an ephemeral port of the loopback interface.
+	 */
+	public BluePayGatewaySimulator() throws IOException {
+		this(0);
+	}
+	
+	public BluePayGatewaySimulator(final int port) throws IOException {
+		// keep the last transactions around so that tokens, stq and reports can refer to them
+		transactions = Collections.synchronizedMap(new LinkedHashMap<String, Map<String, String>>() {
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<String, Map<String, String>> eldest) {
+				return size() > 100000;
+			}
+		});
+		executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				final Thread thread = new Thread(runnable, "bluepay-simulator");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 4096);
+		server.createContext("/interfaces/bp10emu", new Bp10emuHandler());
+		server.createContext("/interfaces/bp20rebadmin", new RebillHandler());
+		server.createContext("/interfaces/stq", new SingleTransQueryHandler());
+		server.createContext("/interfaces/bpdailyreport2", new ReportHandler());
+		server.setExecutor(executor);
+		server.start();
+	}
+	
+	/**
+	 * Registers a merchant; requests for unknown merchants or with a wrong seal get a security error.
+	 */
+	public BluePayGatewaySimulator addMerchant(final String accountId, final String secretKey) {
+		secretKeys.put(accountId, secretKey);
+		return this;
+	}
+	
+	/**
+	 * @param latencyMillis       - fixed delay added to every response
+	 * @param latencyJitterMillis - additional uniformly distributed delay
+	 */
+	public BluePayGatewaySimulator setLatency(final long latencyMillis, final long latencyJitterMillis) {
+		this.latencyMillis = latencyMillis;
+		this.latencyJitterMillis = latencyJitterMillis;
+		return this;
+	}
+	
+	/**
+	 * @param declineRate - share of bp10emu transactions declined, between 0 and 1
+	 */
+	public BluePayGatewaySimulator setDeclineRate(final double declineRate) {
+		this.declineRate = declineRate;
+		return this;
+	}
+	
+	/**
+	 * @param errorRate - share of requests answered with a gateway error, between 0 and 1
+	 */
+	public BluePayGatewaySimulator setErrorRate(final double errorRate) {
+		this.errorRate = errorRate;
+		return this;
+	}
+	
+	/**
+	 * @param timeoutRate   - share of requests that hang instead of being answered, between 0 and 1
+	 * @param timeoutMillis - how long those requests hang before the connection is dropped
+	 */
+	public BluePayGatewaySimulator setTimeouts(final double timeoutRate, final long timeoutMillis) {
+		this.timeoutRate = timeoutRate;
+		this.timeoutMillis = timeoutMillis;
+		return this;
+	}
+	
+	/**
+	 * @param reportRows - number of synthetic rows returned by bpdailyreport2, or -1 to report the simulated transactions
+	 */
+	public BluePayGatewaySimulator setReportRows(final int reportRows) {
+		this.reportRows = reportRows;
+		return this;
+	}
+	
+	/**
+	 * @return the base URL to configure the plugin with, ending with a slash
+	 */
+	public String getGatewayUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/interfaces/";
+	}
+	
+	public long getRequestCount() {
+		return requests.get();
+	}
+	
+	public long getSealFailureCount() {
+		return sealFailures.get();
+	}
+	
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+	
+	/**
+	 * Runs a standalone simulator: {@code BluePayGatewaySimulator <port> <accountId>:<secretKey>...}
+	 */
+	public static void main(final String[] args) throws Exception {
+		final BluePayGatewaySimulator simulator = new BluePayGatewaySimulator(args.length > 0 ? Integer.parseInt(args[0]) : 8090);
+		for (int i = 1; i < args.length; i++) {
+			final String[] merchant = args[i].split(":", 2);
+			simulator.addMerchant(merchant[0], merchant[1]);
+		}
+		simulator.setLatency(Long.getLong("latency", 0), Long.getLong("latencyJitter", 0))
+				.setDeclineRate(Double.parseDouble(System.getProperty("declineRate", "0")))
+				.setErrorRate(Double.parseDouble(System.getProperty("errorRate", "0")))
+				.setTimeouts(Double.parseDouble(System.getProperty("timeoutRate", "0")), Long.getLong("timeout", 120000));
+		System.out.println("BluePay simulator listening on " + simulator.getGatewayUrl());
+		Thread.currentThread().join();
+	}
+	
+	private abstract class SimulatorHandler implements HttpHandler {
+		
+		@Override
+		public void handle(final HttpExchange exchange) throws IOException {
+			try {
+				requests.incrementAndGet();
+				final Map<String, String> request = readForm(exchange);
+				final ThreadLocalRandom random = ThreadLocalRandom.current();
+				if (timeoutRate > 0 && random.nextDouble() < timeoutRate) {
+					sleep(timeoutMillis);
+					return;
+				}
+				sleep(latencyMillis + (latencyJitterMillis > 0 ? random.nextLong(latencyJitterMillis + 1) : 0));
+				final String secretKey = secretKeys.get(request.containsKey("MERCHANT") ? request.get("MERCHANT") : request.get("ACCOUNT_ID"));
+				if (secretKey == null || !expectedSeal(secretKey, request).equalsIgnoreCase(nullToEmpty(request.get("TAMPER_PROOF_SEAL")))) {
+					sealFailures.incrementAndGet();
+					respondError(exchange, "SECURITY ERROR");
+					return;
+				}
+				if (errorRate > 0 && random.nextDouble() < errorRate) {
+					respondError(exchange, "Simulated gateway error");
+					return;
+				}
+				respond(exchange, request, random);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IOException(e);
+			} finally {
+				exchange.close();
+			}
+		}
+		
+		abstract String expectedSeal(String secretKey, Map<String, String> request) throws NoSuchAlgorithmException;
+		
+		abstract void respond(HttpExchange exchange, Map<String, String> request, Random random) throws IOException;
+		
+		void respondError(final HttpExchange exchange, final String message) throws IOException {
+			final Map<String, String> response = new LinkedHashMap<String, String>();
+			response.put("Result", "ERROR");
+			response.put("MESSAGE", message);
+			respondBody(exchange, formEncode(response));
+		}
+	}
+	
+	private class Bp10emuHandler extends SimulatorHandler {
+		
+		@Override
+		String expectedSeal(final String secretKey, final Map<String, String> request) throws NoSuchAlgorithmException {
+			final String tps = secretKey + get(request, "MERCHANT") + get(request, "TRANSACTION_TYPE") + get(request, "AMOUNT")
+					+ get(request, "REBILLING") + get(request, "REB_FIRST_DATE") + get(request, "REB_EXPR") + get(request, "REB_CYCLES")
+					+ get(request, "REB_AMOUNT") + get(request, "RRNO") + get(request, "MODE");
+			return hex("SHA512".equals(request.get("TPS_HASH_TYPE")) ? "SHA-512" : "MD5", tps);
+		}
+		
+		@Override
+		void respond(final HttpExchange exchange, final Map<String, String> request, final Random random) throws IOException {
+			final String transactionType = get(request, "TRANSACTION_TYPE");
+			final Map<String, String> previous = request.get("RRNO").isEmpty() ? null : transactions.get(request.get("RRNO"));
+			final Map<String, String> transaction = new LinkedHashMap<String, String>();
+			transaction.put("id", String.valueOf(transactionIds.incrementAndGet()));
+			transaction.put("trans_type", transactionType);
+			transaction.put("amount", get(request, "AMOUNT"));
+			transaction.put("order_id", get(request, "ORDER_ID"));
+			transaction.put("invoice_id", get(request, "INVOICE_ID"));
+			transaction.put("name1", get(request, "NAME1"));
+			transaction.put("name2", get(request, "NAME2"));
+			if (previous != null && request.get("CC_NUM") == null && request.get("ACH_ACCOUNT") == null) {
+				// a token: reuse the payment information of the referenced transaction
+				for (final String key : new String[]{"payment_type", "card_type", "payment_account", "card_expire", "bank_name"}) {
+					transaction.put(key, previous.get(key));
+				}
+			} else if (request.get("ACH_ACCOUNT") != null) {
+				final String account = get(request, "ACH_ACCOUNT");
+				transaction.put("payment_type", "ACH");
+				transaction.put("card_type", "");
+				transaction.put("payment_account", "C:" + get(request, "ACH_ROUTING") + ":" + mask(account));
+				transaction.put("card_expire", "");
+				transaction.put("bank_name", "SIMULATED BANK");
+			} else {
+				final String cardNumber = request.get("CC_NUM") == null ? "4111111111111111" : request.get("CC_NUM");
+				transaction.put("payment_type", "CREDIT");
+				transaction.put("card_type", cardType(cardNumber));
+				transaction.put("payment_account", mask(cardNumber));
+				transaction.put("card_expire", request.get("CC_EXPIRES") == null ? "1230" : request.get("CC_EXPIRES"));
+				transaction.put("bank_name", "");
+			}
+			
+			final boolean declined = declineRate > 0 && random.nextDouble() < declineRate;
+			transaction.put("status", declined ? "0" : "1");
+			transaction.put("message", declined ? "DECLINED" : "Approved " + capitalize(transactionType));
+			transaction.put("issue_date", "2017-06-01 12:00:00");
+			transactions.put(transaction.get("id"), transaction);
+			
+			final Map<String, String> response = new LinkedHashMap<String, String>();
+			response.put("Result", declined ? "DECLINED" : "APPROVED");
+			response.put("INVOICE_ID", transaction.get("id"));
+			response.put("BANK_NAME", transaction.get("bank_name"));
+			response.put("MESSAGE", transaction.get("message"));
+			response.put("AUTH_CODE", declined ? "" : "SIM" + (100 + random.nextInt(900)));
+			response.put("AVS", "_");
+			response.put("CVV2", "_");
+			response.put("ORDER_ID", transaction.get("order_id"));
+			response.put("PAYMENT_ACCOUNT", transaction.get("payment_account"));
+			response.put("CARD_TYPE", transaction.get("card_type"));
+			response.put("RRNO", transaction.get("id"));
+			
+			exchange.getResponseHeaders().set("Location", getGatewayUrl() + "bp10emu?" + formEncode(response));
+			exchange.sendResponseHeaders(302, -1);
+		}
+		
+		@Override
+		void respondError(final HttpExchange exchange, final String message) throws IOException {
+			final Map<String, String> response = new LinkedHashMap<String, String>();
+			response.put("Result", "ERROR");
+			response.put("MESSAGE", message);
+			exchange.getResponseHeaders().set("Location", getGatewayUrl() + "bp10emu?" + formEncode(response));
+			exchange.sendResponseHeaders(302, -1);
+		}
+	}
+	
+	private class RebillHandler extends SimulatorHandler {
+		
+		@Override
+		String expectedSeal(final String secretKey, final Map<String, String> request) throws NoSuchAlgorithmException {
+			return hex("MD5", secretKey + get(request, "ACCOUNT_ID") + get(request, "TRANS_TYPE") + get(request, "REBILL_ID"));
+		}
+		
+		@Override
+		void respond(final HttpExchange exchange, final Map<String, String> request, final Random random) throws IOException {
+			final Map<String, String> response = new LinkedHashMap<String, String>();
+			response.put("rebill_id", get(request, "REBILL_ID"));
+			response.put("template_id", get(request, "TEMPLATE_ID"));
+			response.put("status", request.get("STATUS") == null || request.get("STATUS").isEmpty() ? "active" : request.get("STATUS"));
+			response.put("creation_date", "2017-01-01 00:00:00");
+			response.put("next_date", request.get("NEXT_DATE") == null || request.get("NEXT_DATE").isEmpty() ? "2017-07-01" : request.get("NEXT_DATE"));
+			response.put("last_date", "2017-06-01");
+			response.put("sched_expr", request.get("REB_EXPR") == null || request.get("REB_EXPR").isEmpty() ? "1 MONTH" : request.get("REB_EXPR"));
+			response.put("cycles_remain", request.get("REB_CYCLES") == null || request.get("REB_CYCLES").isEmpty() ? "12" : request.get("REB_CYCLES"));
+			response.put("reb_amount", request.get("REB_AMOUNT") == null || request.get("REB_AMOUNT").isEmpty() ? "10.00" : request.get("REB_AMOUNT"));
+			response.put("next_amount", get(request, "NEXT_AMOUNT"));
+			respondBody(exchange, formEncode(response));
+		}
+	}
+	
+	private class SingleTransQueryHandler extends SimulatorHandler {
+		
+		@Override
+		String expectedSeal(final String secretKey, final Map<String, String> request) throws NoSuchAlgorithmException {
+			return hex("MD5", secretKey + get(request, "ACCOUNT_ID") + get(request, "REPORT_START_DATE") + get(request, "REPORT_END_DATE"));
+		}
+		
+		@Override
+		void respond(final HttpExchange exchange, final Map<String, String> request, final Random random) throws IOException {
+			final Map<String, String> transaction = request.containsKey("order_id") ? findByOrderId(get(request, "order_id")) : transactions.get(get(request, "id"));
+			if (transaction == null) {
+				respondError(exchange, "Transaction not found");
+				return;
+			}
+			respondBody(exchange, formEncode(transaction));
+		}
+	}
+	
+	/**
+	 * @return the latest transaction sent with the order ID, or null if none
+	 */
+	private Map<String, String> findByOrderId(final String orderId) {
+		Map<String, String> found = null;
+		synchronized (transactions) {
+			for (final Map<String, String> transaction : transactions.values()) {
+				if (orderId.equals(transaction.get("order_id"))) {
+					found = transaction;
+				}
+			}
+		}
+		return found;
+	}
+	
+	private class ReportHandler extends SimulatorHandler {
+		
+		@Override
+		String expectedSeal(final String secretKey, final Map<String, String> request) throws NoSuchAlgorithmException {
+			return hex("MD5", secretKey + get(request, "ACCOUNT_ID") + get(request, "REPORT_START_DATE") + get(request, "REPORT_END_DATE"));
+		}
+		
+		@Override
+		void respond(final HttpExchange exchange, final Map<String, String> request, final Random random) throws IOException {
+			final boolean quoted = !"1".equals(request.get("DO_NOT_ESCAPE"));
+			exchange.getResponseHeaders().set("Content-Type", "text/csv");
+			// chunked, so that large reports are streamed rather than buffered
+			exchange.sendResponseHeaders(200, 0);
+			try (Writer writer = new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8)) {
+				writeRow(writer, REPORT_COLUMNS, quoted);
+				final String[] row = new String[REPORT_COLUMNS.length];
+				if (reportRows < 0) {
+					final Map<String, String>[] snapshot;
+					synchronized (transactions) {
+						//noinspection unchecked
+						snapshot = transactions.values().toArray(new Map[transactions.size()]);
+					}
+					for (final Map<String, String> transaction : snapshot) {
+						for (int i = 0; i < REPORT_COLUMNS.length; i++) {
+							row[i] = nullToEmpty(transaction.get(REPORT_COLUMNS[i]));
+						}
+						writeRow(writer, row, quoted);
+					}
+				} else {
+					for (int n = 0; n < reportRows; n++) {
+						syntheticRow(row, n, random);
+						writeRow(writer, row, quoted);
+					}
+				}
+			}
+		}
+		
+		private void syntheticRow(final String[] row, final int n, final Random random) {
+			Arrays.fill(row, "");
+			row[0] = String.valueOf(200000000000L + n);
+			row[1] = "CREDIT";
+			row[2] = "SALE";
+			row[3] = (1 + random.nextInt(500)) + "." + (10 + random.nextInt(90));
+			row[4] = "VISA";
+			row[5] = "xxxxxxxxxxxx1111";
+			row[6] = "order-" + n;
+			row[11] = "1";
+			row[12] = "0";
+			row[13] = "Approved Sale";
+			row[14] = "bp10emu";
+			row[15] = "2017-06-01 12:00:00";
+			row[16] = "2017-06-02 02:00:00";
+			row[18] = "100000001";
+			row[19] = "1230";
+			row[21] = "Jane";
+			row[22] = "Doe, \"JD\"";
+		}
+		
+		private void writeRow(final Writer writer, final String[] row, final boolean quoted) throws IOException {
+			for (int i = 0; i < row.length; i++) {
+				if (i > 0) {
+					writer.write(',');
+				}
+				if (quoted) {
+					writer.write('"');
+					writer.write(row[i].replace("\"", "\"\""));
+					writer.write('"');
+				} else {
+					writer.write(row[i]);
+				}
+			}
+			writer.write("\r\n");
+		}
+	}
+	
+	private static Map<String, String> readForm(final HttpExchange exchange) throws IOException {
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		try (InputStream in = exchange.getRequestBody()) {
+			final byte[] buffer = new byte[4096];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				body.write(buffer, 0, read);
+			}
+		}
+		final List<NameValuePair> pairs = URLEncodedUtils.parse(new String(body.toByteArray(), StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+		final Map<String, String> form = new HashMap<String, String>();
+		for (final NameValuePair pair : pairs) {
+			form.put(pair.getName(), pair.getValue() == null ? "" : pair.getValue());
+		}
+		return form;
+	}
+	
+	private static void respondBody(final HttpExchange exchange, final String body) throws IOException {
+		final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain");
+		exchange.sendResponseHeaders(200, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+	
+	private static String formEncode(final Map<String, String> values) throws IOException {
+		final StringBuilder builder = new StringBuilder();
+		for (final Map.Entry<String, String> entry : values.entrySet()) {
+			if (builder.length() > 0) {
+				builder.append('&');
+			}
+			builder.append(entry.getKey()).append('=').append(URLEncoder.encode(nullToEmpty(entry.getValue()), "UTF-8").replace("+", "%20"));
+		}
+		return builder.toString();
+	}
+	
+	private static String hex(final String algorithm, final String message) throws NoSuchAlgorithmException {
+		final byte[] digest = MessageDigest.getInstance(algorithm).digest(message.getBytes(StandardCharsets.UTF_8));
+		final StringBuilder builder = new StringBuilder(digest.length * 2);
+		for (final byte b : digest) {
+			builder.append(String.format("%02x", b & 0xff));
+		}
+		return builder.toString();
+	}
+	
+	private static String get(final Map<String, String> request, final String key) {
+		return nullToEmpty(request.get(key));
+	}
+	
+	private static String nullToEmpty(final String value) {
+		return value == null ? "" : value;
+	}
+	
+	private static String mask(final String number) {
+		final StringBuilder masked = new StringBuilder();
+		for (int i = 0; i < number.length() - 4; i++) {
+			masked.append('x');
+		}
+		return masked.append(number.length() > 4 ? number.substring(number.length() - 4) : number).toString();
+	}
+	
+	private static String cardType(final String cardNumber) {
+		switch (cardNumber.isEmpty() ? ' ' : cardNumber.charAt(0)) {
+			case '3':
+				return "AMEX";
+			case '5':
+				return "MC";
+			case '6':
+				return "DISC";
+			default:
+				return "VISA";
+		}
+	}
+	
+	private static String capitalize(final String transactionType) {
+		return transactionType.isEmpty() ? "" : transactionType.charAt(0) + transactionType.substring(1).toLowerCase();
+	}
+	
+	private static void sleep(final long millis) throws IOException {
+		if (millis <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+	}
+}
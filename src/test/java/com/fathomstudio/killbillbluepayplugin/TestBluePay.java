@@ -0,0 +1,81 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbluepayplugin;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+
+public class TestBluePay {
+	
+	private static final BluePayCredentials CREDENTIALS = new BluePayCredentials("100221257378", "ABCDEFGHIJKLMNOPQRSTUVWXYZ012345", true);
+	
+	private ServerSocket gateway;
+	private BluePayHttpClient httpClient;
+	private BluePay bluePay;
+	
+	@BeforeMethod(groups = "fast")
+	public void setUp() throws Exception {
+		// a gateway that takes connections and never answers, so every request sent stays in flight
+		gateway = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		final Properties properties = new Properties();
+		properties.setProperty(BluePayHttpClient.PROPERTY_PREFIX + "maxInFlight", "1");
+		properties.setProperty(BluePayHttpClient.PROPERTY_PREFIX + "connectionRequestTimeout", "20");
+		properties.setProperty(BluePayCircuitBreaker.PROPERTY_PREFIX + "windowSize", "3");
+		properties.setProperty(BluePayCircuitBreaker.PROPERTY_PREFIX + "minimumCalls", "3");
+		httpClient = new BluePayHttpClient(properties);
+		bluePay = new BluePay(httpClient, "http://127.0.0.1:" + gateway.getLocalPort() + "/", properties);
+	}
+	
+	@AfterMethod(groups = "fast")
+	public void tearDown() throws Exception {
+		httpClient.close();
+		gateway.close();
+	}
+	
+	@Test(groups = "fast")
+	public void testInFlightRejectionsLeaveBreakerClosed() throws Exception {
+		final ListenableFuture<BluePayResponse> hanging = bluePay.processAsync(query());
+		for (int i = 0; i < 5; i++) {
+			try {
+				bluePay.processAsync(query()).get();
+				Assert.fail("the HTTP client let a second request in flight");
+			} catch (ExecutionException e) {
+				Assert.assertTrue(e.getCause() instanceof BluePayRejectedException, e.getCause().toString());
+			}
+		}
+		
+		final BluePayCircuitBreaker circuitBreaker = bluePay.getCircuitBreakers().get(CREDENTIALS.getName());
+		Assert.assertEquals(circuitBreaker.getState(), BluePayCircuitBreaker.State.CLOSED);
+		Assert.assertEquals(circuitBreaker.getBufferedCalls(), 0);
+		// only the request still waiting for the gateway holds a slot
+		Assert.assertEquals(bluePay.getConcurrencyLimiters().get(CREDENTIALS.getName()).getInFlight(), 1);
+		Assert.assertFalse(hanging.isDone());
+	}
+	
+	private static BluePayRequest query() {
+		return new BluePayTransactionQuery(CREDENTIALS, "100366289485", "2017-01-01", "2017-12-31", true);
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbluepayplugin;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class TestBluePayCircuitBreaker {
+	
+	private static final long OPEN_DURATION = 100;
+	
+	@Test(groups = "fast")
+	public void testStaysClosedUntilMinimumCalls() {
+		final BluePayCircuitBreaker circuitBreaker = circuitBreaker(3);
+		for (int i = 0; i < 4; i++) {
+			call(circuitBreaker, true);
+		}
+		Assert.assertEquals(circuitBreaker.getState(), BluePayCircuitBreaker.State.CLOSED);
+		Assert.assertEquals(circuitBreaker.getFailureRate(), -1f);
+		
+		call(circuitBreaker, true);
+		Assert.assertEquals(circuitBreaker.getState(), BluePayCircuitBreaker.State.OPEN);
+		Assert.assertFalse(circuitBreaker.tryAcquirePermission());
+		Assert.assertEquals(circuitBreaker.getNotPermittedCalls(), 1);
+	}
+	
+	@Test(groups = "fast")
+	public void testWindowForgetsOldCalls() {
+		// opens at 75% of the last 4 calls
+		final BluePayCircuitBreaker circuitBreaker = new BluePayCircuitBreaker("test", 4, 4, 75, 100, 10000, OPEN_DURATION, 3, TimeUnit.MILLISECONDS);
+		for (final boolean failed : new boolean[]{true, false, false, false, true, true}) {
+			call(circuitBreaker, failed);
+		}
+		// 3 failures out of 6 calls so far, 2 of the last 4
+		Assert.assertEquals(circuitBreaker.getState(), BluePayCircuitBreaker.State.CLOSED);
+		Assert.assertEquals(circuitBreaker.getFailureRate(), 50f);
+		
+		call(circuitBreaker, true);
+		Assert.assertEquals(circuitBreaker.getState(), BluePayCircuitBreaker.State.OPEN);
+	}
+	
+	@Test(groups = "fast")
+	public void testSlowCallsOpen() throws InterruptedException {
+		// calls of 50 ms or more are slow, and 80% of them open the breaker
+		final BluePayCircuitBreaker circuitBreaker = new BluePayCircuitBreaker("test", 10, 5, 50, 80, 50, OPEN_DURATION, 3, TimeUnit.MILLISECONDS);
+		for (int i = 0; i < 4; i++) {
+			Assert.assertTrue(circuitBreaker.tryAcquirePermission());
+		}
+		final long startedAt = System.nanoTime();
+		Thread.sleep(60);
+		for (int i = 0; i < 4; i++) {
+			circuitBreaker.onResult(System.nanoTime() - startedAt, false);
+		}
+		call(circuitBreaker, false);
+		Assert.assertEquals(circuitBreaker.getSlowCallRate(), 80f);
+		Assert.assertEquals(circuitBreaker.getState(), BluePayCircuitBreaker.State.OPEN);
+	}
+	
+	@Test(groups = "fast")
+	public void testHalfOpenProbesClose() throws InterruptedException {
+		final BluePayCircuitBreaker circuitBreaker = open(circuitBreaker(3));
+		Thread.sleep(OPEN_DURATION + 20);
+		
+		// only the probes are let through
+		for (int i = 0; i < 3; i++) {
+			Assert.assertTrue(circuitBreaker.tryAcquirePermission());
+		}
+		Assert.assertEquals(circuitBreaker.getState(), BluePayCircuitBreaker.State.HALF_OPEN);
+		Assert.assertFalse(circuitBreaker.tryAcquirePermission());
+		
+		// one that was not sent after all can be taken again
+		circuitBreaker.releasePermission();
+		Assert.assertTrue(circuitBreaker.tryAcquirePermission());
+		
+		for (int i = 0; i < 3; i++) {
+			circuitBreaker.onResult(0, false);
+		}
+		Assert.assertEquals(circuitBreaker.getState(), BluePayCircuitBreaker.State.CLOSED);
+		Assert.assertEquals(circuitBreaker.getBufferedCalls(), 0);
+	}
+	
+	@Test(groups = "fast")
+	public void testFailedProbeReopens() throws InterruptedException {
+		final BluePayCircuitBreaker circuitBreaker = open(circuitBreaker(3));
+		Thread.sleep(OPEN_DURATION + 20);
+		
+		Assert.assertTrue(circuitBreaker.tryAcquirePermission());
+		circuitBreaker.onResult(0, true);
+		Assert.assertEquals(circuitBreaker.getState(), BluePayCircuitBreaker.State.OPEN);
+		Assert.assertFalse(circuitBreaker.tryAcquirePermission());
+	}
+	
+	@Test(groups = "fast")
+	public void testCallFromBeforeHalfOpenIsNotAProbe() throws InterruptedException {
+		final BluePayCircuitBreaker circuitBreaker = circuitBreaker(1);
+		// let through while CLOSED, and still in flight once the breaker is HALF_OPEN
+		Assert.assertTrue(circuitBreaker.tryAcquirePermission());
+		final long startedAt = System.nanoTime();
+		open(circuitBreaker);
+		Thread.sleep(OPEN_DURATION + 20);
+		Assert.assertTrue(circuitBreaker.tryAcquirePermission());
+		Assert.assertEquals(circuitBreaker.getState(), BluePayCircuitBreaker.State.HALF_OPEN);
+		
+		// neither its failure reopens the breaker, nor would its success close it
+		circuitBreaker.onResult(System.nanoTime() - startedAt, true);
+		Assert.assertEquals(circuitBreaker.getState(), BluePayCircuitBreaker.State.HALF_OPEN);
+		circuitBreaker.onResult(System.nanoTime() - startedAt, false);
+		Assert.assertEquals(circuitBreaker.getState(), BluePayCircuitBreaker.State.HALF_OPEN);
+		
+		// the probe decides
+		circuitBreaker.onResult(0, false);
+		Assert.assertEquals(circuitBreaker.getState(), BluePayCircuitBreaker.State.CLOSED);
+	}
+	
+	/**
+	 * @return a breaker that opens once 5 of the last 10 calls failed, and closes after {@code halfOpenCalls} probes
+	 */
+	private static BluePayCircuitBreaker circuitBreaker(final int halfOpenCalls) {
+		return new BluePayCircuitBreaker("test", 10, 5, 50, 100, 10000, OPEN_DURATION, halfOpenCalls, TimeUnit.MILLISECONDS);
+	}
+	
+	private static BluePayCircuitBreaker open(final BluePayCircuitBreaker circuitBreaker) {
+		while (circuitBreaker.getState() == BluePayCircuitBreaker.State.CLOSED) {
+			call(circuitBreaker, true);
+		}
+		Assert.assertEquals(circuitBreaker.getState(), BluePayCircuitBreaker.State.OPEN);
+		return circuitBreaker;
+	}
+	
+	private static void call(final BluePayCircuitBreaker circuitBreaker, final boolean failed) {
+		Assert.assertTrue(circuitBreaker.tryAcquirePermission());
+		circuitBreaker.onResult(0, failed);
+	}
+}
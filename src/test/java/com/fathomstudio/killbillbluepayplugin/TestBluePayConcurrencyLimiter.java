@@ -0,0 +1,186 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbluepayplugin;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class TestBluePayConcurrencyLimiter {
+	
+	private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+	
+	@Test(groups = "fast")
+	public void testGrowsWhileInUse() throws InterruptedException {
+		final BluePayConcurrencyLimiter limiter = limiter(4, 1, 8, 100);
+		// each answer adds 1/limit: about a limit's worth of answers adds one
+		answerAtLimit(limiter, 4);
+		Assert.assertEquals(limiter.getLimit(), 4);
+		answerAtLimit(limiter, 1);
+		Assert.assertEquals(limiter.getLimit(), 5);
+		answerAtLimit(limiter, 5);
+		Assert.assertEquals(limiter.getLimit(), 6);
+		answerAtLimit(limiter, 100);
+		Assert.assertEquals(limiter.getLimit(), 8);
+	}
+	
+	@Test(groups = "fast")
+	public void testDoesNotGrowWhileIdle() throws InterruptedException {
+		final BluePayConcurrencyLimiter limiter = limiter(10, 1, 100, 100);
+		for (int i = 0; i < 100; i++) {
+			Assert.assertTrue(limiter.tryAcquire());
+			limiter.release(MILLIS, false);
+		}
+		Assert.assertEquals(limiter.getLimit(), 10);
+	}
+	
+	@Test(groups = "fast")
+	public void testShrinksOnFailures() throws InterruptedException {
+		final BluePayConcurrencyLimiter limiter = limiter(20, 5, 100, 100);
+		Assert.assertTrue(limiter.tryAcquire());
+		limiter.release(20 * MILLIS, false);
+		Thread.sleep(30);
+		
+		// a burst of failures within one latency counts once
+		for (int i = 0; i < 3; i++) {
+			Assert.assertTrue(limiter.tryAcquire());
+			limiter.release(20 * MILLIS, true);
+		}
+		Assert.assertEquals(limiter.getLimit(), 18);
+		
+		// down to minLimit at most
+		for (int i = 0; i < 20; i++) {
+			Thread.sleep(25);
+			Assert.assertTrue(limiter.tryAcquire());
+			limiter.release(20 * MILLIS, true);
+		}
+		Assert.assertEquals(limiter.getLimit(), 5);
+	}
+	
+	@Test(groups = "fast")
+	public void testShrinksWhenLatencyGrows() throws InterruptedException {
+		final BluePayConcurrencyLimiter limiter = limiter(20, 1, 100, 100);
+		for (int i = 0; i < 10; i++) {
+			Assert.assertTrue(limiter.tryAcquire());
+			limiter.release(MILLIS, false);
+		}
+		Assert.assertEquals(limiter.getBaseLatencyMillis(), 1d, 0.001);
+		Thread.sleep(20);
+		
+		// answers 10 times slower push the smoothed latency past twice the base one
+		for (int i = 0; i < 20; i++) {
+			Assert.assertTrue(limiter.tryAcquire());
+			limiter.release(10 * MILLIS, false);
+		}
+		Assert.assertTrue(limiter.getLatencyMillis() > 2, "latency " + limiter.getLatencyMillis());
+		Assert.assertTrue(limiter.getLimit() < 20, "limit " + limiter.getLimit());
+	}
+	
+	@Test(groups = "fast")
+	public void testQueuedCallerGivesUpAtMaxWait() throws InterruptedException {
+		final BluePayConcurrencyLimiter limiter = limiter(1, 1, 1, 50);
+		Assert.assertTrue(limiter.tryAcquire());
+		
+		final long start = System.nanoTime();
+		Assert.assertFalse(limiter.tryAcquire());
+		Assert.assertTrue(System.nanoTime() - start >= 50 * MILLIS);
+		Assert.assertEquals(limiter.getRejectedCalls(), 1);
+		Assert.assertEquals(limiter.getQueued(), 0);
+		Assert.assertEquals(limiter.getInFlight(), 1);
+	}
+	
+	@Test(groups = "fast")
+	public void testQueuedCallerGetsReleasedSlot() throws Exception {
+		final BluePayConcurrencyLimiter limiter = limiter(1, 1, 1, 5000);
+		Assert.assertTrue(limiter.tryAcquire());
+		
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			final Future<Boolean> queued = executor.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws InterruptedException {
+					return limiter.tryAcquire();
+				}
+			});
+			awaitQueued(limiter, 1);
+			
+			limiter.release();
+			Assert.assertTrue(queued.get(1, TimeUnit.SECONDS));
+			Assert.assertEquals(limiter.getInFlight(), 1);
+			Assert.assertEquals(limiter.getQueued(), 0);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	@Test(groups = "fast")
+	public void testFullQueueRejectsRightAway() throws Exception {
+		final BluePayConcurrencyLimiter limiter = new BluePayConcurrencyLimiter("test", 1, 1, 1, 0.9, 2, 1, 5000, TimeUnit.MILLISECONDS);
+		Assert.assertTrue(limiter.tryAcquire());
+		
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			final Future<Boolean> queued = executor.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws InterruptedException {
+					return limiter.tryAcquire();
+				}
+			});
+			awaitQueued(limiter, 1);
+			
+			final long start = System.nanoTime();
+			Assert.assertFalse(limiter.tryAcquire());
+			Assert.assertTrue(System.nanoTime() - start < 1000 * MILLIS);
+			Assert.assertEquals(limiter.getRejectedCalls(), 1);
+			
+			limiter.release();
+			Assert.assertTrue(queued.get(1, TimeUnit.SECONDS));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	private static BluePayConcurrencyLimiter limiter(final int initialLimit, final int minLimit, final int maxLimit, final long maxWait) {
+		return new BluePayConcurrencyLimiter("test", initialLimit, minLimit, maxLimit, 0.9, 2, 100, maxWait, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Answers calls successfully in 1 ms, taking a slot for the next one each time so that the limit stays in use.
+	 */
+	private static void answerAtLimit(final BluePayConcurrencyLimiter limiter, final int answers) throws InterruptedException {
+		for (int i = 0; i < answers; i++) {
+			while (limiter.getInFlight() < limiter.getLimit()) {
+				Assert.assertTrue(limiter.tryAcquire());
+			}
+			limiter.release(MILLIS, false);
+		}
+	}
+	
+	private static void awaitQueued(final BluePayConcurrencyLimiter limiter, final int queued) throws InterruptedException {
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (limiter.getQueued() < queued) {
+			Assert.assertTrue(System.nanoTime() < deadline, "nobody queued");
+			Thread.sleep(1);
+		}
+	}
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbluepayplugin;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.joda.time.DateTime;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillDataSource;
+import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.payment.plugin.api.PaymentMethodInfoPlugin;
+import org.killbill.billing.payment.plugin.api.PaymentPluginStatus;
+import org.killbill.billing.plugin.api.payment.PluginPaymentMethodInfoPlugin;
+import org.osgi.framework.BundleContext;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class TestBluePayDao {
+	
+	private static final UUID TENANT_ID = UUID.randomUUID();
+	
+	private Connection keepAlive;
+	private BluePayDao dao;
+	
+	@BeforeMethod(groups = "fast")
+	public void setUp() throws SQLException {
+		final JdbcDataSource h2 = new JdbcDataSource();
+		h2.setURL("jdbc:h2:mem:bluepay-" + UUID.randomUUID() + ";MODE=MySQL");
+		// the in-memory database lives as long as one connection is open
+		keepAlive = h2.getConnection();
+		try (Statement statement = keepAlive.createStatement()) {
+			statement.execute("CREATE TABLE `bluePay_transactions` (`id` BIGINT AUTO_INCREMENT PRIMARY KEY, `tenantId` VARCHAR(255) NOT NULL, `kbAccountId` VARCHAR(255) NOT NULL, `kbPaymentId` VARCHAR(255) NOT NULL, `kbTransactionId` VARCHAR(255) NOT NULL UNIQUE, `kbPaymentMethodId` VARCHAR(255), `transactionType` VARCHAR(32) NOT NULL, `amount` DECIMAL(15, 9), `currency` CHAR(3), `status` VARCHAR(32) NOT NULL, `bluePayTransactionId` VARCHAR(255), `gatewayStatus` VARCHAR(32), `message` TEXT, `avs` VARCHAR(8), `cvv2` VARCHAR(8), `authCode` VARCHAR(32), `maskedAccount` VARCHAR(255), `cardType` VARCHAR(32), `createdDate` TIMESTAMP NOT NULL, `effectiveDate` TIMESTAMP NOT NULL)");
+			statement.execute("CREATE TABLE `bluePay_paymentMethods` (`id` INT AUTO_INCREMENT PRIMARY KEY, `tenantId` VARCHAR(255), `kbAccountId` VARCHAR(255), `paymentMethodId` VARCHAR(255) NOT NULL UNIQUE, `transactionId` VARCHAR(255) NOT NULL, `cardType` VARCHAR(32), `lastFour` VARCHAR(4), `maskedAccount` VARCHAR(255), `bankName` VARCHAR(255), `expiration` VARCHAR(8))");
+		}
+		dao = new BluePayDao(new StaticDataSource(nullProxy(BundleContext.class), h2));
+	}
+	
+	@AfterMethod(groups = "fast")
+	public void tearDown() throws SQLException {
+		keepAlive.close();
+	}
+	
+	@Test(groups = "fast")
+	public void testClaim() throws SQLException {
+		final BluePayTransaction pending = pending(TENANT_ID, UUID.randomUUID());
+		Assert.assertNull(dao.claimTransaction(pending));
+		
+		final BluePayTransaction journaled = dao.getTransaction(TENANT_ID, pending.getKbTransactionPaymentId());
+		Assert.assertEquals(journaled.getStatus(), PaymentPluginStatus.PENDING);
+		Assert.assertEquals(journaled.getKbPaymentId(), pending.getKbPaymentId());
+		Assert.assertEquals(journaled.getAmount().compareTo(pending.getAmount()), 0);
+		Assert.assertEquals(journaled.getEffectiveDate().getMillis(), pending.getEffectiveDate().getMillis());
+	}
+	
+	@Test(groups = "fast")
+	public void testDuplicateClaim() throws SQLException {
+		final UUID kbTransactionId = UUID.randomUUID();
+		final BluePayTransaction first = pending(TENANT_ID, kbTransactionId);
+		Assert.assertNull(dao.claimTransaction(first));
+		
+		// a retry while the first attempt is in flight gets the claim, not a second send
+		final BluePayTransaction claimed = dao.claimTransaction(pending(TENANT_ID, kbTransactionId));
+		Assert.assertNotNull(claimed);
+		Assert.assertEquals(claimed.getStatus(), PaymentPluginStatus.PENDING);
+		Assert.assertEquals(claimed.getEffectiveDate().getMillis(), first.getEffectiveDate().getMillis());
+		
+		// and once it completed, its outcome
+		dao.saveTransaction(processed(first, "100000000001"));
+		final BluePayTransaction processed = dao.claimTransaction(pending(TENANT_ID, kbTransactionId));
+		Assert.assertEquals(processed.getStatus(), PaymentPluginStatus.PROCESSED);
+		Assert.assertEquals(processed.getBluePayTransactionId(), "100000000001");
+	}
+	
+	@Test(groups = "fast")
+	public void testReclaimCanceled() throws SQLException {
+		final UUID kbTransactionId = UUID.randomUUID();
+		final BluePayTransaction first = pending(TENANT_ID, kbTransactionId);
+		Assert.assertNull(dao.claimTransaction(first));
+		dao.saveTransaction(first.cancel("BluePay circuit breaker is OPEN"));
+		
+		// a CANCELED transaction never reached BluePay, so it may be claimed again
+		final BluePayTransaction retry = pending(TENANT_ID, kbTransactionId, first.getCreatedDate().plusSeconds(5));
+		Assert.assertNull(dao.claimTransaction(retry));
+		
+		final BluePayTransaction journaled = dao.getTransaction(TENANT_ID, kbTransactionId);
+		Assert.assertEquals(journaled.getStatus(), PaymentPluginStatus.PENDING);
+		Assert.assertNull(journaled.getGatewayError());
+		Assert.assertEquals(journaled.getCreatedDate().getMillis(), first.getCreatedDate().getMillis());
+		Assert.assertEquals(journaled.getEffectiveDate().getMillis(), retry.getEffectiveDate().getMillis());
+		
+		// but only once
+		Assert.assertNotNull(dao.claimTransaction(pending(TENANT_ID, kbTransactionId)));
+	}
+	
+	@Test(groups = "fast")
+	public void testClaimIsScopedToTheTenant() throws SQLException {
+		final UUID kbTransactionId = UUID.randomUUID();
+		final BluePayTransaction first = pending(TENANT_ID, kbTransactionId);
+		Assert.assertNull(dao.claimTransaction(first));
+		dao.saveTransaction(first.cancel("BluePay circuit breaker is OPEN"));
+		
+		try {
+			dao.claimTransaction(pending(UUID.randomUUID(), kbTransactionId));
+			Assert.fail();
+		} catch (SQLException e) {
+			Assert.assertTrue(e.getMessage().contains("could neither be claimed nor read"), e.getMessage());
+		}
+		Assert.assertEquals(dao.getTransaction(TENANT_ID, kbTransactionId).getStatus(), PaymentPluginStatus.CANCELED);
+	}
+	
+	@Test(groups = "fast")
+	public void testConcurrentClaims() throws Exception {
+		final UUID kbTransactionId = UUID.randomUUID();
+		final ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			final List<Future<BluePayTransaction>> claims = new ArrayList<Future<BluePayTransaction>>();
+			for (int i = 0; i < 8; i++) {
+				claims.add(executor.submit(new Callable<BluePayTransaction>() {
+					@Override
+					public BluePayTransaction call() throws SQLException {
+						return dao.claimTransaction(pending(TENANT_ID, kbTransactionId));
+					}
+				}));
+			}
+			int claimed = 0;
+			for (Future<BluePayTransaction> claim : claims) {
+				claimed += claim.get() == null ? 1 : 0;
+			}
+			Assert.assertEquals(claimed, 1);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	@Test(groups = "fast")
+	public void testSettleOnlyWhatWasRead() throws SQLException {
+		final UUID kbTransactionId = UUID.randomUUID();
+		final BluePayTransaction first = pending(TENANT_ID, kbTransactionId);
+		Assert.assertNull(dao.claimTransaction(first));
+		final BluePayTransaction journaled = dao.getTransaction(TENANT_ID, kbTransactionId);
+		
+		Assert.assertTrue(dao.settleTransaction(journaled, processed(journaled, "100000000001")));
+		Assert.assertEquals(dao.getTransaction(TENANT_ID, kbTransactionId).getStatus(), PaymentPluginStatus.PROCESSED);
+		
+		// another node settling from the same stale read loses
+		Assert.assertFalse(dao.settleTransaction(journaled, journaled.cancel("not found")));
+		Assert.assertEquals(dao.getTransaction(TENANT_ID, kbTransactionId).getBluePayTransactionId(), "100000000001");
+	}
+	
+	@Test(groups = "fast")
+	public void testResetKeepsDetailsOfUnchangedTokens() throws SQLException {
+		final UUID kbAccountId = UUID.randomUUID();
+		final UUID unchanged = UUID.randomUUID();
+		final UUID changed = UUID.randomUUID();
+		final UUID removed = UUID.randomUUID();
+		final UUID added = UUID.randomUUID();
+		dao.savePaymentMethods(Arrays.asList(
+				new BluePayPaymentMethod(null, TENANT_ID, kbAccountId, unchanged, "100000000001", "VISA", "1111", "xxxxxxxxxxxx1111", null, "1225"),
+				new BluePayPaymentMethod(null, TENANT_ID, kbAccountId, changed, "100000000002", "MC", "4444", "xxxxxxxxxxxx4444", null, "0626"),
+				new BluePayPaymentMethod(null, TENANT_ID, kbAccountId, removed, "100000000003", "AMEX", "0005", "xxxxxxxxxxx0005", null, "0727")));
+		
+		final List<UUID> deleted = dao.resetPaymentMethods(TENANT_ID, kbAccountId, Arrays.<PaymentMethodInfoPlugin>asList(
+				new PluginPaymentMethodInfoPlugin(kbAccountId, unchanged, false, "100000000001"),
+				new PluginPaymentMethodInfoPlugin(kbAccountId, changed, false, "100000000004"),
+				new PluginPaymentMethodInfoPlugin(kbAccountId, added, false, "100000000005")));
+		Assert.assertEquals(deleted, Arrays.asList(removed));
+		
+		// the details are kept while the token stays the same, and dropped with the old token
+		final BluePayPaymentMethod kept = dao.getPaymentMethod(unchanged);
+		Assert.assertEquals(kept.getTransactionId(), "100000000001");
+		Assert.assertEquals(kept.getCardType(), "VISA");
+		Assert.assertEquals(kept.getMaskedAccount(), "xxxxxxxxxxxx1111");
+		Assert.assertEquals(kept.getExpiration(), "1225");
+		final BluePayPaymentMethod replaced = dao.getPaymentMethod(changed);
+		Assert.assertEquals(replaced.getTransactionId(), "100000000004");
+		Assert.assertNull(replaced.getCardType());
+		Assert.assertNull(replaced.getMaskedAccount());
+		Assert.assertNull(replaced.getExpiration());
+		Assert.assertEquals(dao.getPaymentMethod(added).getTransactionId(), "100000000005");
+		Assert.assertNull(dao.getPaymentMethod(removed));
+	}
+	
+	private static BluePayTransaction pending(final UUID kbTenantId, final UUID kbTransactionId) {
+		return BluePayTransaction.pending(kbTenantId, UUID.randomUUID(), UUID.randomUUID(), kbTransactionId, UUID.randomUUID(),
+				TransactionType.PURCHASE, new BigDecimal("10.00"), Currency.USD);
+	}
+	
+	private static BluePayTransaction pending(final UUID kbTenantId, final UUID kbTransactionId, final DateTime claimedAt) {
+		final BluePayTransaction pending = pending(kbTenantId, kbTransactionId);
+		return new BluePayTransaction(null, kbTenantId, pending.getKbAccountId(), pending.getKbPaymentId(), kbTransactionId, pending.getKbPaymentMethodId(),
+				pending.getTransactionType(), pending.getAmount(), pending.getCurrency(), PaymentPluginStatus.PENDING, null, null, null, null, null, null,
+				null, null, claimedAt, claimedAt);
+	}
+	
+	private static BluePayTransaction processed(final BluePayTransaction transaction, final String bluePayTransactionId) {
+		return new BluePayTransaction(transaction.getRecordId(), transaction.getKbTenantId(), transaction.getKbAccountId(), transaction.getKbPaymentId(),
+				transaction.getKbTransactionPaymentId(), transaction.getKbPaymentMethodId(), transaction.getTransactionType(), transaction.getAmount(),
+				transaction.getCurrency(), PaymentPluginStatus.PROCESSED, bluePayTransactionId, "APPROVED", "Approved Sale", "_", "_", "123456",
+				"xxxxxxxxxxxx1111", "VISA", transaction.getCreatedDate(), transaction.getCreatedDate().plusSeconds(1));
+	}
+	
+	@SuppressWarnings("unchecked")
+	static <T> T nullProxy(final Class<T> type) {
+		return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, new InvocationHandler() {
+			@Override
+			public Object invoke(final Object proxy, final Method method, final Object[] args) {
+				if (method.getReturnType() == boolean.class) {
+					return false;
+				} else if (method.getReturnType().isPrimitive() && method.getReturnType() != void.class) {
+					return 0;
+				}
+				return null;
+			}
+		});
+	}
+	
+	static class StaticDataSource extends OSGIKillbillDataSource {
+		
+		private final DataSource dataSource;
+		
+		StaticDataSource(final BundleContext context, final DataSource dataSource) {
+			super(context);
+			this.dataSource = dataSource;
+		}
+		
+		@Override
+		public DataSource getDataSource() {
+			return dataSource;
+		}
+	}
+}
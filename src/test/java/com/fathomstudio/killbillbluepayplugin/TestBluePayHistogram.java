@@ -0,0 +1,140 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbluepayplugin;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class TestBluePayHistogram {
+	
+	@Test(groups = "fast")
+	public void testBucketBounds() {
+		final BluePayHistogram histogram = new BluePayHistogram();
+		// durations are counted in units of 1024 ns, and below 32 units every unit has its own bucket
+		histogram.record(17 * 1024 + 5);
+		// 1023 units end the buckets of 512 to 1023 units, 32 wide; 1024 start those of 1024 to 2047, 64 wide
+		histogram.record(1023 * 1024);
+		histogram.record(1024 * 1024);
+		
+		final long[] bounds = {18 * 1024 - 2, 18 * 1024 - 1, 1024 * 1024 - 2, 1024 * 1024 - 1, 1024 * 1024, 1088 * 1024 - 2, 1088 * 1024 - 1};
+		final long[] counts = new long[bounds.length];
+		Assert.assertEquals(histogram.getCumulativeCounts(bounds, counts), 3);
+		Assert.assertEquals(counts, new long[]{0, 1, 1, 2, 2, 2, 3});
+	}
+	
+	@Test(groups = "fast")
+	public void testSubMicrosecondDurations() {
+		final BluePayHistogram histogram = new BluePayHistogram();
+		histogram.record(1);
+		histogram.record(1023);
+		
+		final long[] counts = new long[2];
+		Assert.assertEquals(histogram.getCumulativeCounts(new long[]{1022, 1023}, counts), 2);
+		Assert.assertEquals(counts, new long[]{0, 2});
+		// a percentile is never past the longest duration
+		Assert.assertEquals(histogram.snapshot().getValueAtPercentile(50), 1023);
+	}
+	
+	@Test(groups = "fast")
+	public void testCumulativeCountsWithinASixteenth() {
+		final Random random = new Random(42);
+		final long[] values = new long[10000];
+		final BluePayHistogram histogram = new BluePayHistogram();
+		for (int i = 0; i < values.length; i++) {
+			// 1 ns to about 17 minutes, spread over every power of two
+			values[i] = (long) Math.pow(2, random.nextDouble() * 40);
+			histogram.record(values[i]);
+		}
+		Arrays.sort(values);
+		
+		final long[] bounds = new long[400];
+		for (int i = 0; i < bounds.length; i++) {
+			bounds[i] = (long) Math.pow(2, i / 10d);
+		}
+		final long[] counts = new long[bounds.length];
+		Assert.assertEquals(histogram.getCumulativeCounts(bounds, counts), values.length);
+		for (int i = 0; i < bounds.length; i++) {
+			// never more than the durations at or below the bound, and at least those a sixteenth, or a unit, below it
+			Assert.assertTrue(counts[i] <= countAtMost(values, bounds[i]), "bound " + bounds[i]);
+			Assert.assertTrue(counts[i] >= countAtMost(values, bounds[i] - Math.max(bounds[i] / 16, 1024) - 1), "bound " + bounds[i]);
+			Assert.assertTrue(i == 0 || counts[i] >= counts[i - 1]);
+		}
+	}
+	
+	@Test(groups = "fast")
+	public void testPercentiles() {
+		final BluePayHistogram histogram = new BluePayHistogram();
+		for (long micros = 1; micros <= 1000; micros++) {
+			histogram.record(micros * 1000);
+		}
+		final BluePayHistogram.Snapshot snapshot = histogram.snapshot();
+		Assert.assertEquals(snapshot.getCount(), 1000);
+		Assert.assertEquals(snapshot.getMax(), 1000000);
+		Assert.assertEquals(snapshot.getMean(), 500500d);
+		Assert.assertEquals(snapshot.getSum(), histogram.getSum());
+		
+		assertWithinASixteenth(snapshot.getValueAtPercentile(50), 500000);
+		assertWithinASixteenth(snapshot.getValueAtPercentile(99), 990000);
+		assertWithinASixteenth(snapshot.getValueAtPercentile(0), 1000);
+		// never past the longest duration
+		Assert.assertEquals(snapshot.getValueAtPercentile(100), 1000000);
+	}
+	
+	@Test(groups = "fast")
+	public void testOutOfRangeValues() {
+		final BluePayHistogram histogram = new BluePayHistogram();
+		histogram.record(-5);
+		histogram.record(Long.MAX_VALUE);
+		
+		final BluePayHistogram.Snapshot snapshot = histogram.snapshot();
+		Assert.assertEquals(snapshot.getCount(), 2);
+		// negative durations are counted in the first unit
+		Assert.assertEquals(snapshot.getValueAtPercentile(50), 1023);
+		// longer durations are counted as about 18 minutes
+		Assert.assertEquals(snapshot.getMax(), (1L << 40) - 1);
+		Assert.assertEquals(snapshot.getSum(), (1L << 40) - 1);
+	}
+	
+	@Test(groups = "fast")
+	public void testEmpty() {
+		final BluePayHistogram histogram = new BluePayHistogram();
+		final long[] counts = {-1, -1};
+		Assert.assertEquals(histogram.getCumulativeCounts(new long[]{1, 1000}, counts), 0);
+		Assert.assertEquals(counts, new long[]{0, 0});
+		
+		final BluePayHistogram.Snapshot snapshot = histogram.snapshot();
+		Assert.assertEquals(snapshot.getCount(), 0);
+		Assert.assertEquals(snapshot.getMean(), 0d);
+		Assert.assertEquals(snapshot.getValueAtPercentile(99), 0);
+	}
+	
+	private static long countAtMost(final long[] sorted, final long bound) {
+		int count = 0;
+		while (count < sorted.length && sorted[count] <= bound) {
+			count++;
+		}
+		return count;
+	}
+	
+	private static void assertWithinASixteenth(final long actual, final long expected) {
+		Assert.assertTrue(actual >= expected && actual <= expected + expected / 16, actual + " for " + expected);
+	}
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbluepayplugin;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.joda.time.DateTime;
+import org.killbill.billing.account.api.Account;
+import org.killbill.billing.account.api.AccountUserApi;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillLogService;
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.payment.plugin.api.PaymentPluginApiException;
+import org.killbill.billing.payment.plugin.api.PaymentPluginStatus;
+import org.killbill.billing.payment.plugin.api.PaymentTransactionInfoPlugin;
+import org.killbill.billing.plugin.api.PluginCallContext;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.osgi.framework.BundleContext;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+
+public class TestBluePayPaymentPluginApi {
+	
+	private static final UUID TENANT_ID = UUID.randomUUID();
+	private static final UUID ACCOUNT_ID = UUID.randomUUID();
+	private static final UUID PAYMENT_METHOD_ID = UUID.randomUUID();
+	private static final String MERCHANT = "100221257378";
+	private static final String SECRET_KEY = "ABCDEFGHIJKLMNOPQRSTUVWXYZ012345";
+	private static final long SOCKET_TIMEOUT = 200;
+	// slow enough for the socket timeout to fire, which the I/O reactor checks about once a second
+	private static final long LOST_LATENCY = 1500;
+	
+	private BluePayGatewaySimulator gateway;
+	private JdbcDataSource h2;
+	private Connection keepAlive;
+	private BluePayDao dao;
+	private BluePayHttpClient httpClient;
+	private BluePayPaymentPluginApi api;
+	private CallContext context;
+	
+	@BeforeMethod(groups = "fast")
+	public void setUp() throws Exception {
+		gateway = new BluePayGatewaySimulator().addMerchant(MERCHANT, SECRET_KEY);
+		h2 = new JdbcDataSource();
+		h2.setURL("jdbc:h2:mem:bluepay-" + UUID.randomUUID() + ";MODE=MySQL");
+		// the in-memory database lives as long as one connection is open
+		keepAlive = h2.getConnection();
+		createTables(keepAlive);
+		context = new PluginCallContext(BluePayActivator.PLUGIN_NAME, DateTime.now(), TENANT_ID);
+		
+		final Properties properties = new Properties();
+		properties.setProperty(BluePayHttpClient.PROPERTY_PREFIX + "socketTimeout", String.valueOf(SOCKET_TIMEOUT));
+		// a transaction BluePay doesn't know is given up on at once
+		properties.setProperty(BluePayPaymentPluginApi.PROPERTY_PREFIX + "pendingTimeout", "0");
+		createApi(properties);
+	}
+	
+	@AfterMethod(groups = "fast")
+	public void tearDown() throws Exception {
+		httpClient.close();
+		gateway.close();
+		keepAlive.close();
+	}
+	
+	@Test(groups = "fast")
+	public void testAuthorizeCaptureRefund() throws Exception {
+		final UUID kbPaymentId = UUID.randomUUID();
+		final PaymentTransactionInfoPlugin authorization = authorize(kbPaymentId, UUID.randomUUID());
+		assertProcessed(authorization, TransactionType.AUTHORIZE);
+		final PaymentTransactionInfoPlugin capture = capture(kbPaymentId, UUID.randomUUID());
+		assertProcessed(capture, TransactionType.CAPTURE);
+		final PaymentTransactionInfoPlugin refund = refund(kbPaymentId, UUID.randomUUID());
+		assertProcessed(refund, TransactionType.REFUND);
+		
+		final List<PaymentTransactionInfoPlugin> journaled = api.getPaymentInfo(ACCOUNT_ID, kbPaymentId, Collections.<PluginProperty>emptyList(), context);
+		Assert.assertEquals(journaled.size(), 3);
+		for (int i = 0; i < 3; i++) {
+			Assert.assertEquals(journaled.get(i).getStatus(), PaymentPluginStatus.PROCESSED);
+		}
+		Assert.assertEquals(journaled.get(0).getFirstPaymentReferenceId(), authorization.getFirstPaymentReferenceId());
+		Assert.assertEquals(journaled.get(2).getTransactionType(), TransactionType.REFUND);
+		Assert.assertEquals(gateway.getSealFailureCount(), 0);
+	}
+	
+	@Test(groups = "fast")
+	public void testPurchaseVoid() throws Exception {
+		final UUID kbPaymentId = UUID.randomUUID();
+		assertProcessed(purchase(kbPaymentId, UUID.randomUUID()), TransactionType.PURCHASE);
+		assertProcessed(voidPayment(kbPaymentId, UUID.randomUUID()), TransactionType.VOID);
+		Assert.assertEquals(gateway.getSealFailureCount(), 0);
+	}
+	
+	@Test(groups = "fast")
+	public void testFollowUpWithoutOriginal() throws Exception {
+		// nothing was authorized, so there is nothing to capture, and nothing is sent
+		try {
+			capture(UUID.randomUUID(), UUID.randomUUID());
+			Assert.fail();
+		} catch (PaymentPluginApiException e) {
+			Assert.assertTrue(e.getMessage().contains("no BluePay transaction to CAPTURE"), e.getMessage());
+		}
+		Assert.assertEquals(gateway.getRequestCount(), 0);
+	}
+	
+	@Test(groups = "fast")
+	public void testRetriesAreAnsweredFromTheJournal() throws Exception {
+		for (final TransactionType transactionType : new TransactionType[]{TransactionType.AUTHORIZE, TransactionType.CAPTURE, TransactionType.REFUND, TransactionType.PURCHASE, TransactionType.VOID}) {
+			final UUID kbPaymentId = UUID.randomUUID();
+			prepare(transactionType, kbPaymentId);
+			final UUID kbTransactionId = UUID.randomUUID();
+			final PaymentTransactionInfoPlugin first = send(transactionType, kbPaymentId, kbTransactionId);
+			assertProcessed(first, transactionType);
+			
+			final long requests = gateway.getRequestCount();
+			final PaymentTransactionInfoPlugin retry = send(transactionType, kbPaymentId, kbTransactionId);
+			Assert.assertEquals(gateway.getRequestCount(), requests, transactionType.toString());
+			Assert.assertEquals(retry.getStatus(), PaymentPluginStatus.PROCESSED);
+			Assert.assertEquals(retry.getFirstPaymentReferenceId(), first.getFirstPaymentReferenceId());
+		}
+	}
+	
+	@Test(groups = "fast")
+	public void testLostAnswersAreReconciled() throws Exception {
+		for (final TransactionType transactionType : new TransactionType[]{TransactionType.AUTHORIZE, TransactionType.CAPTURE, TransactionType.REFUND, TransactionType.PURCHASE, TransactionType.VOID}) {
+			final UUID kbPaymentId = UUID.randomUUID();
+			prepare(transactionType, kbPaymentId);
+			final UUID kbTransactionId = UUID.randomUUID();
+			
+			// BluePay takes the transaction, but its answer comes after the plugin gave up waiting
+			gateway.setLatency(LOST_LATENCY, 0);
+			final PaymentTransactionInfoPlugin lost = send(transactionType, kbPaymentId, kbTransactionId);
+			Assert.assertEquals(lost.getStatus(), PaymentPluginStatus.UNDEFINED, transactionType.toString());
+			Assert.assertEquals(dao.getTransaction(TENANT_ID, kbTransactionId).getStatus(), PaymentPluginStatus.UNDEFINED);
+			gateway.setLatency(0, 0);
+			Thread.sleep(LOST_LATENCY);
+			
+			// the retry finds it at BluePay by its order ID instead of sending it twice
+			final long requests = gateway.getRequestCount();
+			final PaymentTransactionInfoPlugin retry = send(transactionType, kbPaymentId, kbTransactionId);
+			Assert.assertEquals(gateway.getRequestCount(), requests + 1, transactionType.toString());
+			Assert.assertEquals(retry.getTransactionType(), transactionType);
+			Assert.assertEquals(retry.getStatus(), PaymentPluginStatus.PROCESSED, transactionType.toString());
+			Assert.assertNotNull(retry.getFirstPaymentReferenceId());
+			Assert.assertEquals(dao.getTransaction(TENANT_ID, kbTransactionId).getStatus(), PaymentPluginStatus.PROCESSED);
+		}
+	}
+	
+	@Test(groups = "fast")
+	public void testUnsentTransactionsAreSentAgain() throws Exception {
+		for (final TransactionType transactionType : new TransactionType[]{TransactionType.AUTHORIZE, TransactionType.CAPTURE, TransactionType.REFUND, TransactionType.PURCHASE, TransactionType.VOID}) {
+			final UUID kbPaymentId = UUID.randomUUID();
+			prepare(transactionType, kbPaymentId);
+			final UUID kbTransactionId = UUID.randomUUID();
+			
+			// the request is lost before BluePay acts on it
+			gateway.setTimeouts(1, LOST_LATENCY);
+			final PaymentTransactionInfoPlugin lost = send(transactionType, kbPaymentId, kbTransactionId);
+			Assert.assertEquals(lost.getStatus(), PaymentPluginStatus.UNDEFINED, transactionType.toString());
+			gateway.setTimeouts(0, 0);
+			
+			// the retry doesn't find it at BluePay, so it is canceled and sent again
+			final long requests = gateway.getRequestCount();
+			final PaymentTransactionInfoPlugin retry = send(transactionType, kbPaymentId, kbTransactionId);
+			Assert.assertEquals(gateway.getRequestCount(), requests + 2, transactionType.toString());
+			assertProcessed(retry, transactionType);
+		}
+	}
+	
+	@Test(groups = "fast")
+	public void testRejectedBeforeSendingIsCanceled() throws Exception {
+		httpClient.close();
+		final Properties properties = new Properties();
+		// an HTTP client that never has a slot for a request, so nothing reaches the gateway
+		properties.setProperty(BluePayHttpClient.PROPERTY_PREFIX + "maxInFlight", "0");
+		properties.setProperty(BluePayHttpClient.PROPERTY_PREFIX + "connectionRequestTimeout", "10");
+		createApi(properties);
+		
+		final UUID kbPaymentId = UUID.randomUUID();
+		final UUID kbTransactionId = UUID.randomUUID();
+		final PaymentTransactionInfoPlugin transaction = purchase(kbPaymentId, kbTransactionId);
+		Assert.assertEquals(transaction.getStatus(), PaymentPluginStatus.CANCELED);
+		Assert.assertTrue(transaction.getGatewayError().contains("in flight"), transaction.getGatewayError());
+		Assert.assertEquals(dao.getTransaction(TENANT_ID, kbTransactionId).getStatus(), PaymentPluginStatus.CANCELED);
+		
+		// the request never left, so a retry may send it at once instead of waiting for the journal to be reconciled
+		final BluePayTransaction retry = BluePayTransaction.pending(TENANT_ID, ACCOUNT_ID, kbPaymentId, kbTransactionId, PAYMENT_METHOD_ID,
+				TransactionType.PURCHASE, new BigDecimal("25.00"), Currency.USD);
+		Assert.assertNull(dao.claimTransaction(retry));
+		Assert.assertEquals(dao.getTransaction(TENANT_ID, kbTransactionId).getStatus(), PaymentPluginStatus.PENDING);
+	}
+	
+	private void createApi(final Properties properties) throws Exception {
+		final BundleContext bundleContext = TestBluePayDao.nullProxy(BundleContext.class);
+		dao = new BluePayDao(new TestBluePayDao.StaticDataSource(bundleContext, h2));
+		httpClient = new BluePayHttpClient(properties);
+		final BluePay bluePay = new BluePay(httpClient, gateway.getGatewayUrl(), properties);
+		final SilentLogService logService = new SilentLogService(bundleContext);
+		api = new BluePayPaymentPluginApi(properties, logService, new StubKillbillAPI(bundleContext), dao, bluePay,
+				new BluePayCredentialsCache(properties, dao), new BluePayPaymentMethodCache(properties),
+				new BluePayPaymentMethodRefresher(properties, logService, bluePay, dao), BluePayBulkhead.registry(properties), BluePayTimer.registry());
+	}
+	
+	/**
+	 * Sends what a transaction of the given type applies to.
+	 */
+	private void prepare(final TransactionType transactionType, final UUID kbPaymentId) throws PaymentPluginApiException {
+		switch (transactionType) {
+			case CAPTURE:
+				assertProcessed(authorize(kbPaymentId, UUID.randomUUID()), TransactionType.AUTHORIZE);
+				break;
+			case REFUND:
+			case VOID:
+				assertProcessed(purchase(kbPaymentId, UUID.randomUUID()), TransactionType.PURCHASE);
+				break;
+			default:
+				break;
+		}
+	}
+	
+	private PaymentTransactionInfoPlugin send(final TransactionType transactionType, final UUID kbPaymentId, final UUID kbTransactionId) throws PaymentPluginApiException {
+		switch (transactionType) {
+			case AUTHORIZE:
+				return authorize(kbPaymentId, kbTransactionId);
+			case CAPTURE:
+				return capture(kbPaymentId, kbTransactionId);
+			case REFUND:
+				return refund(kbPaymentId, kbTransactionId);
+			case VOID:
+				return voidPayment(kbPaymentId, kbTransactionId);
+			default:
+				return purchase(kbPaymentId, kbTransactionId);
+		}
+	}
+	
+	private PaymentTransactionInfoPlugin authorize(final UUID kbPaymentId, final UUID kbTransactionId) throws PaymentPluginApiException {
+		return api.authorizePayment(ACCOUNT_ID, kbPaymentId, kbTransactionId, PAYMENT_METHOD_ID, new BigDecimal("25.00"), Currency.USD, Collections.<PluginProperty>emptyList(), context);
+	}
+	
+	private PaymentTransactionInfoPlugin purchase(final UUID kbPaymentId, final UUID kbTransactionId) throws PaymentPluginApiException {
+		return api.purchasePayment(ACCOUNT_ID, kbPaymentId, kbTransactionId, PAYMENT_METHOD_ID, new BigDecimal("25.00"), Currency.USD, Collections.<PluginProperty>emptyList(), context);
+	}
+	
+	private PaymentTransactionInfoPlugin capture(final UUID kbPaymentId, final UUID kbTransactionId) throws PaymentPluginApiException {
+		return api.capturePayment(ACCOUNT_ID, kbPaymentId, kbTransactionId, PAYMENT_METHOD_ID, new BigDecimal("25.00"), Currency.USD, Collections.<PluginProperty>emptyList(), context);
+	}
+	
+	private PaymentTransactionInfoPlugin refund(final UUID kbPaymentId, final UUID kbTransactionId) throws PaymentPluginApiException {
+		return api.refundPayment(ACCOUNT_ID, kbPaymentId, kbTransactionId, PAYMENT_METHOD_ID, new BigDecimal("10.00"), Currency.USD, Collections.<PluginProperty>emptyList(), context);
+	}
+	
+	private PaymentTransactionInfoPlugin voidPayment(final UUID kbPaymentId, final UUID kbTransactionId) throws PaymentPluginApiException {
+		return api.voidPayment(ACCOUNT_ID, kbPaymentId, kbTransactionId, PAYMENT_METHOD_ID, Collections.<PluginProperty>emptyList(), context);
+	}
+	
+	private static void assertProcessed(final PaymentTransactionInfoPlugin transaction, final TransactionType transactionType) {
+		Assert.assertEquals(transaction.getTransactionType(), transactionType);
+		Assert.assertEquals(transaction.getStatus(), PaymentPluginStatus.PROCESSED, transactionType + ": " + transaction.getGatewayError());
+		Assert.assertNotNull(transaction.getFirstPaymentReferenceId());
+	}
+	
+	private static void createTables(final Connection connection) throws SQLException {
+		try (Statement statement = connection.createStatement()) {
+			statement.execute("CREATE TABLE `bluePay_paymentMethods` (`id` INT AUTO_INCREMENT PRIMARY KEY, `tenantId` VARCHAR(255), `kbAccountId` VARCHAR(255), `paymentMethodId` VARCHAR(255) NOT NULL UNIQUE, `transactionId` VARCHAR(255) NOT NULL, `cardType` VARCHAR(32), `lastFour` VARCHAR(4), `maskedAccount` VARCHAR(255), `bankName` VARCHAR(255), `expiration` VARCHAR(8))");
+			statement.execute("CREATE TABLE `bluePay_credentials` (`id` INT AUTO_INCREMENT PRIMARY KEY, `tenantId` VARCHAR(255) NOT NULL UNIQUE, `accountId` VARCHAR(255), `secretKey` VARCHAR(255), `test` BOOLEAN)");
+			statement.execute("CREATE TABLE `bluePay_transactions` (`id` BIGINT AUTO_INCREMENT PRIMARY KEY, `tenantId` VARCHAR(255) NOT NULL, `kbAccountId` VARCHAR(255) NOT NULL, `kbPaymentId` VARCHAR(255) NOT NULL, `kbTransactionId` VARCHAR(255) NOT NULL UNIQUE, `kbPaymentMethodId` VARCHAR(255), `transactionType` VARCHAR(32) NOT NULL, `amount` DECIMAL(15, 9), `currency` CHAR(3), `status` VARCHAR(32) NOT NULL, `bluePayTransactionId` VARCHAR(255), `gatewayStatus` VARCHAR(32), `message` TEXT, `avs` VARCHAR(8), `cvv2` VARCHAR(8), `authCode` VARCHAR(32), `maskedAccount` VARCHAR(255), `cardType` VARCHAR(32), `createdDate` TIMESTAMP NOT NULL, `effectiveDate` TIMESTAMP NOT NULL)");
+			statement.execute("INSERT INTO `bluePay_credentials` (`tenantId`, `accountId`, `secretKey`, `test`) VALUES ('" + TENANT_ID + "', '" + MERCHANT + "', '" + SECRET_KEY + "', TRUE)");
+			statement.execute("INSERT INTO `bluePay_paymentMethods` (`tenantId`, `kbAccountId`, `paymentMethodId`, `transactionId`) VALUES ('" + TENANT_ID + "', '" + ACCOUNT_ID + "', '" + PAYMENT_METHOD_ID + "', '100366289484')");
+		}
+	}
+	
+	private static class StubKillbillAPI extends OSGIKillbillAPI {
+		
+		private final AccountUserApi accountUserApi = (AccountUserApi) Proxy.newProxyInstance(AccountUserApi.class.getClassLoader(), new Class<?>[]{AccountUserApi.class}, new InvocationHandler() {
+			@Override
+			public Object invoke(final Object proxy, final Method method, final Object[] args) {
+				return method.getName().equals("getAccountById") ? TestBluePayDao.nullProxy(Account.class) : null;
+			}
+		});
+		
+		StubKillbillAPI(final BundleContext context) {
+			super(context);
+		}
+		
+		@Override
+		public AccountUserApi getAccountUserApi() {
+			return accountUserApi;
+		}
+	}
+	
+	private static class SilentLogService extends OSGIKillbillLogService {
+		
+		SilentLogService(final BundleContext context) {
+			super(context);
+		}
+		
+		@Override
+		public void log(final int level, final String message) {
+		}
+		
+		@Override
+		public void log(final int level, final String message, final Throwable exception) {
+		}
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2014-2015 Groupon, Inc
+ * Copyright 2014-2015 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.fathomstudio.killbillbluepayplugin;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestBluePayReportParser {
+	
+	// quoted fields with commas, doubled quotes and a line break, CRLF line ends, and no line break after the last row
+	private static final String REPORT = "\"id\",\"payment_type\",\"trans_type\",\"amount\",\"status\",\"message\"\r\n"
+			+ "\"100000000001\",\"CREDIT\",\"SALE\",\"10.00\",\"1\",\"Approved Sale\"\r\n"
+			+ "\"100000000002\",\"CREDIT\",\"SALE\",\"20.00\",\"0\",\"He said \"\"no\"\", twice\"\r\n"
+			+ "\r\n"
+			+ "\"100000000003\",\"ACH\",\"REFUND\",\"5.50\",\"1\",\"line one\nline two\"";
+	
+	@Test(groups = "fast")
+	public void testReadsEveryRow() throws IOException {
+		final List<BluePayReportRow> rows = new ArrayList<BluePayReportRow>();
+		Assert.assertEquals(parse(REPORT, REPORT.length(), rows), 3);
+		
+		Assert.assertEquals(rows.get(0).getId(), "100000000001");
+		Assert.assertEquals(rows.get(0).getAmount(), new BigDecimal("10.00"));
+		Assert.assertTrue(rows.get(0).isApproved());
+		Assert.assertEquals(rows.get(1).getMessage(), "He said \"no\", twice");
+		Assert.assertFalse(rows.get(1).isApproved());
+		Assert.assertEquals(rows.get(2).getPaymentType(), "ACH");
+		Assert.assertEquals(rows.get(2).getTransType(), "REFUND");
+		Assert.assertEquals(rows.get(2).getMessage(), "line one\nline two");
+		Assert.assertEquals(rows.get(2).get("status"), "1");
+		Assert.assertNull(rows.get(2).get("rebilling_id"));
+	}
+	
+	@Test(groups = "fast")
+	public void testRowsSplitAcrossChunks() throws IOException {
+		final List<BluePayReportRow> expected = new ArrayList<BluePayReportRow>();
+		parse(REPORT, REPORT.length(), expected);
+		
+		// every chunk size splits rows, fields, quotes and CRLFs at a different place
+		for (int chunkSize = 1; chunkSize < REPORT.length(); chunkSize++) {
+			final List<BluePayReportRow> rows = new ArrayList<BluePayReportRow>();
+			Assert.assertEquals(parse(REPORT, chunkSize, rows), expected.size(), "chunk size " + chunkSize);
+			for (int i = 0; i < expected.size(); i++) {
+				Assert.assertEquals(rows.get(i).getId(), expected.get(i).getId(), "chunk size " + chunkSize);
+				Assert.assertEquals(rows.get(i).getAmount(), expected.get(i).getAmount(), "chunk size " + chunkSize);
+				Assert.assertEquals(rows.get(i).getMessage(), expected.get(i).getMessage(), "chunk size " + chunkSize);
+			}
+		}
+	}
+	
+	@Test(groups = "fast")
+	public void testUnquotedReport() throws IOException {
+		final List<BluePayReportRow> rows = new ArrayList<BluePayReportRow>();
+		Assert.assertEquals(parse("id,trans_type,amount\n100000000001,SALE,1.00\n100000000002,VOID,\n", 5, rows), 2);
+		Assert.assertEquals(rows.get(1).getId(), "100000000002");
+		Assert.assertEquals(rows.get(1).getTransType(), "VOID");
+		Assert.assertNull(rows.get(1).getAmount());
+	}
+	
+	@Test(groups = "fast")
+	public void testGatewayError() {
+		try {
+			parse("Result=ERROR&MESSAGE=MISSING+REPORT_START_DATE\n", 7, new ArrayList<BluePayReportRow>());
+			Assert.fail();
+		} catch (IOException e) {
+			Assert.assertEquals(e.getMessage(), "BluePay report failed: MISSING REPORT_START_DATE");
+		}
+	}
+	
+	@Test(groups = "fast", expectedExceptions = IOException.class)
+	public void testEmptyReport() throws IOException {
+		parse("", 1, new ArrayList<BluePayReportRow>());
+	}
+	
+	/**
+	 * Feeds the report to a parser in chunks, as the response arrives.
+	 */
+	private static long parse(final String report, final int chunkSize, final List<BluePayReportRow> rows) throws IOException {
+		final BluePayReportParser parser = new BluePayReportParser(new BluePayReportHandler() {
+			@Override
+			public void onRow(final BluePayReportRow row) {
+				rows.add(row);
+			}
+		});
+		for (int start = 0; start < report.length(); start += chunkSize) {
+			parser.feed(CharBuffer.wrap(report, start, Math.min(report.length(), start + chunkSize)));
+		}
+		return parser.finish();
+	}
+}